@@ -49,6 +49,16 @@ DEBUG="\
 -Ddebug.StealthNet.BankThread.Commands.Null=true \
 -Ddebug.StealthNet.BankThread.Commands.Login=true \
 -Ddebug.StealthNet.BankThread.Commands.Logout=true \
+-Ddebug.StealthNet.BankThread.Commands.Balance=true \
+-Ddebug.StealthNet.BankThread.Commands.Debit=true \
+-Ddebug.StealthNet.BankThread.Commands.Credit=true \
+-Ddebug.StealthNet.BankThread.Commands.Transfer=true \
+-Ddebug.StealthNet.BankThread.Commands.SignChain=true \
+-Ddebug.StealthNet.BankThread.Commands.Redeem=true \
+\
+-Ddebug.StealthNet.BroadcastScheduler=false \
+-Ddebug.StealthNet.BroadcastScheduler.General=true \
+-Ddebug.StealthNet.BroadcastScheduler.ErrorTrace=true \
 \
 -Ddebug.StealthNet.Chat=false \
 -Ddebug.StealthNet.Chat.General=true \
@@ -63,7 +73,11 @@ DEBUG="\
 -Ddebug.StealthNet.Client.Commands.FTP=true \
 -Ddebug.StealthNet.Client.Commands.List=true \
 -Ddebug.StealthNet.Client.Commands.SecretList=true \
+-Ddebug.StealthNet.Client.Commands.SecretInfo=true \
+-Ddebug.StealthNet.Client.Commands.Search=true \
 -Ddebug.StealthNet.Client.Commands.GetSecret=true \
+-Ddebug.StealthNet.Client.Commands.GetPublicKey=true \
+-Ddebug.StealthNet.Client.Commands.Credit=true \
 -Ddebug.StealthNet.Client.AsymmetricEncryption=true \
 \
 -Ddebug.StealthNet.Comms=false \
@@ -80,6 +94,15 @@ DEBUG="\
 -Ddebug.StealthNet.Comms.Integrity=true \
 -Ddebug.StealthNet.Comms.ReplayPrevention=true \
 -Ddebug.StealthNet.Comms.AsymmetricEncryption=true \
+-Ddebug.StealthNet.Comms.Framing=true \
+-Ddebug.StealthNet.Comms.Handshake=true \
+\
+-Ddebug.StealthNet.ConnectionExecutor=false \
+-Ddebug.StealthNet.ConnectionExecutor.General=true \
+-Ddebug.StealthNet.ConnectionExecutor.ErrorTrace=true \
+\
+-Ddebug.StealthNet.CryptoCredit=false \
+-Ddebug.StealthNet.CryptoCredit.General=true \
 \
 -Ddebug.StealthNet.EncryptedFile=false \
 -Ddebug.StealthNet.EncryptedFile.FileIO=true \
@@ -89,6 +112,18 @@ DEBUG="\
 -Ddebug.StealthNet.FileTransfer.ErrorTrace=true \
 -Ddebug.StealthNet.FileTransfer.Transfer=true \
 \
+-Ddebug.StealthNet.HandshakeExecutor=false \
+-Ddebug.StealthNet.HandshakeExecutor.General=true \
+-Ddebug.StealthNet.HandshakeExecutor.ErrorTrace=true \
+\
+-Ddebug.StealthNet.OutboundQueue=false \
+-Ddebug.StealthNet.OutboundQueue.General=true \
+-Ddebug.StealthNet.OutboundQueue.ErrorTrace=true \
+\
+-Ddebug.StealthNet.PaymentRedeemer=false \
+-Ddebug.StealthNet.PaymentRedeemer.General=true \
+-Ddebug.StealthNet.PaymentRedeemer.ErrorTrace=true \
+\
 -Ddebug.StealthNet.Proxy=false \
 -Ddebug.StealthNet.Proxy.General=true \
 -Ddebug.StealthNet.Proxy.ErrorTrace=true \
@@ -103,6 +138,10 @@ DEBUG="\
 -Ddebug.StealthNet.ProxyThread.General=true \
 -Ddebug.StealthNet.ProxyThread.ErrorTrace=true \
 \
+-Ddebug.StealthNet.Reactor=false \
+-Ddebug.StealthNet.Reactor.General=true \
+-Ddebug.StealthNet.Reactor.ErrorTrace=true \
+\
 -Ddebug.StealthNet.Server=false \
 -Ddebug.StealthNet.Server.General=true \
 -Ddebug.StealthNet.Server.ErrorTrace=true \
@@ -115,11 +154,29 @@ DEBUG="\
 -Ddebug.StealthNet.ServerThread.Commands.Null=true \
 -Ddebug.StealthNet.ServerThread.Commands.Login=true \
 -Ddebug.StealthNet.ServerThread.Commands.Logout=true \
+-Ddebug.StealthNet.ServerThread.Commands.List=true \
 -Ddebug.StealthNet.ServerThread.Commands.Message=true \
 -Ddebug.StealthNet.ServerThread.Commands.Chat=true \
 -Ddebug.StealthNet.ServerThread.Commands.FTP=true \
 -Ddebug.StealthNet.ServerThread.Commands.CreateSecret=true \
+-Ddebug.StealthNet.ServerThread.Commands.SecretList=true \
+-Ddebug.StealthNet.ServerThread.Commands.SecretInfo=true \
+-Ddebug.StealthNet.ServerThread.Commands.Search=true \
 -Ddebug.StealthNet.ServerThread.Commands.GetSecret=true \
+-Ddebug.StealthNet.ServerThread.Commands.GetPublicKey=true \
+-Ddebug.StealthNet.ServerThread.Commands.Commitment=true \
+\
+-Ddebug.StealthNet.ShardedLedger=false \
+-Ddebug.StealthNet.ShardedLedger.General=true \
+-Ddebug.StealthNet.ShardedLedger.ErrorTrace=true \
+\
+-Ddebug.StealthNet.StripedLedger=false \
+-Ddebug.StealthNet.StripedLedger.General=true \
+-Ddebug.StealthNet.StripedLedger.ErrorTrace=true \
+\
+-Ddebug.StealthNet.WriteAheadLog=false \
+-Ddebug.StealthNet.WriteAheadLog.General=true \
+-Ddebug.StealthNet.WriteAheadLog.ErrorTrace=true \
 "
 DEBUG_ARG=
 ADDITIONAL_ARG=
@@ -18,9 +18,11 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.KeyPair;
+import java.security.PublicKey;
 
 import StealthNet.Security.AsymmetricEncryption;
 import StealthNet.Security.RSAAsymmetricEncryption;
+import StealthNet.Security.SessionTicketIssuer;
 
 /* StealthNet.Bank Class Definition ******************************************/
 
@@ -39,6 +41,7 @@ public class Bank {
 	private static final String PUBLIC_KEY_FILE = "keys/bank/public.key";
 	private static final String PRIVATE_KEY_FILE = "keys/bank/private.key";
 	private static final String PRIVATE_KEY_FILE_PASSWORD = "bank";
+	private static final String SERVER_PUBLIC_KEY_FILE = "keys/server/public.key";
 
 	/**
 	 * The main Bank function.
@@ -73,6 +76,31 @@ public class Bank {
 			System.out.println("Private key: " + privateKeyString);
 		}
 
+		/**
+		 * Create a single ticket issuer, shared by all connections, so that
+		 * clients can resume their sessions without a key exchange.
+		 */
+		SessionTicketIssuer ticketIssuer = null;
+		try {
+			ticketIssuer = new SessionTicketIssuer();
+		} catch (final Exception e) {
+			System.err.println("Unable to create session ticket issuer. Sessions will not be resumed.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+
+		/** Recover the balances of all accounts. */
+		BankThread.recoverState();
+
+		/** The bank signs the hash chains that clients pay with. */
+		BankThread.setKeys(bankKeys);
+
+		/** Only the server may change balances directly. */
+		final PublicKey serverPublicKey = Utility.getPublicKey(SERVER_PUBLIC_KEY_FILE);
+		if (serverPublicKey == null)
+			System.err.println("Unable to determine server public key. Accounts can't be debited or credited.");
+		else
+			BankThread.setServerKey(serverPublicKey);
+
 		/** Port that the bank is listening on. */
 		int port = Comms.DEFAULT_BANKPORT;
 
@@ -103,16 +131,24 @@ public class Bank {
 		if (DEBUG_GENERAL) System.out.println("Bank is listening on port " + port + ".");
 		System.out.println("Bank online...");
 
+		/**
+		 * Perform handshakes on separate threads, so that accepting is never
+		 * delayed. Then run connection handlers in the configured mode.
+		 */
+		final HandshakeExecutor handshakeExecutor = new HandshakeExecutor("Bank", new ConnectionExecutor("Bank"));
+
 		/**
 		 * Wait for and accept connections on the server socket. Create a new
-		 * thread for each connection.
+		 * handler for each connection. The handler is run once the handshake
+		 * has completed. Note that the client already has our public key and
+		 * can hence encrypt messages destined for us.
 		 */
 		while (true)
 			try {
 				final Socket conn = svrSocket.accept();
 				final AsymmetricEncryption ae = new RSAAsymmetricEncryption(bankKeys);
-				final BankThread thread = new BankThread(conn, ae);
-				thread.start();
+				final Comms comms = new Comms(ae, true, ticketIssuer);
+				handshakeExecutor.submit(conn, comms, new BankThread(comms));
 
 				if (DEBUG_GENERAL)
 					System.out.println("Bank accepted connection from " + conn.getInetAddress() + " on port " + conn.getPort() + ".");
@@ -14,48 +14,118 @@ package StealthNet;
 
 /* Import Libraries **********************************************************/
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.security.KeyPair;
+import java.security.PublicKey;
 import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
 
 import StealthNet.Security.AsymmetricEncryption;
+import StealthNet.Security.SessionTicketIssuer;
 
 /* StealthNet.BankThread Class Definition ************************************/
 
 /**
- * TODO
+ * Handles the connection of a single client to the bank. Balances are kept in
+ * a ledger that is shared by all bank threads (see StripedLedger and
+ * ShardedLedger), so that the transactions of different clients don't contend
+ * on a single lock.
  * 
  * @author Joshua Spence
  */
-public class BankThread extends Thread {
+public class BankThread implements Runnable {
 	/** Debug options. */
 	private static final boolean DEBUG_GENERAL          = Debug.isDebug("StealthNet.BankThread.General");
 	private static final boolean DEBUG_ERROR_TRACE      = Debug.isDebug("StealthNet.BankThread.ErrorTrace") || Debug.isDebug("ErrorTrace");
 	private static final boolean DEBUG_COMMANDS_NULL    = Debug.isDebug("StealthNet.BankThread.Commands.Null");
 	private static final boolean DEBUG_COMMANDS_LOGIN   = Debug.isDebug("StealthNet.BankThread.Commands.Login");
 	private static final boolean DEBUG_COMMANDS_LOGOUT  = Debug.isDebug("StealthNet.BankThread.Commands.Logout");
+	private static final boolean DEBUG_COMMANDS_BALANCE = Debug.isDebug("StealthNet.BankThread.Commands.Balance");
+	private static final boolean DEBUG_COMMANDS_DEBIT   = Debug.isDebug("StealthNet.BankThread.Commands.Debit");
+	private static final boolean DEBUG_COMMANDS_CREDIT  = Debug.isDebug("StealthNet.BankThread.Commands.Credit");
+	private static final boolean DEBUG_COMMANDS_TRANSFER = Debug.isDebug("StealthNet.BankThread.Commands.Transfer");
+	private static final boolean DEBUG_COMMANDS_SIGNCHAIN = Debug.isDebug("StealthNet.BankThread.Commands.SignChain");
+	private static final boolean DEBUG_COMMANDS_REDEEM  = Debug.isDebug("StealthNet.BankThread.Commands.Redeem");
 
 	/** Used to separate thread ID from debug output. */
 	private static final String THREADID_PREFIX = "Thread ";
 	private static final String THREADID_SUFFIX = " >> ";
 
+	/** Used to give each instance a unique ID. */
+	private static final AtomicLong nextId = new AtomicLong(0);
+	private final long id = nextId.incrementAndGet();
+
 	/** Constants. */
-	private static final int INITIAL_BALANCE = 100;
+	private static final long INITIAL_BALANCE = 100;
+
+	/**
+	 * The directory that the ledger is journalled to, so that balances survive
+	 * a restart. If empty, then the ledger is not journalled.
+	 */
+	private static final String DATA_DIRECTORY = System.getProperty("StealthNet.BankThread.DataDirectory", "data/bank");
 
 	/**
-	 * Used to store details of the clients available funds.
+	 * Used to store details of the clients that are logged in. Balances are
+	 * kept in the ledger.
 	 */
 	private class UserBankAccount {
 		BankThread userThread = null;
-		int balance = INITIAL_BALANCE;
 	}
 
 	/** A list of users, indexed by their ID. */
 	private static final Hashtable<String, UserBankAccount> userAccounts = new Hashtable<String, UserBankAccount>();
 
+	/**
+	 * How the ledger applies transactions: "striped" (each bank thread locks
+	 * the accounts it changes) or "sharded" (accounts are owned by shard
+	 * threads, which bank threads send their transactions to).
+	 */
+	private static final String LEDGER_MODE = System.getProperty("StealthNet.BankThread.Ledger", "striped");
+
+	/** The balances of all accounts, shared by all bank threads. */
+	private static final Ledger ledger = LEDGER_MODE.equalsIgnoreCase("sharded") ? new ShardedLedger() : new StripedLedger();
+
+	/** The bank's keys, used to sign (and check) hash chain commitments. */
+	private static KeyPair bankKeys = null;
+
+	/** The account that the StealthNet server logs in to. */
+	public static final String SERVER_ACCOUNT = "[server]";
+
+	/**
+	 * The prefix of the accounts that hold the funds of signed hash chains.
+	 * The account of a chain is the prefix followed by its root. Nobody may
+	 * log in to one of these accounts.
+	 */
+	public static final String HOLD_PREFIX = "[hold]";
+
+	/** The last field of a redemption that closes the hash chain. */
+	public static final String REDEEM_CLOSE = "close";
+
+	/**
+	 * The server's public key. Only a session with a peer that holds the
+	 * server's private key may log in to the server account, and only that
+	 * session may debit or credit an account. Null if unknown, in which case
+	 * nobody may.
+	 */
+	private static PublicKey serverKey = null;
+
+	/**
+	 * The hash chains that have been redeemed, indexed by root. Each keeps the
+	 * last token redeemed, so that a token can't be redeemed twice.
+	 */
+	private static final ConcurrentHashMap<String, CryptoCredit.Commitment> redeemedChains = new ConcurrentHashMap<String, CryptoCredit.Commitment>();
+
 	/** The user ID for the user owning the thread. */
 	private String userID = null;
 
+	/** True if our peer has proven that it is the server. */
+	private boolean isServer = false;
+
 	/** A StealthNetComms class to handle communications for this client. */
 	private Comms stealthComms = null;
 
@@ -68,9 +138,17 @@ public class BankThread extends Thread {
 	 * @param socket The socket that the server is listening on.
 	 */
 	public BankThread(final Socket socket, final AsymmetricEncryption aep) {
-		/** Thread constructor. */
-		super("StealthNet.BankThread");
+		this(socket, aep, null);
+	}
 
+	/**
+	 * Constructor.
+	 * 
+	 * @param socket The socket that the server is listening on.
+	 * @param issuer Issues session resumption tickets to the client. May be
+	 * null.
+	 */
+	public BankThread(final Socket socket, final AsymmetricEncryption aep, final SessionTicketIssuer issuer) {
 		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Creating a BankThread.");
 
 		asymmetricEncryptionProvider = aep;
@@ -80,10 +158,23 @@ public class BankThread extends Thread {
 		 * the client already has our public key and can hence encrypt messages
 		 * destined for us.
 		 */
-		stealthComms = new Comms(asymmetricEncryptionProvider, true);
+		stealthComms = new Comms(asymmetricEncryptionProvider, true, issuer);
 		stealthComms.acceptSession(socket);
 	}
 
+	/**
+	 * Constructor for a session that is accepted by the caller. The session
+	 * must have been accepted before the thread is started.
+	 * 
+	 * @param comms The Comms instance for the client.
+	 */
+	public BankThread(final Comms comms) {
+		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Creating a BankThread.");
+
+		asymmetricEncryptionProvider = null;
+		stealthComms = comms;
+	}
+
 	/**
 	 * Cleans up before destroying the class.
 	 * 
@@ -94,6 +185,111 @@ public class BankThread extends Thread {
 			stealthComms.terminateSession();
 	}
 
+	/**
+	 * Recover the ledger from its journal. Must be called before any bank
+	 * thread is started.
+	 */
+	public static void recoverState() {
+		if (DATA_DIRECTORY.length() == 0)
+			return;
+
+		try {
+			final long start = System.nanoTime();
+			final long records = ledger.recover(new File(DATA_DIRECTORY));
+			System.out.println("Recovered " + records + " ledger records (" + LEDGER_MODE + ") in " + (System.nanoTime() - start) / 1000000 + "ms.");
+		} catch (final IOException e) {
+			System.err.println("Failed to recover ledger from \"" + DATA_DIRECTORY + "\". Changes will not be saved.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Set the bank's keys, used to sign hash chain commitments. Must be called
+	 * before any bank thread is started.
+	 *
+	 * @param keys The bank's public and private keys.
+	 */
+	public static void setKeys(final KeyPair keys) {
+		bankKeys = keys;
+	}
+
+	/**
+	 * Set the server's public key, which identifies the server's sessions.
+	 * Must be called before any bank thread is started.
+	 *
+	 * @param key The server's public key.
+	 */
+	public static void setServerKey(final PublicKey key) {
+		serverKey = key;
+	}
+
+	/**
+	 * Get a message describing a ledger error.
+	 *
+	 * @param error The error code returned by the ledger.
+	 * @return A message describing the error.
+	 */
+	private static String getErrorMessage(final long error) {
+		if (error == Ledger.ERROR_UNKNOWN_ACCOUNT)
+			return "Unknown account";
+		else if (error == Ledger.ERROR_INSUFFICIENT_FUNDS)
+			return "Insufficient funds";
+		else if (error == Ledger.ERROR_INVALID_AMOUNT)
+			return "Invalid amount";
+		else if (error == Ledger.ERROR_OVERFLOW)
+			return "Balance too large";
+		else
+			return "Transaction failed";
+	}
+
+	/**
+	 * Send the result of a ledger operation to the client. The new balance is
+	 * sent on success, and an error message on failure.
+	 *
+	 * @param result The result of the ledger operation.
+	 * @param debug True to print debug output.
+	 */
+	private void sendResult(final long result, final boolean debug) {
+		if (result >= 0) {
+			if (debug) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Balance of \"" + userID + "\" is " + result + ".");
+			stealthComms.sendPacket(DecryptedPacket.CMD_BALANCE, Long.toString(result));
+		} else {
+			final String msg = "[*BANK*] " + getErrorMessage(result);
+			if (debug) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+			stealthComms.sendPacket(DecryptedPacket.CMD_MSG, msg);
+		}
+	}
+
+	/**
+	 * Parse the amount of a transaction.
+	 *
+	 * @param amount The amount, as sent by the client.
+	 * @return The amount, or ERROR_INVALID_AMOUNT if it is not a number.
+	 */
+	private static long parseAmount(final String amount) {
+		try {
+			return Long.parseLong(amount.trim());
+		} catch (final NumberFormatException e) {
+			return Ledger.ERROR_INVALID_AMOUNT;
+		}
+	}
+
+	/**
+	 * Get the unique ID of this instance. Used in debug output.
+	 * 
+	 * @return The ID of this instance.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Run this instance on a new platform thread.
+	 */
+	public void start() {
+		new Thread(this, "StealthNet.BankThread").start();
+	}
+
 	/**
 	 * Add a user to the user list. Used to log the specified user into the
 	 * StealthNet bank.
@@ -109,6 +305,10 @@ public class BankThread extends Thread {
 		if (userAccount != null && userAccount.userThread != null)
 			return false;
 		else {
+			/** Open an account for a new user. An existing balance is kept. */
+			if (ledger.openAccount(id, INITIAL_BALANCE) < 0)
+				return false;
+
 			/** Create new user data for the specified user. */
 			userAccount = new UserBankAccount();
 			userAccount.userThread = this;
@@ -183,8 +383,27 @@ public class BankThread extends Thread {
 					/** Extract the user ID from the packet data. */
 					userID = new String(pckt.data);
 
+					/**
+					 * The session is encrypted to the public key that the peer
+					 * sent, so only the holder of the private key can have
+					 * completed the handshake.
+					 */
+					isServer = serverKey != null && serverKey.equals(stealthComms.getPeerPublicKey());
+
 					/** Log the user in. */
-					if (!addUser(userID)) {
+					if (userID.equals(SERVER_ACCOUNT) && !isServer) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Refusing login to the server account without the server's key.");
+
+						/** Cancel the current login attempt. */
+						pckt.command = DecryptedPacket.CMD_LOGOUT;
+						userID = null;
+					} else if (userID.startsWith(HOLD_PREFIX)) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Refusing login to the held funds of a hash chain.");
+
+						/** Cancel the current login attempt. */
+						pckt.command = DecryptedPacket.CMD_LOGOUT;
+						userID = null;
+					} else if (!addUser(userID)) {
 						System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "User \"" + userID + "\" is already logged in.");
 
 						/** Cancel the current login attempt. */
@@ -211,6 +430,250 @@ public class BankThread extends Thread {
 					break;
 				}
 
+				/***********************************************************
+				 * Balance command
+				 **********************************************************/
+				case DecryptedPacket.CMD_BALANCE:
+				{
+					if (DEBUG_COMMANDS_BALANCE) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Received balance command.");
+
+					if (userID == null) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Unknown user requesting a balance.");
+						break;
+					}
+
+					sendResult(ledger.getBalance(userID), DEBUG_COMMANDS_BALANCE);
+					break;
+				}
+
+				/***********************************************************
+				 * Debit command
+				 **********************************************************/
+				case DecryptedPacket.CMD_DEBIT:
+				{
+					if (DEBUG_COMMANDS_DEBIT) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Received debit command.");
+
+					if (userID == null) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Unknown user requesting a debit.");
+						break;
+					}
+					if (!isServer) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "User \"" + userID + "\" is not allowed to debit accounts.");
+						stealthComms.sendPacket(DecryptedPacket.CMD_MSG, "[*BANK*] Not allowed");
+						break;
+					}
+
+					/** The packet data is of the form "account;amount". */
+					final String[] fields = new String(pckt.data).split(";", 2);
+					final long amount = fields.length < 2 ? Ledger.ERROR_INVALID_AMOUNT : parseAmount(fields[1]);
+					sendResult(amount < 0 ? amount : ledger.debit(fields[0], amount), DEBUG_COMMANDS_DEBIT);
+					break;
+				}
+
+				/***********************************************************
+				 * Credit command
+				 **********************************************************/
+				case DecryptedPacket.CMD_CREDIT:
+				{
+					if (DEBUG_COMMANDS_CREDIT) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Received credit command.");
+
+					if (userID == null) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Unknown user requesting a credit.");
+						break;
+					}
+					if (!isServer) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "User \"" + userID + "\" is not allowed to credit accounts.");
+						stealthComms.sendPacket(DecryptedPacket.CMD_MSG, "[*BANK*] Not allowed");
+						break;
+					}
+
+					/** The packet data is of the form "account;amount". */
+					final String[] fields = new String(pckt.data).split(";", 2);
+					final long amount = fields.length < 2 ? Ledger.ERROR_INVALID_AMOUNT : parseAmount(fields[1]);
+					sendResult(amount < 0 ? amount : ledger.credit(fields[0], amount), DEBUG_COMMANDS_CREDIT);
+					break;
+				}
+
+				/***********************************************************
+				 * Transfer command
+				 **********************************************************/
+				case DecryptedPacket.CMD_TRANSFER:
+				{
+					if (DEBUG_COMMANDS_TRANSFER) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Received transfer command.");
+
+					if (userID == null) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Unknown user requesting a transfer.");
+						break;
+					}
+
+					/**
+					 * The packet data is of the form "to;amount". Funds can only
+					 * be moved out of the user's own account.
+					 */
+					final String[] fields = new String(pckt.data).split(";", 2);
+					final long amount = fields.length < 2 ? Ledger.ERROR_INVALID_AMOUNT : parseAmount(fields[1]);
+					sendResult(amount < 0 ? amount : ledger.transfer(userID, fields[0], amount), DEBUG_COMMANDS_TRANSFER);
+					break;
+				}
+
+				/***********************************************************
+				 * Sign Chain command
+				 **********************************************************/
+				case DecryptedPacket.CMD_SIGNCHAIN:
+				{
+					if (DEBUG_COMMANDS_SIGNCHAIN) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Received sign chain command.");
+
+					if (userID == null) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Unknown user requesting a hash chain signature.");
+						break;
+					}
+
+					/**
+					 * The packet data is of the form "root;length". The whole
+					 * length of the chain is moved out of the account and held
+					 * until the chain is closed, so that every token can be
+					 * redeemed. A root can only be signed once.
+					 */
+					final String[] fields = new String(pckt.data).split(";");
+					final long length = fields.length < 2 ? Ledger.ERROR_INVALID_AMOUNT : parseAmount(fields[1]);
+					final String root = Base64.encodeBase64String(Base64.decodeBase64(fields[0])).trim();
+					final String hold = HOLD_PREFIX + root;
+					final long balance = ledger.getBalance(userID);
+					String msg = null;
+					if (length <= 0 || length > CryptoCredit.MAX_LENGTH)
+						msg = "[*BANK*] Invalid hash chain length";
+					else if (balance < length)
+						msg = "[*BANK*] " + getErrorMessage(balance < 0 ? balance : Ledger.ERROR_INSUFFICIENT_FUNDS);
+					else if (root.length() == 0 || ledger.getBalance(hold) >= 0)
+						msg = "[*BANK*] Invalid hash chain";
+					else if (bankKeys == null)
+						msg = "[*BANK*] Hash chains are not available";
+					else {
+						/** The balance is checked again by the transfer. */
+						ledger.openAccount(hold, 0);
+						final long result = ledger.transfer(userID, hold, length);
+						if (result < 0)
+							msg = "[*BANK*] " + getErrorMessage(result);
+					}
+
+					if (msg != null) {
+						if (DEBUG_COMMANDS_SIGNCHAIN) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+						stealthComms.sendPacket(DecryptedPacket.CMD_MSG, msg);
+						break;
+					}
+
+					try {
+						final String commitment = userID + ";" + root + ";" + length;
+						final byte[] signature = CryptoCredit.sign(bankKeys.getPrivate(), commitment);
+						if (DEBUG_COMMANDS_SIGNCHAIN) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Signed hash chain commitment \"" + commitment + "\".");
+						stealthComms.sendPacket(DecryptedPacket.CMD_SIGNCHAIN, Base64.encodeBase64String(signature).trim());
+					} catch (final Exception e) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Failed to sign hash chain.");
+						if (DEBUG_ERROR_TRACE) e.printStackTrace();
+						ledger.transfer(hold, userID, length);
+						stealthComms.sendPacket(DecryptedPacket.CMD_MSG, "[*BANK*] Hash chains are not available");
+					}
+					break;
+				}
+
+				/***********************************************************
+				 * Redeem command
+				 **********************************************************/
+				case DecryptedPacket.CMD_REDEEM:
+				{
+					if (DEBUG_COMMANDS_REDEEM) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Received redeem command.");
+
+					if (userID == null) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Unknown user trying to redeem payments.");
+						break;
+					}
+					if (!isServer) {
+						System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "User \"" + userID + "\" is not allowed to redeem payments.");
+						stealthComms.sendPacket(DecryptedPacket.CMD_MSG, "[*BANK*] Not allowed");
+						break;
+					}
+
+					/**
+					 * The packet data is of the form
+					 * "user;root;length;signature;index;token;payee=amount,...",
+					 * optionally followed by ";close". The credits are paid to
+					 * each payee out of the funds held for the chain. Closing the
+					 * chain returns the funds that are left to the user.
+					 */
+					final String[] fields = new String(pckt.data).split(";", 8);
+					final CryptoCredit.Commitment commitment = fields.length < 7 ? null : CryptoCredit.Commitment.parse(fields[0], new String[] { fields[1], fields[2], fields[3] });
+					if (commitment == null || bankKeys == null || !commitment.verify(bankKeys.getPublic())) {
+						stealthComms.sendPacket(DecryptedPacket.CMD_MSG, "[*BANK*] Invalid hash chain");
+						break;
+					}
+					final boolean close = fields.length > 7 && fields[7].equals(REDEEM_CLOSE);
+
+					/** Check the token against the last token redeemed from the chain. */
+					final String root = Base64.encodeBase64String(commitment.getRoot()).trim();
+					final CryptoCredit.Commitment existing = redeemedChains.putIfAbsent(root, commitment);
+					final CryptoCredit.Commitment chain = existing != null ? existing : commitment;
+					final String[] payees = fields[6].length() == 0 ? new String[0] : fields[6].split(",");
+					long owed = 0;
+					final long[] amounts = new long[payees.length];
+					for (int i = 0; i < payees.length; i++) {
+						final int separator = payees[i].lastIndexOf('=');
+						amounts[i] = separator < 0 ? Ledger.ERROR_INVALID_AMOUNT : parseAmount(payees[i].substring(separator + 1));
+						payees[i] = separator < 0 ? payees[i] : payees[i].substring(0, separator);
+						owed = amounts[i] < 0 ? Long.MAX_VALUE : owed + amounts[i];
+					}
+
+					/**
+					 * NOTE: A redemption covers many payments, each of which 
+					 * may have skipped tokens, so the number of tokens isn't 
+					 * limited beyond the length of the chain. Only the server 
+					 * can redeem payments.
+					 */
+					int value = -1;
+					try {
+						if (owed == 0 && close)
+							value = 0;
+						else
+							value = owed > Integer.MAX_VALUE ? -1 : chain.accept(Integer.parseInt(fields[4]), Base64.decodeBase64(fields[5]), (int) owed, Long.MAX_VALUE);
+					} catch (final NumberFormatException e) {
+						value = -1;
+					}
+					if (value < 0) {
+						if (DEBUG_COMMANDS_REDEEM) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Rejected redemption of hash chain of user \"" + fields[0] + "\".");
+						stealthComms.sendPacket(DecryptedPacket.CMD_MSG, "[*BANK*] Invalid payment");
+						break;
+					}
+
+					/** 
+					 * Pay each payee. Tokens that were revealed but not spent are
+					 * not charged. Chains that were signed before funds were held
+					 * are paid from the user's account.
+					 */
+					final String hold = HOLD_PREFIX + root;
+					final String payer = ledger.getBalance(hold) >= 0 ? hold : fields[0];
+					long paid = 0;
+					for (int i = 0; i < payees.length; i++) {
+						final long result = ledger.transfer(payer, payees[i], amounts[i]);
+						if (result < 0)
+							System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Failed to pay " + amounts[i] + " credits from \"" + payer + "\" to \"" + payees[i] + "\": " + getErrorMessage(result) + ".");
+						else
+							paid += amounts[i];
+					}
+
+					/** Return the funds that are left once the chain is closed. */
+					if (close && payer.equals(hold)) {
+						final long remaining = ledger.getBalance(hold);
+						final long result = remaining > 0 ? ledger.transfer(hold, fields[0], remaining) : 0;
+						if (result < 0)
+							System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Failed to return " + remaining + " credits to \"" + fields[0] + "\": " + getErrorMessage(result) + ".");
+						else if (DEBUG_COMMANDS_REDEEM)
+							System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Returned " + remaining + " credits to user \"" + fields[0] + "\" from closed hash chain.");
+					}
+
+					if (DEBUG_COMMANDS_REDEEM) System.out.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "Redeemed " + paid + " of " + value + " credits from hash chain of user \"" + fields[0] + "\".");
+					stealthComms.sendPacket(DecryptedPacket.CMD_REDEEM, Long.toString(paid));
+					break;
+				}
+
 				/***********************************************************
 				 * Unknown command
 				 **********************************************************/
@@ -0,0 +1,159 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        BroadcastScheduler.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Coalesces bursts of broadcast requests into a single
+ * 					broadcast per interval.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* StealthNet.BroadcastScheduler Class Definition ****************************/
+
+/**
+ * Coalesces bursts of broadcast requests. A request only marks the broadcast
+ * as pending. The broadcast itself is run once the interval has passed, so any
+ * number of requests made within a single interval result in a single
+ * broadcast. A broadcast is therefore delayed by (at most) one interval, and
+ * is run at most once per interval.
+ *
+ * A request that is made while a broadcast is running causes another broadcast
+ * (after another interval), so the last request is never lost.
+ *
+ * If the interval is zero, then every request is broadcast immediately by the
+ * requesting thread.
+ *
+ * @author Joshua Spence
+ */
+public class BroadcastScheduler {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.BroadcastScheduler.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.BroadcastScheduler.ErrorTrace") || Debug.isDebug("ErrorTrace");
+
+	/** The default interval (in milliseconds) between broadcasts. */
+	public static final long DEFAULT_INTERVAL = Long.parseLong(System.getProperty("StealthNet.BroadcastScheduler.Interval", "50"));
+
+	/** The thread that runs the broadcasts of all schedulers. */
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "StealthNet.BroadcastScheduler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** The name of the broadcast, for debugging. */
+	private final String name;
+
+	/** The broadcast. */
+	private final Runnable broadcast;
+
+	/** The interval (in milliseconds) between broadcasts. */
+	private final long interval;
+
+	/** Set while a broadcast is scheduled, but has not yet started. */
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+
+	/** Statistics. */
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong broadcasts = new AtomicLong(0);
+
+	/** Runs the broadcast. */
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			/** Requests made from now on need another broadcast. */
+			pending.set(false);
+			runBroadcast();
+		}
+	};
+
+	/**
+	 * Constructor using the default interval.
+	 *
+	 * @param name The name of the broadcast, for debugging.
+	 * @param broadcast The broadcast.
+	 */
+	public BroadcastScheduler(String name, Runnable broadcast) {
+		this(name, broadcast, DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name The name of the broadcast, for debugging.
+	 * @param broadcast The broadcast.
+	 * @param interval The interval (in milliseconds) between broadcasts.
+	 */
+	public BroadcastScheduler(String name, Runnable broadcast, long interval) {
+		this.name = name;
+		this.broadcast = broadcast;
+		this.interval = Math.max(0, interval);
+	}
+
+	/**
+	 * Request a broadcast. The broadcast is run once the interval has passed,
+	 * unless a broadcast is already pending, in which case it will include this
+	 * request.
+	 */
+	public void schedule() {
+		requests.incrementAndGet();
+
+		if (interval == 0) {
+			runBroadcast();
+			return;
+		}
+
+		if (pending.compareAndSet(false, true)) {
+			if (DEBUG_GENERAL) System.out.println("Scheduling " + name + " broadcast in " + interval + "ms.");
+			timer.schedule(flush, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/** Run the broadcast. */
+	private void runBroadcast() {
+		broadcasts.incrementAndGet();
+
+		try {
+			broadcast.run();
+		} catch (Exception e) {
+			System.err.println("Error running " + name + " broadcast.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Get the number of broadcasts that have been requested.
+	 *
+	 * @return The number of requests.
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Get the number of broadcasts that have been run. This is less than the
+	 * number of requests if requests have been coalesced.
+	 *
+	 * @return The number of broadcasts.
+	 */
+	public long getBroadcasts() {
+		return broadcasts.get();
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     BroadcastScheduler.java
+ *****************************************************************************/
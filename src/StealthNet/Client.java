@@ -36,8 +36,10 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.HashSet;
 import java.util.Hashtable;
 
 import javax.swing.BorderFactory;
@@ -101,7 +103,11 @@ public class Client {
 	private static final boolean DEBUG_COMMANDS_FTP          = Debug.isDebug("StealthNet.Client.Commands.FTP");
 	private static final boolean DEBUG_COMMANDS_LIST         = Debug.isDebug("StealthNet.Client.Commands.List");
 	private static final boolean DEBUG_COMMANDS_SECRETLIST   = Debug.isDebug("StealthNet.Client.Commands.SecretList");
+	private static final boolean DEBUG_COMMANDS_SECRETINFO   = Debug.isDebug("StealthNet.Client.Commands.SecretInfo");
+	private static final boolean DEBUG_COMMANDS_SEARCH       = Debug.isDebug("StealthNet.Client.Commands.Search");
 	private static final boolean DEBUG_COMMANDS_GETSECRET    = Debug.isDebug("StealthNet.Client.Commands.GetSecret");
+	private static final boolean DEBUG_COMMANDS_GETPUBLICKEY = Debug.isDebug("StealthNet.Client.Commands.GetPublicKey");
+	private static final boolean DEBUG_COMMANDS_CREDIT       = Debug.isDebug("StealthNet.Client.Commands.Credit");
 	private static final boolean DEBUG_ASYMMETRIC_ENCRYPTION = Debug.isDebug("StealthNet.Client.AsymmetricEncryption");
 
 	/** StealthNet server options. */
@@ -143,9 +149,29 @@ public class Client {
 	/** User list. */
 	private class UserData {
 		boolean online = false;
+		String fingerprint = null;
 		PublicKey publicKey = null;
 	}
 	private static final Hashtable<String, UserData> userList = new Hashtable<String, UserData>();
+	
+	/** 
+	 * Public keys that have been fetched from the server, indexed by their 
+	 * fingerprints. The user list only contains fingerprints, so a key is 
+	 * only fetched the first time that it is seen.
+	 */
+	private static final Hashtable<String, PublicKey> publicKeyCache = new Hashtable<String, PublicKey>();
+	
+	/** The fingerprints of the public keys that we have asked the server for. */
+	private final HashSet<String> publicKeyRequests = new HashSet<String>();
+	
+	/** 
+	 * The version of the user list, or -1 if unknown. Used to check that 
+	 * changes to the user list are applied to the correct version.
+	 */
+	private long userListVersion = -1;
+	
+	/** True if we have asked the server for the whole user list. */
+	private boolean userListRequested = false;
 
 	/** Secret list. */
 	private DefaultTableModel secretListData = null;
@@ -156,8 +182,18 @@ public class Client {
 	/** Field to show the remaining number of credits. */
 	JTextField creditsBox;
 
-	/** Credits. */
-	private final int credits = 100;
+	/** The balance of our bank account, when we logged in. */
+	private long credits = 0;
+
+	/** 
+	 * Our hash chain, which we pay for secrets with, or null if we don't have
+	 * one (see CryptoCredit). Set by the wallet thread once the chain has been
+	 * signed and given to the server.
+	 */
+	private volatile CryptoCredit wallet = null;
+
+	/** Whether our hash chain is still being created. */
+	private volatile boolean walletPending = false;
 
 	/** Secret data. */
 	private class SecretData {
@@ -167,6 +203,21 @@ public class Client {
 
 	/** A list of secret data, indexed by secret name. */
 	static private Hashtable<String, SecretData> secretDescriptions = new Hashtable<String, SecretData>();
+	
+	/** 
+	 * The version of the secret list, or -1 if unknown. Only updated once 
+	 * every page of a secret list has been received.
+	 */
+	private long secretListVersion = -1;
+	
+	/** The next page of the secret list that we expect to receive. */
+	private int secretListPage = 0;
+	
+	/** True if we have asked the server for the changes to the secret list. */
+	private boolean secretListRequested = false;
+	
+	/** The secrets whose descriptions we have asked the server for. */
+	private final HashSet<String> secretInfoRequests = new HashSet<String>();
 
 	/** Constructor. */
 	public Client() {
@@ -366,7 +417,7 @@ public class Client {
 		creditsPane.setPreferredSize(new Dimension(180, 30));
 		creditsPane.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
 		creditsPane.add(new JLabel("Credits:  ", SwingConstants.RIGHT));
-		creditsBox = new JTextField(new Integer(credits).toString());
+		creditsBox = new JTextField("0");
 		creditsBox.setEditable(false);
 		creditsPane.add(creditsBox);
 
@@ -394,12 +445,20 @@ public class Client {
 			public void actionPerformed(final ActionEvent e) { createSecret(); }
 		});
 
+		final JButton searchBtn = new JButton("Search");
+		searchBtn.setMnemonic(KeyEvent.VK_S);
+		searchBtn.setToolTipText("Search Secrets");
+		searchBtn.addActionListener(new ActionListener() {
+			public void actionPerformed(final ActionEvent e) { searchSecrets(); }
+		});
+
 		final JPanel btnPane = new JPanel();
 		btnPane.setLayout(new GridLayout(1, 0));
 		btnPane.setPreferredSize(new Dimension(180, 40));
 		btnPane.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
 		btnPane.add(loginBtn);
 		btnPane.add(msgBtn);
+		btnPane.add(searchBtn);
 
 		final JPanel bottomPane = new JPanel();
 		bottomPane.setLayout(new BorderLayout());
@@ -527,9 +586,7 @@ public class Client {
 			bankComms.sendPacket(DecryptedPacket.CMD_LOGIN, userID);
 
 			/** Create our hash chain. */
-			/* new Stack<Hashes> */
-			/* Create a random string for the starting coin. */
-			/* Hash that coin 100 times, adding each hash to the stack. */
+			createWallet();
 
 			/** Start periodically checking for packets. */
 			stealthTimer.start();
@@ -558,6 +615,105 @@ public class Client {
 		loginBtn.setToolTipText("Logout");
 	}
 
+	/**
+	 * Create our hash chain, get the bank to sign it, and give it to the 
+	 * server. The chain is as long as our balance (up to the maximum length),
+	 * as the bank only signs a chain that we can pay for.
+	 * 
+	 * Generating a long chain takes a hash per credit (a million for a heavy
+	 * buyer), so only the balance is requested here. The rest is done on a
+	 * background thread, which owns the connection to the bank until it
+	 * finishes, and purchases are refused until then.
+	 * 
+	 * @throws IOException
+	 */
+	private void createWallet() throws IOException {
+		wallet = null;
+		walletPending = false;
+
+		/** Get our balance. */
+		bankComms.sendPacket(DecryptedPacket.CMD_BALANCE);
+		DecryptedPacket pckt = bankComms.recvPacket();
+		if (pckt == null || pckt.command != DecryptedPacket.CMD_BALANCE) {
+			System.err.println("Unable to get balance from bank.");
+			msgTextBox.append("[*ERR*] Unable to get balance from bank.\n");
+			return;
+		}
+		credits = Long.parseLong(new String(pckt.data));
+		if (credits <= 0)
+			return;
+
+		final int length = (int) Math.min(credits, CryptoCredit.MAX_LENGTH);
+		final Comms bank = bankComms;
+		final Comms server = serverComms;
+		walletPending = true;
+
+		final Thread walletThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					createWallet(length, bank, server);
+				} catch (final IOException e) {
+					/** Logging out closes the connections under us. */
+					if (server == serverComms) {
+						System.err.println("Unable to create hash chain.");
+						msgTextBox.append("[*ERR*] Unable to create hash chain.\n");
+						if (DEBUG_ERROR_TRACE) e.printStackTrace();
+					}
+				} finally {
+					if (server == serverComms)
+						walletPending = false;
+				}
+			}
+		}, "StealthNet.Client.Wallet");
+		walletThread.setDaemon(true);
+		walletThread.start();
+	}
+
+	/**
+	 * Generate our hash chain, get the bank to sign it, and give it to the 
+	 * server. Called on the wallet thread.
+	 * 
+	 * @param length The length of the chain.
+	 * @param bank The connection to the bank.
+	 * @param server The connection to the server.
+	 * @throws IOException
+	 */
+	private void createWallet(int length, Comms bank, Comms server) throws IOException {
+		CryptoCredit newWallet = null;
+		try {
+			newWallet = new CryptoCredit(length);
+		} catch (final NoSuchAlgorithmException e) {
+			System.err.println("Unable to create hash chain.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			return;
+		}
+
+		/** Get the bank to sign the root of the chain. */
+		final String root = Base64.encodeBase64String(newWallet.getRoot()).trim();
+		if (DEBUG_COMMANDS_CREDIT) System.out.println("Requesting bank signature of hash chain of length " + newWallet.getLength() + ".");
+		bank.sendPacket(DecryptedPacket.CMD_SIGNCHAIN, root + ";" + newWallet.getLength());
+		final DecryptedPacket pckt = bank.recvPacket();
+		if (server != serverComms)
+			return;
+		if (pckt == null || pckt.command != DecryptedPacket.CMD_SIGNCHAIN) {
+			System.err.println("Bank refused to sign hash chain.");
+			msgTextBox.append("[*ERR*] Bank refused to sign hash chain" + (pckt != null && pckt.command == DecryptedPacket.CMD_MSG ? ": " + new String(pckt.data) : "") + ".\n");
+			return;
+		}
+		final String signature = new String(pckt.data);
+		newWallet.setSignature(Base64.decodeBase64(signature));
+
+		/** Give the signed chain to the server, unless we've since logged out. */
+		synchronized (this) {
+			if (server != serverComms)
+				return;
+
+			if (DEBUG_COMMANDS_CREDIT) System.out.println("Sending signed hash chain to server.");
+			server.sendPacket(DecryptedPacket.CMD_COMMITMENT, root + ";" + newWallet.getLength() + ";" + signature);
+			wallet = newWallet;
+		}
+	}
+
 	/** Logout of StealthNet. */
 	private synchronized void logout() {
 		if (DEBUG_GENERAL) System.out.println("Logging out of StealthNet.");
@@ -584,6 +740,16 @@ public class Client {
 			buddyListData.setRowCount(0);
 			secretListData.setRowCount(0);
 			userList.clear();
+			userListVersion = -1;
+			userListRequested = false;
+			publicKeyRequests.clear();
+			secretDescriptions.clear();
+			secretListVersion = -1;
+			secretListPage = 0;
+			secretListRequested = false;
+			secretInfoRequests.clear();
+			wallet = null;
+			walletPending = false;
 
 			msgTextBox.append("Disconnected.\n");
 			if (DEBUG_GENERAL) System.out.println("Disconnected.");
@@ -618,6 +784,22 @@ public class Client {
 		}
 	}
 
+	/** Search the secrets on the server. */
+	private void searchSecrets() {
+		if (serverComms == null) {
+			msgTextBox.append("[*ERR*] Not logged in.\n");
+			return;
+		}
+		
+		/** Prompt the user for the search terms. */
+		final String query = JOptionPane.showInputDialog("Search Secrets:", "");
+		if (query == null)
+			return;
+		
+		if (DEBUG_COMMANDS_SEARCH) System.out.println("Searching for secrets matching \"" + query + "\".");
+		serverComms.sendPacket(DecryptedPacket.CMD_SEARCHSECRETS, "0;;;;;" + query);
+	}
+
 	/**
 	 * Display details of a secret.
 	 * 
@@ -626,8 +808,22 @@ public class Client {
 	private void secretDetails(final int row) {
 		final String name = (String) secretTable.getValueAt(row,0);
 		final SecretData data = secretDescriptions.get(name);
-		if (data != null)
-			JOptionPane.showMessageDialog(null, data.description, "Details of Secret: " + name, JOptionPane.PLAIN_MESSAGE);
+		if (data == null)
+			return;
+		
+		/** 
+		 * The secret list doesn't contain descriptions, so fetch the 
+		 * description first. The details are shown once it arrives.
+		 */
+		if (data.description == null) {
+			if (serverComms != null && secretInfoRequests.add(name)) {
+				if (DEBUG_COMMANDS_SECRETINFO) System.out.println("Requesting description of secret \"" + name + "\".");
+				serverComms.sendPacket(DecryptedPacket.CMD_SECRETINFO, name);
+			}
+			return;
+		}
+		
+		JOptionPane.showMessageDialog(null, data.description, "Details of Secret: " + name, JOptionPane.PLAIN_MESSAGE);
 	}
 
 	/**
@@ -668,23 +864,35 @@ public class Client {
 		}
 		iAddr += ":" + Integer.toString(ftpSocket.getLocalPort());
 
-		/** Get the bank to sign the purchase. */
-
 		/**
-		 * If the bank refuses to sign the purchase, regenerate our hash chain
-		 * because there was possibly a collision.
+		 * Pay for the secret with the next tokens of our hash chain. The 
+		 * server checks the payment itself, so the bank isn't involved.
 		 */
+		final int cost = Integer.parseInt(secretTable.getValueAt(row, 1).toString());
+		String payment = "";
+		if (cost > 0) {
+			final CryptoCredit.Payment p = (wallet == null) ? null : wallet.pay(cost);
+			if (p == null) {
+				System.err.println("Not enough credits to purchase secret \"" + name + "\".");
+				msgTextBox.append(walletPending ? "[*ERR*] Credits are not ready yet.\n" : "[*ERR*] Not enough credits.\n");
+				try {
+					ftpSocket.close();
+				} catch (final IOException e) {
+					if (DEBUG_ERROR_TRACE) e.printStackTrace();
+				}
+				return;
+			}
 
-		/** Give the server the signed purchase. */
-
-		/** Wait to server to verify. */
+			if (DEBUG_COMMANDS_CREDIT) System.out.println("Paying " + cost + " credits with token " + p.getIndex() + " of hash chain.");
+			payment = "@" + p;
+		}
 
 		/**
-		 * Send the server the name of the secret and the IP address and port
-		 * number for the file transfer.
+		 * Send the server the name of the secret, the IP address and port
+		 * number for the file transfer, and the payment.
 		 */
 		if (DEBUG_GENERAL) System.out.println("Sending get secret message to server. Target client should connect on '" + iAddr + ":" + ftpSocket.getLocalPort() + "'.");
-		serverComms.sendPacket(DecryptedPacket.CMD_GETSECRET, name + "@" + iAddr);
+		serverComms.sendPacket(DecryptedPacket.CMD_GETSECRET, name + "@" + iAddr + payment);
 
 		/** Choose where to save the secret file. */
 		final FileDialog fileSave = new FileDialog(clientFrame, "Save As...", FileDialog.SAVE);
@@ -750,7 +958,12 @@ public class Client {
 
 		/** Get the ID of the target user. */
 		final String myid = buddyTable.getValueAt(row, 0).toString().trim();
-		final PublicKey peer = userList.get(myid).publicKey;
+		final PublicKey peer = getPublicKey(myid);
+		if (peer == null) {
+			System.err.println("Chat failed. The public key of user \"" + myid + "\" is not yet known.");
+			msgTextBox.append("[*ERR*] Chat failed. Please try again.\n");
+			return;
+		}
 
 		/** Set up socket on a free port for the chat session. */
 		ServerSocket chatSocket = null;
@@ -819,7 +1032,12 @@ public class Client {
 
 		/** Get the user ID. */
 		final String myid = (String) buddyTable.getValueAt(row, 0);
-		final PublicKey peer = userList.get(myid).publicKey;
+		final PublicKey peer = getPublicKey(myid);
+		if (peer == null) {
+			System.err.println("FTP failed. The public key of user \"" + myid + "\" is not yet known.");
+			msgTextBox.append("[*ERR*] FTP failed. Please try again.\n");
+			return;
+		}
 
 		/** Select the file to send. */
 		final FileDialog fileOpen = new FileDialog(clientFrame, "Open...", FileDialog.LOAD);
@@ -883,10 +1101,43 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Get the public key of a user. If the key has not yet been fetched from 
+	 * the server, then it is requested (and will be available later).
+	 * 
+	 * @param user The ID of the user.
+	 * @return The public key of the user, or null if it is not yet known.
+	 */
+	private PublicKey getPublicKey(final String user) {
+		final UserData userData = userList.get(user);
+		if (userData == null)
+			return null;
+		
+		if (userData.publicKey == null && userData.fingerprint != null) {
+			userData.publicKey = publicKeyCache.get(userData.fingerprint);
+			if (userData.publicKey == null)
+				requestPublicKey(userData.fingerprint);
+		}
+		return userData.publicKey;
+	}
+	
+	/**
+	 * Ask the server for a public key, unless we have already asked for it.
+	 * 
+	 * @param fingerprint The fingerprint of the public key.
+	 */
+	private void requestPublicKey(final String fingerprint) {
+		if (serverComms == null || !publicKeyRequests.add(fingerprint))
+			return;
+		
+		if (DEBUG_COMMANDS_GETPUBLICKEY) System.out.println("Requesting public key with fingerprint \"" + fingerprint + "\".");
+		serverComms.sendPacket(DecryptedPacket.CMD_GETPUBLICKEY, fingerprint);
+	}
+
 	/** Process incoming packets. */
 	private void processPackets() {
 		/** Update credits box, stick it here for convenience. */
-		creditsBox.setText(new Integer(credits).toString());
+		creditsBox.setText(Long.toString(wallet == null ? 0 : wallet.getRemaining()));
 
 		try {
 			if (serverComms == null || !serverComms.recvReady())
@@ -941,7 +1192,12 @@ public class Client {
 
 					/** Get the peer public key. */
 					final String sourceUser =          data.split("@")[0];
-					final PublicKey peer = userList.get(sourceUser).publicKey;
+					final PublicKey peer = getPublicKey(sourceUser);
+					if (peer == null) {
+						System.err.println("Chat failed. The public key of user \"" + sourceUser + "\" is not yet known.");
+						msgTextBox.append("[*ERR*] Chat with " + sourceUser + " failed.\n");
+						break;
+					}
 
 					if (DEBUG_COMMANDS_CHAT) System.out.println("Received a chat command. Target host: '" + iAddr + ":" + iPort + "'.");
 
@@ -976,7 +1232,12 @@ public class Client {
 
 					/** Get the peer public key. */
 					final String sourceUser =          data.split("@")[0];
-					final PublicKey peer = userList.get(sourceUser).publicKey;
+					final PublicKey peer = getPublicKey(sourceUser);
+					if (peer == null) {
+						System.err.println("FTP failed. The public key of user \"" + sourceUser + "\" is not yet known.");
+						msgTextBox.append("[*ERR*] File transfer from " + sourceUser + " failed.\n");
+						break;
+					}
 
 					if (DEBUG_COMMANDS_FTP) System.out.println("Received a file transfer command. Target host: '" + iAddr + ":" + iPort + "'.");
 
@@ -1007,11 +1268,38 @@ public class Client {
 				case DecryptedPacket.CMD_LIST:
 				{
 					String userTable = new String(pckt.data);
-					buddyListData.setRowCount(0);
 
 					if (DEBUG_COMMANDS_LIST) System.out.println("Received a user list: \"" + userTable.replaceAll("\n", "; ") + "\".");
 
-					userList.clear();
+					/**
+					 * A whole user list starts with "=version". A delta starts
+					 * with "+fromVersion;toVersion", and contains only the 
+					 * users that have changed since fromVersion.
+					 */
+					final int headerEnd = userTable.indexOf("\n");
+					final String header = (headerEnd >= 0) ? userTable.substring(0, headerEnd) : userTable;
+					if (header.startsWith("+")) {
+						final long fromVersion = Long.parseLong(header.substring(1).split(";")[0]);
+						
+						if (fromVersion != userListVersion) {
+							/** We have missed some changes, so ask for the whole list (once). */
+							if (DEBUG_COMMANDS_LIST) System.out.println("User list is at version " + userListVersion + ", but received changes from version " + fromVersion + ".");
+							if (!userListRequested) {
+								serverComms.sendPacket(DecryptedPacket.CMD_LIST);
+								userListRequested = true;
+							}
+							break;
+						}
+						
+						userListVersion = Long.parseLong(header.split(";")[1]);
+					} else {
+						userListVersion = header.startsWith("=") ? Long.parseLong(header.substring(1)) : -1;
+						userListRequested = false;
+						buddyListData.setRowCount(0);
+						userList.clear();
+					}
+					userTable = (headerEnd >= 0) ? userTable.substring(headerEnd + 1) : "";
+
 					while (userTable.length() > 0) {
 						final int indx = userTable.indexOf("\n");
 						String row;
@@ -1028,36 +1316,123 @@ public class Client {
 						final String userID = row.split(";")[0].trim();
 						final UserData userData = new UserData();
 						userData.online = row.split(";")[1].trim().compareTo("true") == 0;
-						try {
-							final KeyFactory factory = KeyFactory.getInstance(RSAAsymmetricEncryption.ALGORITHM);
-							final X509EncodedKeySpec keySpec = new X509EncodedKeySpec(Base64.decodeBase64(row.split(";")[2].trim()));
-							userData.publicKey = factory.generatePublic(keySpec);
-						} catch (final Exception e) {
-							System.err.println("Failed to parse public key.");
-							if (DEBUG_ERROR_TRACE) e.printStackTrace();
-							continue;
+						
+						/** 
+						 * The row only contains the fingerprint of the public 
+						 * key. Fetch the key itself if we haven't seen it before.
+						 */
+						final String values[] = row.split(";");
+						if (values.length > 2 && values[2].trim().length() > 0) {
+							userData.fingerprint = values[2].trim();
+							userData.publicKey = publicKeyCache.get(userData.fingerprint);
+							if (userData.publicKey == null && userData.online)
+								requestPublicKey(userData.fingerprint);
 						}
 						userList.put(userID, userData);
 
-						/** Add the user to the GUI list. */
-						buddyListData.addRow(new Object[] {
-								userID,
-								userData.online ? "true" : "false"
-						});
+						/** Add (or update) the user in the GUI list. */
+						int guiRow = 0;
+						while (guiRow < buddyListData.getRowCount() && !userID.equals(buddyListData.getValueAt(guiRow, 0)))
+							guiRow++;
+						
+						if (guiRow < buddyListData.getRowCount())
+							buddyListData.setValueAt(userData.online ? "true" : "false", guiRow, 1);
+						else
+							buddyListData.addRow(new Object[] {
+									userID,
+									userData.online ? "true" : "false"
+							});
 					}
 					break;
 				}
 
+				/***********************************************************
+				 * Get Public Key command
+				 **********************************************************/
+				case DecryptedPacket.CMD_GETPUBLICKEY:
+				{
+					/**
+					 * NOTE: Data will be of the form "fingerprint;publicKey".
+					 */
+					final String data = new String(pckt.data);
+					final String fingerprint = data.split(";")[0].trim();
+					publicKeyRequests.remove(fingerprint);
+
+					if (DEBUG_COMMANDS_GETPUBLICKEY) System.out.println("Received public key with fingerprint \"" + fingerprint + "\".");
+
+					PublicKey publicKey;
+					try {
+						final KeyFactory factory = KeyFactory.getInstance(RSAAsymmetricEncryption.ALGORITHM);
+						final X509EncodedKeySpec keySpec = new X509EncodedKeySpec(Base64.decodeBase64(data.split(";")[1].trim()));
+						publicKey = factory.generatePublic(keySpec);
+					} catch (final Exception e) {
+						System.err.println("Failed to parse public key.");
+						if (DEBUG_ERROR_TRACE) e.printStackTrace();
+						break;
+					}
+
+					/** Don't trust a key that doesn't match its fingerprint. */
+					if (!Utility.getFingerprint(publicKey).equals(fingerprint)) {
+						System.err.println("Public key does not match fingerprint \"" + fingerprint + "\".");
+						break;
+					}
+					publicKeyCache.put(fingerprint, publicKey);
+
+					/** Update every user with this key. */
+					for (final UserData userData : userList.values())
+						if (fingerprint.equals(userData.fingerprint))
+							userData.publicKey = publicKey;
+					break;
+				}
+
 				/***********************************************************
 				 * Secret List command
 				 **********************************************************/
 				case DecryptedPacket.CMD_SECRETLIST:
 				{
 					String secretTable = new String(pckt.data);
-					secretListData.setRowCount(0);
 
 					if (DEBUG_COMMANDS_SECRETLIST) System.out.println("Received a secret list: \"" + secretTable.replaceAll("\n", "; ") + "\".");
 
+					/**
+					 * Each page starts with "=version;page;pages" (for the 
+					 * whole secret list) or "+fromVersion;toVersion;page;pages"
+					 * (for the changes since fromVersion).
+					 */
+					final int headerEnd = secretTable.indexOf("\n");
+					final String header = (headerEnd >= 0) ? secretTable.substring(0, headerEnd) : secretTable;
+					final String fields[] = header.substring(1).split(";");
+					final boolean whole = header.startsWith("=");
+					final long toVersion = Long.parseLong(fields[whole ? 0 : 1]);
+					final int page = Integer.parseInt(fields[whole ? 1 : 2]);
+					final int pages = Integer.parseInt(fields[whole ? 2 : 3]);
+					
+					/** 
+					 * The first page must follow on from our version, and any
+					 * other page must follow on from the previous page.
+					 */
+					final boolean expected = (page == 0) ? (whole || Long.parseLong(fields[0]) == secretListVersion) : (page == secretListPage);
+					if (!expected) {
+						/** 
+						 * We have missed some changes (or pages), so ask for the
+						 * changes since the last complete version (once).
+						 */
+						if (DEBUG_COMMANDS_SECRETLIST) System.out.println("Secret list is at version " + secretListVersion + ", but received page " + page + " of version " + toVersion + ".");
+						if (!secretListRequested) {
+							serverComms.sendPacket(DecryptedPacket.CMD_SECRETLIST, Long.toString(secretListVersion));
+							secretListRequested = true;
+						}
+						secretListPage = 0;
+						break;
+					}
+					
+					if (whole && page == 0) {
+						secretListVersion = -1;
+						secretListData.setRowCount(0);
+						secretDescriptions.clear();
+					}
+					secretTable = (headerEnd >= 0) ? secretTable.substring(headerEnd + 1) : "";
+
 					while (secretTable.length() > 0) {
 						final int indx = secretTable.indexOf("\n");
 						String row;
@@ -1070,14 +1445,98 @@ public class Client {
 							secretTable = "";
 						}
 
+						/** 
+						 * NOTE: Rows will be of the form "name;cost;filename", 
+						 * or "name;" if the secret has been removed.
+						 */
 						final String values[] = row.split(";");
-						secretListData.addRow(values);
+						final String name = values[0];
+						
+						/** Find the secret in the GUI list. */
+						int guiRow = secretListData.getRowCount();
+						if (secretDescriptions.containsKey(name)) {
+							guiRow = 0;
+							while (guiRow < secretListData.getRowCount() && !name.equals(secretListData.getValueAt(guiRow, 0)))
+								guiRow++;
+						}
+						
+						if (values.length < 3) {
+							secretDescriptions.remove(name);
+							if (guiRow < secretListData.getRowCount())
+								secretListData.removeRow(guiRow);
+							continue;
+						}
 
 						final SecretData data = new SecretData();
-						data.description = values[2];
-						data.filename = values[3];
-						secretDescriptions.put(values[0], data);
+						data.filename = values[2];
+						secretDescriptions.put(name, data);
+						
+						if (guiRow < secretListData.getRowCount())
+							secretListData.setValueAt(values[1], guiRow, 1);
+						else
+							secretListData.addRow(new Object[] { name, values[1] });
 					}
+					
+					/** The secret list is only up to date once every page has arrived. */
+					if (page + 1 < pages) {
+						secretListPage = page + 1;
+					} else {
+						secretListPage = 0;
+						secretListVersion = toVersion;
+						secretListRequested = false;
+					}
+					break;
+				}
+
+				/***********************************************************
+				 * Search Secrets command
+				 **********************************************************/
+				case DecryptedPacket.CMD_SEARCHSECRETS:
+				{
+					/**
+					 * NOTE: Data will be of the form 
+					 * "total;offset\nname;cost;filename\n...".
+					 */
+					final String rows[] = new String(pckt.data).split("\n");
+					final int total = Integer.parseInt(rows[0].split(";")[0]);
+					final int offset = Integer.parseInt(rows[0].split(";")[1]);
+					
+					if (DEBUG_COMMANDS_SEARCH) System.out.println("Received " + (rows.length - 1) + " of " + total + " search results.");
+					
+					msgTextBox.append("[INFO] Found " + total + " secrets.\n");
+					for (int i = 1; i < rows.length; i++) {
+						final String values[] = rows[i].split(";");
+						if (values.length >= 2)
+							msgTextBox.append("[INFO] " + (offset + i) + ". " + values[0] + " (" + values[1] + " credits)\n");
+					}
+					break;
+				}
+
+				/***********************************************************
+				 * Secret Info command
+				 **********************************************************/
+				case DecryptedPacket.CMD_SECRETINFO:
+				{
+					/**
+					 * NOTE: Data will be of the form "name;description".
+					 */
+					final String data = new String(pckt.data);
+					final int separator = data.indexOf(";");
+					if (separator < 0)
+						break;
+					
+					final String name = data.substring(0, separator);
+					final String description = data.substring(separator + 1);
+					
+					if (DEBUG_COMMANDS_SECRETINFO) System.out.println("Received description of secret \"" + name + "\": \"" + description + "\".");
+					
+					final SecretData secretData = secretDescriptions.get(name);
+					if (secretData != null)
+						secretData.description = description;
+					
+					/** Show the details that were asked for. */
+					if (secretInfoRequests.remove(name))
+						JOptionPane.showMessageDialog(null, description, "Details of Secret: " + name, JOptionPane.PLAIN_MESSAGE);
 					break;
 				}
 
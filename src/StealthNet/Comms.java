@@ -13,9 +13,13 @@
  *                  particular, Diffie-Hellman key exchange is performed to 
  *                  provide authentication. AES encryption is performed to 
  *                  ensure confidentiality. Hashed Message Authentication Codes
- *                  (HMACs) are used to verify message integrity. Finally, a 
- *                  PRNG is used to provide nonces in order to provide reply 
- *                  prevention.
+ *                  (HMACs) are used to verify message integrity. Finally, 
+ *                  sequence numbers are used as nonces in order to provide 
+ *                  replay prevention.
+ *                  
+ *                  Packets may be transmitted either as hexadecimal text lines
+ *                  or as binary length-prefixed frames. The framing mode is
+ *                  negotiated once the security protocols are in place.
  *                  
  *                  Debug code has also been added to this class.
  * IMPLEMENTS:      initiateSession();
@@ -23,6 +27,7 @@
  *                  terminateSession();
  *                  sendPacket();
  *                  recvPacket();
+ *                  pollPacket();
  *                  recvReady();
  *
  *****************************************************************************/
@@ -31,17 +36,25 @@ package StealthNet;
 
 /* Import Libraries **********************************************************/
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Hashtable;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -50,15 +63,21 @@ import javax.crypto.spec.SecretKeySpec;
 import org.apache.commons.codec.binary.Base64;
 
 import StealthNet.Security.AESEncryption;
+import StealthNet.Security.AESGCMEncryption;
 import StealthNet.Security.AsymmetricEncryption;
-import StealthNet.Security.DiffieHellmanKeyExchange;
+import StealthNet.Security.DiffieHellmanKeyExchangeFactory;
 import StealthNet.Security.Encryption;
 import StealthNet.Security.HashedMessageAuthenticationCode;
 import StealthNet.Security.KeyExchange;
+import StealthNet.Security.KeyExchangeFactory;
 import StealthNet.Security.MessageAuthenticationCode;
-import StealthNet.Security.PRNGNonceGenerator;
 import StealthNet.Security.NonceGenerator;
+import StealthNet.Security.PooledKeyExchangeFactory;
 import StealthNet.Security.RSAAsymmetricEncryption;
+import StealthNet.Security.SequenceNonceGenerator;
+import StealthNet.Security.SessionTicketIssuer;
+import StealthNet.Security.X25519KeyExchange;
+import StealthNet.Security.X25519KeyExchangeFactory;
 
 /* StealthNet.Comms class ****************************************************/
 
@@ -88,6 +107,8 @@ public class Comms {
 	private static final boolean DEBUG_INTEGRITY             = Debug.isDebug("StealthNet.Comms.Integrity");
 	private static final boolean DEBUG_REPLAY_PREVENTION     = Debug.isDebug("StealthNet.Comms.ReplayPrevention");
 	private static final boolean DEBUG_ASYMMETRIC_ENCRYPTION = Debug.isDebug("StealthNet.Comms.AsymmetricEncryption");
+	private static final boolean DEBUG_FRAMING               = Debug.isDebug("StealthNet.Comms.Framing");
+	private static final boolean DEBUG_HANDSHAKE             = Debug.isDebug("StealthNet.Comms.Handshake");
 	
 	/** Defaults. */
     public static final String DEFAULT_SERVERNAME = "localhost";	/** Default host for the StealthNet server. */
@@ -95,9 +116,168 @@ public class Comms {
     public static final String DEFAULT_BANKNAME = "localhost";	/** Default host for the StealthNet bank. */
     public static final int DEFAULT_BANKPORT = 5617;				/** Default port for the StealthNet bank. */
     
+    /** 
+     * True to offer binary framing to the peer. If either peer does not 
+     * support (or does not want) binary framing, then the hexadecimal text 
+     * framing is used for the entire session.
+     */
+    private static final boolean BINARY_FRAMING = System.getProperty("StealthNet.Comms.BinaryFraming", "true").equals("true");
+    
+    /** 
+     * The time (in milliseconds) to wait for the peer's side of the framing 
+     * negotiation. Peers that don't support framing negotiation never send
+     * it, so text framing is used once this time has passed.
+     */
+    private static final int FRAMING_TIMEOUT = Integer.parseInt(System.getProperty("StealthNet.Comms.FramingTimeout", "2000"));
+    
+    /**
+     * True to initiate sessions with the compact handshake, in which all of 
+     * the session parameters are exchanged in a single round trip. Accepting 
+     * peers always support both the compact and the step-by-step handshakes.
+     */
+    private static final boolean COMPACT_HANDSHAKE = System.getProperty("StealthNet.Comms.CompactHandshake", "true").equals("true");
+    
+    /** Separator between the fields of a CMD_HELLO packet. */
+    static final String HELLO_SEPARATOR = ";";
+    
+    /** Label and hash used to derive the integrity key from the shared secret. */
+    private static final String INTEGRITY_KEY_LABEL = "StealthNet integrity key";
+    private static final String INTEGRITY_KEY_HASH_ALGORITHM = "SHA-1";
+    
+    /** Constants for session resumption. */
+    static final String HELLO_RESUMED = "resumed";
+    private static final int HELLO_RANDOM_BYTES = 16;
+    private static final String RESUMPTION_SECRET_LABEL = "StealthNet resumption secret";
+    private static final String RESUMED_SECRET_LABEL = "StealthNet resumed session";
+    private static final String RESUMPTION_HASH_ALGORITHM = "SHA-256";
+    private static final String RESUMED_SECRET_ALGORITHM = "TlsPremasterSecret";
+    
+    /** 
+     * The number of key exchange providers to create in advance (in a 
+     * background thread), so that key pairs do not need to be generated while
+     * a session is being established. If zero, then key pairs are generated 
+     * as they are needed.
+     */
+    private static final int KEY_EXCHANGE_POOL_SIZE = Integer.parseInt(System.getProperty("StealthNet.Comms.KeyExchangePoolSize", "8"));
+    
+    /** 
+     * The key exchange algorithm to offer in the compact handshake. X25519 
+     * is only offered if it is provided by the JCE. Accepting peers use 
+     * whichever supported algorithm the peer offers, and fall back to 
+     * Diffie-Hellman otherwise. The step-by-step handshake cannot negotiate,
+     * so it always uses Diffie-Hellman.
+     */
+    static final String KEY_EXCHANGE_DH = "dh";
+    static final String KEY_EXCHANGE_X25519 = "x25519";
+    private static final String KEY_EXCHANGE = 
+    	(System.getProperty("StealthNet.Comms.KeyExchange", KEY_EXCHANGE_X25519).equals(KEY_EXCHANGE_X25519) && X25519KeyExchange.isAvailable()) ? KEY_EXCHANGE_X25519 : KEY_EXCHANGE_DH;
+    
+    /** 
+     * Separates the algorithm from the (base 64 encoded) value of an X25519 
+     * public value. Diffie-Hellman public values are sent as decimal integers
+     * with no algorithm.
+     */
+    private static final String PUBLIC_VALUE_SEPARATOR = ":";
+    
+    /** Creates key exchange providers for all sessions. Created when first needed. */
+    private static KeyExchangeFactory dhKeyExchangeFactory = null;
+    private static KeyExchangeFactory x25519KeyExchangeFactory = null;
+    
+    /** Generates the random values of CMD_HELLO packets. */
+    private static final SecureRandom helloRandom = new SecureRandom();
+    
+    /** 
+     * A resumption ticket issued by a peer, together with the resumption 
+     * secret that it contains and the time at which it expires.
+     */
+    private static class ResumptionTicket {
+    	final byte[] ticket;
+    	final byte[] secret;
+    	final long expiry;
+    	
+    	ResumptionTicket(byte[] ticket, byte[] secret, long expiry) {
+    		this.ticket = ticket;
+    		this.secret = secret;
+    		this.expiry = expiry;
+    	}
+    }
+    
+    /** The resumption tickets that we hold, indexed by peer address. */
+    private static final Hashtable<String, ResumptionTicket> resumptionTickets = new Hashtable<String, ResumptionTicket>();
+    
+    /** 
+     * True to offer authenticated encryption (AES-GCM) to the peer. If either
+     * peer does not support (or does not want) authenticated encryption, then 
+     * AES-CBC with a separate HMAC is used for the entire session.
+     */
+    private static final boolean AEAD_ENCRYPTION = System.getProperty("StealthNet.Comms.AEAD", "true").equals("true");
+    
+    /** Cipher suites, as exchanged in a CMD_CIPHERSUITE packet. */
+    static final String CIPHERSUITE_AES_CBC_HMAC = "aes-cbc-hmac";
+    static final String CIPHERSUITE_AES_GCM = "aes-gcm";
+    
+    /** Framing modes, as exchanged in a CMD_FRAMING packet. */
+    static final String FRAMING_TEXT = "text";
+    static final String FRAMING_BINARY = "binary";
+    
+    /** 
+     * The first byte of every binary frame. This byte can never begin a text 
+     * line (which consists only of hexadecimal characters), so a relay can 
+     * tell the two framing modes apart.
+     */
+    static final int FRAME_MARKER = 0x00;
+    
+    /** Upper bound on the size of a binary frame, to guard against bogus lengths. */
+    static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    
+    /** The size of a binary frame header (the frame marker and length). */
+    static final int FRAME_HEADER_BYTES = 1 + Integer.SIZE / Byte.SIZE;
+    
+    /** True once both peers have agreed to use binary framing. */
+    private boolean binaryFraming = false;
+    
+    /** 
+     * The number of consecutive bad packets after which the session will be 
+     * terminated. Zero to never terminate the session.
+     */
+    private static final int MAX_CONSECUTIVE_DISCARDS = Integer.parseInt(System.getProperty("StealthNet.Comms.MaxConsecutiveDiscards", "32"));
+    
+    /** 
+     * Counts of discarded packets, by reason. These are only written by the 
+     * receiving thread, but may be read by any thread.
+     */
+    private volatile long discardedMalformed = 0;
+    private volatile long discardedIntegrity = 0;
+    private volatile long discardedDecryption = 0;
+    private volatile long discardedReplay = 0;
+    private int consecutiveDiscards = 0;
+    
+    /** 
+     * A packet that was received during the handshake, but belongs to the 
+     * session (from a peer that doesn't negotiate framing). It is returned 
+     * before any other packet.
+     */
+    private DecryptedPacket pendingPacket = null;
+    
+    /** 
+     * Encodes and decodes packets using reusable buffers. Packets may be sent
+     * by several threads, so sending is serialised by sendLock.
+     */
+    private final PacketCodec codec = new PacketCodec();
+    private final Object sendLock = new Object();
+    
     /** Opened socket through which the communication is to be made. */
     private Socket commsSocket;
     
+    /** 
+     * The address of the peer, if we initiated the session. Used to look up
+     * our resumption ticket for the peer.
+     */
+    private String peerName = null;
+    
+    /** Issues resumption tickets to peers, if we accept sessions. */
+    private SessionTicketIssuer ticketIssuer = null;
+    
     /** 
      * Provides asymmetric encryption. Asymmetric encryption will be used until 
      * symmetric encryption can be used.
@@ -113,20 +293,26 @@ public class Comms {
     /** Provides encryption and decryption for the communications. */
 	private Encryption confidentialityProvider = null;
 	private SecretKey confidentialityKey = null;
+	
+	/** 
+	 * True once both peers have agreed to use authenticated encryption, in 
+	 * which case integrity is provided by the confidentialityProvider.
+	 */
+	private boolean aeadEncryption = false;
     
     /** Provides integrity through creating checksums for messages. */
 	private MessageAuthenticationCode integrityProvider = null;
 	private SecretKey integrityKey = null;
     
-    /** Prevents replay attacks using a PRNG. */
+    /** Prevents replay attacks using sequence numbers. */
 	private NonceGenerator replayPreventionTX = null;
 	private NonceGenerator replayPreventionRX = null;
 
     /** Output data stream for the socket. */
-    private PrintWriter dataOut;            
+    private DataOutputStream dataOut;            
     
     /** Input data stream for the socket. */
-    private BufferedReader dataIn;
+    private DataInputStream dataIn;
     
     /** Constructor without asymmetric encryption. */
     public Comms() {
@@ -171,6 +357,19 @@ public class Comms {
         this.peerHasPublicKey = peerHasPublicKey;
     }
     
+    /** 
+     * Constructor with asymmetric encryption and session resumption. 
+     *
+     * @param aep To provide asymmetric encryption and public-private keys.
+     * @param peerHasPublicKey True if the peer already has our public key.
+     * @param issuer To issue resumption tickets to peers once sessions have 
+     * been accepted. If null, then sessions cannot be resumed.
+     */
+    public Comms(AsymmetricEncryption aep, boolean peerHasPublicKey, SessionTicketIssuer issuer) {
+    	this(aep, peerHasPublicKey);
+    	this.ticketIssuer = issuer;
+    }
+    
     /** 
      * Cleans up before terminating the class.
      * 
@@ -196,8 +395,9 @@ public class Comms {
     	if (DEBUG_GENERAL) System.out.println("Initiating Comms session.");
         try {
             commsSocket = socket;
-            dataOut = new PrintWriter(commsSocket.getOutputStream(), true);
-            dataIn = new BufferedReader(new InputStreamReader(commsSocket.getInputStream()));
+            peerName = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            dataOut = new DataOutputStream(new BufferedOutputStream(commsSocket.getOutputStream()));
+            dataIn = new DataInputStream(new BufferedInputStream(commsSocket.getInputStream()));
         } catch (Exception e) {
             System.err.println("Connection terminated!");
             if (DEBUG_ERROR_TRACE) e.printStackTrace();
@@ -210,36 +410,60 @@ public class Comms {
          */
         if (DEBUG_ASYMMETRIC_ENCRYPTION) System.out.println("Asymmetric encryption enabled.");
         
+        /** 
+         * Send the peer our public key and all of our session parameters 
+         * without waiting for each step to be acknowledged.
+         */
+        if (COMPACT_HANDSHAKE) {
+        	if (!peerHasPublicKey) transmitPublicKey();
+        	return initHello();
+        }
+        
         /** Send the peer our public key for asymmetric encryption. */	
-        if (!peerHasPublicKey) sendPublicKey();
+        if (!peerHasPublicKey && !sendPublicKey())
+        	return false;
         
         /** Perform key exchange (Diffie-Hellman key exchange). */
-        initKeyExchange();
+        initKeyExchange(KEY_EXCHANGE_DH);
         
         /** Wait for key exchange to finish. */
-        waitForKeyExchange();
+        if (!waitForKeyExchange())
+        	return false;
+        
+        /** Offer authenticated encryption to the peer and wait for its decision. */
+        if (!initCipherSuite())
+        	return false;
         
         /** Encrypt the communications. */
-        initEncryption();
+        initEncryption(true);
         
         /** 
          * NOTE: All communications from here will be encrypted with symmetric 
          * encryption.
          */
         
-        /** Generate and transmit integrity (HMAC) key. */
-        initIntegrityKey();
-        
-        /** Wait for the peer to send acknowledgement of integrity key. */
-        waitForIntegrityKey();
+        /** 
+         * Authenticated encryption already provides integrity, so the HMAC key
+         * is only needed otherwise.
+         */
+        if (!aeadEncryption) {
+	        /** Generate and transmit integrity (HMAC) key. */
+	        initIntegrityKey();
+	        
+	        /** Wait for the peer to send acknowledgement of integrity key. */
+	        if (!waitForIntegrityKey())
+	        	return false;
+        }
         
-        /** Generate and transmit replay prevention RX seed (PRNG seed). */ 
+        /** Generate and transmit replay prevention RX seed (initial sequence number). */ 
         initReplayPrevention();
         
-        /** Wait for the peer to send replay prevention TX seed (PRNG seed). */
-        waitForReplayPreventionSeed();
+        /** Wait for the peer to send replay prevention TX seed (initial sequence number). */
+        if (!waitForReplayPreventionSeed())
+        	return false;
         
-        return true;
+        /** Offer binary framing to the peer and wait for its decision. */
+        return initFraming();
     }
 
     /** 
@@ -255,8 +479,8 @@ public class Comms {
     	if (DEBUG_GENERAL) System.out.println("Accepting Comms session on port " + socket.getPort() + ".");
         try {
             commsSocket = socket;
-            dataOut = new PrintWriter(commsSocket.getOutputStream(), true);
-            dataIn = new BufferedReader(new InputStreamReader(commsSocket.getInputStream()));
+            dataOut = new DataOutputStream(new BufferedOutputStream(commsSocket.getOutputStream()));
+            dataIn = new DataInputStream(new BufferedInputStream(commsSocket.getInputStream()));
         } catch (Exception e) {
             System.err.println("Connection terminated!");
             if (DEBUG_ERROR_TRACE) e.printStackTrace();
@@ -272,16 +496,38 @@ public class Comms {
          * Wait for the peer to send their public key so that we can encrypt 
          * outgoing communications.
          */
-        if (asymmetricEncryptionProvider.getPeerPublicKey() == null) recvPublicKey();
+        if (asymmetricEncryptionProvider.getPeerPublicKey() == null && !recvPublicKey())
+        	return false;
+        
+        /** 
+         * Wait for the peer to start the handshake. If the peer uses the 
+         * compact handshake, then the handshake is now over. Replay prevention
+         * is the last thing to be enabled, so it indicates success.
+         */
+        if (waitForHello()) {
+        	if (replayPreventionTX == null)
+        		return false;
+        	
+        	issueTicket();
+        	return true;
+        }
         
         /** 
          * Wait for key exchange (Diffie-Hellman key exchange) to occur. This 
          * should be initiated on the other end of the communications.
          */
-        waitForKeyExchange();
+        if (!waitForKeyExchange())
+        	return false;
+        
+        /**
+         * Wait for the peer to offer a cipher suite. This should be initiated
+         * on the other end of the communications.
+         */
+        if (!waitForCipherSuite())
+        	return false;
         
         /** Encrypt the communications. */
-        initEncryption();
+        initEncryption(false);
         
         /** 
          * NOTE: All communications from here will be encrypted with symmetric 
@@ -290,34 +536,60 @@ public class Comms {
         
         /** 
          * Wait for integrity key exchange to occur. This should be initiated on
-         * the other end of the communications.  
+         * the other end of the communications. Authenticated encryption already
+         * provides integrity, so the HMAC key is only needed otherwise.
          */
-        waitForIntegrityKey();
+        if (!aeadEncryption && !waitForIntegrityKey())
+        	return false;
         
         /**
-         * Wait for replay prevent seed (PRNG seed) exchange to occur. This 
-         * should be initiated on the other end of the communications.
+         * Wait for replay prevent seed (initial sequence number) exchange to 
+         * occur. This should be initiated on the other end of the 
+         * communications.
          */
-        waitForReplayPreventionSeed();
+        if (!waitForReplayPreventionSeed())
+        	return false;
+        
+        /**
+         * Wait for the peer to offer a framing mode. This should be initiated
+         * on the other end of the communications.
+         */
+        if (!waitForFraming())
+        	return false;
+        
+        /** Allow the peer to resume this session later. */
+        issueTicket();
 
         return true;
     }
 
     /**
-     * Terminates the communication session and closes the socket, print writer 
-     * and buffered reader associated with the communications.
+     * Terminates the communication session and closes the socket, output 
+     * stream and input stream associated with the communications.
      * 
      * @return True if the termination succeeds, otherwise false.
      */
-    public boolean terminateSession() {
+    public synchronized boolean terminateSession() {
     	if (DEBUG_GENERAL) System.out.println("Terminating Comms session.");
         try {
             if (commsSocket == null)
                 return false;
-            dataIn.close();
-            dataOut.close();
+            
+            /** 
+             * Close the socket first, so that any thread blocked writing to 
+             * the socket is released. Otherwise closing the output stream 
+             * would wait for that thread.
+             */
             commsSocket.close();
             commsSocket = null;
+            
+            try {
+            	dataIn.close();
+            	dataOut.close();
+            } catch (IOException e) {
+            	/** Any buffered output can no longer be sent. */
+            	if (DEBUG_ERROR_TRACE) e.printStackTrace();
+            }
         } catch (Exception e) {
         	System.err.println("Error occurred while terminating session!");
         	if (DEBUG_ERROR_TRACE) e.printStackTrace();
@@ -368,12 +640,15 @@ public class Comms {
      * @return True if successful, otherwise false.
      */
     public boolean sendPacket(byte command, byte[] data, int dataSize) {
-        final DecryptedPacket pckt = new DecryptedPacket(command, data, dataSize, integrityProvider, replayPreventionTX);
-        return sendPacket(pckt);
+    	/** Packets are numbered (and MACed) in the order that they are sent. */
+    	synchronized (sendLock) {
+    		final DecryptedPacket pckt = new DecryptedPacket(command, data, dataSize, integrityProvider, replayPreventionTX);
+    		return sendPacket(pckt);
+    	}
     }
 
     /**
-     * Sends a StealthNet packet by writing it to the print writer for the 
+     * Sends a StealthNet packet by writing it to the output stream for the 
      * socket. Before the packet is transmitted it is encrypted, if encryption
      * has been initiated. If not, then the packet will be transmitted in its
      * unencrypted form. Beware that this may not always be the desired effect.
@@ -399,80 +674,295 @@ public class Comms {
     	 * If confidentialityProvider is an AsymmetricEncryption instance, then
     	 * encryption will only be provided if the peer's public key is known.
     	 */
-    	EncryptedPacket encPckt;
-    	try {
-    		if (confidentialityProvider != null && confidentialityProvider instanceof AsymmetricEncryption && ((AsymmetricEncryption) confidentialityProvider).getPeerPublicKey() == null)
-    			encPckt = decPckt.encrypt(null);
-    		else
-    			encPckt = decPckt.encrypt(confidentialityProvider);
-		} catch (Exception e) {
-			System.err.println("Failed to encrypt packet!");
-			if (DEBUG_ERROR_TRACE) e.printStackTrace();
-			return false;
-		}
-		if (confidentialityProvider != null && DEBUG_ENCRYPTED_PACKET)	
-			System.out.println("(encrypted) sendPacket(" + encPckt.getEncryptedString() + ")");
-		
-		if (DEBUG_RAW_PACKET)
-			System.out.println("(raw)       sendPacket(" + encPckt.toString() + ")");
+    	synchronized (sendLock) {
+	    	EncryptedPacket encPckt;
+	    	try {
+	    		if (confidentialityProvider != null && confidentialityProvider instanceof AsymmetricEncryption && ((AsymmetricEncryption) confidentialityProvider).getPeerPublicKey() == null)
+	    			encPckt = decPckt.encrypt(null, codec, binaryFraming);
+	    		else
+	    			encPckt = decPckt.encrypt(confidentialityProvider, codec, binaryFraming);
+			} catch (Exception e) {
+				System.err.println("Failed to encrypt packet!");
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+				return false;
+			}
+			if (confidentialityProvider != null && DEBUG_ENCRYPTED_PACKET)	
+				System.out.println("(encrypted) sendPacket(" + encPckt.getEncryptedString() + ")");
+			
+			if (DEBUG_RAW_PACKET)
+				System.out.println("(raw)       sendPacket(" + encPckt.toString() + ")");
+	    	
+	        if (dataOut == null) {
+	        	System.err.println("Output stream does not exist!");
+	            return false;
+	        }
+	        
+	        /** Write the packet to the output stream. */
+	        try {
+	        	if (binaryFraming)
+	        		writeFrame(encPckt);
+	        	else
+	        		writeLine(encPckt);
+	        } catch (IOException e) {
+	        	System.err.println("Failed to send packet!");
+	        	if (DEBUG_ERROR_TRACE) e.printStackTrace();
+	        	return false;
+	        }
+	        return true;
+    	}
+    }
+    
+    /**
+     * Writes a packet to the output stream as a line of hexadecimal text.
+     * 
+     * @param encPckt The packet to be written.
+     * @throws IOException
+     */
+    private void writeLine(EncryptedPacket encPckt) throws IOException {
+    	final ByteBuffer line = codec.encodeLine(encPckt);
+    	dataOut.write(line.array(), 0, line.limit());
+    	dataOut.flush();
+    }
+    
+    /**
+     * Writes a packet to the output stream as a binary frame. A binary frame 
+     * consists of the frame marker, the length of the frame body (4 bytes) and
+     * the frame body itself, which is the (encrypted) packet data followed by
+     * the raw MAC digest.
+     * 
+     * @param encPckt The packet to be written.
+     * @throws IOException
+     */
+    private void writeFrame(EncryptedPacket encPckt) throws IOException {
+    	dataOut.write(FRAME_MARKER);
+    	dataOut.writeInt(encPckt.data.length + encPckt.digest.length);
+    	dataOut.write(encPckt.data);
+    	dataOut.write(encPckt.digest);
+    	dataOut.flush();
+    }
+    
+    /**
+     * Reads a binary frame from the input stream. This function must undo the
+     * effects of the writeFrame(EncryptedPacket) function.
+     * 
+     * @return The packet contained in the frame, or null if the end of the 
+     * stream has been reached.
+     * @throws IOException If the frame is malformed or truncated. In this case
+     * the stream can no longer be trusted to be aligned to a frame boundary.
+     */
+    private EncryptedPacket readFrame() throws IOException {
+    	final int marker = dataIn.read();
+    	if (marker == -1)
+    		return null;
+    	if (marker != FRAME_MARKER)
+    		throw new IOException("Invalid frame marker: " + marker + ".");
     	
-        if (dataOut == null) {
-        	System.err.println("PrintWriter does not exist!");
-            return false;
-        }
-        
-        /** Print the packet to the output writer. */
-        dataOut.println(encPckt.toString());
-        return true;
+    	final int frameLen = dataIn.readInt();
+    	final int digestLen = EncryptedPacket.getDigestBytes();
+    	if (frameLen < digestLen || frameLen > MAX_FRAME_BYTES)
+    		throw new IOException("Invalid frame length: " + frameLen + ".");
+    	
+    	final byte[] data = new byte[frameLen - digestLen];
+    	final byte[] digest = new byte[digestLen];
+    	dataIn.readFully(data);
+    	dataIn.readFully(digest);
+    	
+    	return new EncryptedPacket(data, digest);
     }
 
     /**
-     * Reads a StealthNet packet from the buffered reader for the socket. Note
+     * Reads a StealthNet packet from the input stream for the socket. Note
      * that this function should (in the normal case) not return any security
      * related packets (CMD_AUTHENTICATIONKEY, CMD_INTEGRITYKEY, CMD_NONCESEED).
      * 
-     * If any step (such as decryption) of an incoming packet fails, then this
-     * function will recursively call itself. The result is that the only 
-     * situation in which this function returns null is when the communications
-     * have in some way been closed.
+     * If any step (such as decryption) of an incoming packet fails, then the 
+     * packet is discarded (and counted) and another packet is read. If too 
+     * many consecutive packets are discarded, then the session is terminated.
+     * The result is that the only situation in which this function returns 
+     * null is when the communications have in some way been closed.
      * 
-     * Note that the string received by the buffered data reader represents an
+     * Note that the line (or frame) received by the input stream represents an
      * EncryptedPacket. This function will attempt to decrypt this packet (into
      * a DecryptedPacket) before returning the packet to the user.
      * 
      * @return The packet that was received.
      */
     public DecryptedPacket recvPacket() throws IOException {
-        /** Read data from the input buffer. */
-        String packetString = dataIn.readLine();
-        
-        if (packetString == null)
-        	return null;
-        
+    	if (pendingPacket != null) {
+    		final DecryptedPacket pckt = pendingPacket;
+    		pendingPacket = null;
+    		return pckt;
+    	}
+    	
+    	while (true) {
+	        EncryptedPacket encPckt = null;
+	        
+	        if (binaryFraming) {
+	        	/** Read a frame from the input stream. */
+	        	encPckt = readFrame();
+	        	
+	        	if (encPckt == null)
+	        		return null;
+	        	
+	        	/** Debug information. */
+	        	if (DEBUG_RAW_PACKET)
+	        		System.out.println("(raw)       recvPacket(" + encPckt.toString() + ")");
+	        } else {
+		        /** Read a line from the input stream. */
+		        final ByteBuffer line = codec.readLine(dataIn);
+		        
+		        if (line == null)
+		        	return null;
+		        
+		        /** Construct the packet. */
+		        encPckt = decodeLine(line.array(), 0, line.limit());
+	        }
+	    	
+	        /** Verify, decrypt and check the packet. */
+	        final DecryptedPacket decPckt = (encPckt == null) ? null : openPacket(encPckt);
+	        
+	        if (decPckt != null)
+	        	return decPckt;
+	        if (commsSocket == null)
+	        	return null;
+    	}
+    }
+    
+    /**
+     * Decodes a StealthNet packet from a buffer of bytes that have been read
+     * from the socket without blocking. This function performs the same 
+     * processing as recvPacket(), but never blocks. It is used once the session
+     * has been handed over to non-blocking I/O (see detachStreams).
+     * 
+     * @param in The received bytes, ready to be read. Bytes that form a packet
+     * are consumed. An incomplete packet is left in the buffer.
+     * @return The packet that was received, or null if the buffer does not yet
+     * contain a complete packet.
+     * @throws IOException If the framing is invalid, or if the session has been
+     * terminated because too many packets have been discarded.
+     */
+    DecryptedPacket pollPacket(ByteBuffer in) throws IOException {
+    	if (pendingPacket != null) {
+    		final DecryptedPacket pckt = pendingPacket;
+    		pendingPacket = null;
+    		return pckt;
+    	}
+    	
+    	while (true) {
+    		EncryptedPacket encPckt = null;
+    		
+    		if (binaryFraming) {
+    			/** Check that the buffer contains a complete frame. */
+    			if (in.remaining() < FRAME_HEADER_BYTES)
+    				return null;
+    			
+    			final int marker = in.get(in.position()) & 0xFF;
+    			if (marker != FRAME_MARKER)
+    				throw new IOException("Invalid frame marker: " + marker + ".");
+    			
+    			final int frameLen = in.getInt(in.position() + 1);
+    			final int digestLen = EncryptedPacket.getDigestBytes();
+    	    	if (frameLen < digestLen || frameLen > MAX_FRAME_BYTES)
+    	    		throw new IOException("Invalid frame length: " + frameLen + ".");
+    	    	if (in.remaining() < FRAME_HEADER_BYTES + frameLen)
+    	    		return null;
+    	    	
+    	    	/** Read the frame. */
+    	    	final byte[] data = new byte[frameLen - digestLen];
+    	    	final byte[] digest = new byte[digestLen];
+    	    	in.position(in.position() + FRAME_HEADER_BYTES);
+    	    	in.get(data);
+    	    	in.get(digest);
+    	    	encPckt = new EncryptedPacket(data, digest);
+    	    	
+    	    	/** Debug information. */
+    	    	if (DEBUG_RAW_PACKET)
+	        		System.out.println("(raw)       pollPacket(" + encPckt.toString() + ")");
+    		} else {
+    			/** Find the end of the line. */
+    			int end = -1;
+    			for (int i = in.position(); i < in.limit(); i++)
+    				if (in.get(i) == '\n') {
+    					end = i;
+    					break;
+    				}
+    			
+    			if (end == -1) {
+    				if (in.remaining() > MAX_FRAME_BYTES * Utility.HEX_PER_BYTE)
+    					throw new IOException("Line exceeds maximum length.");
+    				return null;
+    			}
+    			
+    			/** Copy the line, without the terminator or any carriage returns. */
+    			final byte[] line = new byte[end - in.position()];
+    			int length = 0;
+    			while (in.position() < end) {
+    				final byte c = in.get();
+    				if (c != '\r')
+    					line[length++] = c;
+    			}
+    			in.get();
+    			
+    			/** Construct the packet. */
+    			encPckt = decodeLine(line, 0, length);
+    		}
+    		
+    		/** Verify, decrypt and check the packet. */
+    		final DecryptedPacket decPckt = (encPckt == null) ? null : openPacket(encPckt);
+    		
+    		if (decPckt != null)
+    			return decPckt;
+    		if (commsSocket == null)
+    			throw new IOException("Session terminated.");
+    	}
+    }
+    
+    /**
+     * Decodes a packet from a line of hexadecimal text. If the line is 
+     * malformed, then the packet is discarded (and counted).
+     * 
+     * @param buf The array containing the line (without its terminator).
+     * @param offset The offset of the line within the array.
+     * @param length The length of the line.
+     * @return The packet, or null if the packet was discarded.
+     */
+    private EncryptedPacket decodeLine(byte[] buf, int offset, int length) {
         /** Debug information. */
         if (DEBUG_RAW_PACKET)
-    			System.out.println("(raw)       recvPacket(" + packetString + ")");
+    		System.out.println("(raw)       recvPacket(" + new String(buf, offset, length) + ")");
         
-        /** Construct the packet. */
-        EncryptedPacket encPckt = null;
     	try {
-    		encPckt = new EncryptedPacket(packetString);
+    		return PacketCodec.decodeLine(buf, offset, length);
     	} catch (Exception e) {
     		if (DEBUG_GENERAL) System.err.println("Unable to instantiate packet. Discarding...");
     		if (DEBUG_ERROR_TRACE) e.printStackTrace();
     		
-    		/** Retrieve another packet by recursion. */
-    		return recvPacket();
+    		discardedMalformed++;
+    		discardPacket();
+    		return null;
     	}
-    	
+    }
+    
+    /**
+     * Verifies, decrypts and checks a received packet. If any step fails, then
+     * the packet is discarded (and counted). Resumption tickets are consumed 
+     * here, and are never returned.
+     * 
+     * @param encPckt The packet that was received.
+     * @return The decrypted packet, or null if the packet was discarded or 
+     * consumed. If the packet was discarded, then the session may have been 
+     * terminated.
+     */
+    private DecryptedPacket openPacket(EncryptedPacket encPckt) {
     	/** Check the integrity of the message. */
     	if (integrityProvider != null) {
     		try {
 		    	if (!encPckt.verifyMAC(integrityProvider)) {
-					System.err.println("(verified)  recvPacket - Packet failed MAC verification! Discarding...");
+		    		if (DEBUG_GENERAL) System.err.println("(verified)  recvPacket - Packet failed MAC verification! Discarding...");
 					
-					/** Retrieve another packet by recursion. */
-		    		return recvPacket();
+					discardedIntegrity++;
+					discardPacket();
+					return null;
 		    	} else {
 		    		if (DEBUG_INTEGRITY) 
 	    				System.out.println("(verified)  recvPacket - Packet passed MAC verification.");
@@ -481,29 +971,31 @@ public class Comms {
         		if (DEBUG_GENERAL) System.err.println("Unable to verify packet. Discarding...");
         		if (DEBUG_ERROR_TRACE) e.printStackTrace();
         		
-        		/** Retrieve another packet by recursion. */
-        		return recvPacket();
+        		discardedIntegrity++;
+        		discardPacket();
+        		return null;
         	}
     	}
         
         /** 
-         * Attempt to decrypt the packet. If we are using asymmetric encryption,
-         * then we cannot decrypt the packet until we are sure that the peer has
-         * received our public key (because otherwise the peer would not be able
-         * to encrypt the message).
+         * Attempt to decrypt the packet. If we are using asymmetric 
+         * encryption, then we cannot decrypt the packet until we are sure
+         * that the peer has received our public key (because otherwise the
+         * peer would not be able to encrypt the message).
          */
     	DecryptedPacket decPckt = null;
 		try {
 			if (confidentialityProvider != null && confidentialityProvider instanceof AsymmetricEncryption && !peerHasPublicKey)
-				decPckt = encPckt.decrypt(null);
+				decPckt = encPckt.decrypt(null, binaryFraming);
 			else
-				decPckt = encPckt.decrypt(confidentialityProvider);
+				decPckt = encPckt.decrypt(confidentialityProvider, binaryFraming);
 		} catch (Exception e) {
 			if (DEBUG_GENERAL) System.err.println("Failed to decrypt packet! Discarding...");
 			if (DEBUG_ERROR_TRACE) e.printStackTrace();
 			
-			/** Retrieve another packet by recursion. */
-    		return recvPacket();
+			discardedDecryption++;
+			discardPacket();
+			return null;
 		}
 		/** Print debug information. */
 		if (DEBUG_DECRYPTED_PACKET)	
@@ -518,17 +1010,118 @@ public class Comms {
 				if (DEBUG_GENERAL)
 					System.err.println("(verified)  recvPacket - Packet failed replay prevention! Discarding...");
 				
-				/** Retrieve another packet by recursion. */
-	    		return recvPacket();
+				discardedReplay++;
+				discardPacket();
+				return null;
         	} else {
         		if (DEBUG_INTEGRITY) 
     				System.out.println("(verified)  recvPacket - Packet passed replay prevention.");
         	}
         }
         
+        consecutiveDiscards = 0;
+        
+        /** Resumption tickets are handled here, and never returned. */
+        if (decPckt.command == DecryptedPacket.CMD_TICKET) {
+        	storeTicket(decPckt.data);
+        	return null;
+        }
+        
         /** Done. Return the packet. */
         return decPckt;
     }
+    
+    /**
+     * Hands the session over to non-blocking I/O, once the session has been
+     * established. The socket streams cannot be used once the channel of the
+     * socket is in non-blocking mode. Afterwards, packets are written to the 
+     * given output stream (which must not block), and received packets must be
+     * passed to pollPacket(ByteBuffer) rather than read by recvPacket().
+     * 
+     * This function must be called while the channel is still in blocking
+     * mode, and before any other thread might be sending packets.
+     * 
+     * @param out The stream to which packets will be written. Each packet is 
+     * written in full, followed by a flush.
+     * @return Any bytes that have been read from the socket but not yet 
+     * consumed. These must be passed to pollPacket(ByteBuffer) first.
+     * @throws IOException
+     */
+    byte[] detachStreams(OutputStream out) throws IOException {
+    	synchronized (sendLock) {
+    		dataOut.flush();
+    		dataOut = new DataOutputStream(out);
+    	}
+    	
+    	/** The available bytes can be read without blocking. */
+    	final byte[] buffered = new byte[dataIn.available()];
+    	dataIn.readFully(buffered);
+    	return buffered;
+    }
+    
+    /**
+     * Account for a discarded packet. If too many consecutive packets have 
+     * been discarded, then the peer is assumed to be hostile (or broken) and 
+     * the session is terminated, which callers detect by the socket being 
+     * cleared.
+     */
+    private void discardPacket() {
+    	consecutiveDiscards++;
+    	
+    	if (MAX_CONSECUTIVE_DISCARDS > 0 && consecutiveDiscards >= MAX_CONSECUTIVE_DISCARDS) {
+    		System.err.println("Discarded " + consecutiveDiscards + " consecutive packets. Terminating session...");
+    		terminateSession();
+    	}
+    }
+    
+    /**
+     * Get the number of received packets that have been discarded because 
+     * they could not be parsed.
+     * 
+     * @return The number of malformed packets discarded.
+     */
+    public long getDiscardedMalformed() {
+    	return discardedMalformed;
+    }
+    
+    /**
+     * Get the number of received packets that have been discarded because 
+     * they failed MAC verification.
+     * 
+     * @return The number of packets discarded by the integrity check.
+     */
+    public long getDiscardedIntegrity() {
+    	return discardedIntegrity;
+    }
+    
+    /**
+     * Get the number of received packets that have been discarded because 
+     * they could not be decrypted.
+     * 
+     * @return The number of packets that failed decryption.
+     */
+    public long getDiscardedDecryption() {
+    	return discardedDecryption;
+    }
+    
+    /**
+     * Get the number of received packets that have been discarded because 
+     * they failed replay prevention.
+     * 
+     * @return The number of replayed packets discarded.
+     */
+    public long getDiscardedReplay() {
+    	return discardedReplay;
+    }
+    
+    /**
+     * Get the total number of received packets that have been discarded.
+     * 
+     * @return The number of packets discarded for any reason.
+     */
+    public long getDiscardedTotal() {
+    	return discardedMalformed + discardedIntegrity + discardedDecryption + discardedReplay;
+    }
 
     /**
      * To limit the verbosity of output in recvReady, we will only print these 
@@ -571,24 +1164,19 @@ public class Comms {
     	is_first_time = false;
     	
     	/** Return the result - the only real useful code in this function. */
-        return dataIn.ready();
+        return dataIn.available() > 0;
     }
     
     /** 
      * Send the peer our public key for asymmetric encryption. Once we have 
      * received acknowledgement that the peer has our public key value, the peer
      * will be able to encrypt messages to us.
+     * 
+     * @return True if the peer acknowledged our public key, otherwise false (if
+     * the connection failed or was closed).
      */
-    private void sendPublicKey() {
-    	if (DEBUG_ASYMMETRIC_ENCRYPTION) System.out.println("Sending the peer our public key.");
-    	
-    	final byte[] pubKeyBytes = asymmetricEncryptionProvider.getPublicKey().getEncoded();
-    	final String pubKeyString = new String(Utility.getHexValue(pubKeyBytes));
-    	if (DEBUG_ASYMMETRIC_ENCRYPTION) System.out.println("Sending public key to peer: " + pubKeyString);
-    	final String pubKey = Base64.encodeBase64String(pubKeyBytes);
-    	
-    	sendPacket(DecryptedPacket.CMD_PUBLICKEY, pubKey);
-    	if (DEBUG_ASYMMETRIC_ENCRYPTION) System.out.println("Sent public key to peer.");
+    private boolean sendPublicKey() {
+    	transmitPublicKey();
     	
     	/** Wait for acknowledgement. */
     	DecryptedPacket pckt = new DecryptedPacket();
@@ -597,22 +1185,46 @@ public class Comms {
 	        	pckt = recvPacket();
 	            
 	        	if (pckt == null)
-	        		break;
+	        		return false;
 	        	
 	        	switch (pckt.command) {
 	            	case DecryptedPacket.CMD_NULL:
 	            		peerHasPublicKey = true;
             			break;
 	            }
-    		} catch (IOException e) {}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
     	}
+    	
+    	return true;
+    }
+    
+    /** 
+     * Send the peer our public key for asymmetric encryption, without waiting
+     * for an acknowledgement.
+     */
+    private void transmitPublicKey() {
+    	if (DEBUG_ASYMMETRIC_ENCRYPTION) System.out.println("Sending the peer our public key.");
+    	
+    	final byte[] pubKeyBytes = asymmetricEncryptionProvider.getPublicKey().getEncoded();
+    	final String pubKeyString = new String(Utility.getHexValue(pubKeyBytes));
+    	if (DEBUG_ASYMMETRIC_ENCRYPTION) System.out.println("Sending public key to peer: " + pubKeyString);
+    	final String pubKey = Base64.encodeBase64String(pubKeyBytes);
+    	
+    	sendPacket(DecryptedPacket.CMD_PUBLICKEY, pubKey);
+    	if (DEBUG_ASYMMETRIC_ENCRYPTION) System.out.println("Sent public key to peer.");
     }
     
     /** 
      * Receive the peer's public key for asymmetric encryption. Send an 
      * acknowledgement to the peer and then enable asymmetric encryption.
+     * 
+     * @return True if we received the peer's public key, otherwise false (if the
+     * connection failed or was closed).
      */
-    private void recvPublicKey() {
+    private boolean recvPublicKey() {
     	if (DEBUG_ASYMMETRIC_ENCRYPTION) System.out.println("Waiting for peer public key...");
     	
     	while (asymmetricEncryptionProvider.getPeerPublicKey() == null) {
@@ -620,7 +1232,7 @@ public class Comms {
 	        	DecryptedPacket pckt = recvPacket();
 	            
 	        	if (pckt == null)
-	        		break;
+	        		return false;
 	        	
 	            switch (pckt.command) {
 	            	case DecryptedPacket.CMD_PUBLICKEY:
@@ -646,16 +1258,23 @@ public class Comms {
 	        			
 	                    break;
 	            }
-    		} catch (Exception e) {}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
     	}
+    	
+    	return true;
     }
     
     /** 
      * Perform a key exchange with the other party. This function is called by 
      * the peer that wishes to initiate the key exchange (ie. the peer that 
      * initiated the session).
+     * 
+     * @param algorithm The key exchange algorithm to use.
      */
-    private void initKeyExchange() {
+    private void initKeyExchange(String algorithm) {
     	if (DEBUG_AUTHENTICATION) System.out.println("Initiating key exchange.");
     	
     	if (authenticationProvider != null) {
@@ -663,28 +1282,113 @@ public class Comms {
     		return;
     	}
     	
+    	createKeyExchange(algorithm);
+    	
+    	/** Transmit our public key. */
+    	String pubKey = getPublicValue();
+    	if (DEBUG_AUTHENTICATION) System.out.println("Sending public key to peer: " + pubKey);
+    	sendPacket(DecryptedPacket.CMD_AUTHENTICATIONKEY, pubKey);
+    	if (DEBUG_AUTHENTICATION) System.out.println("Sent public key to peer.");
+    }
+    
+    /** 
+     * Generate our key exchange public/private keys, without transmitting our
+     * public key to the peer.
+     * 
+     * @param algorithm The key exchange algorithm to use.
+     */
+    private void createKeyExchange(String algorithm) {
     	try {
-    		if (DEBUG_AUTHENTICATION) System.out.println("Generating Diffie-Hellman public/private keys.");
-			authenticationProvider = new DiffieHellmanKeyExchange(KEY_EXCHANGE_NUM_BITS, new SecureRandom());
-			if (DEBUG_AUTHENTICATION) System.out.println("Generated Diffie-Hellman public/private keys.");
+    		if (DEBUG_AUTHENTICATION) System.out.println("Generating " + algorithm + " public/private keys.");
+			authenticationProvider = getKeyExchangeFactory(algorithm).createKeyExchange();
+			if (DEBUG_AUTHENTICATION) System.out.println("Generated " + algorithm + " public/private keys.");
 		} catch (Exception e) {
-			System.err.println("Diffie-Hellman key exchange failed. Failed to generate public/private keys.");			
+			System.err.println("Key exchange failed. Failed to generate public/private keys.");			
 			if (DEBUG_ERROR_TRACE) e.printStackTrace();
 			System.exit(1);
 		}
+    }
+    
+    /**
+     * Get the factory that creates key exchange providers for an algorithm, 
+     * creating it if it does not already exist. The factory (and its pool) is
+     * shared by all sessions.
+     * 
+     * @param algorithm The key exchange algorithm.
+     * @return The key exchange factory.
+     * @throws GeneralSecurityException
+     */
+    private static synchronized KeyExchangeFactory getKeyExchangeFactory(String algorithm) throws GeneralSecurityException {
+    	if (algorithm.equals(KEY_EXCHANGE_X25519)) {
+    		if (!X25519KeyExchange.isAvailable())
+    			throw new NoSuchAlgorithmException(X25519KeyExchange.ALGORITHM + " is not available.");
+    		if (x25519KeyExchangeFactory == null)
+    			x25519KeyExchangeFactory = createPool(new X25519KeyExchangeFactory(new SecureRandom()));
+    		return x25519KeyExchangeFactory;
+    	}
     	
-    	/** Transmit our public key. */
-    	String pubKey = authenticationProvider.getPublicKey().toString();
-    	if (DEBUG_AUTHENTICATION) System.out.println("Sending public key to peer: " + pubKey);
-    	sendPacket(DecryptedPacket.CMD_AUTHENTICATIONKEY, pubKey);
-    	if (DEBUG_AUTHENTICATION) System.out.println("Sent public key to peer.");
+    	if (dhKeyExchangeFactory == null)
+    		dhKeyExchangeFactory = createPool(new DiffieHellmanKeyExchangeFactory(KEY_EXCHANGE_NUM_BITS, new SecureRandom()));
+    	return dhKeyExchangeFactory;
+    }
+    
+    /**
+     * Wrap a key exchange factory in a pool, unless pooling is disabled.
+     * 
+     * @param factory The key exchange factory.
+     * @return The pooled key exchange factory.
+     */
+    private static KeyExchangeFactory createPool(KeyExchangeFactory factory) {
+    	if (KEY_EXCHANGE_POOL_SIZE > 0)
+    		return new PooledKeyExchangeFactory(factory, KEY_EXCHANGE_POOL_SIZE);
+    	else
+    		return factory;
+    }
+    
+    /**
+     * Get the key exchange algorithm of a public value that was sent to us.
+     * 
+     * @param publicValue The public value.
+     * @return The key exchange algorithm.
+     */
+    private static String getKeyExchangeAlgorithm(String publicValue) {
+    	if (publicValue.startsWith(KEY_EXCHANGE_X25519 + PUBLIC_VALUE_SEPARATOR))
+    		return KEY_EXCHANGE_X25519;
+    	else
+    		return KEY_EXCHANGE_DH;
+    }
+    
+    /**
+     * Check whether we are able to use a key exchange algorithm.
+     * 
+     * @param algorithm The key exchange algorithm.
+     * @return True if the algorithm can be used.
+     */
+    private static boolean isKeyExchangeSupported(String algorithm) {
+    	return algorithm.equals(KEY_EXCHANGE_DH) || X25519KeyExchange.isAvailable();
+    }
+    
+    /**
+     * Get our public value, in the form in which it is transmitted to the 
+     * peer. 
+     * 
+     * @return Our public value.
+     */
+    private String getPublicValue() {
+    	if (authenticationProvider instanceof X25519KeyExchange)
+    		return KEY_EXCHANGE_X25519 + PUBLIC_VALUE_SEPARATOR + Base64.encodeBase64String(((X25519KeyExchange) authenticationProvider).getEncodedPublicKey());
+    	else
+    		return authenticationProvider.getPublicKey().toString();
     }
     
     /**
      * Continuously receives (and discards unrelated) packets until the 
      * Diffie-Hellman key exchange has completed.
+     * 
+     * @return True if the key exchange completed, otherwise false (if the
+     * connection failed or was closed).
      */
-    private void waitForKeyExchange() {
+    private boolean waitForKeyExchange() {
     	if (DEBUG_AUTHENTICATION) System.out.println("Waiting for successful authentication key exchange...");
     	
     	while (authenticationKey == null) {
@@ -692,7 +1396,7 @@ public class Comms {
 	        	DecryptedPacket pckt = recvPacket();
 	            
 	        	if (pckt == null)
-	        		break;
+	        		return false;
 	        	
 	            switch (pckt.command) {
 	            	case DecryptedPacket.CMD_AUTHENTICATIONKEY:
@@ -702,12 +1406,17 @@ public class Comms {
 	            	    keyExchange(pubKey);
 	                    break;
 	            }
-    		} catch (IOException e) {}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
         }
+    	
+    	return true;
     }
     
     /** 
-     * Perform a Diffie-Hellman key exchange with the other party. This function
+     * Perform a key exchange with the other party. This function
      * should be called when a peer receives a public key (ie. by the peer that
      * accepts the communications session).
      * 
@@ -717,34 +1426,126 @@ public class Comms {
      * @param publicKey The public key that was sent to us.
      */
     private void keyExchange(String publicKey) {
+    	final String algorithm = getKeyExchangeAlgorithm(publicKey);
     	if (authenticationProvider == null) {
     		/** We haven't yet made our own private/public keys. */
-    		initKeyExchange();
+    		initKeyExchange(algorithm);
     	}
     	
     	/** Generate the shared key. */
 		try {
-			if (DEBUG_AUTHENTICATION) System.out.println("Generating the Diffie-Hellman shared secret key.");
-			authenticationKey = authenticationProvider.getSharedSecret(new BigInteger(publicKey));
+			if (DEBUG_AUTHENTICATION) System.out.println("Generating the " + algorithm + " shared secret key.");
+			if (algorithm.equals(KEY_EXCHANGE_X25519)) {
+				if (!(authenticationProvider instanceof X25519KeyExchange))
+					throw new InvalidKeyException("Peer used a different key exchange algorithm.");
+				final String value = publicKey.substring(KEY_EXCHANGE_X25519.length() + PUBLIC_VALUE_SEPARATOR.length());
+				authenticationKey = ((X25519KeyExchange) authenticationProvider).getSharedSecret(Base64.decodeBase64(value));
+			} else {
+				if (authenticationProvider instanceof X25519KeyExchange)
+					throw new InvalidKeyException("Peer used a different key exchange algorithm.");
+				authenticationKey = authenticationProvider.getSharedSecret(new BigInteger(publicKey));
+			}
 			if (DEBUG_AUTHENTICATION) {
 				final String sskey = new String(Utility.getHexValue(authenticationKey.getEncoded()));
-				System.out.println("Generated Diffie-Hellman shared secret key: " + sskey);
+				System.out.println("Generated " + algorithm + " shared secret key: " + sskey);
 			}
 		} catch (Exception e) {
-			System.err.println("Diffie-Hellman key exchange failed. Failed to generate shared secret key.");
+			System.err.println("Key exchange failed. Failed to generate shared secret key.");
 			if (DEBUG_ERROR_TRACE) e.printStackTrace();
 			return;
 		}
     }
     
+    /**
+     * Offers a cipher suite to the peer and waits for the peer to respond with
+     * the cipher suite that will be used for the rest of the session. This 
+     * function is called by the peer that initiated the session.
+     * 
+     * @return True if the peer selected a cipher suite, otherwise false (if the
+     * connection failed or was closed).
+     */
+    private boolean initCipherSuite() {
+    	final String offer = AEAD_ENCRYPTION ? CIPHERSUITE_AES_GCM : CIPHERSUITE_AES_CBC_HMAC;
+    	if (DEBUG_ENCRYPTION) System.out.println("Offering " + offer + " cipher suite to peer.");
+    	sendPacket(DecryptedPacket.CMD_CIPHERSUITE, offer);
+    	
+    	boolean done = false;
+    	while (!done) {
+    		try {
+	        	final DecryptedPacket pckt = recvPacket();
+	            
+	        	if (pckt == null)
+	        		return false;
+	        	
+	        	switch (pckt.command) {
+	            	case DecryptedPacket.CMD_CIPHERSUITE:
+	            		aeadEncryption = CIPHERSUITE_AES_GCM.equals(new String(pckt.data));
+	            		if (DEBUG_ENCRYPTION) System.out.println("Peer selected " + (aeadEncryption ? CIPHERSUITE_AES_GCM : CIPHERSUITE_AES_CBC_HMAC) + " cipher suite.");
+	            		
+	            		/** Done! */
+	            		done = true;
+	            		break;
+	        	}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Continuously receives (and discards unrelated) packets until the peer
+     * offers a cipher suite. Authenticated encryption is selected only if it 
+     * was offered by the peer and is also enabled locally.
+     * 
+     * @return True if the peer offered a cipher suite, otherwise false (if the
+     * connection failed or was closed).
+     */
+    private boolean waitForCipherSuite() {
+    	if (DEBUG_ENCRYPTION) System.out.println("Waiting for cipher suite offer...");
+    	
+    	boolean done = false;
+    	while (!done) {
+    		try {
+	        	final DecryptedPacket pckt = recvPacket();
+	            
+	        	if (pckt == null)
+	        		return false;
+	        	
+	        	switch (pckt.command) {
+	            	case DecryptedPacket.CMD_CIPHERSUITE:
+	            		aeadEncryption = AEAD_ENCRYPTION && CIPHERSUITE_AES_GCM.equals(new String(pckt.data));
+	            		if (DEBUG_ENCRYPTION) System.out.println("Selecting " + (aeadEncryption ? CIPHERSUITE_AES_GCM : CIPHERSUITE_AES_CBC_HMAC) + " cipher suite.");
+	            		
+	            		/** Respond before symmetric encryption is enabled. */
+	            		sendPacket(DecryptedPacket.CMD_CIPHERSUITE, aeadEncryption ? CIPHERSUITE_AES_GCM : CIPHERSUITE_AES_CBC_HMAC);
+	            		
+	            		/** Done! */
+	            		done = true;
+	            		break;
+	        	}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
+    	}
+    	
+    	return true;
+    }
+    
     /** 
      * Enable encryption on the communications, using a hash of the shared 
      * secret key as the encryption and decryption keys.
      * 
      * After this function returns (unless an error occurred), encryption and 
      * decryption for this communication should be initialised.
+     * 
+     * @param initiator True if we initiated the session. Used to keep the 
+     * authenticated encryption nonces of the two peers distinct.
      */
-    private void initEncryption() {
+    private void initEncryption(boolean initiator) {
     	if (authenticationKey == null) {
     		System.err.println("Shared secret key has not yet been generated. Cannot create encryption key.");
     		System.exit(1);
@@ -759,7 +1560,10 @@ public class Comms {
 			final String cryptKeyString = new String(Utility.getHexValue(confidentialityKey.getEncoded()));
 			if (DEBUG_ENCRYPTION) System.out.println("Generated AES encryption/decryption key: " + cryptKeyString);
 			
-			confidentialityProvider = new AESEncryption(confidentialityKey);
+			if (aeadEncryption)
+				confidentialityProvider = new AESGCMEncryption(confidentialityKey, initiator);
+			else
+				confidentialityProvider = new AESEncryption(confidentialityKey);
 			if (DEBUG_ENCRYPTION) System.out.println("Symmetric encryption enabled.");
 		} catch (Exception e) {
 			System.err.println("Unable to provide encryption/decryption. Failed to generate AES encryption/decryption key or initialise ciphers.");
@@ -797,8 +1601,11 @@ public class Comms {
      * Continuously receives (and discards unrelated) packets until the 
      * integrity key exchange has completed. This is acknowledged by a NULL 
      * packet from the other peer.
+     * 
+     * @return True if the integrity key exchange completed, otherwise false (if
+     * the connection failed or was closed).
      */
-    private void waitForIntegrityKey() {
+    private boolean waitForIntegrityKey() {
     	if (DEBUG_INTEGRITY) System.out.println("Waiting for successful integrity key exchange...");
     	
     	DecryptedPacket pckt = new DecryptedPacket();
@@ -808,7 +1615,7 @@ public class Comms {
 	        	pckt = recvPacket();
 	            
 	        	if (pckt == null)
-	        		break;
+	        		return false;
 	        	
 	        	switch (pckt.command) {
 	            	case DecryptedPacket.CMD_INTEGRITYKEY:
@@ -829,7 +1636,10 @@ public class Comms {
             				done = true;
             			break;
 	            }
-    		} catch (IOException e) {}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
         }
     	
     	/** Done. Enable integrity provision. */
@@ -841,38 +1651,55 @@ public class Comms {
 			if (DEBUG_ERROR_TRACE) e.printStackTrace();
 			System.exit(1);
 		}
+    	
+    	return true;
     }
     
     /** 
-     * Initiates replay prevention. Generates a seeded pseudo-random number for
-     * nonce generation, and then transmits the seed to the peer.
+     * Initiates replay prevention. Generates a random initial sequence number
+     * for nonce generation, and then transmits the seed to the peer.
      */
     private void initReplayPrevention() {
-    	byte[] rxSeed = null;
+    	replayPreventionRX = createReplayPrevention();
+    	final byte[] rxSeed = replayPreventionRX.getSeed();
+		
+		/** Transmit our replay prevention seed. */
+    	if (DEBUG_REPLAY_PREVENTION) System.out.println("Sending replay prevention seed to peer: " + Utility.getHexValue(rxSeed));
+    	sendPacket(DecryptedPacket.CMD_NONCESEED, rxSeed);
+    	if (DEBUG_REPLAY_PREVENTION) System.out.println("Sent replay prevention seed to peer.");
+    }
+    
+    /**
+     * Generates a random initial sequence number for the nonces of received
+     * packets. The generator is neither installed nor transmitted to the peer.
+     * 
+     * @return The generator to check the nonces of received packets.
+     */
+    private NonceGenerator createReplayPrevention() {
+    	NonceGenerator rx = null;
     	
     	if (DEBUG_REPLAY_PREVENTION) System.out.println("Initiating replay prevention.");
 		try {
-			if (DEBUG_REPLAY_PREVENTION) System.out.println("Generating PRNG.");
-			replayPreventionRX = new PRNGNonceGenerator();
-			rxSeed = replayPreventionRX.getSeed();
-			if (DEBUG_REPLAY_PREVENTION) System.out.println("Generated PRNG with seed: " + Utility.getHexValue(rxSeed));
+			if (DEBUG_REPLAY_PREVENTION) System.out.println("Generating sequence number generator.");
+			rx = new SequenceNonceGenerator();
+			if (DEBUG_REPLAY_PREVENTION) System.out.println("Generated sequence number generator with seed: " + Utility.getHexValue(rx.getSeed()));
 		} catch (Exception e) {
-			System.err.println("Unable to provide replay prevention. Failed to initialise PRNG.");
+			System.err.println("Unable to provide replay prevention. Failed to initialise sequence number generator.");
 			if (DEBUG_ERROR_TRACE) e.printStackTrace();
 			System.exit(1);
 		}
 		
-		/** Transmit our replay prevention seed. */
-    	if (DEBUG_REPLAY_PREVENTION) System.out.println("Sending replay prevention seed to peer: " + Utility.getHexValue(rxSeed));
-    	sendPacket(DecryptedPacket.CMD_NONCESEED, rxSeed);
-    	if (DEBUG_REPLAY_PREVENTION) System.out.println("Sent replay prevention seed to peer.");
+		return rx;
     }
     
     /**
      * Continuously receives (and discards unrelated) packets until the 
-     * pseudo-random number generation seed exchange has completed.
+     * initial sequence number exchange has completed.
+     * 
+     * @return True if the peer sent its replay prevention seed, otherwise false
+     * (if the connection failed or was closed).
      */
-    private void waitForReplayPreventionSeed() {
+    private boolean waitForReplayPreventionSeed() {
     	if (DEBUG_REPLAY_PREVENTION) System.out.println("Waiting for successful replay prevention seed exchange...");
     	
     	DecryptedPacket pckt = new DecryptedPacket();
@@ -882,7 +1709,7 @@ public class Comms {
 	        	pckt = recvPacket();
 	            
 	        	if (pckt == null)
-	        		break;
+	        		return false;
 	        	
 	        	switch (pckt.command) {
 	            	case DecryptedPacket.CMD_NONCESEED:
@@ -890,9 +1717,9 @@ public class Comms {
 	    	    		if (DEBUG_REPLAY_PREVENTION) System.out.println("Received replay prevention seed: " + Utility.getHexValue(txSeed));
 	    	        	
 	    	    		try {
-	    	    			replayPreventionTX = new PRNGNonceGenerator(txSeed);
+	    	    			replayPreventionTX = new SequenceNonceGenerator(txSeed);
 	    	    		} catch (Exception e) {
-	    	    			System.err.println("Unable to provide replay prevention. Failed to initialise PRNG.");
+	    	    			System.err.println("Unable to provide replay prevention. Failed to initialise sequence number generator.");
 	    	    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
 	    	    			System.exit(1);
 	    	    		}
@@ -904,8 +1731,514 @@ public class Comms {
 	                    done = true;
 	                    break;
 	            }
-    		} catch (IOException e) {}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
         }
+    	
+    	return true;
+    }
+    
+    /**
+     * Offers a framing mode to the peer and waits for the peer to respond with
+     * the framing mode that will be used for the rest of the session. This 
+     * function is called by the peer that initiated the session.
+     * 
+     * The offer and the response are both sent as text lines. The peer 
+     * switches framing as soon as it has sent its response, and we switch as
+     * soon as we have received it, so no packet is ever misinterpreted. A 
+     * peer that doesn't negotiate framing never responds, so text framing is
+     * kept if there is no response within FRAMING_TIMEOUT.
+     * 
+     * @return True if the framing mode has been decided, otherwise false (if 
+     * the connection failed or was closed).
+     */
+    private boolean initFraming() {
+    	final String offer = BINARY_FRAMING ? FRAMING_BINARY : FRAMING_TEXT;
+    	if (DEBUG_FRAMING) System.out.println("Offering " + offer + " framing to peer.");
+    	sendPacket(DecryptedPacket.CMD_FRAMING, offer);
+    	
+    	try {
+    		final DecryptedPacket pckt = recvFramingPacket();
+    		if (pckt == null) {
+    			if (DEBUG_FRAMING) System.out.println("Peer did not negotiate framing. Using " + FRAMING_TEXT + " framing.");
+    			return true;
+    		}
+    		
+    		binaryFraming = FRAMING_BINARY.equals(new String(pckt.data));
+    		if (DEBUG_FRAMING) System.out.println("Peer selected " + (binaryFraming ? FRAMING_BINARY : FRAMING_TEXT) + " framing.");
+    	} catch (IOException e) {
+    		if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    		return false;
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Waits for the peer to offer a framing mode, and responds with the mode
+     * that will be used. Binary framing is selected only if it was offered by
+     * the peer and is also enabled locally. A peer that doesn't negotiate 
+     * framing never offers it, so text framing is kept if there is no offer 
+     * within FRAMING_TIMEOUT.
+     * 
+     * @return True if the framing mode has been decided, otherwise false (if 
+     * the connection failed or was closed).
+     */
+    private boolean waitForFraming() {
+    	if (DEBUG_FRAMING) System.out.println("Waiting for framing offer...");
+    	
+    	try {
+    		final DecryptedPacket pckt = recvFramingPacket();
+    		if (pckt == null) {
+    			if (DEBUG_FRAMING) System.out.println("Peer did not negotiate framing. Using " + FRAMING_TEXT + " framing.");
+    			return true;
+    		}
+    		
+    		final boolean useBinary = BINARY_FRAMING && FRAMING_BINARY.equals(new String(pckt.data));
+    		if (DEBUG_FRAMING) System.out.println("Selecting " + (useBinary ? FRAMING_BINARY : FRAMING_TEXT) + " framing.");
+    		
+    		/** Respond in the old framing mode, then switch. */
+    		sendPacket(DecryptedPacket.CMD_FRAMING, useBinary ? FRAMING_BINARY : FRAMING_TEXT);
+    		binaryFraming = useBinary;
+    	} catch (IOException e) {
+    		if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    		return false;
+    	}
+    	
+    	return true;
+    }
+    
+    /**
+     * Receives the peer's side of the framing negotiation, waiting no longer 
+     * than FRAMING_TIMEOUT. A peer that doesn't negotiate framing either sends
+     * nothing, or carries on with the session. In the latter case, the packet
+     * that it sent is kept, to be returned by the next call to recvPacket().
+     * 
+     * @return The framing packet, or null if the peer didn't send one.
+     * @throws IOException If the connection failed or was closed.
+     */
+    private DecryptedPacket recvFramingPacket() throws IOException {
+    	final Socket socket = commsSocket;
+    	final int timeout = socket.getSoTimeout();
+    	socket.setSoTimeout(FRAMING_TIMEOUT);
+    	try {
+    		final DecryptedPacket pckt = recvPacket();
+    		if (pckt == null)
+    			throw new IOException("Connection closed during framing negotiation.");
+    		if (pckt.command == DecryptedPacket.CMD_FRAMING)
+    			return pckt;
+    		
+    		pendingPacket = pckt;
+    		return null;
+    	} catch (SocketTimeoutException e) {
+    		return null;
+    	} finally {
+    		if (!socket.isClosed())
+    			socket.setSoTimeout(timeout);
+    	}
+    }
+    
+    /**
+     * Performs the compact handshake. This function is called by the peer that
+     * initiated the session.
+     * 
+     * A single CMD_HELLO packet carries our key exchange public value, the 
+     * cipher suite and framing mode that we offer and the seed for our 
+     * replay prevention. The peer responds with a single CMD_HELLO packet 
+     * carrying its own public value, its choices and its seed. The integrity 
+     * key is derived from the shared secret rather than being transmitted. 
+     * Together with the public key (which is not acknowledged before the 
+     * CMD_HELLO packet is sent), the whole handshake takes one round trip.
+     * 
+     * If we hold a resumption ticket for the peer, then we send the ticket 
+     * instead of a public value. If the peer accepts the ticket, then the 
+     * shared secret is derived from the ticket's resumption secret and no key
+     * exchange is performed at all. Otherwise the peer responds with its 
+     * public value, and we send ours in return. We also send our public value
+     * in return if the peer does not support the key exchange algorithm that 
+     * we offered.
+     * 
+     * @return True if the handshake succeeded, otherwise false.
+     */
+    private boolean initHello() {
+    	if (DEBUG_HANDSHAKE) System.out.println("Initiating compact handshake.");
+    	
+    	final ResumptionTicket ticket = takeTicket();
+    	if (ticket == null)
+    		createKeyExchange(KEY_EXCHANGE);
+    	
+    	final NonceGenerator rx = createReplayPrevention();
+    	final byte[] random = createHelloRandom();
+    	final String suite = AEAD_ENCRYPTION ? CIPHERSUITE_AES_GCM : CIPHERSUITE_AES_CBC_HMAC;
+    	final String framing = BINARY_FRAMING ? FRAMING_BINARY : FRAMING_TEXT;
+    	
+    	if (DEBUG_HANDSHAKE) System.out.println("Offering " + suite + " cipher suite and " + framing + " framing to peer" + (ticket != null ? " with resumption ticket." : "."));
+    	sendPacket(DecryptedPacket.CMD_HELLO, createHello(suite, framing, rx.getSeed(), (ticket != null) ? Base64.encodeBase64String(ticket.ticket) : "", random));
+    	
+    	String[] hello = null;
+    	while (hello == null) {
+    		try {
+	        	final DecryptedPacket pckt = recvPacket();
+	            
+	        	if (pckt == null)
+	        		return false;
+	        	
+	        	switch (pckt.command) {
+	        		/** Acknowledgement of our public key. */
+	            	case DecryptedPacket.CMD_NULL:
+	            		peerHasPublicKey = true;
+	            		break;
+	            		
+	            	case DecryptedPacket.CMD_HELLO:
+	            		hello = parseHello(new String(pckt.data));
+	            		if (hello == null)
+	            			return false;
+	            		break;
+	        	}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
+    	}
+    	
+    	/** Establish the shared secret. */
+    	if (ticket != null && HELLO_RESUMED.equals(hello[4])) {
+    		if (DEBUG_HANDSHAKE) System.out.println("Peer accepted resumption ticket.");
+    		resumeKeyExchange(ticket.secret, random, Base64.decodeBase64(hello[5]));
+    	} else {
+    		/** 
+    		 * If the peer did not accept our ticket, or did not accept our 
+    		 * key exchange algorithm, then send our public value now.
+    		 */
+    		final String algorithm = getKeyExchangeAlgorithm(hello[0]);
+    		if (ticket != null && DEBUG_HANDSHAKE) System.out.println("Peer rejected resumption ticket.");
+    		if (authenticationProvider == null || !algorithm.equals(getKeyExchangeAlgorithm(getPublicValue()))) {
+    			if (DEBUG_HANDSHAKE) System.out.println("Peer selected " + algorithm + " key exchange.");
+    			createKeyExchange(algorithm);
+    			sendPacket(DecryptedPacket.CMD_AUTHENTICATIONKEY, getPublicValue());
+    		}
+    		keyExchange(hello[0]);
+    	}
+    	
+    	/** Apply the peer's choices. */
+    	aeadEncryption = CIPHERSUITE_AES_GCM.equals(hello[1]);
+    	if (DEBUG_HANDSHAKE) System.out.println("Peer selected " + hello[1] + " cipher suite and " + hello[2] + " framing.");
+    	if (!startSession(hello, rx, true))
+    		return false;
+    	binaryFraming = FRAMING_BINARY.equals(hello[2]);
+    	
+    	return true;
+    }
+    
+    /**
+     * Continuously receives (and discards unrelated) packets until the peer 
+     * starts the handshake. If the peer starts the compact handshake (with a 
+     * CMD_HELLO packet), then the compact handshake is completed. If the peer 
+     * starts the step-by-step handshake (with a CMD_AUTHENTICATIONKEY packet),
+     * then the key exchange is completed and the remaining steps are left to 
+     * the caller.
+     * 
+     * @return True if the peer used the compact handshake (or if the 
+     * communications were closed), otherwise false.
+     */
+    private boolean waitForHello() {
+    	if (DEBUG_HANDSHAKE) System.out.println("Waiting for handshake...");
+    	
+    	while (true) {
+    		try {
+	        	final DecryptedPacket pckt = recvPacket();
+	            
+	        	if (pckt == null)
+	        		return true;
+	        	
+	        	switch (pckt.command) {
+	            	case DecryptedPacket.CMD_AUTHENTICATIONKEY:
+	            		final String pubKey = new String(pckt.data);
+	            		if (DEBUG_HANDSHAKE) System.out.println("Peer is using the step-by-step handshake.");
+	                	keyExchange(pubKey);
+	                	return false;
+	            		
+	            	case DecryptedPacket.CMD_HELLO:
+	            		final String[] hello = parseHello(new String(pckt.data));
+	            		if (hello == null)
+	            			return true;
+	            		
+	            		/** Make our choices. */
+	            		aeadEncryption = AEAD_ENCRYPTION && CIPHERSUITE_AES_GCM.equals(hello[1]);
+	            		final boolean useBinary = BINARY_FRAMING && FRAMING_BINARY.equals(hello[2]);
+	            		final String suite = aeadEncryption ? CIPHERSUITE_AES_GCM : CIPHERSUITE_AES_CBC_HMAC;
+	            		final String framing = useBinary ? FRAMING_BINARY : FRAMING_TEXT;
+	            		if (DEBUG_HANDSHAKE) System.out.println("Selecting " + suite + " cipher suite and " + framing + " framing.");
+	            		
+	            		/** Check for a resumption ticket. */
+	            		byte[] resumptionSecret = null;
+	            		if (ticketIssuer != null && hello[4].length() > 0)
+	            			resumptionSecret = ticketIssuer.redeem(Base64.decodeBase64(hello[4]));
+	            		if (DEBUG_HANDSHAKE && hello[4].length() > 0) System.out.println((resumptionSecret != null) ? "Accepting resumption ticket." : "Rejecting resumption ticket.");
+	            		
+	            		/** Respond with asymmetric encryption and old framing, then switch. */
+	            		final NonceGenerator rx = createReplayPrevention();
+	            		final byte[] random = createHelloRandom();
+	            		if (resumptionSecret != null) {
+	            			sendPacket(DecryptedPacket.CMD_HELLO, createHello(suite, framing, rx.getSeed(), HELLO_RESUMED, random));
+	            			resumeKeyExchange(resumptionSecret, Base64.decodeBase64(hello[5]), random);
+	            		} else {
+	            			/** 
+	            			 * Use the peer's key exchange algorithm if we can. If 
+	            			 * we can't (or if the peer sent a ticket instead of 
+	            			 * its public value), then use Diffie-Hellman, and the
+	            			 * peer will then send its Diffie-Hellman public value.
+	            			 */
+	            			final boolean usePeerValue = hello[0].length() > 0 && isKeyExchangeSupported(getKeyExchangeAlgorithm(hello[0]));
+	            			final String algorithm = usePeerValue ? getKeyExchangeAlgorithm(hello[0]) : KEY_EXCHANGE_DH;
+	            			if (DEBUG_HANDSHAKE) System.out.println("Selecting " + algorithm + " key exchange.");
+	            			createKeyExchange(algorithm);
+	            			sendPacket(DecryptedPacket.CMD_HELLO, createHello(suite, framing, rx.getSeed(), "", random));
+	            			
+	            			if (usePeerValue)
+	            				keyExchange(hello[0]);
+	            			else if (!waitForKeyExchange())
+	            				return true;
+	            		}
+	            		
+	            		if (!startSession(hello, rx, false))
+	            			return true;
+	            		binaryFraming = useBinary;
+	            		
+	            		return true;
+	        	}
+    		} catch (IOException e) {
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return true;
+    		}
+    	}
+    }
+    
+    /**
+     * Create the contents of a CMD_HELLO packet. The fields are our 
+     * key exchange public value (if any), the cipher suite, the framing 
+     * mode, the (base 64 encoded) seed for our replay prevention, the 
+     * resumption ticket (or the response to the peer's resumption ticket) and
+     * a (base 64 encoded) random value.
+     * 
+     * @param suite The cipher suite offered or selected.
+     * @param framing The framing mode offered or selected.
+     * @param rxSeed The seed the peer needs to generate our nonces.
+     * @param ticket The resumption ticket field.
+     * @param random Our random value for this handshake.
+     * @return The contents of the CMD_HELLO packet.
+     */
+    private String createHello(String suite, String framing, byte[] rxSeed, String ticket, byte[] random) {
+    	final String pubKey = (authenticationProvider != null) ? getPublicValue() : "";
+    	return pubKey + HELLO_SEPARATOR + 
+    		suite + HELLO_SEPARATOR + 
+    		framing + HELLO_SEPARATOR + 
+    		Base64.encodeBase64String(rxSeed) + HELLO_SEPARATOR + 
+    		ticket + HELLO_SEPARATOR + 
+    		Base64.encodeBase64String(random);
+    }
+    
+    /**
+     * Parse the contents of a CMD_HELLO packet.
+     * 
+     * @param data The contents of the CMD_HELLO packet.
+     * @return The fields of the packet, or null if the packet is malformed.
+     */
+    private String[] parseHello(String data) {
+    	final String[] fields = data.split(HELLO_SEPARATOR, -1);
+    	if (fields.length != 6) {
+    		System.err.println("Received a malformed handshake packet.");
+    		return null;
+    	}
+    	
+    	if (DEBUG_HANDSHAKE) System.out.println("Received handshake: \"" + data + "\".");
+    	return fields;
+    }
+    
+    /**
+     * Generate a random value for a CMD_HELLO packet. The random values of 
+     * both peers are mixed into the shared secret of a resumed session, so 
+     * that every resumed session has different keys.
+     * 
+     * @return A new random value.
+     */
+    private static byte[] createHelloRandom() {
+    	final byte[] random = new byte[HELLO_RANDOM_BYTES];
+    	synchronized (helloRandom) {
+    		helloRandom.nextBytes(random);
+    	}
+    	return random;
+    }
+    
+    /**
+     * Establish the shared secret of a resumed session, without performing a
+     * key exchange.
+     * 
+     * @param resumptionSecret The resumption secret from the ticket.
+     * @param initiatorRandom The random value of the peer that initiated the 
+     * session.
+     * @param acceptorRandom The random value of the peer that accepted the
+     * session.
+     */
+    private void resumeKeyExchange(byte[] resumptionSecret, byte[] initiatorRandom, byte[] acceptorRandom) {
+    	try {
+    		final MessageDigest mdb = MessageDigest.getInstance(RESUMPTION_HASH_ALGORITHM);
+    		mdb.update(RESUMED_SECRET_LABEL.getBytes());
+    		mdb.update(resumptionSecret);
+    		mdb.update(initiatorRandom);
+    		authenticationKey = new SecretKeySpec(mdb.digest(acceptorRandom), RESUMED_SECRET_ALGORITHM);
+    		if (DEBUG_AUTHENTICATION) System.out.println("Derived resumed shared secret key: " + Utility.getHexValue(authenticationKey.getEncoded()));
+    	} catch (Exception e) {
+    		System.err.println("Session resumption failed. Failed to derive shared secret key.");
+    		if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    	}
+    }
+    
+    /**
+     * Get the resumption secret for the current session. This is derived from
+     * (but does not reveal) the shared secret.
+     * 
+     * @return The resumption secret.
+     * @throws NoSuchAlgorithmException
+     */
+    private byte[] getResumptionSecret() throws NoSuchAlgorithmException {
+    	final MessageDigest mdb = MessageDigest.getInstance(RESUMPTION_HASH_ALGORITHM);
+    	mdb.update(RESUMPTION_SECRET_LABEL.getBytes());
+    	return mdb.digest(authenticationKey.getEncoded());
+    }
+    
+    /**
+     * Issue a resumption ticket to the peer, if we are able to issue tickets.
+     * This function is called by the peer that accepted the session, once the
+     * handshake has completed.
+     */
+    private void issueTicket() {
+    	if (ticketIssuer == null || authenticationKey == null)
+    		return;
+    	
+    	try {
+    		final byte[] ticket = ticketIssuer.issue(getResumptionSecret());
+    		if (DEBUG_HANDSHAKE) System.out.println("Issuing resumption ticket to peer.");
+    		sendPacket(DecryptedPacket.CMD_TICKET, ticketIssuer.getLifetime() + HELLO_SEPARATOR + Base64.encodeBase64String(ticket));
+    	} catch (Exception e) {
+    		System.err.println("Failed to issue resumption ticket.");
+    		if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    	}
+    }
+    
+    /**
+     * Store a resumption ticket that was issued by the peer, so that the next
+     * session to the same peer can be resumed.
+     * 
+     * @param data The contents of the CMD_TICKET packet.
+     */
+    private void storeTicket(byte[] data) {
+    	if (peerName == null || authenticationKey == null)
+    		return;
+    	
+    	try {
+    		final String[] fields = new String(data).split(HELLO_SEPARATOR, -1);
+    		final long expiry = System.currentTimeMillis() + Long.parseLong(fields[0]);
+    		final byte[] ticket = Base64.decodeBase64(fields[1]);
+    		
+    		resumptionTickets.put(peerName, new ResumptionTicket(ticket, getResumptionSecret(), expiry));
+    		if (DEBUG_HANDSHAKE) System.out.println("Stored resumption ticket for " + peerName + ".");
+    	} catch (Exception e) {
+    		if (DEBUG_GENERAL) System.err.println("Received a malformed resumption ticket.");
+    		if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    	}
+    }
+    
+    /**
+     * Take the stored resumption ticket for the peer (if any). A ticket is 
+     * only used once, as the peer issues a new ticket for every session.
+     * 
+     * @return The unexpired resumption ticket for the peer, or null if there 
+     * isn't one.
+     */
+    private ResumptionTicket takeTicket() {
+    	if (peerName == null)
+    		return null;
+    	
+    	final ResumptionTicket ticket = resumptionTickets.remove(peerName);
+    	if (ticket == null || ticket.expiry <= System.currentTimeMillis())
+    		return null;
+    	
+    	return ticket;
+    }
+    
+    /**
+     * Complete the compact handshake, once both CMD_HELLO packets have been 
+     * exchanged and the shared secret has been established. Enables 
+     * encryption, integrity (if necessary) and replay prevention.
+     * 
+     * @param hello The fields of the peer's CMD_HELLO packet.
+     * @param rx The generator to check the nonces of received packets.
+     * @param initiator True if we initiated the session.
+     * @return True if successful, otherwise false.
+     */
+    private boolean startSession(String[] hello, NonceGenerator rx, boolean initiator) {
+    	if (authenticationKey == null)
+    		return false;
+    	
+    	initEncryption(initiator);
+    	
+    	/** 
+    	 * NOTE: All communications from here will be encrypted with symmetric 
+    	 * encryption.
+    	 */
+    	
+    	if (!aeadEncryption) {
+    		try {
+	    		/** Derive the integrity key from the shared secret. */
+	    		final MessageDigest mdb = MessageDigest.getInstance(INTEGRITY_KEY_HASH_ALGORITHM);
+	    		mdb.update(INTEGRITY_KEY_LABEL.getBytes());
+	    		final byte[] keyBytes = mdb.digest(authenticationKey.getEncoded());
+	    		integrityKey = new SecretKeySpec(keyBytes, HashedMessageAuthenticationCode.HMAC_ALGORITHM);
+	    		if (DEBUG_INTEGRITY) System.out.println("Initiating hashed MAC provider with key: " + Utility.getHexValue(integrityKey.getEncoded()));
+	    		integrityProvider = new HashedMessageAuthenticationCode(integrityKey);
+    		} catch (Exception e) {
+    			System.err.println("Failed to initiate integrity provider.");			
+    			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    			return false;
+    		}
+    	}
+    	
+    	try {
+    		replayPreventionRX = rx;
+    		replayPreventionTX = new SequenceNonceGenerator(Base64.decodeBase64(hello[3]));
+    		if (DEBUG_REPLAY_PREVENTION) System.out.println("Received replay prevention seed: " + Utility.getHexValue(replayPreventionTX.getSeed()));
+    	} catch (Exception e) {
+    		System.err.println("Unable to provide replay prevention. Failed to initialise sequence number generator.");
+    		if (DEBUG_ERROR_TRACE) e.printStackTrace();
+    		return false;
+    	}
+    	
+    	if (DEBUG_HANDSHAKE) System.out.println("Compact handshake complete.");
+    	return true;
+    }
+    
+    /**
+     * Checks whether authenticated encryption is being used for this session.
+     * 
+     * @return True if packets are encrypted and authenticated with AES-GCM, 
+     * false if packets are encrypted with AES-CBC and authenticated with an 
+     * HMAC.
+     */
+    public boolean isAeadEncryption() {
+    	return aeadEncryption;
+    }
+    
+    /**
+     * Checks whether binary framing is being used for this session.
+     * 
+     * @return True if packets are sent as binary frames, false if packets are
+     * sent as lines of hexadecimal text.
+     */
+    public boolean isBinaryFraming() {
+    	return binaryFraming;
     }
     
     /**
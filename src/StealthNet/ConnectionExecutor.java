@@ -0,0 +1,184 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        ConnectionExecutor.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Runs the handlers of accepted connections, using one of 
+ * 					several execution modes.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* StealthNet.ConnectionExecutor Class Definition ****************************/
+
+/**
+ * Runs the handler (for example, a ServerThread) of each accepted connection.
+ * A handler runs for as long as its connection is open, and spends most of 
+ * that time blocked waiting for the client. There are three execution modes:
+ * 
+ * "thread"  - Each handler runs on its own platform thread. Every idle client
+ *             costs a full thread stack.
+ * "virtual" - Each handler runs on its own virtual thread, which costs very 
+ *             little while it is blocked. Requires Java 21. If virtual threads
+ *             are not available, then the "pool" mode is used instead.
+ * "pool"    - Handlers run on a bounded pool of platform threads. If every 
+ *             thread is busy, then new handlers wait until a connection is
+ *             closed.
+ * 
+ * Virtual threads are created through reflection, so that this class can be 
+ * compiled for older versions of Java.
+ * 
+ * @author Joshua Spence
+ */
+public class ConnectionExecutor {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.ConnectionExecutor.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.ConnectionExecutor.ErrorTrace") || Debug.isDebug("ErrorTrace");
+	
+	/** Execution modes. */
+	public static final String MODE_THREAD = "thread";
+	public static final String MODE_VIRTUAL = "virtual";
+	public static final String MODE_POOL = "pool";
+	
+	/** The default execution mode. */
+	public static final String DEFAULT_MODE = System.getProperty("StealthNet.ConnectionExecutor.Mode", MODE_THREAD);
+	
+	/** The default number of threads in the "pool" mode. */
+	public static final int DEFAULT_POOL_SIZE = Integer.parseInt(System.getProperty("StealthNet.ConnectionExecutor.PoolSize", "256"));
+	
+	/** The name of the server, used to name the threads. */
+	private final String name;
+	
+	/** The execution mode that is actually being used. */
+	private final String mode;
+	
+	/** Runs the handlers, or null in the "thread" mode. */
+	private final ExecutorService executor;
+	
+	/** The number of threads that have been created in the "thread" mode. */
+	private final AtomicInteger threadCount = new AtomicInteger(0);
+	
+	/** The number of handlers that are currently running (or waiting to run). */
+	private final AtomicInteger active = new AtomicInteger(0);
+	
+	/**
+	 * Constructor using the default execution mode and pool size.
+	 * 
+	 * @param name The name of the server, used to name the threads.
+	 */
+	public ConnectionExecutor(String name) {
+		this(name, DEFAULT_MODE, DEFAULT_POOL_SIZE);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param name The name of the server, used to name the threads.
+	 * @param mode The execution mode.
+	 * @param poolSize The number of threads in the "pool" mode.
+	 */
+	public ConnectionExecutor(final String name, String mode, int poolSize) {
+		this.name = name;
+		
+		ExecutorService virtualExecutor = null;
+		if (mode.equals(MODE_VIRTUAL)) {
+			virtualExecutor = createVirtualExecutor();
+			if (virtualExecutor == null) {
+				System.err.println("Virtual threads are not available. Using a pool of " + poolSize + " threads instead.");
+				mode = MODE_POOL;
+			}
+		} else if (!mode.equals(MODE_POOL) && !mode.equals(MODE_THREAD)) {
+			System.err.println("Unknown connection execution mode \"" + mode + "\". Using \"" + MODE_THREAD + "\" instead.");
+			mode = MODE_THREAD;
+		}
+		
+		if (mode.equals(MODE_VIRTUAL))
+			this.executor = virtualExecutor;
+		else if (mode.equals(MODE_POOL))
+			this.executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(0);
+				
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "StealthNet." + name + ".Connection-" + count.incrementAndGet());
+				}
+			});
+		else
+			this.executor = null;
+		
+		this.mode = mode;
+		if (DEBUG_GENERAL) System.out.println("Running " + name + " connections in \"" + mode + "\" mode.");
+	}
+	
+	/**
+	 * Create an executor that runs each task on a new virtual thread.
+	 * 
+	 * @return The executor, or null if virtual threads are not available.
+	 */
+	private static ExecutorService createVirtualExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Run the handler of an accepted connection.
+	 * 
+	 * @param handler The handler of the connection.
+	 */
+	public void execute(final Runnable handler) {
+		active.incrementAndGet();
+		final Runnable task = new Runnable() {
+			public void run() {
+				try {
+					handler.run();
+				} finally {
+					active.decrementAndGet();
+				}
+			}
+		};
+		
+		if (executor == null)
+			new Thread(task, "StealthNet." + name + ".Connection-" + threadCount.incrementAndGet()).start();
+		else
+			executor.execute(task);
+	}
+	
+	/**
+	 * Get the execution mode that is being used. This may differ from the 
+	 * requested execution mode, if the requested mode was not available.
+	 * 
+	 * @return The execution mode.
+	 */
+	public String getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Get the number of handlers that are currently running (or waiting to
+	 * run).
+	 * 
+	 * @return The number of active handlers.
+	 */
+	public int getActive() {
+		return active.get();
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     ConnectionExecutor.java
+ *****************************************************************************/
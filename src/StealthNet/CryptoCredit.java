@@ -14,20 +14,464 @@ package StealthNet;
 
 /* Import Libraries **********************************************************/
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+
 /* StealthNet.CryptoCredit Class Definition **********************************/
 
 /**
- * TODO
- * 
+ * A hash chain of payment tokens (PayWord). The client picks a random seed
+ * w(n), and hashes it n times to get w(n-1), ..., w(0). The root w(0) is
+ * signed once by the bank, which binds the chain to the client's account (the
+ * "commitment"). The client then pays c credits by revealing the token c
+ * places further along the chain, and the recipient checks the payment by
+ * hashing the token c times, which must give the last token that it accepted
+ * (or the root). Nobody else can compute a later token, as the hash can't be
+ * inverted, so a payment costs c hashes rather than a bank round trip and a
+ * signature.
+ *
+ * The recipient later redeems the last token that it accepted (with the
+ * commitment) at the bank, which checks it in the same way and moves the
+ * credits out of the client's account.
+ *
+ * Tokens are revealed in the opposite order to that in which they are
+ * computed, so the chain isn't stored (which would cost 32 bytes per credit)
+ * and isn't recomputed from the seed for every token (which would cost up to n
+ * hashes per credit). Instead, a stack of "pebbles" (stored tokens) is kept,
+ * at the points that bisect the part of the chain that hasn't been revealed.
+ * To reveal the next token, the chain is walked from the nearest pebble before
+ * it, leaving a pebble at each bisection point on the way. Each token is
+ * therefore on the walk of O(log n) bisections, so revealing a token costs
+ * O(log n) hashes (amortised), and O(log n) pebbles are kept.
+ *
  * @author Joshua Spence
  */
 public class CryptoCredit {
-	/** Constructor. */
-    public CryptoCredit() {
-        
-    }
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.CryptoCredit.General");
+
+	/** The hash function of the chain. */
+	public static final String HASH_ALGORITHM = "SHA-256";
+
+	/** The signature algorithm of commitments. */
+	public static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+	/** The size (in bytes) of the seed of a chain. */
+	private static final int SEED_BYTES = 32;
+
+	/** The maximum length of a chain. */
+	public static final int MAX_LENGTH = Integer.parseInt(System.getProperty("StealthNet.CryptoCredit.MaxLength", "1000000"));
+
+	/**
+	 * The number of credits more than the cost that a payment may be worth
+	 * (the tokens revealed for purchases that failed). Limits the hashes that 
+	 * a single payment can make us compute.
+	 */
+	public static final int MAX_SKIP = Integer.parseInt(System.getProperty("StealthNet.CryptoCredit.MaxSkip", "16"));
+
+	/** A stored token: its position (the number of hashes from the seed), and its value. */
+	private static class Pebble {
+		final int position;
+		final byte[] value;
+
+		Pebble(int position, byte[] value) {
+			this.position = position;
+			this.value = value;
+		}
+	}
+
+	/** The number of credits in the chain. */
+	private final int length;
+
+	/** The root of the chain (the seed hashed length times). */
+	private final byte[] root;
+
+	/** The pebbles, nearest the seed first. Guarded by this. */
+	private final ArrayList<Pebble> pebbles = new ArrayList<Pebble>();
+
+	/** The hash function, used to walk the chain. Guarded by this. */
+	private final MessageDigest digest;
+
+	/** The number of credits that have been spent. Guarded by this. */
+	private int spent = 0;
+
+	/** Statistics. Guarded by this. */
+	private long hashes = 0;
+	private int maxPebbles = 0;
+
+	/** The bank's signature of the commitment, or null if it hasn't been signed. */
+	private byte[] signature = null;
+
+	/**
+	 * Constructor. Generates a new chain.
+	 *
+	 * @param length The number of credits in the chain.
+	 * @throws NoSuchAlgorithmException
+	 */
+	public CryptoCredit(int length) throws NoSuchAlgorithmException {
+		if (length <= 0 || length > MAX_LENGTH)
+			throw new IllegalArgumentException("Invalid hash chain length: " + length);
+
+		final long start = System.nanoTime();
+		final byte[] seed = new byte[SEED_BYTES];
+		new SecureRandom().nextBytes(seed);
+		this.length = length;
+		this.digest = MessageDigest.getInstance(HASH_ALGORITHM);
+
+		/** Compute the root, leaving pebbles on the way to the first token. */
+		synchronized (this) {
+			pebbles.add(new Pebble(0, seed));
+			root = walk(length);
+		}
+
+		if (DEBUG_GENERAL) System.out.println("Generated hash chain of length " + length + " in " + (System.nanoTime() - start) / 1000000 + "ms, keeping " + pebbles.size() + " pebbles.");
+	}
+
+	/**
+	 * Get the token at a position of the chain, which must be the position
+	 * of the last pebble, or after it. The chain is walked from the last
+	 * pebble, leaving a pebble at each point that bisects the remainder of the
+	 * walk, so that later (earlier in the chain) tokens can be reached from a
+	 * nearby pebble. Must be called while holding this.
+	 *
+	 * @param position The position of the token (the number of hashes from
+	 * the seed).
+	 * @return The token.
+	 */
+	private byte[] walk(int position) {
+		final Pebble last = pebbles.get(pebbles.size() - 1);
+		if (last.position == position) {
+			pebbles.remove(pebbles.size() - 1);
+			return last.value;
+		}
+
+		int current = last.position;
+		byte[] value = last.value;
+		while (current < position) {
+			final int bisection = current + (position - current + 1) / 2;
+			while (current < bisection) {
+				value = digest.digest(value);
+				current++;
+				hashes++;
+			}
+			if (current < position)
+				pebbles.add(new Pebble(current, value));
+		}
+		maxPebbles = Math.max(maxPebbles, pebbles.size());
+		return value;
+	}
+
+	/**
+	 * Get the root of the chain, which is signed by the bank.
+	 *
+	 * @return The root of the chain.
+	 */
+	public byte[] getRoot() {
+		return root;
+	}
+
+	/**
+	 * Get the number of credits in the chain.
+	 *
+	 * @return The length of the chain.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the number of credits that have not been spent.
+	 *
+	 * @return The number of credits remaining.
+	 */
+	public synchronized int getRemaining() {
+		return getLength() - spent;
+	}
+
+	/**
+	 * Get the bank's signature of the commitment.
+	 *
+	 * @return The signature, or null if the chain hasn't been signed.
+	 */
+	public byte[] getSignature() {
+		return signature;
+	}
+
+	/**
+	 * Set the bank's signature of the commitment.
+	 *
+	 * @param signature The signature.
+	 */
+	public void setSignature(byte[] signature) {
+		this.signature = signature;
+	}
+
+	/**
+	 * Spend credits.
+	 *
+	 * @param amount The number of credits to spend.
+	 * @return The payment, or null if there are not enough credits left.
+	 */
+	public synchronized Payment pay(int amount) {
+		if (amount <= 0 || amount > getRemaining())
+			return null;
+
+		/** Reveal each token up to the one that pays for the last credit. */
+		byte[] token = null;
+		for (int i = 0; i < amount; i++) {
+			spent++;
+			token = walk(length - spent);
+		}
+
+		if (DEBUG_GENERAL) System.out.println("Spent " + spent + " of " + length + " credits (" + hashes + " hashes so far, at most " + maxPebbles + " pebbles).");
+		return new Payment(spent, token);
+	}
+
+	/** A payment: the index of a token in the chain, and the token. */
+	public static class Payment {
+		private final int index;
+		private final byte[] token;
+
+		private Payment(int index, byte[] token) {
+			this.index = index;
+			this.token = token;
+		}
+
+		/**
+		 * Get the index of the token, which is the total number of credits
+		 * spent from the chain.
+		 *
+		 * @return The index of the token.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Get the token.
+		 *
+		 * @return The token.
+		 */
+		public byte[] getToken() {
+			return token;
+		}
+
+		/**
+		 * Get the payment in the form "index@token", as sent to the server.
+		 *
+		 * @return The payment, as a string.
+		 */
+		public String toString() {
+			return index + "@" + Base64.encodeBase64String(token).trim();
+		}
+	}
+
+	/**
+	 * Hash a token a number of times.
+	 *
+	 * @param token The token.
+	 * @param times The number of times to hash the token.
+	 * @return The hashed token.
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static byte[] hash(byte[] token, int times) throws NoSuchAlgorithmException {
+		final MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		byte[] result = token;
+		for (int i = 0; i < times; i++)
+			result = digest.digest(result);
+		return result;
+	}
+
+	/**
+	 * Get the message that the bank signs to commit to a chain.
+	 *
+	 * @param user The ID of the user whose account pays for the chain.
+	 * @param root The root of the chain.
+	 * @param length The length of the chain.
+	 * @return The commitment message.
+	 */
+	public static String getCommitment(String user, byte[] root, int length) {
+		return user + ";" + Base64.encodeBase64String(root).trim() + ";" + length;
+	}
+
+	/**
+	 * Sign a commitment. Used by the bank.
+	 *
+	 * @param key The bank's private key.
+	 * @param commitment The commitment message.
+	 * @return The signature.
+	 * @throws Exception
+	 */
+	public static byte[] sign(PrivateKey key, String commitment) throws Exception {
+		final Signature signer = Signature.getInstance(SIGNATURE_ALGORITHM);
+		signer.initSign(key);
+		signer.update(commitment.getBytes("UTF-8"));
+		return signer.sign();
+	}
+
+	/**
+	 * A chain that a recipient accepts payments from. Keeps the last token
+	 * that was accepted, so that each payment is checked by hashing from the
+	 * previous one.
+	 */
+	public static class Commitment {
+		private final String user;
+		private final byte[] root;
+		private final int length;
+		private final byte[] signature;
+
+		/** The last token accepted, and its index. */
+		private int index = 0;
+		private byte[] token;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param user The ID of the user whose account pays for the chain.
+		 * @param root The root of the chain.
+		 * @param length The length of the chain.
+		 * @param signature The bank's signature of the commitment.
+		 */
+		public Commitment(String user, byte[] root, int length, byte[] signature) {
+			this.user = user;
+			this.root = root;
+			this.length = length;
+			this.signature = signature;
+			this.token = root;
+		}
+
+		/**
+		 * Parse a commitment of the form "root;length;signature".
+		 *
+		 * @param user The ID of the user whose account pays for the chain.
+		 * @param fields The fields of the commitment.
+		 * @return The commitment, or null if it is malformed.
+		 */
+		public static Commitment parse(String user, String[] fields) {
+			if (fields.length < 3)
+				return null;
+
+			try {
+				final int length = Integer.parseInt(fields[1]);
+				if (length <= 0)
+					return null;
+				return new Commitment(user, Base64.decodeBase64(fields[0]), length, Base64.decodeBase64(fields[2]));
+			} catch (final NumberFormatException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Check that the commitment was signed by the bank.
+		 *
+		 * @param bankKey The bank's public key.
+		 * @return True if the signature is valid.
+		 */
+		public boolean verify(PublicKey bankKey) {
+			try {
+				final Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+				verifier.initVerify(bankKey);
+				verifier.update(getCommitment(user, root, length).getBytes("UTF-8"));
+				return verifier.verify(signature);
+			} catch (final Exception e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Accept a payment. The token must hash to the last token accepted, in
+		 * (at least) the given number of steps, and at most MAX_SKIP more.
+		 *
+		 * @param newIndex The index of the token.
+		 * @param newToken The token.
+		 * @param minimum The minimum number of credits that the payment must
+		 * be worth.
+		 * @return The number of credits that the payment is worth, or -1 if
+		 * the payment is invalid.
+		 */
+		public int accept(int newIndex, byte[] newToken, int minimum) {
+			return accept(newIndex, newToken, minimum, (long) Math.max(1, minimum) + MAX_SKIP);
+		}
+
+		/**
+		 * Accept a payment. The token must hash to the last token accepted, in
+		 * (at least) the given number of steps. Payments worth more than the
+		 * maximum are rejected before any hashes are computed.
+		 *
+		 * @param newIndex The index of the token.
+		 * @param newToken The token.
+		 * @param minimum The minimum number of credits that the payment must
+		 * be worth.
+		 * @param maximum The maximum number of credits that the payment may be
+		 * worth.
+		 * @return The number of credits that the payment is worth, or -1 if
+		 * the payment is invalid.
+		 */
+		public synchronized int accept(int newIndex, byte[] newToken, int minimum, long maximum) {
+			if (newIndex > length || newIndex - index < Math.max(1, minimum) || newIndex - index > maximum)
+				return -1;
+
+			try {
+				if (!Arrays.equals(hash(newToken, newIndex - index), token))
+					return -1;
+			} catch (final NoSuchAlgorithmException e) {
+				return -1;
+			}
+
+			final int value = newIndex - index;
+			index = newIndex;
+			token = newToken;
+			return value;
+		}
+
+		/**
+		 * Get the user whose account pays for the chain.
+		 *
+		 * @return The ID of the user.
+		 */
+		public String getUser() {
+			return user;
+		}
+
+		/**
+		 * Get the root of the chain.
+		 *
+		 * @return The root of the chain.
+		 */
+		public byte[] getRoot() {
+			return root;
+		}
+
+		/**
+		 * Get the index of the last token accepted.
+		 *
+		 * @return The index of the last token.
+		 */
+		public synchronized int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Get the commitment and the last token accepted, in the form
+		 * "root;length;signature;index;token", as sent to the bank to redeem
+		 * the payments.
+		 *
+		 * @return The commitment and last token, as a string.
+		 */
+		public synchronized String toString() {
+			return Base64.encodeBase64String(root).trim() + ";" + length + ";" + Base64.encodeBase64String(signature).trim() + ";" + index + ";" + Base64.encodeBase64String(token).trim();
+		}
+	}
 }
 
 /******************************************************************************
  * END OF FILE:     CryptoCredit.java
- *****************************************************************************/
\ No newline at end of file
+ *****************************************************************************/
@@ -18,6 +18,7 @@ package StealthNet;
 /* Import Libraries **********************************************************/
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -61,6 +62,16 @@ public class DecryptedPacket {
     public static final byte CMD_CREATESECRET = 0x07;
     public static final byte CMD_SECRETLIST = 0x08;
     public static final byte CMD_GETSECRET = 0x09;
+    public static final byte CMD_GETPUBLICKEY = 0x12;			/** fetch a public key by its fingerprint */
+    public static final byte CMD_SECRETINFO = 0x13;			/** fetch the description of a secret */
+    public static final byte CMD_SEARCHSECRETS = 0x14;		/** search the secret list */
+    public static final byte CMD_BALANCE = 0x15;				/** get (or reply with) an account balance */
+    public static final byte CMD_DEBIT = 0x16;				/** remove funds from an account (server only) */
+    public static final byte CMD_CREDIT = 0x17;				/** add funds to an account (server only) */
+    public static final byte CMD_TRANSFER = 0x18;				/** move funds between accounts */
+    public static final byte CMD_SIGNCHAIN = 0x19;			/** bank signature of a hash chain root */
+    public static final byte CMD_COMMITMENT = 0x1A;			/** signed hash chain, given to the server */
+    public static final byte CMD_REDEEM = 0x1B;				/** redeem hash chain payments at the bank */
     
     /** 
      * Security-specific commands - these should never be returned to a client 
@@ -70,6 +81,10 @@ public class DecryptedPacket {
     public static final byte CMD_INTEGRITYKEY = 0x0B;			/** key for MAC generator */
     public static final byte CMD_NONCESEED = 0x0C;			/** seed for nonce generator */
     public static final byte CMD_PUBLICKEY = 0x0D;			/** asymmetric public key */
+    public static final byte CMD_FRAMING = 0x0E;				/** framing mode negotiation */
+    public static final byte CMD_CIPHERSUITE = 0x0F;			/** cipher suite negotiation */
+    public static final byte CMD_HELLO = 0x10;				/** compact handshake parameters */
+    public static final byte CMD_TICKET = 0x11;				/** session resumption ticket */
     
     /** Packet contents. */
     byte command;							/** The command being sent in the packet. */      
@@ -143,55 +158,43 @@ public class DecryptedPacket {
         this.mac = mac;
     }
 
+    /** 
+     * Constructor with received contents. Used by the PacketCodec when a 
+     * packet has been decoded. The arrays are used directly and are not 
+     * copied.
+     *
+     * @param cmd The command contained in the packet.
+     * @param d The data contained in the packet.
+     * @param n The nonce contained in the packet.
+     */
+    DecryptedPacket(byte cmd, byte[] d, byte[] n) {
+    	this.command = cmd;
+    	this.data = d;
+    	this.nonce = n;
+    	
+    	/** No MAC is available. */
+    	this.mac = null;
+    }
+    
+    /** 
+     * Copy constructor. The arrays are shared and are not copied.
+     * 
+     * @param pckt The packet to copy.
+     */
+    private DecryptedPacket(DecryptedPacket pckt) {
+    	this(pckt.command, pckt.data, pckt.nonce);
+    }
+
     /** 
      * Constructor. This function must "undo" the effects of the toString() 
      * function, because this function converts the received data into a packet
      * at the receiving end of communications.
      * 
      * @param str A string consisting of the packet contents.
+     * @throws IllegalArgumentException If the string is not a valid packet.
      */
-    public DecryptedPacket(String str) {  
-    	/** 
-    	 * Add padding if necessary, to make the packet length an integer number
-    	 * of bytes (each represented by 2 hexadecimal characters).
-    	 */
-    	if (str.length() % 2 == 1)
-            str = "0" + str;
-    	
-        if (str.length() == 0) {
-        	/** NULL packet. */
-            this.command = DecryptedPacket.CMD_NULL;
-            this.data = new byte[0];
-            this.nonce = null;
-            this.mac = null;
-        } else {
-        	/** Current index of the string. */
-        	int current = 0;
-        	
-        	/** Command (1 byte). */
-            this.command = (byte) (16 * Utility.singleHexToInt(str.charAt(current++)) + Utility.singleHexToInt(str.charAt(current++)));
-            
-            /** Data length (4 bytes). */
-            final int dataLen = Utility.hexToInt(str.substring(current, current + (4 * Utility.HEX_PER_BYTE)));
-        	current += (4 * Utility.HEX_PER_BYTE);
-            
-            /** Data (dataLen bytes). */
-            this.data = new byte[dataLen];
-            for (int i = 0; i < data.length; i++)
-            	this.data[i] = (byte) (16 * Utility.singleHexToInt(str.charAt(current++)) + Utility.singleHexToInt(str.charAt(current++)));
-            
-            /** Nonce length (4 bytes). */
-            final int nonceLen = Utility.hexToInt(str.substring(current, current + (4 * Utility.HEX_PER_BYTE)));
-        	current += (4 * Utility.HEX_PER_BYTE);
-            
-            /** Nonce (nonceLen bytes). */
-            this.nonce = new byte[nonceLen];
-            for (int i = 0; i < nonce.length; i++)
-            	this.nonce[i] = (byte) (16 * Utility.singleHexToInt(str.charAt(current++)) + Utility.singleHexToInt(str.charAt(current++)));
-    		
-    		/** No MAC is available. */
-    		this.mac = null;
-        }
+    public DecryptedPacket(String str) throws IllegalArgumentException {
+    	this(PacketCodec.decodePacketHex(str));
     }
 
     /** 
@@ -203,42 +206,8 @@ public class DecryptedPacket {
      * @return A string representing the contents of the packet.
      */
     public String toString() {
-    	String str = "";
-        int lowHalfByte, highHalfByte;
-
-        /** Command (1 byte).  */
-        highHalfByte = (command >= 0) ? command : (256 + command);
-        lowHalfByte = highHalfByte & 0xF;
-        highHalfByte /= Utility.HEXTABLE.length;
-        str += Utility.HEXTABLE[highHalfByte];
-        str += Utility.HEXTABLE[lowHalfByte];
-        
-        /** Data length (4 bytes). */
-        str += Utility.intToHex(data.length);
-        
-        /** Data (data.length/2 bytes). */
-        for (int i = 0; i < data.length; i++) {
-        	highHalfByte = (data[i] >= 0) ? data[i] : 256 + data[i];
-        	lowHalfByte = highHalfByte & 0xF;
-            highHalfByte /= Utility.HEXTABLE.length;
-            str += Utility.HEXTABLE[highHalfByte];
-            str += Utility.HEXTABLE[lowHalfByte];
-        }
-        
-        /** Nonce length (4 bytes). */
-        str += Utility.intToHex(nonce.length);
-        
-        /** Nonce (nonce.length/2 bytes). */
-        for (int i = 0; i < nonce.length; i++) {
-        	highHalfByte = (nonce[i] >= 0) ? nonce[i] : 256 + nonce[i];
-        	lowHalfByte = highHalfByte & 0xF;
-            highHalfByte /= Utility.HEXTABLE.length;
-            str += Utility.HEXTABLE[highHalfByte];
-            str += Utility.HEXTABLE[lowHalfByte];
-        }
-        
-        /** Done. */
-        return str;
+    	final ByteBuffer encoded = new PacketCodec().encodePacketHex(this);
+    	return new String(encoded.array(), 0, encoded.limit());
     }
     
     /**
@@ -269,6 +238,26 @@ public class DecryptedPacket {
 				return "CMD_SECRETLIST";
     		case CMD_GETSECRET:
     			return "CMD_GETSECRET";
+    		case CMD_GETPUBLICKEY:
+    			return "CMD_GETPUBLICKEY";
+    		case CMD_SECRETINFO:
+    			return "CMD_SECRETINFO";
+    		case CMD_SEARCHSECRETS:
+    			return "CMD_SEARCHSECRETS";
+    		case CMD_BALANCE:
+    			return "CMD_BALANCE";
+    		case CMD_DEBIT:
+    			return "CMD_DEBIT";
+    		case CMD_CREDIT:
+    			return "CMD_CREDIT";
+    		case CMD_TRANSFER:
+    			return "CMD_TRANSFER";
+    		case CMD_SIGNCHAIN:
+    			return "CMD_SIGNCHAIN";
+    		case CMD_COMMITMENT:
+    			return "CMD_COMMITMENT";
+    		case CMD_REDEEM:
+    			return "CMD_REDEEM";
     		case CMD_AUTHENTICATIONKEY:
 				return "CMD_AUTHENTICATIONKEY";
     		case CMD_INTEGRITYKEY:
@@ -277,6 +266,14 @@ public class DecryptedPacket {
     			return "CMD_NONCESEED";
     		case CMD_PUBLICKEY:
     			return "CMD_PUBLICKEY";
+    		case CMD_FRAMING:
+    			return "CMD_FRAMING";
+    		case CMD_CIPHERSUITE:
+    			return "CMD_CIPHERSUITE";
+    		case CMD_HELLO:
+    			return "CMD_HELLO";
+    		case CMD_TICKET:
+    			return "CMD_TICKET";
 			default:
 				return "UNKNOWN";
     	}
@@ -326,12 +323,38 @@ public class DecryptedPacket {
      * @throws InvalidAttributeValueException 
      */
     public EncryptedPacket encrypt(Encryption e) throws UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException, InvalidAttributeValueException, IllegalArgumentException {
+    	return encrypt(e, new PacketCodec(), false);
+    }
+    
+    /**
+     * Encrypt this packet, encoding it with the supplied codec. The encoded
+     * packet is encrypted directly from the codec's buffer.
+     * 
+     * @param e The encryption instance to encrypt the packet. If null, then the
+     * packet will not be encrypted.
+     * @param codec The codec used to encode the packet.
+     * @param binary True to encode the packet and its ciphertext as raw bytes
+     * (for binary framing), false to encode the packet as hexadecimal 
+     * characters and its ciphertext in base 64.
+     * @return The encrypted packet.
+     * 
+     * @throws BadPaddingException 
+     * @throws IllegalBlockSizeException 
+     * @throws IllegalArgumentException 
+     * @throws InvalidAttributeValueException 
+     */
+    EncryptedPacket encrypt(Encryption e, PacketCodec codec, boolean binary) throws IllegalBlockSizeException, BadPaddingException, InvalidAttributeValueException, IllegalArgumentException {
+    	final ByteBuffer encoded = binary ? codec.encodePacket(this) : codec.encodePacketHex(this);
+    	
+    	byte[] encryptedData;
     	if (e != null) {
-	    	final byte[] encryptedData = e.encrypt(this.toString());
-	    	return new EncryptedPacket(encryptedData, encryptedData.length, this.mac);
+    		encryptedData = e.encrypt(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining(), binary);
     	} else {
-    		return new EncryptedPacket(this.toString().getBytes(), this.toString().getBytes().length, this.mac);
+    		encryptedData = new byte[encoded.remaining()];
+    		encoded.get(encryptedData);
     	}
+    	
+    	return new EncryptedPacket(encryptedData, EncryptedPacket.createDigest(encryptedData, this.mac));
     }
 }
 
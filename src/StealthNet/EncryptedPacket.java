@@ -16,6 +16,7 @@ package StealthNet;
 /* Import Libraries **********************************************************/
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -103,14 +104,28 @@ public class EncryptedPacket {
         }
         
         /** Create the MAC digest (if possible). */
-        if (mac == null)
-        	this.digest = new byte[digestBytes];
-        else {
-        	this.digest = mac.createMAC(this.data);
-        	
-        	if (this.digest.length != digestBytes)
-        		throw new IllegalArgumentException("Specified digest size does not equal to actual digest size. Specified size: " + digestBytes + ". Actual size: " + this.digest.length + ".");
-        }
+        this.digest = createDigest(this.data, mac);
+    }
+
+    /** 
+     * Constructor with a received digest. Used when a packet has been read 
+     * from a binary frame. The arrays are used directly and are not copied.
+     *
+     * @param encryptedData The (encrypted) data contained in the packet.
+     * @param digest The MAC digest contained in the packet.
+     */
+    EncryptedPacket(byte[] encryptedData, byte[] digest) {
+    	this.data = encryptedData;
+    	this.digest = digest;
+    }
+
+    /** 
+     * Copy constructor. The arrays are shared and are not copied.
+     * 
+     * @param pckt The packet to copy.
+     */
+    private EncryptedPacket(EncryptedPacket pckt) {
+    	this(pckt.data, pckt.digest);
     }
 
     /** 
@@ -119,36 +134,10 @@ public class EncryptedPacket {
      * at the receiving end of communications.
      * 
      * @param str A string consisting of the packet contents.
+     * @throws IllegalArgumentException If the string is not a valid packet.
      */
-    public EncryptedPacket(String str) {  
-    	/** 
-    	 * Add padding if necessary, to make the packet length an integer number
-    	 * of bytes (each represented by 2 hexadecimal characters).
-    	 */
-    	if (str.length() % 2 == 1)
-            str = "0" + str;
-    	
-        if (str.length() == 0) {
-        	/** NULL packet. */
-            this.data = new byte[0];
-            this.digest = new byte[digestBytes];
-        } else {
-        	/** Current index of the string. */
-        	int current = 0;
-        	
-        	/** Data length. */
-        	final int dataLen = (str.length() / Utility.HEX_PER_BYTE) - digestBytes;
-            
-            /** Data (dataLen bytes). */
-            this.data = new byte[dataLen];
-            for (int i = 0; i < data.length; i++)
-            	this.data[i] = (byte) (16 * Utility.singleHexToInt(str.charAt(current++)) + Utility.singleHexToInt(str.charAt(current++)));
-            
-            /** Digest (digestBytes bytes). */
-            this.digest = new byte[digestBytes];
-            for (int i = 0; i < digest.length; i++)
-            	this.digest[i] = (byte) (16 * Utility.singleHexToInt(str.charAt(current++)) + Utility.singleHexToInt(str.charAt(current++)));
-        }
+    public EncryptedPacket(String str) throws IllegalArgumentException {
+    	this(PacketCodec.decodeLine(str));
     }
 
     /** 
@@ -160,28 +149,40 @@ public class EncryptedPacket {
      * @return A string representing the contents of the packet.
      */
     public String toString() {
-        String str = "";
-        int lowHalfByte, highHalfByte;
-        
-        /** Data (data.length bytes). */
-        for (int i = 0; i < data.length; i++) {
-        	highHalfByte = (data[i] >= 0) ? data[i] : (256 + data[i]);
-        	lowHalfByte = highHalfByte & 0xF;
-            highHalfByte /= Utility.HEXTABLE.length;
-            str += Utility.HEXTABLE[highHalfByte];
-            str += Utility.HEXTABLE[lowHalfByte];
-        }
-        
-        /** Digest (digest.length bytes). */
-        for (int i = 0; i < digest.length; i++) {
-        	highHalfByte = (digest[i] >= 0) ? digest[i] : (256 + digest[i]);
-        	lowHalfByte = highHalfByte & 0xF;
-            highHalfByte /= Utility.HEXTABLE.length;
-            str += Utility.HEXTABLE[highHalfByte];
-            str += Utility.HEXTABLE[lowHalfByte];
-        }
-
-        return str;
+    	final ByteBuffer encoded = new PacketCodec().encodeLine(this);
+    	
+    	/** Exclude the line terminator. */
+    	return new String(encoded.array(), 0, encoded.limit() - 1);
+    }
+    
+    /**
+     * Create the MAC digest of some (encrypted) data.
+     * 
+     * @param encryptedData The data to create the digest of.
+     * @param mac The MessageAuthenticationCode instance to provide a MAC 
+     * digest. If null, then the digest will be blank.
+     * @return The MAC digest.
+     * 
+     * @throws IllegalArgumentException
+     * @throws InvalidAttributeValueException 
+     */
+    static byte[] createDigest(byte[] encryptedData, MessageAuthenticationCode mac) throws IllegalArgumentException, InvalidAttributeValueException {
+    	if (mac == null)
+    		return new byte[digestBytes];
+    	
+    	final byte[] digest = mac.createMAC(encryptedData);
+    	if (digest.length != digestBytes)
+    		throw new IllegalArgumentException("Specified digest size does not equal to actual digest size. Specified size: " + digestBytes + ". Actual size: " + digest.length + ".");
+    	return digest;
+    }
+    
+    /**
+     * Get the fixed number of bytes in the digest of every packet.
+     * 
+     * @return The number of bytes in a packet digest.
+     */
+    static int getDigestBytes() {
+    	return digestBytes;
     }
     
     /**
@@ -244,10 +245,32 @@ public class EncryptedPacket {
      * @throws UnsupportedEncodingException 
      */
     public DecryptedPacket decrypt(Encryption d) throws UnsupportedEncodingException, IllegalBlockSizeException, BadPaddingException {
-    	if (d != null)
-	    	return new DecryptedPacket(new String(d.decrypt(data)));
+    	return decrypt(d, false);
+    }
+    
+    /**
+     * Decrypt this packet, decoding the decrypted contents without building 
+     * any intermediate strings.
+     * 
+     * @param d The encryption instance to decrypt the packet. If null, then it
+     * will be assumed that the packet is not encrypted.
+     * @param binary True if the packet contents and their ciphertext were 
+     * encoded as raw bytes (for binary framing), false if they were encoded as
+     * hexadecimal characters and base 64.
+     * @return The decrypted packet.
+     * 
+     * @throws BadPaddingException 
+     * @throws IllegalBlockSizeException 
+     * @throws IllegalArgumentException If the decrypted contents are not a 
+     * valid packet.
+     */
+    DecryptedPacket decrypt(Encryption d, boolean binary) throws IllegalBlockSizeException, BadPaddingException, IllegalArgumentException {
+    	final byte[] decryptedData = (d != null) ? d.decrypt(data, binary) : data;
+    	
+    	if (binary)
+    		return PacketCodec.decodePacket(decryptedData, 0, decryptedData.length);
     	else
-    		return new DecryptedPacket(new String(data));
+    		return PacketCodec.decodePacketHex(decryptedData, 0, decryptedData.length);
     }
 }
 
@@ -0,0 +1,256 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        HandshakeExecutor.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Performs the Comms handshakes of accepted connections, so
+ * 					that the accepting thread can keep accepting.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* StealthNet.HandshakeExecutor Class Definition *****************************/
+
+/**
+ * Performs the handshakes of connections that have been accepted by a server,
+ * using a fixed number of handshake threads. The thread that accepts 
+ * connections simply passes each connection to this class, and so it is never
+ * delayed by a slow (or malicious) client.
+ * 
+ * Every handshake must complete within a timeout, measured from when the 
+ * connection was submitted (so that time spent waiting for a handshake thread
+ * is included). If the handshake does not complete in time, then the 
+ * connection is closed. Once the handshake has completed, the handler of the
+ * connection is passed to a ConnectionExecutor to be run. Without a 
+ * ConnectionExecutor, the handler is run directly on the handshake thread, 
+ * and so must not block (it might register the session with a Reactor, for
+ * example).
+ * 
+ * @author Joshua Spence
+ */
+public class HandshakeExecutor {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.HandshakeExecutor.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.HandshakeExecutor.ErrorTrace") || Debug.isDebug("ErrorTrace");
+	
+	/** The default number of concurrent handshakes. */
+	public static final int DEFAULT_THREADS = Integer.parseInt(System.getProperty("StealthNet.HandshakeExecutor.Threads", Integer.toString(Runtime.getRuntime().availableProcessors() * 2)));
+	
+	/** The default handshake timeout (in milliseconds). */
+	public static final long DEFAULT_TIMEOUT = Long.parseLong(System.getProperty("StealthNet.HandshakeExecutor.Timeout", "10000"));
+	
+	/** Performs the handshakes. */
+	private final ExecutorService handshakeThreads;
+	
+	/** Closes connections whose handshakes have timed out. */
+	private final ScheduledExecutorService timeoutThread;
+	
+	/** The handshake timeout (in milliseconds). */
+	private final long timeout;
+	
+	/** 
+	 * Runs the handlers of connections once their handshakes have completed.
+	 * If null, then handlers are run on the handshake threads.
+	 */
+	private final ConnectionExecutor connectionExecutor;
+	
+	/** Statistics. */
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final AtomicLong completed = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong timedOut = new AtomicLong(0);
+	
+	/**
+	 * Constructor using the default number of threads and timeout.
+	 * 
+	 * @param name The name of the server, used to name the threads.
+	 * @param connectionExecutor Runs the handlers of connections once their
+	 * handshakes have completed. May be null.
+	 */
+	public HandshakeExecutor(String name, ConnectionExecutor connectionExecutor) {
+		this(name, connectionExecutor, DEFAULT_THREADS, DEFAULT_TIMEOUT);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param name The name of the server, used to name the threads.
+	 * @param connectionExecutor Runs the handlers of connections once their
+	 * handshakes have completed. May be null.
+	 * @param threads The number of concurrent handshakes.
+	 * @param timeout The handshake timeout (in milliseconds).
+	 */
+	public HandshakeExecutor(String name, ConnectionExecutor connectionExecutor, int threads, long timeout) {
+		this.connectionExecutor = connectionExecutor;
+		this.handshakeThreads = Executors.newFixedThreadPool(threads, new NamedThreadFactory(name + ".Handshake"));
+		this.timeoutThread = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + ".HandshakeTimeout"));
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Perform the handshake of an accepted connection (at some later time, on
+	 * a handshake thread). If the handshake succeeds, then the handler of the
+	 * connection is run. Otherwise the connection is closed.
+	 * 
+	 * @param socket The accepted connection.
+	 * @param comms The Comms instance to accept the session.
+	 * @param handler The handler to run once the session has been accepted.
+	 */
+	public void submit(final Socket socket, final Comms comms, final Runnable handler) {
+		pending.incrementAndGet();
+		
+		/** 
+		 * Set by whichever of the timeout and the handshake finishes first. 
+		 * The loser leaves the socket to the winner.
+		 */
+		final AtomicBoolean finished = new AtomicBoolean(false);
+		
+		/** Close the connection if the handshake takes too long. */
+		final ScheduledFuture<?> timeoutTask = timeoutThread.schedule(new Runnable() {
+			public void run() {
+				if (!finished.compareAndSet(false, true))
+					return;
+				
+				if (DEBUG_GENERAL) System.out.println("Handshake with " + socket.getInetAddress() + " on port " + socket.getPort() + " timed out.");
+				closeSocket(socket);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		
+		handshakeThreads.execute(new Runnable() {
+			public void run() {
+				try {
+					/** 
+					 * Don't bother if we have already timed out. Otherwise, 
+					 * closing the socket makes the handshake fail.
+					 */
+					boolean success = !finished.get() && comms.acceptSession(socket);
+					
+					/** If the timeout has already happened, then the socket is closed. */
+					if (!finished.compareAndSet(false, true)) {
+						timedOut.incrementAndGet();
+						success = false;
+					}
+					timeoutTask.cancel(false);
+					
+					if (success) {
+						completed.incrementAndGet();
+						if (connectionExecutor != null)
+							connectionExecutor.execute(handler);
+						else
+							handler.run();
+					} else {
+						failed.incrementAndGet();
+						System.err.println("Handshake failed. Dropping connection...");
+						closeSocket(socket);
+					}
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					finished.set(true);
+					timeoutTask.cancel(false);
+					System.err.println("Error during handshake. Dropping connection...");
+					if (DEBUG_ERROR_TRACE) e.printStackTrace();
+					closeSocket(socket);
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Close a socket, ignoring any errors.
+	 * 
+	 * @param socket The socket to close.
+	 */
+	private static void closeSocket(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Get the number of handshakes that have been submitted but have not yet
+	 * completed.
+	 * 
+	 * @return The number of pending handshakes.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+	
+	/**
+	 * Get the number of handshakes that have succeeded.
+	 * 
+	 * @return The number of successful handshakes.
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+	
+	/**
+	 * Get the number of handshakes that have failed (including those that 
+	 * timed out).
+	 * 
+	 * @return The number of failed handshakes.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+	
+	/**
+	 * Get the number of handshakes that timed out.
+	 * 
+	 * @return The number of handshakes that timed out.
+	 */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+	
+	/**
+	 * Stop performing handshakes. Handshakes that are in progress are allowed
+	 * to complete.
+	 */
+	public void shutdown() {
+		handshakeThreads.shutdown();
+		timeoutThread.shutdown();
+	}
+	
+	/** Creates named daemon threads for the executors. */
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger(0);
+		
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "StealthNet." + name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     HandshakeExecutor.java
+ *****************************************************************************/
@@ -0,0 +1,97 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        Ledger.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     The interface of the bank's account ledger.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.File;
+import java.io.IOException;
+
+/* StealthNet.Ledger Interface Definition ************************************/
+
+/**
+ * The accounts of the bank. Every operation is atomic, and is durable by the
+ * time that it returns (if the ledger is journalled). Operations return the new
+ * balance of the (first) account on success, or one of the (negative) error
+ * codes on failure, so that a failed operation (such as a debit with
+ * insufficient funds) doesn't need an exception.
+ *
+ * @author Joshua Spence
+ */
+public interface Ledger {
+	/** Error codes. */
+	public static final long ERROR_UNKNOWN_ACCOUNT    = -1;
+	public static final long ERROR_INSUFFICIENT_FUNDS = -2;
+	public static final long ERROR_INVALID_AMOUNT     = -3;
+	public static final long ERROR_OVERFLOW           = -4;
+	public static final long ERROR_JOURNAL            = -5;
+
+	/**
+	 * Recover the accounts from a journal, and journal every change from now
+	 * on. Must be called before the ledger is shared.
+	 *
+	 * @param directory The directory that contains the journal.
+	 * @return The number of records recovered.
+	 * @throws IOException
+	 */
+	public long recover(File directory) throws IOException;
+
+	/**
+	 * Open an account, if it doesn't already exist.
+	 *
+	 * @param account The ID of the account.
+	 * @param initialBalance The balance of the account, if it is created.
+	 * @return The balance of the account, or an error code.
+	 */
+	public long openAccount(String account, long initialBalance);
+
+	/**
+	 * Get the balance of an account.
+	 *
+	 * @param account The ID of the account.
+	 * @return The balance of the account, or an error code.
+	 */
+	public long getBalance(String account);
+
+	/**
+	 * Remove funds from an account.
+	 *
+	 * @param account The ID of the account.
+	 * @param amount The (positive) amount to remove.
+	 * @return The new balance of the account, or an error code.
+	 */
+	public long debit(String account, long amount);
+
+	/**
+	 * Add funds to an account.
+	 *
+	 * @param account The ID of the account.
+	 * @param amount The (positive) amount to add.
+	 * @return The new balance of the account, or an error code.
+	 */
+	public long credit(String account, long amount);
+
+	/**
+	 * Move funds from one account to another. Either both accounts are
+	 * changed, or neither is.
+	 *
+	 * @param from The ID of the account to remove the funds from.
+	 * @param to The ID of the account to add the funds to.
+	 * @param amount The (positive) amount to move.
+	 * @return The new balance of the source account, or an error code.
+	 */
+	public long transfer(String from, String to, long amount);
+}
+
+/******************************************************************************
+ * END OF FILE:     Ledger.java
+ *****************************************************************************/
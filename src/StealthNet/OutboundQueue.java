@@ -0,0 +1,339 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        OutboundQueue.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     A bounded queue of packets waiting to be sent to a single
+ * 					peer, drained by a single writer.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* StealthNet.OutboundQueue Class Definition *********************************/
+
+/**
+ * A bounded queue of packets waiting to be sent to a single peer. Any thread
+ * may add a packet to the queue without touching the Comms instance of the
+ * peer. The queue is drained by a single writer at a time, so packets are sent
+ * in order and the Comms instance is only ever used by one sending thread.
+ *
+ * Writers are borrowed from a shared pool whenever a queue becomes non-empty,
+ * so an idle queue costs no thread. A writer that is blocked by a slow peer
+ * only delays that peer.
+ *
+ * If the queue is full, then the peer is not keeping up, and the slow-consumer
+ * policy decides what happens to the new packet:
+ *
+ * "drop"       - The packet is discarded.
+ * "disconnect" - The peer is disconnected.
+ * "block"      - The sender waits for space in the queue. If no space becomes
+ *                available within the block timeout, then the peer is
+ *                disconnected. This policy delays the sender, so it should not
+ *                be used with a reactor.
+ *
+ * @author Joshua Spence
+ */
+public class OutboundQueue {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.OutboundQueue.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.OutboundQueue.ErrorTrace") || Debug.isDebug("ErrorTrace");
+
+	/** Slow-consumer policies. */
+	public static final String POLICY_DROP = "drop";
+	public static final String POLICY_DISCONNECT = "disconnect";
+	public static final String POLICY_BLOCK = "block";
+
+	/** The default slow-consumer policy. */
+	public static final String DEFAULT_POLICY = System.getProperty("StealthNet.OutboundQueue.Policy", POLICY_DISCONNECT);
+
+	/** The default maximum number of queued packets. */
+	public static final int DEFAULT_CAPACITY = Integer.parseInt(System.getProperty("StealthNet.OutboundQueue.Capacity", "256"));
+
+	/** The default time (in milliseconds) to wait for space with the "block" policy. */
+	public static final long DEFAULT_BLOCK_TIMEOUT = Long.parseLong(System.getProperty("StealthNet.OutboundQueue.BlockTimeout", "5000"));
+
+	/** The writers shared by all queues. */
+	private static final ExecutorService writers = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "StealthNet.OutboundQueue.Writer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** Statistics for all queues. */
+	private static final AtomicLong totalDropped = new AtomicLong(0);
+	private static final AtomicLong totalDisconnected = new AtomicLong(0);
+
+	/** A packet waiting to be sent. */
+	private static class QueuedPacket {
+		final byte command;
+		final byte[] data;
+
+		QueuedPacket(byte command, byte[] data) {
+			this.command = command;
+			this.data = data;
+		}
+	}
+
+	/** The peer to which packets are sent. */
+	private final Comms comms;
+
+	/** Called (once) if the peer is disconnected by the slow-consumer policy. */
+	private final Runnable disconnectHandler;
+
+	/** The slow-consumer policy. */
+	private final String policy;
+
+	/** The time (in milliseconds) to wait for space with the "block" policy. */
+	private final long blockTimeout;
+
+	/** The packets waiting to be sent. */
+	private final ArrayBlockingQueue<QueuedPacket> queue;
+
+	/** Set while a writer is draining the queue. */
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+
+	/** Set once the queue has been closed. */
+	private volatile boolean closed = false;
+
+	/** Statistics. */
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicInteger maxDepth = new AtomicInteger(0);
+
+	/** Drains the queue. */
+	private final Runnable writer = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Constructor using the default policy, capacity and block timeout.
+	 *
+	 * @param comms The peer to which packets are sent.
+	 * @param disconnectHandler Called if the peer is disconnected by the
+	 * slow-consumer policy. Should close the connection to the peer.
+	 */
+	public OutboundQueue(Comms comms, Runnable disconnectHandler) {
+		this(comms, disconnectHandler, DEFAULT_POLICY, DEFAULT_CAPACITY, DEFAULT_BLOCK_TIMEOUT);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param comms The peer to which packets are sent.
+	 * @param disconnectHandler Called if the peer is disconnected by the
+	 * slow-consumer policy. Should close the connection to the peer.
+	 * @param policy The slow-consumer policy.
+	 * @param capacity The maximum number of queued packets.
+	 * @param blockTimeout The time (in milliseconds) to wait for space with the
+	 * "block" policy.
+	 */
+	public OutboundQueue(Comms comms, Runnable disconnectHandler, String policy, int capacity, long blockTimeout) {
+		if (!policy.equals(POLICY_DROP) && !policy.equals(POLICY_DISCONNECT) && !policy.equals(POLICY_BLOCK)) {
+			System.err.println("Unknown slow-consumer policy \"" + policy + "\". Using \"" + POLICY_DISCONNECT + "\" policy.");
+			policy = POLICY_DISCONNECT;
+		}
+
+		this.comms = comms;
+		this.disconnectHandler = disconnectHandler;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<QueuedPacket>(Math.max(1, capacity));
+		this.blockTimeout = blockTimeout;
+	}
+
+	/**
+	 * Queue a packet to be sent to the peer.
+	 *
+	 * @param command The command to be sent.
+	 * @param data The data to be sent.
+	 * @return True if the packet was queued, false if it was discarded.
+	 */
+	public boolean send(byte command, byte[] data) {
+		if (closed)
+			return false;
+
+		final QueuedPacket pckt = new QueuedPacket(command, data);
+		boolean queued = queue.offer(pckt);
+
+		/** The queue is full, so apply the slow-consumer policy. */
+		if (!queued) {
+			if (policy.equals(POLICY_BLOCK))
+				try {
+					queued = queue.offer(pckt, blockTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+			if (!queued) {
+				dropped.incrementAndGet();
+				totalDropped.incrementAndGet();
+
+				if (policy.equals(POLICY_DROP)) {
+					if (DEBUG_GENERAL) System.out.println("Outbound queue is full. Dropping packet...");
+				} else {
+					System.err.println("Outbound queue is full. Disconnecting slow consumer...");
+					disconnect();
+				}
+				return false;
+			}
+		}
+
+		/** Record the maximum queue depth. */
+		final int depth = queue.size();
+		int max;
+		while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth));
+
+		/** Start a writer, unless one is already draining the queue. */
+		if (draining.compareAndSet(false, true))
+			writers.execute(writer);
+
+		return true;
+	}
+
+	/** Send the queued packets, until the queue is empty. */
+	private void drain() {
+		while (true) {
+			final QueuedPacket pckt = queue.poll();
+
+			if (pckt == null) {
+				draining.set(false);
+
+				/** A packet may have been queued after the poll. */
+				if (queue.isEmpty() || !draining.compareAndSet(false, true))
+					return;
+				continue;
+			}
+
+			try {
+				if (!closed && comms.sendPacket(pckt.command, pckt.data))
+					sent.incrementAndGet();
+				else
+					failed.incrementAndGet();
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				System.err.println("Error sending queued packet.");
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			}
+		}
+	}
+
+	/** Disconnect the peer (once), and stop accepting packets. */
+	private void disconnect() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+
+		totalDisconnected.incrementAndGet();
+		queue.clear();
+
+		if (disconnectHandler != null)
+			try {
+				disconnectHandler.run();
+			} catch (Exception e) {
+				System.err.println("Error disconnecting slow consumer.");
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			}
+	}
+
+	/**
+	 * Stop accepting packets, and discard any packets that have not yet been
+	 * sent.
+	 */
+	public void close() {
+		closed = true;
+		queue.clear();
+	}
+
+	/**
+	 * Get the number of packets waiting to be sent.
+	 *
+	 * @return The current queue depth.
+	 */
+	public int getDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Get the maximum number of packets that have been waiting to be sent.
+	 *
+	 * @return The maximum queue depth.
+	 */
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	/**
+	 * Get the number of packets that have been sent.
+	 *
+	 * @return The number of packets sent.
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * Get the number of packets that could not be sent (for example, because
+	 * the connection was closed).
+	 *
+	 * @return The number of packets that failed.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Get the number of packets that have been discarded because the queue was
+	 * full.
+	 *
+	 * @return The number of packets dropped.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get the number of packets that have been discarded by all queues because
+	 * the queue was full.
+	 *
+	 * @return The total number of packets dropped.
+	 */
+	public static long getTotalDropped() {
+		return totalDropped.get();
+	}
+
+	/**
+	 * Get the number of peers that have been disconnected by the slow-consumer
+	 * policy.
+	 *
+	 * @return The total number of slow consumers disconnected.
+	 */
+	public static long getTotalDisconnected() {
+		return totalDisconnected.get();
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     OutboundQueue.java
+ *****************************************************************************/
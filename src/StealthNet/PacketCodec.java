@@ -0,0 +1,454 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        PacketCodec.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Encoding and decoding of StealthNet packets to and from
+ * 					byte buffers.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* StealthNet.PacketCodec Class Definition ***********************************/
+
+/**
+ * A class to encode and decode StealthNet packets directly to and from byte
+ * buffers, without building any intermediate strings.
+ *
+ * A DecryptedPacket is encoded as the following fields:
+ *     - command (1 byte)
+ *     - data length (4 bytes)
+ *     - data (data length bytes)
+ *     - nonce length (4 bytes)
+ *     - nonce (nonce length bytes)
+ *
+ * With text framing, every byte of these fields is written as two hexadecimal
+ * characters (as has always been the case). With binary framing, the fields are
+ * written as raw bytes.
+ *
+ * An EncryptedPacket is only ever hex encoded when it is sent as a text line,
+ * in which case it consists of the (encrypted) data followed by the digest.
+ *
+ * The encoding functions write into buffers that are owned by, and reused by,
+ * the codec instance. The returned buffer is only valid until the next call to
+ * the same function. Packets and lines are encoded into a different buffer to
+ * the buffer that lines are read into, so one thread may send while another
+ * thread receives, but each function must only be called by one thread at a
+ * time. The decoding functions do not use any state and are therefore static.
+ *
+ * @author Joshua Spence
+ */
+public class PacketCodec {
+	/** Number of bytes used to encode a length field. */
+	private static final int LENGTH_BYTES = Integer.SIZE / Byte.SIZE;
+
+	/** Number of bytes used to encode the command field. */
+	private static final int COMMAND_BYTES = 1;
+
+	/** Initial size of the reusable buffers. */
+	private static final int INITIAL_BUFFER_BYTES = 1024;
+
+	/** Hexadecimal characters, as ASCII bytes. */
+	private static final byte[] HEX_ENCODE = new byte[Utility.HEXTABLE.length];
+
+	/** Value of each byte as a hexadecimal digit (-1 if invalid). */
+	private static final byte[] HEX_DECODE = new byte[256];
+
+	static {
+		Arrays.fill(HEX_DECODE, (byte) -1);
+		for (int i = 0; i < Utility.HEXTABLE.length; i++) {
+			final char c = Utility.HEXTABLE[i];
+			HEX_ENCODE[i] = (byte) c;
+			HEX_DECODE[c] = (byte) i;
+			HEX_DECODE[Character.toLowerCase(c)] = (byte) i;
+		}
+	}
+
+	/** Reusable buffer for encoding packets. */
+	private ByteBuffer packetBuffer = null;
+
+	/** Reusable buffer for encoding text lines. */
+	private ByteBuffer lineOutBuffer = null;
+
+	/** Reusable buffer for reading text lines. */
+	private ByteBuffer lineInBuffer = null;
+
+	/**
+	 * Makes sure that a reusable buffer has at least the given capacity. The
+	 * returned buffer is cleared.
+	 *
+	 * @param buffer The current buffer (may be null).
+	 * @param capacity The required capacity.
+	 * @return A cleared buffer with at least the required capacity.
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+		if (buffer == null || buffer.capacity() < capacity) {
+			int newCapacity = (buffer == null) ? INITIAL_BUFFER_BYTES : buffer.capacity();
+			while (newCapacity < capacity)
+				newCapacity *= 2;
+			return ByteBuffer.allocate(newCapacity);
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Get the number of bytes required to encode a packet (before hex
+	 * encoding).
+	 *
+	 * @param dataLen The length of the packet data.
+	 * @param nonceLen The length of the packet nonce.
+	 * @return The number of bytes in the encoded packet.
+	 */
+	private static int packetBytes(int dataLen, int nonceLen) {
+		return COMMAND_BYTES + LENGTH_BYTES + dataLen + LENGTH_BYTES + nonceLen;
+	}
+
+	/**
+	 * Encodes a packet as raw bytes. This is the encoding used with binary
+	 * framing.
+	 *
+	 * @param pckt The packet to encode.
+	 * @return A buffer containing the encoded packet, positioned at the start
+	 * of the packet. The buffer is backed by an array with an offset of zero.
+	 */
+	public ByteBuffer encodePacket(DecryptedPacket pckt) {
+		final byte[] nonce = (pckt.nonce == null) ? new byte[0] : pckt.nonce;
+
+		packetBuffer = ensureCapacity(packetBuffer, packetBytes(pckt.data.length, nonce.length));
+		packetBuffer.put(pckt.command);
+		packetBuffer.putInt(pckt.data.length);
+		packetBuffer.put(pckt.data);
+		packetBuffer.putInt(nonce.length);
+		packetBuffer.put(nonce);
+		packetBuffer.flip();
+
+		return packetBuffer;
+	}
+
+	/**
+	 * Encodes a packet as hexadecimal characters. This is the encoding used
+	 * with text framing, and must undo the effects of the
+	 * decodePacketHex(byte[], int, int) function.
+	 *
+	 * @param pckt The packet to encode.
+	 * @return A buffer containing the encoded packet, positioned at the start
+	 * of the packet. The buffer is backed by an array with an offset of zero.
+	 */
+	public ByteBuffer encodePacketHex(DecryptedPacket pckt) {
+		final byte[] nonce = (pckt.nonce == null) ? new byte[0] : pckt.nonce;
+
+		packetBuffer = ensureCapacity(packetBuffer, packetBytes(pckt.data.length, nonce.length) * Utility.HEX_PER_BYTE);
+		putHex(packetBuffer, pckt.command);
+		putHex(packetBuffer, pckt.data.length);
+		putHex(packetBuffer, pckt.data, 0, pckt.data.length);
+		putHex(packetBuffer, nonce.length);
+		putHex(packetBuffer, nonce, 0, nonce.length);
+		packetBuffer.flip();
+
+		return packetBuffer;
+	}
+
+	/**
+	 * Encodes an encrypted packet as a line of hexadecimal characters,
+	 * including the line terminator. This must undo the effects of the
+	 * decodeLine(byte[], int, int) function.
+	 *
+	 * @param pckt The packet to encode.
+	 * @return A buffer containing the encoded line, positioned at the start of
+	 * the line. The buffer is backed by an array with an offset of zero.
+	 */
+	public ByteBuffer encodeLine(EncryptedPacket pckt) {
+		lineOutBuffer = ensureCapacity(lineOutBuffer, (pckt.data.length + pckt.digest.length) * Utility.HEX_PER_BYTE + 1);
+		putHex(lineOutBuffer, pckt.data, 0, pckt.data.length);
+		putHex(lineOutBuffer, pckt.digest, 0, pckt.digest.length);
+		lineOutBuffer.put((byte) '\n');
+		lineOutBuffer.flip();
+
+		return lineOutBuffer;
+	}
+
+	/**
+	 * Reads a line of text from an input stream. The line terminator (and any
+	 * carriage return) is not included in the result.
+	 *
+	 * @param in The input stream to read from. This should be buffered, as the
+	 * stream is read one byte at a time.
+	 * @return A buffer containing the line, positioned at the start of the
+	 * line. The buffer is backed by an array with an offset of zero. Null if
+	 * the end of the stream was reached before any data was read.
+	 * @throws IOException
+	 */
+	public ByteBuffer readLine(InputStream in) throws IOException {
+		lineInBuffer = ensureCapacity(lineInBuffer, INITIAL_BUFFER_BYTES);
+
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			if (c == '\r')
+				continue;
+			if (!lineInBuffer.hasRemaining()) {
+				if (lineInBuffer.capacity() >= Comms.MAX_FRAME_BYTES * Utility.HEX_PER_BYTE)
+					throw new IOException("Line exceeds maximum length.");
+
+				final ByteBuffer larger = ByteBuffer.allocate(lineInBuffer.capacity() * 2);
+				lineInBuffer.flip();
+				larger.put(lineInBuffer);
+				lineInBuffer = larger;
+			}
+			lineInBuffer.put((byte) c);
+		}
+
+		if (c == -1 && lineInBuffer.position() == 0)
+			return null;
+
+		lineInBuffer.flip();
+		return lineInBuffer;
+	}
+
+	/**
+	 * Decodes a packet from raw bytes. This must undo the effects of the
+	 * encodePacket(DecryptedPacket) function.
+	 *
+	 * @param buf The array containing the encoded packet.
+	 * @param offset The offset of the encoded packet within the array.
+	 * @param length The length of the encoded packet.
+	 * @return The decoded packet.
+	 * @throws IllegalArgumentException If the packet is malformed.
+	 */
+	public static DecryptedPacket decodePacket(byte[] buf, int offset, int length) throws IllegalArgumentException {
+		if (length == 0)
+			return new DecryptedPacket();
+
+		final ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+		if (in.remaining() < packetBytes(0, 0))
+			throw new IllegalArgumentException("Packet is too short.");
+
+		final byte command = in.get();
+
+		final int dataLen = in.getInt();
+		if (dataLen < 0 || dataLen > in.remaining() - LENGTH_BYTES)
+			throw new IllegalArgumentException("Invalid data length: " + dataLen + ".");
+		final byte[] data = new byte[dataLen];
+		in.get(data);
+
+		final int nonceLen = in.getInt();
+		if (nonceLen < 0 || nonceLen > in.remaining())
+			throw new IllegalArgumentException("Invalid nonce length: " + nonceLen + ".");
+		final byte[] nonce = new byte[nonceLen];
+		in.get(nonce);
+
+		return new DecryptedPacket(command, data, nonce);
+	}
+
+	/**
+	 * Decodes a packet from hexadecimal characters. This must undo the effects
+	 * of the encodePacketHex(DecryptedPacket) function.
+	 *
+	 * @param buf The array containing the encoded packet.
+	 * @param offset The offset of the encoded packet within the array.
+	 * @param length The length of the encoded packet.
+	 * @return The decoded packet.
+	 * @throws IllegalArgumentException If the packet is malformed.
+	 */
+	public static DecryptedPacket decodePacketHex(byte[] buf, int offset, int length) throws IllegalArgumentException {
+		if (length == 0)
+			return new DecryptedPacket();
+		if (length % Utility.HEX_PER_BYTE != 0 || length < packetBytes(0, 0) * Utility.HEX_PER_BYTE)
+			throw new IllegalArgumentException("Invalid packet length: " + length + ".");
+
+		final int end = offset + length;
+		int current = offset;
+
+		/** Command (1 byte). */
+		final byte command = getHexByte(buf, current);
+		current += COMMAND_BYTES * Utility.HEX_PER_BYTE;
+
+		/** Data length (4 bytes). */
+		final int dataLen = getHexInt(buf, current);
+		current += LENGTH_BYTES * Utility.HEX_PER_BYTE;
+		if (dataLen < 0 || dataLen > (end - current) / Utility.HEX_PER_BYTE - LENGTH_BYTES)
+			throw new IllegalArgumentException("Invalid data length: " + dataLen + ".");
+
+		/** Data (dataLen bytes). */
+		final byte[] data = new byte[dataLen];
+		current = getHex(buf, current, data);
+
+		/** Nonce length (4 bytes). */
+		final int nonceLen = getHexInt(buf, current);
+		current += LENGTH_BYTES * Utility.HEX_PER_BYTE;
+		if (nonceLen < 0 || nonceLen > (end - current) / Utility.HEX_PER_BYTE)
+			throw new IllegalArgumentException("Invalid nonce length: " + nonceLen + ".");
+
+		/** Nonce (nonceLen bytes). */
+		final byte[] nonce = new byte[nonceLen];
+		getHex(buf, current, nonce);
+
+		return new DecryptedPacket(command, data, nonce);
+	}
+
+	/**
+	 * Decodes a packet from a string of hexadecimal characters.
+	 *
+	 * @param str The string containing the encoded packet.
+	 * @return The decoded packet.
+	 * @throws IllegalArgumentException If the packet is malformed.
+	 */
+	public static DecryptedPacket decodePacketHex(String str) throws IllegalArgumentException {
+		final byte[] bytes = getHexBytes(str);
+		return decodePacketHex(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Decodes an encrypted packet from a line of hexadecimal characters. This
+	 * must undo the effects of the encodeLine(EncryptedPacket) function.
+	 *
+	 * @param buf The array containing the line (without its terminator).
+	 * @param offset The offset of the line within the array.
+	 * @param length The length of the line.
+	 * @return The decoded packet.
+	 * @throws IllegalArgumentException If the line is malformed.
+	 */
+	public static EncryptedPacket decodeLine(byte[] buf, int offset, int length) throws IllegalArgumentException {
+		final int digestLen = EncryptedPacket.getDigestBytes();
+
+		if (length == 0)
+			return new EncryptedPacket(new byte[0], new byte[digestLen]);
+		if (length % Utility.HEX_PER_BYTE != 0 || length / Utility.HEX_PER_BYTE < digestLen)
+			throw new IllegalArgumentException("Invalid line length: " + length + ".");
+
+		final byte[] data = new byte[length / Utility.HEX_PER_BYTE - digestLen];
+		final byte[] digest = new byte[digestLen];
+		getHex(buf, getHex(buf, offset, data), digest);
+
+		return new EncryptedPacket(data, digest);
+	}
+
+	/**
+	 * Decodes an encrypted packet from a string of hexadecimal characters.
+	 *
+	 * @param str The string containing the encoded packet.
+	 * @return The decoded packet.
+	 * @throws IllegalArgumentException If the string is malformed.
+	 */
+	public static EncryptedPacket decodeLine(String str) throws IllegalArgumentException {
+		final byte[] bytes = getHexBytes(str);
+		return decodeLine(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Get the hexadecimal characters of a string as bytes. A leading zero is
+	 * added if necessary, to make the length an integer number of bytes (each
+	 * represented by 2 hexadecimal characters).
+	 *
+	 * @param str A string of hexadecimal characters.
+	 * @return The characters of the string, as ASCII bytes.
+	 */
+	private static byte[] getHexBytes(String str) {
+		final int padding = str.length() % Utility.HEX_PER_BYTE;
+		final byte[] bytes = new byte[padding + str.length()];
+		for (int i = 0; i < padding; i++)
+			bytes[i] = (byte) '0';
+		for (int i = 0; i < str.length(); i++)
+			bytes[padding + i] = (byte) str.charAt(i);
+		return bytes;
+	}
+
+	/**
+	 * Write a single byte as two hexadecimal characters.
+	 *
+	 * @param out The buffer to write to.
+	 * @param b The byte to write.
+	 */
+	private static void putHex(ByteBuffer out, byte b) {
+		out.put(HEX_ENCODE[(b >> 4) & 0xF]);
+		out.put(HEX_ENCODE[b & 0xF]);
+	}
+
+	/**
+	 * Write an integer as eight hexadecimal characters (most significant
+	 * first).
+	 *
+	 * @param out The buffer to write to.
+	 * @param value The integer to write.
+	 */
+	private static void putHex(ByteBuffer out, int value) {
+		for (int shift = Integer.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE)
+			putHex(out, (byte) (value >>> shift));
+	}
+
+	/**
+	 * Write a range of bytes as hexadecimal characters.
+	 *
+	 * @param out The buffer to write to.
+	 * @param src The bytes to write.
+	 * @param offset The offset of the first byte to write.
+	 * @param length The number of bytes to write.
+	 */
+	static void putHex(ByteBuffer out, byte[] src, int offset, int length) {
+		final int end = offset + length;
+		for (int i = offset; i < end; i++)
+			putHex(out, src[i]);
+	}
+
+	/**
+	 * Read a single byte from two hexadecimal characters.
+	 *
+	 * @param buf The array containing the characters.
+	 * @param index The index of the first character.
+	 * @return The decoded byte.
+	 * @throws IllegalArgumentException If either character is not a 
+	 * hexadecimal digit.
+	 */
+	private static byte getHexByte(byte[] buf, int index) throws IllegalArgumentException {
+		final int high = HEX_DECODE[buf[index] & 0xFF];
+		final int low = HEX_DECODE[buf[index + 1] & 0xFF];
+		if (high < 0 || low < 0)
+			throw new IllegalArgumentException("Invalid hexadecimal character at index " + index + ".");
+		return (byte) ((high << 4) | low);
+	}
+
+	/**
+	 * Read an integer from eight hexadecimal characters.
+	 *
+	 * @param buf The array containing the characters.
+	 * @param index The index of the first character.
+	 * @return The decoded integer.
+	 */
+	private static int getHexInt(byte[] buf, int index) {
+		int value = 0;
+		for (int i = 0; i < LENGTH_BYTES; i++)
+			value = (value << Byte.SIZE) | (getHexByte(buf, index + i * Utility.HEX_PER_BYTE) & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Fill an array with bytes decoded from hexadecimal characters.
+	 *
+	 * @param buf The array containing the characters.
+	 * @param index The index of the first character.
+	 * @param dst The array to fill.
+	 * @return The index of the first character after the decoded bytes.
+	 */
+	static int getHex(byte[] buf, int index, byte[] dst) {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = getHexByte(buf, index);
+			index += Utility.HEX_PER_BYTE;
+		}
+		return index;
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     PacketCodec.java
+ *****************************************************************************/
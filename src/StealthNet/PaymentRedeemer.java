@@ -0,0 +1,246 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        PaymentRedeemer.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Checks the hash chains that clients pay the server with,
+ * 					and redeems the payments at the bank.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import StealthNet.Security.RSAAsymmetricEncryption;
+
+/* StealthNet.PaymentRedeemer Class Definition *******************************/
+
+/**
+ * The server's side of hash chain (PayWord) payments. A client gives the server
+ * a commitment (a hash chain root signed by the bank) once per chain, and then
+ * pays for each secret with the next token of the chain, which the server
+ * checks with a hash per credit (see CryptoCredit). The bank is not involved in
+ * a purchase.
+ *
+ * The bank holds the length of the chain out of the client's account when it
+ * signs the chain. Once the client's session ends, the last token accepted is
+ * redeemed at the bank, which pays the credits owed to each seller out of the
+ * held funds, and the chain is closed, which returns the rest to the client.
+ * A redemption is kept (and journalled, if a journal is set) until the bank
+ * replies to it. If the bank can't be reached, then it is tried again later.
+ * Redemptions are made one at a time on a background thread, over a single
+ * connection to the bank, so that neither the handler nor the reactor ever
+ * waits for the bank.
+ *
+ * @author Joshua Spence
+ */
+public class PaymentRedeemer {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.PaymentRedeemer.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.PaymentRedeemer.ErrorTrace") || Debug.isDebug("ErrorTrace");
+
+	/** The bank that payments are redeemed at. */
+	private static final String BANK_HOST = System.getProperty("StealthNet.PaymentRedeemer.BankHost", Comms.DEFAULT_BANKNAME);
+	private static final int BANK_PORT = Integer.parseInt(System.getProperty("StealthNet.PaymentRedeemer.BankPort", Integer.toString(Comms.DEFAULT_BANKPORT)));
+
+	/** The time (in milliseconds) to wait before trying a redemption again, if the bank can't be reached. */
+	private static final long RETRY_INTERVAL = Long.parseLong(System.getProperty("StealthNet.PaymentRedeemer.RetryInterval", "10000"));
+
+	/** The account that the server logs in to the bank with. */
+	private static final String BANK_USER = "[server]";
+
+	/** The server's keys, used to connect to the bank. */
+	private final KeyPair serverKeys;
+
+	/** The bank's public key, used to check commitments. */
+	private final PublicKey bankKey;
+
+	/** The connection to the bank, or null if not connected. Only used by the redeemer thread. */
+	private Comms bankComms = null;
+
+	/** Saves the redemptions that the bank hasn't replied to. */
+	public interface Journal {
+		/**
+		 * Save a redemption, before it is sent to the bank.
+		 *
+		 * @param request The redemption.
+		 */
+		void pending(String request);
+
+		/**
+		 * Forget a redemption, once the bank has replied to it.
+		 *
+		 * @param request The redemption.
+		 */
+		void redeemed(String request);
+	}
+
+	/** The journal of redemptions, or null if they are not saved. */
+	private volatile Journal journal = null;
+
+	/** The thread that redeems payments. */
+	private final ScheduledExecutorService redeemer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "StealthNet.PaymentRedeemer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Constructor.
+	 *
+	 * @param serverKeys The server's keys, used to connect to the bank.
+	 * @param bankKey The bank's public key.
+	 */
+	public PaymentRedeemer(KeyPair serverKeys, PublicKey bankKey) {
+		this.serverKeys = serverKeys;
+		this.bankKey = bankKey;
+	}
+
+	/**
+	 * Check that a commitment was signed by the bank.
+	 *
+	 * @param commitment The commitment.
+	 * @return True if the commitment is valid.
+	 */
+	public boolean verify(CryptoCredit.Commitment commitment) {
+		return commitment.verify(bankKey);
+	}
+
+	/**
+	 * Redeem the payments accepted from a hash chain, in the background.
+	 *
+	 * @param commitment The hash chain, with the last token accepted.
+	 * @param owed The credits owed to each seller.
+	 * @param close True to close the chain, so that the bank returns the
+	 * funds that it holds for the chain (less the payments) to the user.
+	 */
+	public void redeem(CryptoCredit.Commitment commitment, Map<String, Long> owed, boolean close) {
+		if (owed.isEmpty() && !close)
+			return;
+
+		final StringBuilder payees = new StringBuilder();
+		for (Map.Entry<String, Long> entry : owed.entrySet()) {
+			if (payees.length() > 0)
+				payees.append(',');
+			payees.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		final String request = commitment.getUser() + ";" + commitment + ";" + payees + (close ? ";" + BankThread.REDEEM_CLOSE : "");
+
+		final Journal currentJournal = journal;
+		if (currentJournal != null)
+			currentJournal.pending(request);
+		resume(request);
+	}
+
+	/**
+	 * Set the journal that redemptions are saved to. Should be called once,
+	 * before any payments are redeemed.
+	 *
+	 * @param journal The journal.
+	 */
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Redeem a redemption that was saved before the server was last stopped,
+	 * in the background. Also used to send each new redemption.
+	 *
+	 * @param request The redemption, as sent to the bank.
+	 */
+	public void resume(final String request) {
+		redeemer.execute(new Runnable() {
+			public void run() {
+				if (!send(request)) {
+					System.err.println("Failed to redeem payments at the bank. Trying again in " + RETRY_INTERVAL + "ms.");
+					redeemer.schedule(this, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send a redemption to the bank, and wait for the reply. Only called by 
+	 * the redeemer thread.
+	 *
+	 * @param request The redemption.
+	 * @return True if the bank replied, false if it could not be reached.
+	 */
+	private boolean send(String request) {
+		/** Reconnect once if the bank has dropped the connection. */
+		for (int attempt = 0; attempt < 2; attempt++) {
+			try {
+				if (bankComms == null)
+					connect();
+
+				if (DEBUG_GENERAL) System.out.println("Redeeming \"" + request + "\".");
+				if (!bankComms.sendPacket(DecryptedPacket.CMD_REDEEM, request))
+					throw new IllegalStateException("Failed to send redemption to the bank.");
+
+				final DecryptedPacket reply = bankComms.recvPacket();
+				if (reply == null)
+					throw new IllegalStateException("Bank closed the connection.");
+
+				/** 
+				 * Either reply is final. If an earlier reply was lost, then 
+				 * the bank refuses the token again, or pays nothing from the
+				 * closed chain, so the redemption is never made twice.
+				 */
+				if (reply.command == DecryptedPacket.CMD_REDEEM)
+					System.out.println("Redeemed " + new String(reply.data) + " credits from user \"" + request.substring(0, request.indexOf(';')) + "\".");
+				else
+					System.err.println("Bank refused redemption: " + new String(reply.data));
+
+				final Journal currentJournal = journal;
+				if (currentJournal != null)
+					currentJournal.redeemed(request);
+				return true;
+			} catch (final Exception e) {
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+				disconnect();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Connect to the bank.
+	 *
+	 * @throws Exception
+	 */
+	private void connect() throws Exception {
+		if (DEBUG_GENERAL) System.out.println("Connecting to bank '" + BANK_HOST + "' on port " + BANK_PORT + ".");
+
+		final Comms comms = new Comms(new RSAAsymmetricEncryption(serverKeys, bankKey));
+		if (!comms.initiateSession(new Socket(BANK_HOST, BANK_PORT)))
+			throw new IllegalStateException("Failed to connect to the bank.");
+		comms.sendPacket(DecryptedPacket.CMD_LOGIN, BANK_USER);
+		bankComms = comms;
+	}
+
+	/** Disconnect from the bank. */
+	private void disconnect() {
+		if (bankComms != null) {
+			bankComms.terminateSession();
+			bankComms = null;
+		}
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     PaymentRedeemer.java
+ *****************************************************************************/
@@ -10,8 +10,8 @@
  * IMPLEMENTS:      initiateSession();
  *                  acceptSession();
  *                  terminateSession();
- *                  sendString();
- *                  recvString();
+ *                  sendFrame();
+ *                  recvFrame();
  *                  recvReady();
  *
  *****************************************************************************/
@@ -20,10 +20,12 @@ package StealthNet;
 
 /* Import Libraries **********************************************************/
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
 
@@ -33,7 +35,9 @@ import java.net.SocketException;
  * A class to buffered write and buffered read to and from an opened socket.
  * This class is almost identical to the `Comms' class, but is stripped down to
  * provide only a basic forwarding functionality. It does not interpret packets,
- * but rather sends raw strings around.
+ * but rather sends raw frames around. A frame is either a line of hexadecimal
+ * text or a binary length-prefixed frame, depending on the framing mode that
+ * the two peers negotiated.
  * 
  * @author Joshua Spence
  *
@@ -57,10 +61,13 @@ public class ProxyComms {
     private Socket commsSocket;
 
     /** Output data stream for the socket. */
-    private PrintWriter dataOut;            
+    private DataOutputStream dataOut;            
     
     /** Input data stream for the socket. */
-    private BufferedReader dataIn;
+    private DataInputStream dataIn;
+    
+    /** True if the last frame received was a binary frame. */
+    private boolean lastFrameBinary = false;
     
     /** Constructor. */
     public ProxyComms() {
@@ -114,8 +121,8 @@ public class ProxyComms {
     	if (DEBUG_GENERAL) System.out.println("Initiating ProxyComms session.");
         try {
             commsSocket = socket;
-            dataOut = new PrintWriter(commsSocket.getOutputStream(), true);
-            dataIn = new BufferedReader(new InputStreamReader(commsSocket.getInputStream()));
+            dataOut = new DataOutputStream(new BufferedOutputStream(commsSocket.getOutputStream()));
+            dataIn = new DataInputStream(new BufferedInputStream(commsSocket.getInputStream()));
         } catch (Exception e) {
             System.err.println("Connection terminated!");
             if (DEBUG_ERROR_TRACE) e.printStackTrace();
@@ -137,8 +144,8 @@ public class ProxyComms {
     	if (DEBUG_GENERAL) System.out.println("Accepting ProxyComms session on port " + socket.getPort() + ".");
         try {
             commsSocket = socket;
-            dataOut = new PrintWriter(commsSocket.getOutputStream(), true);
-            dataIn = new BufferedReader(new InputStreamReader(commsSocket.getInputStream()));
+            dataOut = new DataOutputStream(new BufferedOutputStream(commsSocket.getOutputStream()));
+            dataIn = new DataInputStream(new BufferedInputStream(commsSocket.getInputStream()));
         } catch (Exception e) {
             System.err.println("Connection terminated!");
             if (DEBUG_ERROR_TRACE) e.printStackTrace();
@@ -149,8 +156,8 @@ public class ProxyComms {
     }
 
     /**
-     * Terminates the communication session and closes the socket, print writer 
-     * and buffered reader associated with the communications.
+     * Terminates the communication session and closes the socket, output 
+     * stream and input stream associated with the communications.
      * 
      * @return True if the termination succeeds, otherwise false.
      */
@@ -173,38 +180,85 @@ public class ProxyComms {
     }
 
     /**
-     * Sends a string by writing it to the print writer for the socket.
+     * Sends a frame by writing it to the output stream for the socket.
      * 
-     * @param str The string to be sent.
+     * @param frame The body of the frame to be sent. For a text frame this is 
+     * the line without its terminator.
+     * @param binary True to send a binary frame, false to send a text line.
      * @return True if successful, otherwise false.
      */
-    public boolean sendString(String str) throws SocketException {    	
+    public boolean sendFrame(byte[] frame, boolean binary) throws IOException {    	
     	/** Print debug information. */
-    	if (DEBUG_RAW_PACKET) System.out.println("(raw)       sendString(" + str + ")");
+    	if (DEBUG_RAW_PACKET) System.out.println("(raw)       sendFrame(" + (binary ? Utility.getHexValue(frame) : new String(frame)) + ")");
     	
         if (dataOut == null) {
-        	System.err.println("PrintWriter does not exist!");
+        	System.err.println("Output stream does not exist!");
             return false;
         }
         
-        /** Print the packet to the output writer. */
-        dataOut.println(str);
+        /** Write the frame to the output stream. */
+        if (binary) {
+        	dataOut.write(Comms.FRAME_MARKER);
+        	dataOut.writeInt(frame.length);
+        	dataOut.write(frame);
+        } else {
+        	dataOut.write(frame);
+        	dataOut.write('\n');
+        }
+        dataOut.flush();
         return true;
     }
 
     /**
-     * Reads a string from the buffered reader for the socket.
+     * Reads a frame from the input stream for the socket. Whether the frame was
+     * a binary frame or a text line can be queried with isLastFrameBinary().
      * 
-     * @return A string representing the packet that was received.
+     * @return The body of the frame that was received, or null if the end of 
+     * the stream has been reached.
      */
-    public String recvString() throws IOException, SocketException {        
-        /** Read data from the input buffer. */
-        final String packetString = dataIn.readLine();
+    public byte[] recvFrame() throws IOException {
+    	int c = dataIn.read();
+    	if (c == -1)
+    		return null;
+    	
+    	byte[] frame;
+    	if (c == Comms.FRAME_MARKER) {
+    		/** Binary frame. */
+    		final int frameLen = dataIn.readInt();
+    		if (frameLen < 0 || frameLen > Comms.MAX_FRAME_BYTES)
+    			throw new IOException("Invalid frame length: " + frameLen + ".");
+    		
+    		frame = new byte[frameLen];
+    		dataIn.readFully(frame);
+    		lastFrameBinary = true;
+    	} else {
+    		/** Text line. */
+    		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    		while (c != -1 && c != '\n') {
+    			if (c != '\r')
+    				line.write(c);
+    			c = dataIn.read();
+    		}
+    		
+    		frame = line.toByteArray();
+    		lastFrameBinary = false;
+    	}
         
         /** Print debug information. */
-    	if (DEBUG_RAW_PACKET) System.out.println("(raw)       recvString(" + packetString + ")");
+    	if (DEBUG_RAW_PACKET) System.out.println("(raw)       recvFrame(" + (lastFrameBinary ? Utility.getHexValue(frame) : new String(frame)) + ")");
     	
-    	return packetString;
+    	return frame;
+    }
+    
+    /**
+     * Checks whether the frame most recently returned by recvFrame() was a 
+     * binary frame.
+     * 
+     * @return True if the last frame was a binary frame, false if it was a text
+     * line.
+     */
+    public boolean isLastFrameBinary() {
+    	return lastFrameBinary;
     }
     
     /**
@@ -248,7 +302,7 @@ public class ProxyComms {
     	is_first_time = false;
     	
     	/** Return the result - the only real useful code in this function. */
-        return dataIn.ready();
+        return dataIn.available() > 0;
     }
 }
 
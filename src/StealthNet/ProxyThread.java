@@ -152,18 +152,21 @@ public class ProxyThread extends Thread {
 	public void run() {
 		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Running ProxyThread...");
 
-		String packetString = new String();
+		byte[] packet = new byte[0];
 		final Random rnd = new Random();
 		BigInteger pcktCounter = BigInteger.ZERO;
 		
 		try {
-			while (packetString != null && !getShouldStop()) {
+			while (packet != null && !getShouldStop()) {
 				/** Receive a StealthNet packet. */
-				packetString = stealthCommsSource.recvString();
+				packet = stealthCommsSource.recvFrame();
 				
-				if (packetString == null)
+				if (packet == null)
 					break;
 				
+				/** Forward the packet using the same framing that it arrived in. */
+				final boolean binary = stealthCommsSource.isLastFrameBinary();
+				
 				/** Increment the packet counter. */
 				pcktCounter = pcktCounter.add(BigInteger.ONE);
 				
@@ -171,16 +174,19 @@ public class ProxyThread extends Thread {
 				if (isMalicious && pcktCounter.compareTo(BigInteger.valueOf(noMaliciousPacketCount)) > 0 && (rnd.nextInt() % 100) < corruptionProbability) {
 					if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Corrupting packet...");
 					
-					/** Simply reverse the packet string. */
-					stealthCommsDestination.sendString(new StringBuffer(packetString).reverse().toString());
+					/** Simply reverse the packet contents. */
+					final byte[] corrupted = new byte[packet.length];
+					for (int i = 0; i < packet.length; i++)
+						corrupted[i] = packet[packet.length - 1 - i];
+					stealthCommsDestination.sendFrame(corrupted, binary);
 				} else {
-					stealthCommsDestination.sendString(packetString);
+					stealthCommsDestination.sendFrame(packet, binary);
 				}
 				
 				/** Decide whether or not to replay a message. */
 				if (isMalicious && pcktCounter.compareTo(BigInteger.valueOf(noMaliciousPacketCount)) > 0 && (rnd.nextInt() % 100) < replayProbability) {
 					if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Replaying last packet...");
-					stealthCommsDestination.sendString(packetString);
+					stealthCommsDestination.sendFrame(packet, binary);
 				}
 				
 			}
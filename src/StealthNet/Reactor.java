@@ -0,0 +1,510 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        Reactor.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Serves established StealthNet sessions with non-blocking
+ * 					I/O, using a small number of selector threads.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* StealthNet.Reactor Class Definition ***************************************/
+
+/**
+ * Serves established StealthNet sessions using non-blocking I/O. Each session
+ * is assigned to one of a fixed number of selector threads, which reads from
+ * the session whenever data arrives, decodes the received packets (see
+ * Comms.pollPacket) and passes them to the handler of the session. An idle
+ * session costs only its buffers, so a server can hold a very large number of
+ * idle clients with a fixed number of threads.
+ *
+ * Outgoing packets are written directly to the channel if possible. If the
+ * socket buffer is full, then the remainder is queued and written by the
+ * selector thread once the channel becomes writable. Sending a packet only
+ * blocks if too many packets are already queued, so packets should be sent 
+ * from a thread other than the selector thread (such as an OutboundQueue 
+ * writer).
+ *
+ * The packets of a session are always handled in order, on the selector
+ * thread of the session. Handlers must therefore never block.
+ *
+ * Sessions are registered once their handshakes have completed (see
+ * HandshakeExecutor). The handshake itself still uses blocking I/O.
+ *
+ * @author Joshua Spence
+ */
+public class Reactor {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.Reactor.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.Reactor.ErrorTrace") || Debug.isDebug("ErrorTrace");
+
+	/** The default number of selector threads. */
+	public static final int DEFAULT_THREADS = Integer.parseInt(System.getProperty("StealthNet.Reactor.Threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+	/** The initial size of the receive buffer of each session. */
+	private static final int INITIAL_BUFFER_BYTES = 4096;
+
+	/**
+	 * The maximum number of packets queued for a session that is not keeping
+	 * up. Once this many packets are queued, the sender waits (see
+	 * OutboundQueue, which bounds the number of packets waiting to be sent).
+	 */
+	public static final int MAX_QUEUED_PACKETS = Integer.parseInt(System.getProperty("StealthNet.Reactor.MaxQueuedPackets", "64"));
+
+	/**
+	 * Handles the packets of a session. A handler is called only by the
+	 * selector thread of its session.
+	 */
+	public interface Handler {
+		/**
+		 * Handle a packet received from the peer. This must not block.
+		 *
+		 * @param pckt The packet that was received.
+		 * @return False if the session should be closed, otherwise true.
+		 * @throws Exception If the session should be closed.
+		 */
+		boolean handlePacket(DecryptedPacket pckt) throws Exception;
+
+		/** Clean up once the session has been closed. Called exactly once. */
+		void endSession();
+	}
+
+	/** The selector threads. */
+	private final SelectorThread[] selectorThreads;
+
+	/** Used to assign sessions to selector threads. */
+	private final AtomicInteger nextThread = new AtomicInteger(0);
+
+	/** The number of sessions that are currently registered. */
+	private final AtomicInteger sessions = new AtomicInteger(0);
+
+	/**
+	 * Constructor using the default number of selector threads.
+	 *
+	 * @param name The name of the server, used to name the threads.
+	 * @throws IOException If a selector cannot be opened.
+	 */
+	public Reactor(String name) throws IOException {
+		this(name, DEFAULT_THREADS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name The name of the server, used to name the threads.
+	 * @param threads The number of selector threads.
+	 * @throws IOException If a selector cannot be opened.
+	 */
+	public Reactor(String name, int threads) throws IOException {
+		selectorThreads = new SelectorThread[Math.max(1, threads)];
+		for (int i = 0; i < selectorThreads.length; i++) {
+			selectorThreads[i] = new SelectorThread("StealthNet." + name + ".Reactor-" + (i + 1));
+			selectorThreads[i].start();
+		}
+
+		if (DEBUG_GENERAL) System.out.println("Reactor started with " + selectorThreads.length + " selector threads.");
+	}
+
+	/**
+	 * Register an established session. From now on, the packets of the
+	 * session are received by the reactor and passed to the handler. This
+	 * must be called from the thread that established the session, before the
+	 * session is used by any other thread.
+	 *
+	 * @param channel The channel of the session, which must still be in
+	 * blocking mode.
+	 * @param comms The established session.
+	 * @param handler Handles the packets of the session.
+	 * @throws IOException
+	 */
+	public void register(SocketChannel channel, Comms comms, Handler handler) throws IOException {
+		final SelectorThread selectorThread = selectorThreads[(nextThread.getAndIncrement() & Integer.MAX_VALUE) % selectorThreads.length];
+		final Session session = new Session(selectorThread, channel, comms, handler);
+
+		/** Take over the I/O of the session, then stop blocking. */
+		final byte[] buffered = comms.detachStreams(session.output);
+		channel.configureBlocking(false);
+		session.receive(buffered);
+
+		sessions.incrementAndGet();
+		selectorThread.register(session);
+	}
+
+	/**
+	 * Get the number of sessions that are currently registered.
+	 *
+	 * @return The number of open sessions.
+	 */
+	public int getSessions() {
+		return sessions.get();
+	}
+
+	/**
+	 * Get the number of selector threads.
+	 *
+	 * @return The number of selector threads.
+	 */
+	public int getThreads() {
+		return selectorThreads.length;
+	}
+
+	/** Waits for I/O on a group of sessions, and performs it. */
+	private class SelectorThread extends Thread {
+		private final Selector selector;
+
+		/** Sessions waiting to be registered with the selector. */
+		private final ConcurrentLinkedQueue<Session> registrations = new ConcurrentLinkedQueue<Session>();
+
+		/** Sessions that have output waiting for the channel to be writable. */
+		private final ConcurrentLinkedQueue<Session> writers = new ConcurrentLinkedQueue<Session>();
+
+		/** Sessions that have been closed by another thread. */
+		private final ConcurrentLinkedQueue<Session> closers = new ConcurrentLinkedQueue<Session>();
+
+		SelectorThread(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Register a session with the selector (on the selector thread).
+		 *
+		 * @param session The session to register.
+		 */
+		void register(Session session) {
+			registrations.add(session);
+			selector.wakeup();
+		}
+
+		/**
+		 * Wait for a session to become writable (on the selector thread).
+		 *
+		 * @param session The session that has queued output.
+		 */
+		void requestWrite(Session session) {
+			writers.add(session);
+			selector.wakeup();
+		}
+
+		/**
+		 * Close a session (on the selector thread).
+		 *
+		 * @param session The session to close.
+		 */
+		void requestClose(Session session) {
+			closers.add(session);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					System.err.println("Reactor selector failed.");
+					if (DEBUG_ERROR_TRACE) e.printStackTrace();
+					continue;
+				}
+
+				/** Register new sessions, and handle any data already received. */
+				Session session;
+				while ((session = registrations.poll()) != null)
+					try {
+						session.key = session.channel.register(selector, session.hasQueued() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ, session);
+						session.handleReceived();
+					} catch (Exception e) {
+						if (DEBUG_ERROR_TRACE) e.printStackTrace();
+						session.close();
+					}
+
+				/**
+				 * Wait for sessions with queued output to become writable. A 
+				 * session that is not yet registered will be registered for 
+				 * writing.
+				 */
+				while ((session = writers.poll()) != null)
+					try {
+						if (session.key != null && session.key.isValid())
+							session.key.interestOps(session.key.interestOps() | SelectionKey.OP_WRITE);
+					} catch (CancelledKeyException e) {
+						session.close();
+					}
+
+				/** Close sessions that have been closed by other threads. */
+				while ((session = closers.poll()) != null)
+					session.close();
+
+				/** Perform the I/O of the ready sessions. */
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+
+					session = (Session) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable())
+							session.read();
+						if (key.isValid() && key.isWritable())
+							session.write();
+					} catch (CancelledKeyException e) {
+						session.close();
+					} catch (IOException e) {
+						if (DEBUG_GENERAL) System.out.println("Reactor session closed: " + e.getMessage());
+						if (DEBUG_ERROR_TRACE) e.printStackTrace();
+						session.close();
+					} catch (Exception e) {
+						System.err.println("Error handling packet. Closing session...");
+						if (DEBUG_ERROR_TRACE) e.printStackTrace();
+						session.close();
+					}
+				}
+			}
+		}
+	}
+
+	/** The state of a single registered session. */
+	private class Session {
+		private final SelectorThread selectorThread;
+		private final SocketChannel channel;
+		private final Comms comms;
+		private final Handler handler;
+
+		/** The selection key, once registered. Only used by the selector thread. */
+		private SelectionKey key = null;
+
+		/** Received bytes that have not yet been decoded. In write mode. */
+		private ByteBuffer received = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+
+		/** Output waiting for the channel to become writable. Guarded by itself. */
+		private final LinkedList<ByteBuffer> queued = new LinkedList<ByteBuffer>();
+
+		/** The stream to which the session writes its packets. */
+		private final SessionOutputStream output = new SessionOutputStream(this);
+
+		/** Set once the session has been closed. */
+		private boolean closed = false;
+
+		Session(SelectorThread selectorThread, SocketChannel channel, Comms comms, Handler handler) {
+			this.selectorThread = selectorThread;
+			this.channel = channel;
+			this.comms = comms;
+			this.handler = handler;
+		}
+
+		/**
+		 * Add bytes to the receive buffer, growing it if necessary.
+		 *
+		 * @param bytes The received bytes.
+		 */
+		void receive(byte[] bytes) {
+			if (received.remaining() < bytes.length) {
+				final ByteBuffer larger = ByteBuffer.allocate(Math.max(received.capacity() * 2, received.position() + bytes.length));
+				received.flip();
+				larger.put(received);
+				received = larger;
+			}
+			received.put(bytes);
+		}
+
+		/**
+		 * Read from the channel, and handle any complete packets.
+		 *
+		 * @throws Exception If the session should be closed.
+		 */
+		void read() throws Exception {
+			/** A packet may be larger than the buffer. */
+			if (!received.hasRemaining()) {
+				final ByteBuffer larger = ByteBuffer.allocate(received.capacity() * 2);
+				received.flip();
+				larger.put(received);
+				received = larger;
+			}
+
+			if (channel.read(received) == -1)
+				throw new IOException("End of stream.");
+
+			handleReceived();
+		}
+
+		/**
+		 * Decode and handle the complete packets in the receive buffer.
+		 *
+		 * @throws Exception If the session should be closed.
+		 */
+		void handleReceived() throws Exception {
+			received.flip();
+			try {
+				DecryptedPacket pckt;
+				while (!closed && (pckt = comms.pollPacket(received)) != null)
+					if (!handler.handlePacket(pckt)) {
+						close();
+						return;
+					}
+			} finally {
+				received.compact();
+			}
+		}
+
+		/**
+		 * Send bytes to the peer. Any bytes that cannot be written immediately
+		 * are queued. If too many packets are already queued, then this waits
+		 * until the selector thread has written some of them.
+		 *
+		 * A selector thread never waits, as only selector threads write the 
+		 * queued packets (and one that waited could deadlock every session on 
+		 * it). Instead, a session whose peer isn't reading is closed.
+		 *
+		 * @param buffer The bytes to send.
+		 * @throws IOException If the session has been closed, or if too many
+		 * packets are queued and the caller is a selector thread.
+		 */
+		void send(ByteBuffer buffer) throws IOException {
+			synchronized (queued) {
+				if (!closed && queued.size() >= MAX_QUEUED_PACKETS && Thread.currentThread() instanceof SelectorThread) {
+					selectorThread.requestClose(this);
+					throw new IOException("Peer is not reading. Closing session.");
+				}
+				
+				while (!closed && queued.size() >= MAX_QUEUED_PACKETS)
+					try {
+						queued.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while sending.");
+					}
+
+				if (closed)
+					throw new IOException("Session closed.");
+
+				/** Don't overtake output that is already queued. */
+				if (queued.isEmpty()) {
+					channel.write(buffer);
+					if (!buffer.hasRemaining())
+						return;
+				}
+
+				queued.add(buffer);
+				if (queued.size() == 1)
+					selectorThread.requestWrite(this);
+			}
+		}
+
+		/**
+		 * Check whether any output is waiting to be written.
+		 *
+		 * @return True if output is queued.
+		 */
+		boolean hasQueued() {
+			synchronized (queued) {
+				return !queued.isEmpty();
+			}
+		}
+
+		/**
+		 * Write queued output, now that the channel is writable.
+		 *
+		 * @throws IOException
+		 */
+		void write() throws IOException {
+			synchronized (queued) {
+				while (!queued.isEmpty()) {
+					final ByteBuffer buffer = queued.getFirst();
+					channel.write(buffer);
+					if (buffer.hasRemaining())
+						return;
+					queued.removeFirst();
+					queued.notifyAll();
+				}
+
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		}
+
+		/** Close the session, and notify the handler. */
+		void close() {
+			synchronized (queued) {
+				if (closed)
+					return;
+				closed = true;
+				queued.clear();
+				queued.notifyAll();
+			}
+
+			if (key != null)
+				key.cancel();
+			sessions.decrementAndGet();
+
+			try {
+				handler.endSession();
+			} catch (Exception e) {
+				System.err.println("Error ending session.");
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			}
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Collects the bytes of each packet written by a session, and sends them
+	 * when the packet is flushed. Closing the stream (by terminating the Comms
+	 * session) closes the session.
+	 */
+	private static class SessionOutputStream extends OutputStream {
+		private final Session session;
+		private final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+
+		SessionOutputStream(Session session) {
+			this.session = session;
+		}
+
+		public void write(int b) {
+			packet.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			packet.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			if (packet.size() == 0)
+				return;
+
+			final ByteBuffer buffer = ByteBuffer.wrap(packet.toByteArray());
+			packet.reset();
+			session.send(buffer);
+		}
+
+		public void close() {
+			session.selectorThread.requestClose(session);
+		}
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     Reactor.java
+ *****************************************************************************/
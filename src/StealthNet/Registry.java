@@ -0,0 +1,327 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        Registry.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     A concurrent registry of named entries (such as users and
+ * 					secrets), shared by all server threads.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* StealthNet.Registry Class Definition **************************************/
+
+/**
+ * A registry of named entries that is shared by all of the threads of a
+ * server. Lookups are lock-free, as the entries are stored in a
+ * ConcurrentHashMap. Modifications are serialised, and each modification
+ * increments the version of the registry.
+ *
+ * Entries should be immutable. An entry is changed by atomically replacing it
+ * with a new entry (see replace), so that two threads can never both succeed
+ * in changing the same entry.
+ *
+ * Broadcasts need a consistent view of the whole registry, which iterating
+ * over a ConcurrentHashMap does not provide. The snapshot() function instead
+ * returns an immutable copy of the registry, which is taken while no
+ * modification is in progress. The copy is only rebuilt after the registry
+ * has been modified, so a burst of broadcasts shares a single copy.
+ *
+ * The most recent changes are also remembered, so that a peer that has been
+ * sent the registry (at some version) can be sent only the entries that have
+ * changed since then (see getChangesSince), rather than the whole registry.
+ *
+ * @author Joshua Spence
+ *
+ * @param <V> The type of the entries.
+ */
+public class Registry<V> {
+	/** The default number of changes that are remembered. */
+	public static final int DEFAULT_HISTORY = Integer.parseInt(System.getProperty("StealthNet.Registry.History", "1024"));
+
+	/** The entries, indexed by name. */
+	private final ConcurrentHashMap<String, V> entries = new ConcurrentHashMap<String, V>();
+
+	/** Serialises modifications. */
+	private final Object writeLock = new Object();
+
+	/** The number of modifications made. Only written while holding writeLock. */
+	private volatile long version = 0;
+
+	/** The latest snapshot, or null if the registry has since been modified. */
+	private volatile Snapshot<V> snapshot = null;
+
+	/** The most recent changes, oldest first. Guarded by writeLock. */
+	private final LinkedList<Change<V>> changes = new LinkedList<Change<V>>();
+
+	/** The maximum number of changes that are remembered. */
+	private final int history;
+
+	/** Constructor using the default history. */
+	public Registry() {
+		this(DEFAULT_HISTORY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param history The maximum number of changes that are remembered.
+	 */
+	public Registry(int history) {
+		this.history = history;
+	}
+
+	/**
+	 * Get an entry. This function does not lock.
+	 *
+	 * @param name The name of the entry.
+	 * @return The entry, or null if there is no such entry.
+	 */
+	public V get(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Add an entry, if there is no entry with the same name.
+	 *
+	 * @param name The name of the entry.
+	 * @param value The entry to add.
+	 * @return True if the entry was added, false if an entry with the same name
+	 * already exists.
+	 */
+	public boolean add(String name, V value) {
+		synchronized (writeLock) {
+			if (entries.putIfAbsent(name, value) != null)
+				return false;
+			modified(name, value);
+			return true;
+		}
+	}
+
+	/**
+	 * Replace an entry, only if it has not been changed since it was read. If
+	 * the expected entry is null, then the new entry is only added if there is
+	 * no entry with the same name.
+	 *
+	 * @param name The name of the entry.
+	 * @param expected The entry that is expected to be in the registry (or
+	 * null if no entry is expected).
+	 * @param value The new entry.
+	 * @return True if the entry was replaced, false if the registry did not
+	 * contain the expected entry.
+	 */
+	public boolean replace(String name, V expected, V value) {
+		if (expected == null)
+			return add(name, value);
+
+		synchronized (writeLock) {
+			if (!entries.replace(name, expected, value))
+				return false;
+			modified(name, value);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove an entry.
+	 *
+	 * @param name The name of the entry.
+	 * @return The entry that was removed, or null if there was no such entry.
+	 */
+	public V remove(String name) {
+		synchronized (writeLock) {
+			final V value = entries.remove(name);
+			if (value != null)
+				modified(name, null);
+			return value;
+		}
+	}
+
+	/**
+	 * Set (or remove) an entry without recording a change. Used to load the
+	 * registry (for example, after a restart) before it is shared, as no peer
+	 * can have been sent an earlier version.
+	 *
+	 * @param name The name of the entry.
+	 * @param value The entry, or null to remove the entry.
+	 */
+	public void load(String name, V value) {
+		synchronized (writeLock) {
+			if (value == null)
+				entries.remove(name);
+			else
+				entries.put(name, value);
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * Get the number of entries.
+	 *
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the version of the registry, which is incremented by every
+	 * modification.
+	 *
+	 * @return The version of the registry.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get a consistent, immutable copy of the registry.
+	 *
+	 * @return A snapshot of the registry.
+	 */
+	public Snapshot<V> snapshot() {
+		final Snapshot<V> current = snapshot;
+		if (current != null)
+			return current;
+
+		synchronized (writeLock) {
+			if (snapshot == null)
+				snapshot = new Snapshot<V>(version, Collections.unmodifiableMap(new LinkedHashMap<String, V>(entries)));
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Get the changes made since a given version. If an entry has changed more
+	 * than once, then every change is returned.
+	 *
+	 * @param since The version that the caller already has.
+	 * @return The changes, oldest first. Null if the changes are no longer
+	 * remembered, in which case the caller needs a snapshot instead.
+	 */
+	public List<Change<V>> getChangesSince(long since) {
+		synchronized (writeLock) {
+			if (since > version)
+				return null;
+			if (since == version)
+				return Collections.emptyList();
+			if (changes.isEmpty() || changes.getFirst().version > since + 1)
+				return null;
+
+			final List<Change<V>> result = new ArrayList<Change<V>>((int) (version - since));
+			for (Change<V> change : changes)
+				if (change.version > since)
+					result.add(change);
+			return result;
+		}
+	}
+
+	/**
+	 * Record a modification. Must be called while holding writeLock.
+	 *
+	 * @param name The name of the entry that was modified.
+	 * @param value The new entry, or null if the entry was removed.
+	 */
+	private void modified(String name, V value) {
+		version++;
+		snapshot = null;
+
+		changes.addLast(new Change<V>(version, name, value));
+		while (changes.size() > history)
+			changes.removeFirst();
+	}
+
+	/**
+	 * A single change to a registry.
+	 *
+	 * @param <V> The type of the entries.
+	 */
+	public static class Change<V> {
+		private final long version;
+		private final String name;
+		private final V value;
+
+		private Change(long version, String name, V value) {
+			this.version = version;
+			this.name = name;
+			this.value = value;
+		}
+
+		/**
+		 * Get the version of the registry after the change.
+		 *
+		 * @return The version of the change.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Get the name of the entry that was changed.
+		 *
+		 * @return The name of the entry.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the new entry.
+		 *
+		 * @return The new entry, or null if the entry was removed.
+		 */
+		public V getValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * A consistent, immutable copy of a registry.
+	 *
+	 * @param <V> The type of the entries.
+	 */
+	public static class Snapshot<V> {
+		private final long version;
+		private final Map<String, V> entries;
+
+		private Snapshot(long version, Map<String, V> entries) {
+			this.version = version;
+			this.entries = entries;
+		}
+
+		/**
+		 * Get the version of the registry when the snapshot was taken.
+		 *
+		 * @return The version of the snapshot.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Get the entries of the snapshot.
+		 *
+		 * @return An unmodifiable map of the entries, indexed by name.
+		 */
+		public Map<String, V> getEntries() {
+			return entries;
+		}
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     Registry.java
+ *****************************************************************************/
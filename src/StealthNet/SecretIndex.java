@@ -0,0 +1,534 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        SecretIndex.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     An in-memory search index over the secrets known to the
+ * 					server.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/* StealthNet.SecretIndex Class Definition ***********************************/
+
+/**
+ * An in-memory search index over secrets, so that a client can find the
+ * secrets that it is interested in without being sent the whole secret list.
+ * The index consists of:
+ *
+ * - An inverted index, from each token (word) of the name and description of a
+ *   secret to the secrets containing that token.
+ * - A sorted index, from cost to the secrets with that cost.
+ * - An owner index, from each owner to the secrets that they own.
+ *
+ * A search matches the secrets that contain every token of the query, and
+ * that satisfy the (optional) cost and owner restrictions. Only the smallest
+ * of the candidate sets is scanned, so the cost of a search depends on the
+ * number of matching secrets rather than on the size of the index.
+ *
+ * Results are ranked by score (a token matched in the name scores more than a
+ * token matched in the description), then by cost (cheapest first), then by
+ * name. Only the requested page of results is sorted.
+ *
+ * The index may be searched by many threads at once. Modifications are
+ * serialised.
+ *
+ * A large index can take a while to build, so it can be loaded in the
+ * background (see beginLoad). Until it has been loaded, searches and
+ * modifications wait for it, so modifications are still applied in order.
+ *
+ * @author Joshua Spence
+ */
+public class SecretIndex {
+	/** The score of a query token found in the name and description of a secret. */
+	private static final int NAME_SCORE = 2;
+	private static final int DESCRIPTION_SCORE = 1;
+
+	/** An indexed secret. */
+	private static class Entry {
+		final String name;
+		final int cost;
+		final String owner;
+
+		/**
+		 * The (unique) tokens of the name and description, and the score of
+		 * each. Secrets have few tokens, so arrays are both smaller and faster
+		 * than a map.
+		 */
+		final String[] tokens;
+		final int[] scores;
+
+		Entry(String name, String description, int cost, String owner) {
+			this.name = name;
+			this.cost = cost;
+			this.owner = owner;
+
+			final Set<String> nameTokens = tokenise(name);
+			final Set<String> allTokens = new LinkedHashSet<String>(nameTokens);
+			allTokens.addAll(tokenise(description));
+
+			this.tokens = allTokens.toArray(new String[allTokens.size()]);
+			this.scores = new int[tokens.length];
+			for (int i = 0; i < tokens.length; i++)
+				scores[i] = nameTokens.contains(tokens[i]) ? NAME_SCORE : DESCRIPTION_SCORE;
+		}
+
+		/**
+		 * Get the score of a token.
+		 *
+		 * @param token The token.
+		 * @return The score of the token, or zero if the secret doesn't
+		 * contain the token.
+		 */
+		int getScore(String token) {
+			for (int i = 0; i < tokens.length; i++)
+				if (tokens[i].equals(token))
+					return scores[i];
+			return 0;
+		}
+	}
+
+	/**
+	 * The secrets under a single key of an index. Most tokens (such as the
+	 * names of secrets) belong to a single secret, so a list is only created
+	 * once there is more than one secret. Secrets are rarely removed, so a
+	 * list (rather than a set) keeps the index small.
+	 */
+	private static class Postings {
+		/** The key, so that every secret can share a single copy of a token. */
+		final String token;
+
+		private Entry single = null;
+		private ArrayList<Entry> many = null;
+
+		Postings(String token) {
+			this.token = token;
+		}
+
+		void add(Entry entry) {
+			if (many != null) {
+				many.add(entry);
+			} else if (single == null) {
+				single = entry;
+			} else {
+				many = new ArrayList<Entry>(4);
+				many.add(single);
+				many.add(entry);
+				single = null;
+			}
+		}
+
+		void remove(Entry entry) {
+			if (many != null) {
+				for (int i = many.size() - 1; i >= 0; i--)
+					if (many.get(i) == entry) {
+						/** Order doesn't matter, so move the last secret into the gap. */
+						final Entry last = many.remove(many.size() - 1);
+						if (i < many.size())
+							many.set(i, last);
+						break;
+					}
+			} else if (single == entry) {
+				single = null;
+			}
+		}
+
+		int size() {
+			return (many != null) ? many.size() : (single != null) ? 1 : 0;
+		}
+
+		Collection<Entry> getEntries() {
+			return (many != null) ? many : (single != null) ? Collections.singleton(single) : Collections.<Entry>emptySet();
+		}
+	}
+
+	/** A secret that matches a search, with its score. */
+	private static class Match {
+		final Entry entry;
+		final int score;
+
+		Match(Entry entry, int score) {
+			this.entry = entry;
+			this.score = score;
+		}
+	}
+
+	/** Ranks matches, best first. */
+	private static final Comparator<Match> RANKING = new Comparator<Match>() {
+		public int compare(Match a, Match b) {
+			if (a.score != b.score)
+				return (a.score > b.score) ? -1 : 1;
+			if (a.entry.cost != b.entry.cost)
+				return (a.entry.cost < b.entry.cost) ? -1 : 1;
+			return a.entry.name.compareTo(b.entry.name);
+		}
+	};
+
+	/** The indexed secrets, indexed by name. */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** The secrets containing each token. */
+	private final Map<String, Postings> tokenIndex = new HashMap<String, Postings>();
+
+	/** The secrets with each cost. */
+	private final TreeMap<Integer, Postings> costIndex = new TreeMap<Integer, Postings>();
+
+	/** The secrets owned by each owner. */
+	private final Map<String, Postings> ownerIndex = new HashMap<String, Postings>();
+
+	/** Guards all of the above. */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Counted down once the index has been loaded, or null if it is not being loaded. */
+	private volatile CountDownLatch loading = null;
+
+	/**
+	 * Add a secret to the index, replacing any secret with the same name.
+	 *
+	 * @param name The name of the secret.
+	 * @param description The description of the secret.
+	 * @param cost The cost of the secret.
+	 * @param owner The owner of the secret.
+	 */
+	public void add(String name, String description, int cost, String owner) {
+		awaitLoad();
+		load(name, description, cost, owner);
+	}
+
+	/**
+	 * Start loading the index. Until endLoad is called, searches and 
+	 * modifications wait, and secrets may only be added with load.
+	 */
+	public void beginLoad() {
+		loading = new CountDownLatch(1);
+	}
+
+	/**
+	 * Add a secret to the index while it is being loaded (see beginLoad).
+	 *
+	 * @param name The name of the secret.
+	 * @param description The description of the secret.
+	 * @param cost The cost of the secret.
+	 * @param owner The owner of the secret.
+	 */
+	public void load(String name, String description, int cost, String owner) {
+		final Entry entry = new Entry(name, description, cost, owner);
+
+		lock.writeLock().lock();
+		try {
+			removeEntry(name);
+
+			entries.put(name, entry);
+			for (int i = 0; i < entry.tokens.length; i++)
+				entry.tokens[i] = addToIndex(tokenIndex, entry.tokens[i], entry).token;
+			addToIndex(costIndex, entry.cost, entry);
+			addToIndex(ownerIndex, entry.owner, entry);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a secret from the index.
+	 *
+	 * @param name The name of the secret.
+	 */
+	public void remove(String name) {
+		awaitLoad();
+		lock.writeLock().lock();
+		try {
+			removeEntry(name);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of indexed secrets.
+	 *
+	 * @return The number of secrets.
+	 */
+	public int size() {
+		awaitLoad();
+		lock.readLock().lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Search for secrets.
+	 *
+	 * @param query The words to search for. Every word must be found in the
+	 * name or description of a secret. May be empty.
+	 * @param minCost The minimum cost, or null for no minimum.
+	 * @param maxCost The maximum cost, or null for no maximum.
+	 * @param owner The owner, or null for any owner.
+	 * @param offset The number of (ranked) results to skip.
+	 * @param limit The maximum number of results to return.
+	 * @return The requested page of results.
+	 */
+	public Result search(String query, Integer minCost, Integer maxCost, String owner, int offset, int limit) {
+		final Set<String> queryTokens = tokenise(query);
+		offset = Math.max(0, offset);
+		limit = Math.max(0, limit);
+		awaitLoad();
+
+		lock.readLock().lock();
+		try {
+			/** Find the smallest set of candidates. */
+			Collection<Entry> candidates = entries.values();
+
+			for (String token : queryTokens) {
+				final Postings tokenEntries = tokenIndex.get(token);
+				if (tokenEntries == null)
+					return new Result(0, Collections.<String>emptyList());
+				if (tokenEntries.size() < candidates.size())
+					candidates = tokenEntries.getEntries();
+			}
+
+			if (owner != null) {
+				final Postings ownerEntries = ownerIndex.get(owner);
+				if (ownerEntries == null)
+					return new Result(0, Collections.<String>emptyList());
+				if (ownerEntries.size() < candidates.size())
+					candidates = ownerEntries.getEntries();
+			}
+
+			if (minCost != null || maxCost != null) {
+				final Map<Integer, Postings> costRange;
+				if (minCost != null && maxCost != null)
+					costRange = (minCost > maxCost) ? Collections.<Integer, Postings>emptyMap() : costIndex.subMap(minCost, true, maxCost, true);
+				else if (minCost != null)
+					costRange = costIndex.tailMap(minCost, true);
+				else
+					costRange = costIndex.headMap(maxCost, true);
+
+				/** Only build the set of secrets in the cost range if it is smaller. */
+				int costEntries = 0;
+				for (Iterator<Postings> i = costRange.values().iterator(); i.hasNext() && costEntries < candidates.size(); )
+					costEntries += i.next().size();
+
+				if (costEntries < candidates.size()) {
+					final List<Entry> costCandidates = new ArrayList<Entry>(costEntries);
+					for (Postings postings : costRange.values())
+						costCandidates.addAll(postings.getEntries());
+					candidates = costCandidates;
+				}
+			}
+
+			/**
+			 * Check every candidate against the whole search, keeping only the
+			 * best (offset + limit) matches.
+			 */
+			final int wanted = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+			final PriorityQueue<Match> best = new PriorityQueue<Match>(Math.max(1, Math.min(wanted, candidates.size())), Collections.reverseOrder(RANKING));
+			int total = 0;
+
+			for (Entry entry : candidates) {
+				if (owner != null && !owner.equals(entry.owner))
+					continue;
+				if ((minCost != null && entry.cost < minCost) || (maxCost != null && entry.cost > maxCost))
+					continue;
+
+				int score = 0;
+				for (String token : queryTokens) {
+					final int tokenScore = entry.getScore(token);
+					if (tokenScore == 0) {
+						score = -1;
+						break;
+					}
+					score += tokenScore;
+				}
+				if (score < 0)
+					continue;
+
+				total++;
+				if (wanted == 0)
+					continue;
+
+				final Match match = new Match(entry, score);
+				if (best.size() < wanted) {
+					best.add(match);
+				} else if (RANKING.compare(match, best.peek()) < 0) {
+					best.poll();
+					best.add(match);
+				}
+			}
+
+			/** Rank the best matches, and return the requested page. */
+			final List<Match> ranked = new ArrayList<Match>(best);
+			Collections.sort(ranked, RANKING);
+
+			final List<String> names = new ArrayList<String>(Math.max(0, ranked.size() - offset));
+			for (int i = offset; i < ranked.size(); i++)
+				names.add(ranked.get(i).entry.name);
+
+			return new Result(total, names);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Finish loading the index (see beginLoad). */
+	public void endLoad() {
+		final CountDownLatch latch = loading;
+		loading = null;
+		if (latch != null)
+			latch.countDown();
+	}
+
+	/** Wait until the index has been loaded. */
+	private void awaitLoad() {
+		final CountDownLatch latch = loading;
+		if (latch == null)
+			return;
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Split some text into lower case tokens.
+	 *
+	 * @param text The text to split.
+	 * @return The (unique) tokens, in the order in which they appear.
+	 */
+	private static Set<String> tokenise(String text) {
+		final Set<String> tokens = new LinkedHashSet<String>();
+		if (text == null)
+			return tokens;
+
+		/** Tokens are runs of letters and digits. */
+		final int length = text.length();
+		int start = -1;
+		for (int i = 0; i <= length; i++) {
+			if (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+				if (start < 0)
+					start = i;
+			} else if (start >= 0) {
+				tokens.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Remove a secret from the index. Must be called while holding the write
+	 * lock.
+	 *
+	 * @param name The name of the secret.
+	 */
+	private void removeEntry(String name) {
+		final Entry entry = entries.remove(name);
+		if (entry == null)
+			return;
+
+		for (String token : entry.tokens)
+			removeFromIndex(tokenIndex, token, entry);
+		removeFromIndex(costIndex, entry.cost, entry);
+		removeFromIndex(ownerIndex, entry.owner, entry);
+	}
+
+	/**
+	 * Add a secret to one of the indexes.
+	 *
+	 * @param index The index.
+	 * @param key The key under which to add the secret.
+	 * @param entry The secret.
+	 * @return The secrets under the key.
+	 */
+	private static <K> Postings addToIndex(Map<K, Postings> index, K key, Entry entry) {
+		Postings postings = index.get(key);
+		if (postings == null) {
+			postings = new Postings((key instanceof String) ? (String) key : null);
+			index.put(key, postings);
+		}
+		postings.add(entry);
+		return postings;
+	}
+
+	/**
+	 * Remove a secret from one of the indexes.
+	 *
+	 * @param index The index.
+	 * @param key The key under which the secret was added.
+	 * @param entry The secret.
+	 */
+	private static <K> void removeFromIndex(Map<K, Postings> index, K key, Entry entry) {
+		final Postings postings = index.get(key);
+		if (postings == null)
+			return;
+
+		postings.remove(entry);
+		if (postings.size() == 0)
+			index.remove(key);
+	}
+
+	/** A page of search results. */
+	public static class Result {
+		private final int total;
+		private final List<String> names;
+
+		private Result(int total, List<String> names) {
+			this.total = total;
+			this.names = Collections.unmodifiableList(names);
+		}
+
+		/**
+		 * Get the total number of matching secrets, of which this result is a
+		 * single page.
+		 *
+		 * @return The number of matching secrets.
+		 */
+		public int getTotal() {
+			return total;
+		}
+
+		/**
+		 * Get the names of the secrets on this page of results, best first.
+		 *
+		 * @return The names of the secrets.
+		 */
+		public List<String> getNames() {
+			return names;
+		}
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     SecretIndex.java
+ *****************************************************************************/
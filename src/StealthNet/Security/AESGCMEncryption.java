@@ -0,0 +1,199 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet.Security
+ * FILENAME:        AESGCMEncryption.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Implementation of AES-GCM authenticated encryption for
+ * 					encrypting and decrypting StealthNet communications.
+ *
+ *****************************************************************************/
+
+package StealthNet.Security;
+
+/* Import Libraries **********************************************************/
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/* StealthNet.Security.AESGCMEncryption Class Definition *********************/
+
+/**
+ * A class used to encrypt and decrypt messages using AES in Galois/Counter
+ * Mode (GCM). GCM is an authenticated encryption mode, so a single pass of the
+ * cipher provides both confidentiality and integrity, and a separate MAC is
+ * not required.
+ *
+ * Every message is encrypted with a unique nonce (initialisation vector). The
+ * nonce consists of a direction identifier (4 bytes), so that the two peers
+ * never use the same nonce even though they share a key, followed by a
+ * message counter (8 bytes). The nonce is sent in the clear at the start of
+ * the ciphertext, which is followed by the encrypted message and the
+ * authentication tag.
+ *
+ * Unlike the other Encryption classes, the ciphertext is NOT encoded in base
+ * 64. The ciphertext is simply raw bytes.
+ *
+ * @author Joshua Spence
+ */
+public class AESGCMEncryption extends Encryption {
+	/** Constants. */
+	public static final String KEY_ALGORITHM = AESEncryption.KEY_ALGORITHM;
+	public static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+	public static final int NONCE_BYTES = 12;
+	public static final int TAG_BITS = 128;
+	private static final int DIRECTION_BYTES = 4;
+
+	/** Direction identifiers for the nonce. */
+	private final int txDirection;
+	private final int rxDirection;
+
+	/**
+	 * The counter for the next encrypted message. Counter zero is reserved
+	 * for initialising the encryption cipher, and is never used to encrypt a
+	 * message.
+	 */
+	private long txCounter = 1;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param key The SecretKey to be used for both encryption and decryption.
+	 * @param initiator True if this peer initiated the session, false if this
+	 * peer accepted the session. The two peers must use different values.
+	 *
+	 * @throws NoSuchPaddingException
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws InvalidKeyException
+	 */
+	public AESGCMEncryption(final SecretKey key, final boolean initiator) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+		super(CIPHER_ALGORITHM);
+
+		txDirection = initiator ? 1 : 2;
+		rxDirection = initiator ? 2 : 1;
+
+		/** Initialise encryption cipher. */
+		super.setEncryption(key, new GCMParameterSpec(TAG_BITS, createNonce(txDirection, 0)));
+
+		/** Initialise decryption cipher. */
+		super.setDecryption(key, new GCMParameterSpec(TAG_BITS, createNonce(rxDirection, 0)));
+	}
+
+	/**
+	 * Create a nonce from a direction identifier and a message counter.
+	 *
+	 * @param direction The direction identifier.
+	 * @param counter The message counter.
+	 * @return The nonce.
+	 */
+	private static byte[] createNonce(int direction, long counter) {
+		final byte[] nonce = new byte[NONCE_BYTES];
+
+		for (int i = DIRECTION_BYTES - 1; i >= 0; i--) {
+			nonce[i] = (byte) direction;
+			direction >>>= Byte.SIZE;
+		}
+		for (int i = NONCE_BYTES - 1; i >= DIRECTION_BYTES; i--) {
+			nonce[i] = (byte) counter;
+			counter >>>= Byte.SIZE;
+		}
+
+		return nonce;
+	}
+
+	/**
+	 * Encrypts part of a message using the encryption key, with a fresh nonce.
+	 *
+	 * @param cleartext The array containing the message to encrypt.
+	 * @param offset The offset of the message within the array.
+	 * @param length The length of the message.
+	 * @param binary Ignored. The result is never encoded in base 64.
+	 * @return The nonce, followed by the encrypted message and authentication
+	 * tag. NOT encoded in base 64.
+	 *
+	 * @throws BadPaddingException
+	 * @throws IllegalBlockSizeException
+	 * @throws IllegalStateException
+	 */
+	@Override
+	public synchronized byte[] encrypt(final byte[] cleartext, final int offset, final int length, final boolean binary) throws IllegalBlockSizeException, BadPaddingException, IllegalStateException {
+		if (encryptionCipher == null)
+			throw new IllegalStateException("Cannot perform encryption without a decryption cipher.");
+		if (txCounter == Long.MAX_VALUE)
+			throw new IllegalStateException("Nonces have been exhausted.");
+
+		final byte[] nonce = createNonce(txDirection, txCounter++);
+		try {
+			encryptionCipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_BITS, nonce));
+
+			final byte[] ciphertext = new byte[NONCE_BYTES + encryptionCipher.getOutputSize(length)];
+			System.arraycopy(nonce, 0, ciphertext, 0, NONCE_BYTES);
+			final int written = encryptionCipher.doFinal(cleartext, offset, length, ciphertext, NONCE_BYTES);
+
+			if (NONCE_BYTES + written == ciphertext.length)
+				return ciphertext;
+
+			final byte[] trimmed = new byte[NONCE_BYTES + written];
+			System.arraycopy(ciphertext, 0, trimmed, 0, trimmed.length);
+			return trimmed;
+		} catch (IllegalBlockSizeException e) {
+			throw e;
+		} catch (BadPaddingException e) {
+			throw e;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to initialise encryption cipher.", e);
+		}
+	}
+
+	/**
+	 * Decrypts a message using the decryption key. Performs the opposite of the
+	 * encrypt(byte[], int, int, boolean) function. Decryption fails if the 
+	 * message has been modified in any way.
+	 *
+	 * @param ciphertext The nonce, followed by the encrypted message and
+	 * authentication tag. NOT encoded in base 64.
+	 * @param binary Ignored. The message is never encoded in base 64.
+	 * @return The cleartext message.
+	 *
+	 * @throws BadPaddingException If the authentication tag is invalid.
+	 * @throws IllegalBlockSizeException
+	 * @throws IllegalArgumentException If the nonce is invalid.
+	 */
+	@Override
+	public byte[] decrypt(final byte[] ciphertext, final boolean binary) throws IllegalBlockSizeException, BadPaddingException, IllegalArgumentException {
+		if (decryptionCipher == null)
+			throw new IllegalStateException("Cannot perform decryption without a decryption cipher.");
+		if (ciphertext.length < NONCE_BYTES + TAG_BITS / Byte.SIZE)
+			throw new IllegalArgumentException("Ciphertext is too short.");
+
+		/** Only accept nonces from the peer's direction. */
+		int direction = 0;
+		for (int i = 0; i < DIRECTION_BYTES; i++)
+			direction = (direction << Byte.SIZE) | (ciphertext[i] & 0xFF);
+		if (direction != rxDirection)
+			throw new IllegalArgumentException("Invalid nonce direction: " + direction + ".");
+
+		try {
+			decryptionCipher.init(Cipher.DECRYPT_MODE, decryptionKey, new GCMParameterSpec(TAG_BITS, ciphertext, 0, NONCE_BYTES));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException("Unable to initialise decryption cipher.", e);
+		}
+
+		return decryptionCipher.doFinal(ciphertext, NONCE_BYTES, ciphertext.length - NONCE_BYTES);
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     AESGCMEncryption.java
+ *****************************************************************************/
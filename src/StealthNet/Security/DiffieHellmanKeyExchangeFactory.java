@@ -0,0 +1,105 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet.Security
+ * FILENAME:        DiffieHellmanKeyExchangeFactory.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Creates Diffie-Hellman key exchange providers using a fixed
+ * 					group.
+ *
+ *****************************************************************************/
+
+package StealthNet.Security;
+
+/* Import Libraries **********************************************************/
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/* StealthNet.Security.DiffieHellmanKeyExchangeFactory Class Definition ******/
+
+/**
+ * A factory for DiffieHellmanKeyExchange providers. Every provider uses the 
+ * same group parameters, so that the JCE never needs to find (or generate) 
+ * group parameters when a session is established. Only the private key (and
+ * hence the public value) is generated for each provider.
+ * 
+ * Because only the public value is transmitted to the peer, both peers must 
+ * use the same group. For 1024-bit keys, the well-known 1024-bit MODP group 
+ * from RFC 2409 (the "Second Oakley Group") is used, which is the same group 
+ * that the JCE uses by default. For any other key length, the group that the 
+ * JCE uses by default is found once and then cached.
+ *
+ * @author Joshua Spence
+ */
+public class DiffieHellmanKeyExchangeFactory implements KeyExchangeFactory {
+	/** The 1024-bit MODP group from RFC 2409. */
+	public static final int RFC2409_GROUP2_BITS = 1024;
+	public static final BigInteger RFC2409_GROUP2_PRIME = new BigInteger(
+		"FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD1" +
+		"29024E088A67CC74020BBEA63B139B22514A08798E3404DD" +
+		"EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245" +
+		"E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED" +
+		"EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE65381" +
+		"FFFFFFFFFFFFFFFF", 16);
+	public static final BigInteger RFC2409_GROUP2_GENERATOR = BigInteger.valueOf(2);
+	
+	/** Group parameters. */
+	private final BigInteger prime;
+	private final BigInteger generator;
+	
+	/** Used to generate private keys. */
+	private final SecureRandom random;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param keyLength Number of bits for the key.
+	 * @param random A SecureRandom number.
+	 * 
+	 * @throws GeneralSecurityException
+	 */
+	public DiffieHellmanKeyExchangeFactory(int keyLength, SecureRandom random) throws GeneralSecurityException {
+		if (keyLength == RFC2409_GROUP2_BITS) {
+			this.prime = RFC2409_GROUP2_PRIME;
+			this.generator = RFC2409_GROUP2_GENERATOR;
+		} else {
+			/** Find the default group for this key length. */
+			final DiffieHellmanKeyExchange dh = new DiffieHellmanKeyExchange(keyLength, random);
+			this.prime = dh.getPrime();
+			this.generator = dh.getGenerator();
+		}
+		
+		this.random = random;
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param prime The Diffie-Hellman large prime 'p'.
+	 * @param generator The Diffie-Hellman generator 'g'.
+	 * @param random A SecureRandom number.
+	 */
+	public DiffieHellmanKeyExchangeFactory(BigInteger prime, BigInteger generator, SecureRandom random) {
+		this.prime = prime;
+		this.generator = generator;
+		this.random = random;
+	}
+	
+	/**
+	 * Create a new DiffieHellmanKeyExchange provider, with a new private key.
+	 * 
+	 * @return A new DiffieHellmanKeyExchange provider.
+	 * 
+	 * @throws GeneralSecurityException
+	 */
+	public KeyExchange createKeyExchange() throws GeneralSecurityException {
+		return new DiffieHellmanKeyExchange(prime, generator, random);
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     DiffieHellmanKeyExchangeFactory.java
+ *****************************************************************************/
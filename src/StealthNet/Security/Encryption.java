@@ -158,7 +158,48 @@ public abstract class Encryption {
 		if (encryptionCipher == null)
 			throw new IllegalStateException("Cannot perform encryption without a decryption cipher.");
 
-		final byte[] encryptedValue = encryptionCipher.doFinal(cleartext);
+		return encrypt(cleartext, 0, cleartext.length);
+	}
+
+	/**
+	 * Encrypts part of a message using the encryption key. This allows a
+	 * message to be encrypted directly from a (reusable) buffer without first
+	 * being copied into an array of its own.
+	 * 
+	 * @param cleartext The array containing the message to encrypt.
+	 * @param offset The offset of the message within the array.
+	 * @param length The length of the message.
+	 * @return The encrypted message, encoded in base 64.
+	 * 
+	 * @throws BadPaddingException
+	 * @throws IllegalBlockSizeException
+	 */
+	public byte[] encrypt(final byte[] cleartext, final int offset, final int length) throws IllegalBlockSizeException, BadPaddingException {
+		return encrypt(cleartext, offset, length, false);
+	}
+
+	/**
+	 * Encrypts part of a message using the encryption key. The ciphertext is
+	 * only encoded in base 64 if it is to be carried as text.
+	 * 
+	 * @param cleartext The array containing the message to encrypt.
+	 * @param offset The offset of the message within the array.
+	 * @param length The length of the message.
+	 * @param binary True to return the raw ciphertext (for binary framing), 
+	 * false to encode it in base 64.
+	 * @return The encrypted message.
+	 * 
+	 * @throws BadPaddingException
+	 * @throws IllegalBlockSizeException
+	 */
+	public byte[] encrypt(final byte[] cleartext, final int offset, final int length, final boolean binary) throws IllegalBlockSizeException, BadPaddingException {
+		if (encryptionCipher == null)
+			throw new IllegalStateException("Cannot perform encryption without a decryption cipher.");
+
+		final byte[] encryptedValue = encryptionCipher.doFinal(cleartext, offset, length);
+		if (binary)
+			return encryptedValue;
+		
 		final byte[] encodedValue = Base64.encodeBase64(encryptedValue);
 		return encodedValue;
 	}
@@ -194,10 +235,26 @@ public abstract class Encryption {
 	 * @throws IllegalBlockSizeException
 	 */
 	public byte[] decrypt(final byte[] ciphertext) throws IllegalBlockSizeException, BadPaddingException {
+		return decrypt(ciphertext, false);
+	}
+
+	/**
+	 * Decrypts a message using the decryption key. Performs the opposite of the
+	 * encrypt(byte[], int, int, boolean) function.
+	 * 
+	 * @param ciphertext The message to be decrypted.
+	 * @param binary True if the message is the raw ciphertext (for binary 
+	 * framing), false if it is encoded in base 64.
+	 * @return The cleartext message.
+	 * 
+	 * @throws BadPaddingException
+	 * @throws IllegalBlockSizeException
+	 */
+	public byte[] decrypt(final byte[] ciphertext, final boolean binary) throws IllegalBlockSizeException, BadPaddingException {
 		if (decryptionCipher == null)
 			throw new IllegalStateException("Cannot perform decryption without a decryption cipher.");
 
-		final byte[] decodedValue = Base64.decodeBase64(ciphertext);
+		final byte[] decodedValue = binary ? ciphertext : Base64.decodeBase64(ciphertext);
 		final byte[] decryptedValue = decryptionCipher.doFinal(decodedValue);
 		return decryptedValue;
 	}
@@ -0,0 +1,41 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet.Security
+ * FILENAME:        KeyExchangeFactory.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     An interface for classes that create the ephemeral key 
+ * 					exchange providers used by StealthNet sessions.
+ *
+ *****************************************************************************/
+
+package StealthNet.Security;
+
+/* Import Libraries **********************************************************/
+
+import java.security.GeneralSecurityException;
+
+/* StealthNet.Security.KeyExchangeFactory Interface Definition ***************/
+
+/**
+ * This is an interface for classes that create KeyExchange providers. Every 
+ * session uses a new KeyExchange provider (with a new private key), so that 
+ * the shared secret is different for every session.
+ *
+ * @author Joshua Spence
+ */
+public interface KeyExchangeFactory {
+	/**
+	 * Create a new KeyExchange provider, with a new public/private key pair.
+	 * 
+	 * @return A new KeyExchange provider.
+	 * 
+	 * @throws GeneralSecurityException
+	 */
+	public KeyExchange createKeyExchange() throws GeneralSecurityException;
+}
+
+/******************************************************************************
+ * END OF FILE:     KeyExchangeFactory.java
+ *****************************************************************************/
@@ -0,0 +1,144 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet.Security
+ * FILENAME:        PooledKeyExchangeFactory.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Creates key exchange providers in advance, using a 
+ * 					background thread.
+ *
+ *****************************************************************************/
+
+package StealthNet.Security;
+
+/* Import Libraries **********************************************************/
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* StealthNet.Security.PooledKeyExchangeFactory Class Definition *************/
+
+/**
+ * A factory that creates KeyExchange providers in advance, so that generating
+ * a key pair is not part of establishing a session. A background thread uses 
+ * another factory to fill a bounded pool of providers, and sessions simply 
+ * take a provider from the pool. If the pool is empty (for example, because 
+ * many sessions were established at once), then a provider is created 
+ * immediately instead.
+ * 
+ * Every provider is only ever given out once, so each session still uses its
+ * own private key.
+ * 
+ * This class is thread-safe.
+ *
+ * @author Joshua Spence
+ */
+public class PooledKeyExchangeFactory implements KeyExchangeFactory {
+	/** The default number of providers to create in advance. */
+	public static final int DEFAULT_POOL_SIZE = 8;
+	
+	/** The factory that actually creates the providers. */
+	private final KeyExchangeFactory factory;
+	
+	/** The providers that have been created in advance. */
+	private final BlockingQueue<KeyExchange> pool;
+	
+	/** Statistics. */
+	private final AtomicLong poolHits = new AtomicLong(0);
+	private final AtomicLong poolMisses = new AtomicLong(0);
+	
+	/**
+	 * Constructor using the default pool size.
+	 * 
+	 * @param factory The factory that creates the providers.
+	 */
+	public PooledKeyExchangeFactory(KeyExchangeFactory factory) {
+		this(factory, DEFAULT_POOL_SIZE);
+	}
+	
+	/**
+	 * Constructor. Starts the background thread that fills the pool.
+	 * 
+	 * @param factory The factory that creates the providers.
+	 * @param poolSize The maximum number of providers to create in advance.
+	 */
+	public PooledKeyExchangeFactory(KeyExchangeFactory factory, int poolSize) {
+		this.factory = factory;
+		this.pool = new ArrayBlockingQueue<KeyExchange>(poolSize);
+		
+		final Thread generator = new GeneratorThread();
+		generator.setDaemon(true);
+		generator.start();
+	}
+	
+	/**
+	 * Take a KeyExchange provider from the pool, or create a new one if the 
+	 * pool is empty.
+	 * 
+	 * @return A new KeyExchange provider.
+	 * 
+	 * @throws GeneralSecurityException
+	 */
+	public KeyExchange createKeyExchange() throws GeneralSecurityException {
+		final KeyExchange ke = pool.poll();
+		if (ke != null) {
+			poolHits.incrementAndGet();
+			return ke;
+		}
+		
+		poolMisses.incrementAndGet();
+		return factory.createKeyExchange();
+	}
+	
+	/**
+	 * Get the number of providers that were taken from the pool.
+	 * 
+	 * @return The number of pool hits.
+	 */
+	public long getPoolHits() {
+		return poolHits.get();
+	}
+	
+	/**
+	 * Get the number of providers that had to be created immediately, because
+	 * the pool was empty.
+	 * 
+	 * @return The number of pool misses.
+	 */
+	public long getPoolMisses() {
+		return poolMisses.get();
+	}
+	
+	/**
+	 * A thread to fill the pool. The thread blocks whenever the pool is full.
+	 * If a provider cannot be created, then the thread stops (and every 
+	 * provider will be created immediately, which will report the error to the
+	 * caller).
+	 */
+	private class GeneratorThread extends Thread {
+		GeneratorThread() {
+			super("StealthNet.PooledKeyExchangeFactory");
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true)
+					pool.put(factory.createKeyExchange());
+			} catch (GeneralSecurityException e) {
+				return;
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				return;
+			}
+		}
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     PooledKeyExchangeFactory.java
+ *****************************************************************************/
@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -32,6 +33,7 @@ import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPrivateKeySpec;
 import java.security.spec.RSAPublicKeySpec;
@@ -39,8 +41,11 @@ import java.util.LinkedList;
 import java.util.Queue;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.management.InvalidAttributeValueException;
 
 import org.apache.commons.codec.binary.Base64;
@@ -54,6 +59,13 @@ import StealthNet.EncryptedFile;
  * using the peer's public key. Decryption will be performed using our private
  * key. Also provides the option to save the public key to an unencrypted file
  * and the private file to a password-protected file
+ * 
+ * Messages that fit in a single RSA block are encrypted directly with RSA.
+ * Longer messages use hybrid encryption: a random (single use) AES key is 
+ * encrypted with RSA, and the message itself is encrypted with AES-GCM under
+ * that key. This requires exactly one RSA operation regardless of the length
+ * of the message. The RSA block of a hybrid message starts with a magic 
+ * value, so decryption can tell the two forms apart.
  *
  * @author Joshua Spence
  */
@@ -64,6 +76,14 @@ public class RSAAsymmetricEncryption extends AsymmetricEncryption {
 	private static final int MAX_CLEARTEXT = NUM_BITS / Byte.SIZE - 11;
 	private static final int MAX_CIPHERTEXT = 256;
 
+	/** Messages longer than this are encrypted with hybrid encryption. */
+	public static final int HYBRID_THRESHOLD = MAX_CLEARTEXT;
+	private static final byte[] HYBRID_MAGIC = { 'S', 'N', 'H', '1' };
+	private static final int HYBRID_KEY_BYTES = 16;
+
+	/** Used to generate hybrid encryption keys. */
+	private final SecureRandom random = new SecureRandom();
+
 	/**
 	 * Constructor to use the supplied public-private key pair.
 	 * 
@@ -145,6 +165,10 @@ public class RSAAsymmetricEncryption extends AsymmetricEncryption {
 		if (encryptionCipher == null)
 			throw new IllegalStateException("Cannot perform encryption without a peer public key.");
 
+		/** Use a single RSA operation for long messages. */
+		if (cleartext.length > HYBRID_THRESHOLD)
+			return Base64.encodeBase64(encryptHybrid(cleartext));
+
 		/**
 		 * TODO: Tidy the following code. All that it does it break the
 		 * cleartext up into 'chunks' of size MAX_CLEARTEXT, encrypt each chunk
@@ -193,6 +217,67 @@ public class RSAAsymmetricEncryption extends AsymmetricEncryption {
 		return encodedValue;
 	}
 
+	/**
+	 * Encrypts part of a message using the peer public key.
+	 * 
+	 * @param cleartext The array containing the message to be encrypted.
+	 * @param offset The offset of the message within the array.
+	 * @param length The length of the message.
+	 * @return The ciphertext message, encoded in base 64.
+	 * 
+	 * @throws BadPaddingException
+	 * @throws IllegalBlockSizeException
+	 * @throws IllegalStateException
+	 */
+	@Override
+	public byte[] encrypt(final byte[] cleartext, final int offset, final int length) throws IllegalBlockSizeException, BadPaddingException, IllegalStateException {
+		if (offset == 0 && length == cleartext.length)
+			return encrypt(cleartext);
+
+		final byte[] message = new byte[length];
+		System.arraycopy(cleartext, offset, message, 0, length);
+		return encrypt(message);
+	}
+
+	/**
+	 * Encrypts part of a message using the peer public key. Asymmetric 
+	 * encryption is only used before framing is negotiated, so the ciphertext
+	 * is always produced in base 64, and only decoded if the raw ciphertext is
+	 * wanted.
+	 * 
+	 * @param cleartext The array containing the message to be encrypted.
+	 * @param offset The offset of the message within the array.
+	 * @param length The length of the message.
+	 * @param binary True to return the raw ciphertext, false to encode it in
+	 * base 64.
+	 * @return The ciphertext message.
+	 * 
+	 * @throws BadPaddingException
+	 * @throws IllegalBlockSizeException
+	 * @throws IllegalStateException
+	 */
+	@Override
+	public byte[] encrypt(final byte[] cleartext, final int offset, final int length, final boolean binary) throws IllegalBlockSizeException, BadPaddingException, IllegalStateException {
+		final byte[] encodedValue = encrypt(cleartext, offset, length);
+		return binary ? Base64.decodeBase64(encodedValue) : encodedValue;
+	}
+
+	/**
+	 * Decrypts a message using our private key.
+	 * 
+	 * @param ciphertext The message to be decrypted.
+	 * @param binary True if the message is the raw ciphertext, false if it is
+	 * encoded in base 64.
+	 * @return The cleartext message.
+	 * 
+	 * @throws BadPaddingException
+	 * @throws IllegalBlockSizeException
+	 */
+	@Override
+	public byte[] decrypt(final byte[] ciphertext, final boolean binary) throws IllegalBlockSizeException, BadPaddingException {
+		return decrypt(binary ? Base64.encodeBase64(ciphertext) : ciphertext);
+	}
+
 	/**
 	 * Decrypts a message using the decryption key. Performs the opposite of the
 	 * encrypt(String) function.
@@ -258,6 +343,8 @@ public class RSAAsymmetricEncryption extends AsymmetricEncryption {
 
 			/** Decrypt this chunk and add it to the queue. */
 			final byte[] decryptedChunk = decryptionCipher.doFinal(chunk);
+			if (i == 0 && chunkCount > 1 && isHybridHeader(decryptedChunk))
+				return decryptHybrid(decryptedChunk, decodedValue);
 			chunks.add(decryptedChunk);
 			totalLength += decryptedChunk.length;
 		}
@@ -274,6 +361,89 @@ public class RSAAsymmetricEncryption extends AsymmetricEncryption {
 		return combinedChunks;
 	}
 
+	/**
+	 * Encrypts a message using hybrid encryption. A random AES key is encrypted
+	 * using the peer public key, and the message is encrypted using the AES
+	 * key. As the AES key is only ever used once, a fixed nonce is used.
+	 * 
+	 * @param cleartext The message to be encrypted.
+	 * @return The RSA-encrypted AES key, followed by the AES-encrypted message
+	 * and authentication tag. NOT encoded in base 64.
+	 * 
+	 * @throws BadPaddingException
+	 * @throws IllegalBlockSizeException
+	 * @throws IllegalStateException
+	 */
+	private byte[] encryptHybrid(final byte[] cleartext) throws IllegalBlockSizeException, BadPaddingException, IllegalStateException {
+		/** Generate a random key and encrypt it with RSA. */
+		final byte[] header = new byte[HYBRID_MAGIC.length + HYBRID_KEY_BYTES];
+		final byte[] key = new byte[HYBRID_KEY_BYTES];
+		random.nextBytes(key);
+		System.arraycopy(HYBRID_MAGIC, 0, header, 0, HYBRID_MAGIC.length);
+		System.arraycopy(key, 0, header, HYBRID_MAGIC.length, key.length);
+		final byte[] wrappedKey = encryptionCipher.doFinal(header);
+
+		/** Encrypt the message with AES. */
+		try {
+			final Cipher cipher = Cipher.getInstance(AESGCMEncryption.CIPHER_ALGORITHM);
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, AESGCMEncryption.KEY_ALGORITHM), new GCMParameterSpec(AESGCMEncryption.TAG_BITS, new byte[AESGCMEncryption.NONCE_BYTES]));
+
+			final byte[] ciphertext = new byte[wrappedKey.length + cipher.getOutputSize(cleartext.length)];
+			System.arraycopy(wrappedKey, 0, ciphertext, 0, wrappedKey.length);
+			cipher.doFinal(cleartext, 0, cleartext.length, ciphertext, wrappedKey.length);
+			return ciphertext;
+		} catch (final IllegalBlockSizeException e) {
+			throw e;
+		} catch (final BadPaddingException e) {
+			throw e;
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to initialise hybrid encryption cipher.", e);
+		}
+	}
+
+	/**
+	 * Check whether a decrypted RSA block is the header of a hybrid encrypted
+	 * message.
+	 * 
+	 * @param block The decrypted RSA block.
+	 * @return True if the block contains a hybrid encryption key.
+	 */
+	private static boolean isHybridHeader(final byte[] block) {
+		if (block.length != HYBRID_MAGIC.length + HYBRID_KEY_BYTES)
+			return false;
+
+		for (int i = 0; i < HYBRID_MAGIC.length; i++)
+			if (block[i] != HYBRID_MAGIC[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Decrypts a hybrid encrypted message. Performs the opposite of the
+	 * encryptHybrid(byte[]) function.
+	 * 
+	 * @param header The decrypted RSA block, containing the AES key.
+	 * @param ciphertext The entire hybrid encrypted message. NOT encoded in
+	 * base 64.
+	 * @return The cleartext message.
+	 * 
+	 * @throws BadPaddingException If the authentication tag is invalid.
+	 * @throws IllegalBlockSizeException
+	 */
+	private static byte[] decryptHybrid(final byte[] header, final byte[] ciphertext) throws IllegalBlockSizeException, BadPaddingException {
+		try {
+			final Cipher cipher = Cipher.getInstance(AESGCMEncryption.CIPHER_ALGORITHM);
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(header, HYBRID_MAGIC.length, HYBRID_KEY_BYTES, AESGCMEncryption.KEY_ALGORITHM), new GCMParameterSpec(AESGCMEncryption.TAG_BITS, new byte[AESGCMEncryption.NONCE_BYTES]));
+			return cipher.doFinal(ciphertext, MAX_CIPHERTEXT, ciphertext.length - MAX_CIPHERTEXT);
+		} catch (final IllegalBlockSizeException e) {
+			throw e;
+		} catch (final BadPaddingException e) {
+			throw e;
+		} catch (final GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to initialise hybrid decryption cipher.", e);
+		}
+	}
+
 	/**
 	 * Generate a public-private key pair.
 	 * 
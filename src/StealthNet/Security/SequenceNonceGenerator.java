@@ -0,0 +1,194 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet.Security
+ * FILENAME:        SequenceNonceGenerator.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Implementation of a sequence number nonce generator with a
+ * 					sliding replay window.
+ *
+ *****************************************************************************/
+
+package StealthNet.Security;
+
+/* Import Libraries **********************************************************/
+
+import java.security.SecureRandom;
+
+/* StealthNet.Security.SequenceNonceGenerator Class Definition ***************/
+
+/**
+ * A nonce generator that uses monotonically increasing sequence numbers, with
+ * a sliding window to detect replays (in the same way as IPsec and DTLS). The
+ * seed is the (random) first sequence number, so that the two peers agree on
+ * where the sequence starts.
+ *
+ * A peer uses a single instance for the transmission of packets (which it uses
+ * to generate nonces) and a single instance for the reception of packets (which
+ * it uses to verify allowable nonces).
+ *
+ * The receiving instance remembers the highest sequence number received, and a
+ * bitmap of which of the WINDOW_SIZE sequence numbers below it have been
+ * received. A sequence number is rejected if it has already been received, or
+ * if it is too old to fall within the window. The window allows for packets
+ * that are sent by several threads and so may be transmitted slightly out of
+ * order. Memory use is constant, and no allocation is performed when a nonce
+ * is checked.
+ *
+ * @author Joshua Spence
+ */
+public class SequenceNonceGenerator implements NonceGenerator {
+	/** The number of bytes in a nonce (and in the seed). */
+	public static final int NONCE_BYTES = 8;
+
+	/** The number of sequence numbers tracked by the replay window. */
+	public static final int WINDOW_SIZE = Long.SIZE;
+
+	/** The first sequence number. */
+	private final long initialSequence;
+
+	/** The next sequence number to transmit. */
+	private long nextSequence;
+
+	/** The highest sequence number that has been received. */
+	private long highestSequence;
+
+	/**
+	 * Bitmap of received sequence numbers. Bit i is set if the sequence number
+	 * (highestSequence - i) has been received.
+	 */
+	private long window = 0;
+
+	/** Constructor. */
+	public SequenceNonceGenerator() {
+		/** Use a random starting point, leaving room for the sequence to grow. */
+		this((new SecureRandom()).nextLong() >>> 2);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param s Seed (that is, the first sequence number) received from the
+	 * peer.
+	 *
+	 * @throws IllegalArgumentException
+	 */
+	public SequenceNonceGenerator(byte[] s) throws IllegalArgumentException {
+		this(toSequence(s));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param initial The first sequence number.
+	 *
+	 * @throws IllegalArgumentException
+	 */
+	private SequenceNonceGenerator(long initial) throws IllegalArgumentException {
+		if (initial < 0)
+			throw new IllegalArgumentException("Initial sequence number must not be negative.");
+
+		this.initialSequence = initial;
+		this.nextSequence = initial;
+		this.highestSequence = initial - 1;
+	}
+
+	/**
+	 * Get the next sequence number.
+	 *
+	 * @return The next sequence number (represented by a byte array).
+	 *
+	 * @throws IllegalStateException If the sequence has been exhausted.
+	 */
+	public synchronized byte[] getNext() {
+		if (nextSequence == Long.MAX_VALUE)
+			throw new IllegalStateException("Sequence numbers have been exhausted.");
+
+		return toBytes(nextSequence++);
+	}
+
+	/**
+	 * Check if a given nonce is allowed. A nonce is allowed if it is a valid
+	 * sequence number that has not been received before and that is not too old
+	 * to fall within the replay window. An allowed nonce is consumed.
+	 *
+	 * @param nonce The nonce that was received.
+	 * @return True if the received nonce has not been previously consumed.
+	 * False otherwise
+	 */
+	public synchronized boolean isAllowed(byte[] nonce) {
+		if (nonce == null || nonce.length != NONCE_BYTES)
+			return false;
+
+		final long sequence = toSequence(nonce);
+		if (sequence < initialSequence)
+			return false;
+
+		if (sequence > highestSequence) {
+			/** Slide the window forward. */
+			final long shift = sequence - highestSequence;
+			window = (shift >= WINDOW_SIZE) ? 1 : ((window << shift) | 1);
+			highestSequence = sequence;
+			return true;
+		}
+
+		final long offset = highestSequence - sequence;
+		if (offset >= WINDOW_SIZE)
+			return false;
+
+		final long bit = 1L << offset;
+		if ((window & bit) != 0)
+			return false;
+
+		/** Consume the nonce. */
+		window |= bit;
+		return true;
+	}
+
+	/**
+	 * Gets the seed (that is, the first sequence number).
+	 *
+	 * @return The first sequence number (represented by a byte array).
+	 */
+	public byte[] getSeed() {
+		return toBytes(initialSequence);
+	}
+
+	/**
+	 * Convert a sequence number to its byte array representation.
+	 *
+	 * @param sequence The sequence number.
+	 * @return The sequence number as a big-endian byte array.
+	 */
+	private static byte[] toBytes(long sequence) {
+		final byte[] bytes = new byte[NONCE_BYTES];
+		for (int i = NONCE_BYTES - 1; i >= 0; i--) {
+			bytes[i] = (byte) sequence;
+			sequence >>>= Byte.SIZE;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Convert a byte array to a sequence number.
+	 *
+	 * @param bytes The big-endian byte array.
+	 * @return The sequence number.
+	 *
+	 * @throws IllegalArgumentException
+	 */
+	private static long toSequence(byte[] bytes) throws IllegalArgumentException {
+		if (bytes == null || bytes.length != NONCE_BYTES)
+			throw new IllegalArgumentException("Sequence number must be " + NONCE_BYTES + " bytes.");
+
+		long sequence = 0;
+		for (int i = 0; i < NONCE_BYTES; i++)
+			sequence = (sequence << Byte.SIZE) | (bytes[i] & 0xFF);
+		return sequence;
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     SequenceNonceGenerator.java
+ *****************************************************************************/
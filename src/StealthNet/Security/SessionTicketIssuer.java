@@ -0,0 +1,155 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet.Security
+ * FILENAME:        SessionTicketIssuer.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Issues and redeems encrypted, time-limited session
+ * 					resumption tickets.
+ *
+ *****************************************************************************/
+
+package StealthNet.Security;
+
+/* Import Libraries **********************************************************/
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/* StealthNet.Security.SessionTicketIssuer Class Definition ******************/
+
+/**
+ * A class to issue and redeem session resumption tickets. A ticket contains a
+ * resumption secret and an expiry time, encrypted and authenticated (with
+ * AES-GCM) under a key that is known only to the issuer. The ticket itself is
+ * given to the peer, so the issuer does not need to store any per-session
+ * state. A peer that presents a valid ticket (and that knows the resumption
+ * secret that it contains) can then resume a session without performing a
+ * Diffie-Hellman key exchange.
+ *
+ * The ticket key is generated randomly when the issuer is created, so tickets
+ * are only valid for the lifetime of the process that issued them.
+ *
+ * A single instance is shared by all connections to a server, so this class
+ * is thread-safe.
+ *
+ * @author Joshua Spence
+ */
+public class SessionTicketIssuer {
+	/** Constants. */
+	public static final long DEFAULT_LIFETIME_MS = 10 * 60 * 1000;
+	private static final int KEY_BITS = 128;
+	private static final int EXPIRY_BYTES = Long.SIZE / Byte.SIZE;
+
+	/** The key used to encrypt tickets. */
+	private final SecretKey ticketKey;
+
+	/** The length of time for which a ticket is valid. */
+	private final long lifetime;
+
+	/** Used to generate ticket nonces. */
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Constructor using the default ticket lifetime.
+	 *
+	 * @throws NoSuchAlgorithmException
+	 */
+	public SessionTicketIssuer() throws NoSuchAlgorithmException {
+		this(DEFAULT_LIFETIME_MS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param lifetime The length of time (in milliseconds) for which a ticket
+	 * is valid.
+	 *
+	 * @throws NoSuchAlgorithmException
+	 */
+	public SessionTicketIssuer(long lifetime) throws NoSuchAlgorithmException {
+		final KeyGenerator keyGen = KeyGenerator.getInstance(AESGCMEncryption.KEY_ALGORITHM);
+		keyGen.init(KEY_BITS, random);
+
+		this.ticketKey = keyGen.generateKey();
+		this.lifetime = lifetime;
+	}
+
+	/**
+	 * Get the length of time for which a ticket is valid.
+	 *
+	 * @return The ticket lifetime in milliseconds.
+	 */
+	public long getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * Issue a ticket for a resumption secret.
+	 *
+	 * @param secret The resumption secret.
+	 * @return The ticket, which consists of a nonce followed by the encrypted
+	 * expiry time and secret.
+	 *
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] issue(byte[] secret) throws GeneralSecurityException {
+		final byte[] nonce = new byte[AESGCMEncryption.NONCE_BYTES];
+		synchronized (random) {
+			random.nextBytes(nonce);
+		}
+
+		final ByteBuffer plaintext = ByteBuffer.allocate(EXPIRY_BYTES + secret.length);
+		plaintext.putLong(System.currentTimeMillis() + lifetime);
+		plaintext.put(secret);
+
+		final Cipher cipher = Cipher.getInstance(AESGCMEncryption.CIPHER_ALGORITHM);
+		cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(AESGCMEncryption.TAG_BITS, nonce));
+
+		final byte[] ticket = new byte[nonce.length + cipher.getOutputSize(plaintext.capacity())];
+		System.arraycopy(nonce, 0, ticket, 0, nonce.length);
+		cipher.doFinal(plaintext.array(), 0, plaintext.capacity(), ticket, nonce.length);
+		return ticket;
+	}
+
+	/**
+	 * Redeem a ticket, recovering the resumption secret.
+	 *
+	 * @param ticket The ticket presented by the peer.
+	 * @return The resumption secret, or null if the ticket is invalid or has
+	 * expired.
+	 */
+	public byte[] redeem(byte[] ticket) {
+		if (ticket == null || ticket.length < AESGCMEncryption.NONCE_BYTES + AESGCMEncryption.TAG_BITS / Byte.SIZE + EXPIRY_BYTES)
+			return null;
+
+		byte[] plaintext;
+		try {
+			final Cipher cipher = Cipher.getInstance(AESGCMEncryption.CIPHER_ALGORITHM);
+			cipher.init(Cipher.DECRYPT_MODE, ticketKey, new GCMParameterSpec(AESGCMEncryption.TAG_BITS, ticket, 0, AESGCMEncryption.NONCE_BYTES));
+			plaintext = cipher.doFinal(ticket, AESGCMEncryption.NONCE_BYTES, ticket.length - AESGCMEncryption.NONCE_BYTES);
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+		if (buffer.getLong() < System.currentTimeMillis())
+			return null;
+
+		final byte[] secret = new byte[buffer.remaining()];
+		buffer.get(secret);
+		return secret;
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     SessionTicketIssuer.java
+ *****************************************************************************/
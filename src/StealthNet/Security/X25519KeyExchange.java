@@ -0,0 +1,222 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet.Security
+ * FILENAME:        X25519KeyExchange.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Implementation of X25519 (elliptic curve Diffie-Hellman) 
+ * 					key exchange.
+ *
+ *****************************************************************************/
+
+package StealthNet.Security;
+
+/* Import Libraries **********************************************************/
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/* StealthNet.Security.X25519KeyExchange Class Definition ********************/
+
+/**
+ * This class implements the X25519 key exchange algorithm (RFC 7748), which is
+ * Diffie-Hellman over the elliptic curve Curve25519. 
+ * 
+ * X25519 provides (at least) the security of 3072-bit finite field 
+ * Diffie-Hellman, but both the public values and the shared secret are only 
+ * 32 bytes and computing the shared secret is much cheaper. There are no 
+ * group parameters to agree on, as the curve is fixed.
+ * 
+ * The public value is the u-coordinate of a point on the curve. It is 
+ * normally transmitted as 32 little-endian bytes (see getEncodedPublicKey()),
+ * but it is also available as a BigInteger for the KeyExchange interface.
+ * 
+ * X25519 is provided by the JCE from Java 11. The JCE classes are only used 
+ * through their algorithm names and X.509 encodings, so this class can be 
+ * compiled for older versions of Java. Use isAvailable() to check whether 
+ * X25519 can be used at runtime.
+ *
+ * @author Joshua Spence
+ */
+public class X25519KeyExchange implements KeyExchange {
+	/** Constants. */
+	public static final String ALGORITHM = "X25519";
+	public static final int KEY_BYTES = 32;
+	private static final int KEY_BITS = 255;
+	private static final String SECRET_KEY_ALGORITHM = "TlsPremasterSecret";
+	
+	/** 
+	 * The X.509 encoding of an X25519 public key is this fixed prefix (the
+	 * algorithm identifier) followed by the 32 bytes of the public value.
+	 */
+	private static final byte[] X509_PREFIX = {
+		0x30, 0x2A, 0x30, 0x05, 0x06, 0x03, 0x2B, 0x65, 0x6E, 0x03, 0x21, 0x00
+	};
+	
+	/** True if X25519 is provided by the JCE. */
+	private static final boolean AVAILABLE = checkAvailable();
+	
+	/** Our private key. */
+	private final PrivateKey privateKey;
+	
+	/** Our public value (32 little-endian bytes). */
+	private final byte[] publicValue;
+	
+	/**
+	 * Generate an X25519 key pair.
+	 * 
+	 * @param random A SecureRandom number.
+	 * 
+	 * @throws GeneralSecurityException
+	 */
+	public X25519KeyExchange(SecureRandom random) throws GeneralSecurityException {
+		final KeyPairGenerator kpg = KeyPairGenerator.getInstance(ALGORITHM);
+		kpg.initialize(KEY_BITS, random);
+		final KeyPair kp = kpg.generateKeyPair();
+		
+		final byte[] encoded = kp.getPublic().getEncoded();
+		if (encoded.length != X509_PREFIX.length + KEY_BYTES)
+			throw new InvalidKeyException("Unexpected X25519 public key encoding.");
+		
+		this.privateKey = kp.getPrivate();
+		this.publicValue = new byte[KEY_BYTES];
+		System.arraycopy(encoded, X509_PREFIX.length, this.publicValue, 0, KEY_BYTES);
+	}
+	
+	/**
+	 * Check whether X25519 is provided by the JCE.
+	 * 
+	 * @return True if X25519 can be used.
+	 */
+	public static boolean isAvailable() {
+		return AVAILABLE;
+	}
+	
+	/**
+	 * Check whether X25519 is provided by the JCE.
+	 * 
+	 * @return True if X25519 can be used.
+	 */
+	private static boolean checkAvailable() {
+		try {
+			KeyPairGenerator.getInstance(ALGORITHM);
+			KeyAgreement.getInstance(ALGORITHM);
+			return true;
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		}
+	}
+	
+	/** 
+	 * Gets the public value of this end of the key exchange, as it should be
+	 * transmitted.
+	 * 
+	 * @return The public value (32 little-endian bytes).
+	 */
+	public byte[] getEncodedPublicKey() {
+		return publicValue.clone();
+	}
+	
+	/** 
+	 * Gets the public value of this end of the key exchange.
+	 * 
+	 * @return The public value (the u-coordinate).
+	 */
+	public BigInteger getPublicKey() {
+		return toInteger(publicValue);
+	}
+	
+	/**
+	 * Get the shared secret key that has been agreed on through the key 
+	 * exchange.
+	 *
+	 * @param peerPublicValue The peer's public value (the u-coordinate).
+	 * @return The secret key.
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException 
+	 * @throws InvalidKeyException 
+	 */
+	public SecretKey getSharedSecret(BigInteger peerPublicValue) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+		return getSharedSecret(toBytes(peerPublicValue));
+	}
+	
+	/**
+	 * Get the shared secret key that has been agreed on through the key 
+	 * exchange.
+	 *
+	 * @param peerPublicValue The peer's public value (32 little-endian bytes).
+	 * @return The secret key.
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException 
+	 * @throws InvalidKeyException If the peer's public value is invalid.
+	 */
+	public SecretKey getSharedSecret(byte[] peerPublicValue) throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+		if (peerPublicValue == null || peerPublicValue.length != KEY_BYTES)
+			throw new InvalidKeyException("X25519 public value must be " + KEY_BYTES + " bytes.");
+		
+		final byte[] encoded = new byte[X509_PREFIX.length + KEY_BYTES];
+		System.arraycopy(X509_PREFIX, 0, encoded, 0, X509_PREFIX.length);
+		System.arraycopy(peerPublicValue, 0, encoded, X509_PREFIX.length, KEY_BYTES);
+		
+		final KeyFactory kf = KeyFactory.getInstance(ALGORITHM);
+		final PublicKey publicKey = kf.generatePublic(new X509EncodedKeySpec(encoded));
+		
+		final KeyAgreement ka = KeyAgreement.getInstance(ALGORITHM);
+		ka.init(privateKey);
+		ka.doPhase(publicKey, true);
+		return new SecretKeySpec(ka.generateSecret(), SECRET_KEY_ALGORITHM);
+	}
+	
+	/**
+	 * Convert a public value to an integer.
+	 * 
+	 * @param value The public value (32 little-endian bytes).
+	 * @return The public value as an integer.
+	 */
+	public static BigInteger toInteger(byte[] value) {
+		final byte[] bigEndian = new byte[value.length];
+		for (int i = 0; i < value.length; i++)
+			bigEndian[i] = value[value.length - 1 - i];
+		return new BigInteger(1, bigEndian);
+	}
+	
+	/**
+	 * Convert an integer to a public value.
+	 * 
+	 * @param value The public value as an integer.
+	 * @return The public value (32 little-endian bytes).
+	 * 
+	 * @throws InvalidKeyException If the integer is out of range.
+	 */
+	public static byte[] toBytes(BigInteger value) throws InvalidKeyException {
+		if (value.signum() < 0 || value.bitLength() > KEY_BYTES * Byte.SIZE)
+			throw new InvalidKeyException("X25519 public value is out of range.");
+		
+		final byte[] bigEndian = value.toByteArray();
+		final byte[] littleEndian = new byte[KEY_BYTES];
+		for (int i = 0; i < bigEndian.length && i < KEY_BYTES; i++)
+			littleEndian[i] = bigEndian[bigEndian.length - 1 - i];
+		return littleEndian;
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     X25519KeyExchange.java
+ *****************************************************************************/
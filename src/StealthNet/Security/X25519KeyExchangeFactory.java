@@ -0,0 +1,53 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet.Security
+ * FILENAME:        X25519KeyExchangeFactory.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Creates X25519 key exchange providers.
+ *
+ *****************************************************************************/
+
+package StealthNet.Security;
+
+/* Import Libraries **********************************************************/
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/* StealthNet.Security.X25519KeyExchangeFactory Class Definition *************/
+
+/**
+ * A factory for X25519KeyExchange providers.
+ *
+ * @author Joshua Spence
+ */
+public class X25519KeyExchangeFactory implements KeyExchangeFactory {
+	/** Used to generate private keys. */
+	private final SecureRandom random;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param random A SecureRandom number.
+	 */
+	public X25519KeyExchangeFactory(SecureRandom random) {
+		this.random = random;
+	}
+	
+	/**
+	 * Create a new X25519KeyExchange provider, with a new private key.
+	 * 
+	 * @return A new X25519KeyExchange provider.
+	 * 
+	 * @throws GeneralSecurityException
+	 */
+	public KeyExchange createKeyExchange() throws GeneralSecurityException {
+		return new X25519KeyExchange(random);
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     X25519KeyExchangeFactory.java
+ *****************************************************************************/
@@ -16,12 +16,16 @@ package StealthNet;
 /* Import Libraries **********************************************************/
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.security.KeyPair;
+import java.security.PublicKey;
 
 import StealthNet.Security.AsymmetricEncryption;
 import StealthNet.Security.RSAAsymmetricEncryption;
+import StealthNet.Security.SessionTicketIssuer;
 
 /* StealthNet.Server Class Definition ****************************************/
 
@@ -36,6 +40,12 @@ import StealthNet.Security.RSAAsymmetricEncryption;
  * pass some other command to the intended target client, enabling the two
  * clients to communicate with each other.
  * 
+ * There are two server engines, selected by the "StealthNet.Server.Engine"
+ * property. The "thread" engine dedicates a handler to each connection, run
+ * by a ConnectionExecutor. The "nio" engine instead passes the packets of 
+ * every connection to a Reactor, which serves all of the (mostly idle) 
+ * connections with a small, fixed number of selector threads.
+ * 
  * @author Matt Barrie
  * @author Stephen Gould
  * @author Joshua Spence
@@ -50,6 +60,14 @@ public class Server {
 	private static final String PUBLIC_KEY_FILE = "keys/server/public.key";
 	private static final String PRIVATE_KEY_FILE = "keys/server/private.key";
 	private static final String PRIVATE_KEY_FILE_PASSWORD = "server";
+	private static final String BANK_PUBLIC_KEY_FILE = "keys/bank/public.key";
+	
+	/** Server engines. */
+	public static final String ENGINE_THREAD = "thread";
+	public static final String ENGINE_NIO = "nio";
+	
+	/** The server engine. */
+	private static final String ENGINE = System.getProperty("StealthNet.Server.Engine", ENGINE_THREAD);
 
 	/**
 	 * The main Server function.
@@ -84,6 +102,31 @@ public class Server {
 			System.out.println("Private key: " + privateKeyString);
 		}
 
+		/**
+		 * Create a single ticket issuer, shared by all connections, so that
+		 * clients can resume their sessions without a key exchange.
+		 */
+		SessionTicketIssuer ticketIssuer = null;
+		try {
+			ticketIssuer = new SessionTicketIssuer();
+		} catch (final Exception e) {
+			System.err.println("Unable to create session ticket issuer. Sessions will not be resumed.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+
+		/** Load the user and secret lists saved before the last restart. */
+		ServerThread.recoverState();
+
+		/**
+		 * Clients pay for secrets with hash chains signed by the bank, so we
+		 * need the bank's public key to check them.
+		 */
+		final PublicKey bankPublicKey = Utility.getPublicKey(BANK_PUBLIC_KEY_FILE);
+		if (bankPublicKey == null)
+			System.err.println("Unable to determine bank public key. Secrets can't be purchased.");
+		else
+			ServerThread.setPaymentRedeemer(new PaymentRedeemer(serverKeys, bankPublicKey));
+
 		/** Port that the server is listening on. */
 		int port = Comms.DEFAULT_SERVERPORT;
 
@@ -104,7 +147,12 @@ public class Server {
 		/** Try to create a server socket listening on a specified port. */
 		ServerSocket svrSocket = null;
 		try {
-			svrSocket = new ServerSocket(port);
+			if (ENGINE.equals(ENGINE_NIO)) {
+				/** The sockets of the reactor must have channels. */
+				svrSocket = ServerSocketChannel.open().socket();
+				svrSocket.bind(new InetSocketAddress(port));
+			} else
+				svrSocket = new ServerSocket(port);
 		} catch (final IOException e) {
 			System.err.println("Could not listen on port " + port);
 			if (DEBUG_ERROR_TRACE) e.printStackTrace();
@@ -114,17 +162,48 @@ public class Server {
 		if (DEBUG_GENERAL) System.out.println("Server is listening on port " + port + ".");
 		System.out.println("Server online...");
 
+		/**
+		 * Perform handshakes on separate threads, so that accepting is never
+		 * delayed. Then run connection handlers in the configured mode, or 
+		 * register them with the reactor (directly from the handshake thread).
+		 */
+		Reactor reactor = null;
+		HandshakeExecutor handshakeExecutor = null;
+		if (ENGINE.equals(ENGINE_NIO)) {
+			try {
+				reactor = new Reactor("Server");
+			} catch (final IOException e) {
+				System.err.println("Unable to start reactor.");
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+				System.exit(1);
+			}
+			handshakeExecutor = new HandshakeExecutor("Server", null);
+		} else {
+			if (!ENGINE.equals(ENGINE_THREAD))
+				System.err.println("Unknown server engine \"" + ENGINE + "\". Using \"" + ENGINE_THREAD + "\" engine.");
+			handshakeExecutor = new HandshakeExecutor("Server", new ConnectionExecutor("Server"));
+		}
+		if (DEBUG_GENERAL) System.out.println("Server is using the \"" + (reactor != null ? ENGINE_NIO : ENGINE_THREAD) + "\" engine.");
+
 		/**
 		 * Wait for and accept connections on the server socket. Create a new
-		 * thread for each connection. For each connection, create a new
-		 * AsymmetricEncryption instance for asymmetric encryption.
+		 * handler for each connection. For each connection, create a new
+		 * AsymmetricEncryption instance for asymmetric encryption. The handler
+		 * is run once the handshake has completed. Note that the client 
+		 * already has our public key and can hence encrypt messages destined
+		 * for us.
 		 */
 		while (true)
 			try {
 				final Socket conn = svrSocket.accept();
 				final AsymmetricEncryption ae = new RSAAsymmetricEncryption(serverKeys);
-				final ServerThread thread = new ServerThread(conn, ae);
-				thread.start();
+				final Comms comms = new Comms(ae, true, ticketIssuer);
+				final ServerThread handler = new ServerThread(comms);
+				
+				if (reactor != null)
+					handshakeExecutor.submit(conn, comms, new ReactorRegistration(reactor, conn, comms, handler));
+				else
+					handshakeExecutor.submit(conn, comms, handler);
 
 				if (DEBUG_GENERAL)
 					System.out.println("Server accepted connection from " + conn.getInetAddress() + " on port " + conn.getPort() + ".");
@@ -135,6 +214,34 @@ public class Server {
 				if (DEBUG_ERROR_TRACE) e.printStackTrace();
 			}
 	}
+	
+	/** 
+	 * Registers a connection with the reactor, once its handshake has 
+	 * completed.
+	 */
+	private static class ReactorRegistration implements Runnable {
+		private final Reactor reactor;
+		private final Socket conn;
+		private final Comms comms;
+		private final ServerThread handler;
+		
+		ReactorRegistration(Reactor reactor, Socket conn, Comms comms, ServerThread handler) {
+			this.reactor = reactor;
+			this.conn = conn;
+			this.comms = comms;
+			this.handler = handler;
+		}
+		
+		public void run() {
+			try {
+				reactor.register(conn.getChannel(), comms, handler);
+			} catch (final IOException e) {
+				System.err.println("Unable to register connection with reactor. Dropping connection...");
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+				comms.terminateSession();
+			}
+		}
+	}
 }
 
 /******************************************************************************
@@ -15,16 +15,28 @@ package StealthNet;
 
 /* Import Libraries **********************************************************/
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.security.KeyFactory;
 import java.security.PublicKey;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.binary.Base64;
 
 import StealthNet.Security.AsymmetricEncryption;
+import StealthNet.Security.RSAAsymmetricEncryption;
+import StealthNet.Security.SessionTicketIssuer;
 
 /* StealthNet.ServerThread Class Definition **********************************/
 
@@ -36,39 +48,133 @@ import StealthNet.Security.AsymmetricEncryption;
  * active concurrently. This class handles packets and deals with them
  * accordingly.
  * 
+ * Despite its name, this class is a Runnable rather than a Thread, so that it
+ * can be run by a ConnectionExecutor (on a virtual thread, for example). The
+ * start() function runs it on a new platform thread. Alternatively, the 
+ * packets of the client can be passed to handlePacket(DecryptedPacket) by a
+ * Reactor, in which case no thread is dedicated to the client at all.
+ * 
  * @author Stephen Gould
  * @author Matt Barrie
  * @author Ryan Junee
  * @author Joshua Spence
  */
-public class ServerThread extends Thread {
+public class ServerThread implements Runnable, Reactor.Handler {
 	/** Debug options. */
 	private static final boolean DEBUG_GENERAL               = Debug.isDebug("StealthNet.ServerThread.General");
 	private static final boolean DEBUG_ERROR_TRACE           = Debug.isDebug("StealthNet.ServerThread.ErrorTrace") || Debug.isDebug("ErrorTrace");
 	private static final boolean DEBUG_COMMANDS_NULL         = Debug.isDebug("StealthNet.ServerThread.Commands.Null");
 	private static final boolean DEBUG_COMMANDS_LOGIN        = Debug.isDebug("StealthNet.ServerThread.Commands.Login");
 	private static final boolean DEBUG_COMMANDS_LOGOUT       = Debug.isDebug("StealthNet.ServerThread.Commands.Logout");
+	private static final boolean DEBUG_COMMANDS_LIST         = Debug.isDebug("StealthNet.ServerThread.Commands.List");
 	private static final boolean DEBUG_COMMANDS_MSG          = Debug.isDebug("StealthNet.ServerThread.Commands.Msg");
 	private static final boolean DEBUG_COMMANDS_CHAT         = Debug.isDebug("StealthNet.ServerThread.Commands.Chat");
 	private static final boolean DEBUG_COMMANDS_FTP          = Debug.isDebug("StealthNet.ServerThread.Commands.FTP");
 	private static final boolean DEBUG_COMMANDS_CREATESECRET = Debug.isDebug("StealthNet.ServerThread.Commands.CreateSecret");
+	private static final boolean DEBUG_COMMANDS_SECRETLIST   = Debug.isDebug("StealthNet.ServerThread.Commands.SecretList");
+	private static final boolean DEBUG_COMMANDS_SECRETINFO   = Debug.isDebug("StealthNet.ServerThread.Commands.SecretInfo");
+	private static final boolean DEBUG_COMMANDS_SEARCH       = Debug.isDebug("StealthNet.ServerThread.Commands.Search");
 	private static final boolean DEBUG_COMMANDS_GETSECRET    = Debug.isDebug("StealthNet.ServerThread.Commands.GetSecret");
+	private static final boolean DEBUG_COMMANDS_GETPUBLICKEY = Debug.isDebug("StealthNet.ServerThread.Commands.GetPublicKey");
+	private static final boolean DEBUG_COMMANDS_COMMITMENT   = Debug.isDebug("StealthNet.ServerThread.Commands.Commitment");
 	
 	/** Used to separate thread ID from debug output. */
 	private static final String THREADID_PREFIX = "Thread ";
 	private static final String THREADID_SUFFIX = " >> ";
+
+	/** Used to give each instance a unique ID. */
+	private static final AtomicLong nextId = new AtomicLong(0);
+	private final long id = nextId.incrementAndGet();
 	
 	/**
 	 * Used to store details of other clients that this thread may want to
-	 * communicate with.
+	 * communicate with. Entries of the user list are immutable, so that they
+	 * can be atomically replaced when a user logs in or out.
+	 */
+	private static class UserData {
+		final ServerThread userThread;
+		final PublicKey publicKey;
+		final String fingerprint;
+		
+		UserData(ServerThread userThread, PublicKey publicKey) {
+			this.userThread = userThread;
+			this.publicKey = publicKey;
+			this.fingerprint = (publicKey == null) ? null : Utility.getFingerprint(publicKey);
+		}
+	}
+
+	/** A version of a list, encoded to be sent to clients. */
+	private static class EncodedSnapshot {
+		final long version;
+		final String text;
+		
+		EncodedSnapshot(long version, String text) {
+			this.version = version;
+			this.text = text;
+		}
+	}
+
+	/** 
+	 * A hash chain that clients pay with, and the credits owed to each seller
+	 * from the payments accepted since the chain was last redeemed.
 	 */
-	private class UserData {
-		ServerThread userThread = null;
-		PublicKey publicKey = null;
+	private static class Credit {
+		final CryptoCredit.Commitment commitment;
+		private final Map<String, Long> owed = new LinkedHashMap<String, Long>();
+		
+		/** True once the chain has been closed at the bank. */
+		private boolean closed = false;
+		
+		Credit(CryptoCredit.Commitment commitment) {
+			this.commitment = commitment;
+		}
+		
+		/**
+		 * Accept a payment from the chain, owed to the given seller.
+		 * 
+		 * @param index The index of the token.
+		 * @param token The token.
+		 * @param cost The cost of the secret.
+		 * @param seller The owner of the secret.
+		 * @return True if the payment was accepted.
+		 */
+		synchronized boolean pay(int index, byte[] token, int cost, String seller) {
+			if (closed || commitment.accept(index, token, cost) < 0)
+				return false;
+			
+			final Long total = owed.get(seller);
+			owed.put(seller, (total == null ? 0 : total) + cost);
+			return true;
+		}
+		
+		/** 
+		 * Redeem the payments accepted from the chain at the bank, and close
+		 * the chain, so that the bank returns the funds that are left to the 
+		 * user. The last token and the credits owed are taken together, so 
+		 * that the token always covers the credits that it is redeemed for.
+		 */
+		synchronized void close() {
+			if (closed)
+				return;
+			
+			if (paymentRedeemer != null)
+				paymentRedeemer.redeem(commitment, new LinkedHashMap<String, Long>(owed), true);
+			owed.clear();
+			closed = true;
+		}
+		
+		/**
+		 * Check whether the chain has been closed.
+		 * 
+		 * @return True if the chain can't be paid with.
+		 */
+		synchronized boolean isClosed() {
+			return closed;
+		}
 	}
 
 	/** Used to store client secret data. */
-	private class SecretData {
+	private static class SecretData {
 		String name = null;
 		String description = null;
 		int cost = 0;
@@ -77,17 +183,116 @@ public class ServerThread extends Thread {
 		String filename = null;
 	}
 
-	/** A list of users, indexed by their ID. */
-	private static final Hashtable<String, UserData> userList = new Hashtable<String, UserData>();
+	/** 
+	 * A list of users, indexed by their ID. Users remain in the list (with a 
+	 * null userThread) once they have logged out.
+	 */
+	private static final Registry<UserData> userList = new Registry<UserData>();
+	
+	/** The last version of the whole user list that was sent to a client. */
+	private static volatile EncodedSnapshot encodedUserList = null;
+
+	/** 
+	 * The public keys of all users that have logged in, indexed by their 
+	 * fingerprints. Clients fetch keys from here (with CMD_GETPUBLICKEY) as 
+	 * the user list only contains fingerprints.
+	 */
+	private static final ConcurrentHashMap<String, PublicKey> publicKeys = new ConcurrentHashMap<String, PublicKey>();
 
 	/** A list of secret data, indexed by the SecretData.name field. */
-	private static final Hashtable<String, SecretData> secretList = new Hashtable<String, SecretData>();
+	private static final Registry<SecretData> secretList = new Registry<SecretData>();
+	
+	/** 
+	 * The directory in which the user and secret lists are saved, so that 
+	 * they survive a restart. If empty, then nothing is saved.
+	 */
+	private static final String DATA_DIRECTORY = System.getProperty("StealthNet.ServerThread.DataDirectory", "data/server");
+	
+	/** Types of the records saved to the write-ahead log. */
+	private static final byte LOG_USER = 1;				/** "user;publicKey" */
+	private static final byte LOG_SECRET = 2;			/** "name;description;cost;owner;dirname;filename" */
+	private static final byte LOG_REMOVE_SECRET = 3;	/** "name" */
+	private static final byte LOG_REDEEM = 4;			/** "redemption" (see PaymentRedeemer) */
+	private static final byte LOG_REDEEMED = 5;			/** "redemption" */
+	
+	/** 
+	 * The write-ahead log of changes to the user and secret lists, or null if
+	 * nothing is saved. Changes are made and logged while holding logLock, so
+	 * that they are logged in the order in which they are made.
+	 */
+	private static WriteAheadLog log = null;
+	private static final Object logLock = new Object();
+	
+	/** 
+	 * The redemptions that the bank hasn't replied to, so that none are lost 
+	 * if the server is stopped. Guarded by logLock.
+	 */
+	private static final Set<String> redemptions = new LinkedHashSet<String>();
+	
+	/** A search index over the secret list. */
+	private static final SecretIndex secretIndex = new SecretIndex();
+	
+	/** The maximum number of secrets sent in a single secret list packet. */
+	private static final int SECRET_LIST_PAGE_SIZE = Integer.parseInt(System.getProperty("StealthNet.ServerThread.SecretListPageSize", "100"));
+	
+	/** 
+	 * Broadcasts of the user and secret lists. A burst of changes (such as 
+	 * many users logging in at once) results in a single broadcast to each 
+	 * user, rather than one broadcast per change.
+	 */
+	private static final BroadcastScheduler userListBroadcast = new BroadcastScheduler("user list", new Runnable() {
+		public void run() {
+			broadcastUserList();
+		}
+	});
+	private static final BroadcastScheduler secretListBroadcast = new BroadcastScheduler("secret list", new Runnable() {
+		public void run() {
+			broadcastSecretList();
+		}
+	});
+
+	/** 
+	 * Checks the hash chains that clients pay for secrets with, and redeems 
+	 * the payments at the bank. If null, then secrets can't be purchased.
+	 */
+	private static PaymentRedeemer paymentRedeemer = null;
 
 	/** The user ID for the user owning the thread. */
 	private String userID = null;
+	
+	/** 
+	 * The hash chains that have been given to the server, by root. A chain 
+	 * that is given again carries on from the last token accepted, so that 
+	 * its tokens can't be spent twice. A chain that has been closed can't be
+	 * given again.
+	 */
+	private static final ConcurrentHashMap<String, Credit> commitments = new ConcurrentHashMap<String, Credit>();
+	
+	/** The hash chain that the user pays with, or null if the user hasn't given us one. */
+	private Credit credit = null;
 
 	/** A StealthNetComms class to handle communications for this client. */
-	private Comms stealthComms = null;
+	private volatile Comms stealthComms = null;
+	
+	/** 
+	 * Packets waiting to be sent to this client. Every packet to the client is
+	 * sent through this queue, so that it is only ever sent by a single writer.
+	 */
+	private final OutboundQueue outboundQueue;
+	
+	/** 
+	 * The version of the user list that this client has been sent, or -1 if
+	 * the client has not been sent the user list. Guarded by presenceLock.
+	 */
+	private long presenceVersion = -1;
+	private final Object presenceLock = new Object();
+	
+	/** 
+	 * The version of the secret list that this client has been sent, or -1 if
+	 * the client has not been sent the secret list. Guarded by secretListLock.
+	 */
+	private long secretListVersion = -1;
+	private final Object secretListLock = new Object();
 	
 	/** The server's asymmetric encryption keys. */
 	private final AsymmetricEncryption asymmetricEncryptionProvider;
@@ -97,10 +302,18 @@ public class ServerThread extends Thread {
 	 * 
 	 * @param socket The socket that the server is listening on.
 	 */
-	public ServerThread(Socket socket, AsymmetricEncryption aep) {		
-		/** Thread constructor. */
-		super("StealthNet.ServerThread");
-
+	public ServerThread(Socket socket, AsymmetricEncryption aep) {
+		this(socket, aep, null);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param socket The socket that the server is listening on.
+	 * @param issuer Issues session resumption tickets to the client. May be 
+	 * null.
+	 */
+	public ServerThread(Socket socket, AsymmetricEncryption aep, SessionTicketIssuer issuer) {		
 		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Creating a ServerThread.");
 		
 		this.asymmetricEncryptionProvider = aep;
@@ -110,8 +323,42 @@ public class ServerThread extends Thread {
 		 * the client already has our public key and can hence encrypt messages 
 		 * destined for us.
 		 */
-		this.stealthComms = new Comms(this.asymmetricEncryptionProvider, true);
+		this.stealthComms = new Comms(this.asymmetricEncryptionProvider, true, issuer);
 		this.stealthComms.acceptSession(socket);
+		this.outboundQueue = createOutboundQueue();
+	}
+
+	/**
+	 * Constructor for a session that is accepted by the caller. The session 
+	 * must have been accepted before the thread is started.
+	 * 
+	 * @param comms The Comms instance for the client.
+	 */
+	public ServerThread(Comms comms) {
+		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Creating a ServerThread.");
+		
+		this.asymmetricEncryptionProvider = null;
+		this.stealthComms = comms;
+		this.outboundQueue = createOutboundQueue();
+	}
+	
+	/**
+	 * Create the outbound queue for the client. If the client is disconnected
+	 * for being too slow, then its session is terminated, which causes the 
+	 * session to end (and the user to be logged out) in the usual way.
+	 * 
+	 * @return The outbound queue.
+	 */
+	private OutboundQueue createOutboundQueue() {
+		return new OutboundQueue(stealthComms, new Runnable() {
+			public void run() {
+				final Comms comms = stealthComms;
+				
+				System.err.println(THREADID_PREFIX + getId() + THREADID_SUFFIX + "User \"" + userID + "\" is too slow. Disconnecting...");
+				if (comms != null)
+					comms.terminateSession();
+			}
+		});
 	}
 
 	/**
@@ -124,6 +371,33 @@ public class ServerThread extends Thread {
 			stealthComms.terminateSession();
 	}
 
+	/**
+	 * Get the unique ID of this instance. Used in debug output.
+	 * 
+	 * @return The ID of this instance.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Run this instance on a new platform thread.
+	 */
+	public void start() {
+		new Thread(this, "StealthNet.ServerThread").start();
+	}
+
+	/**
+	 * Queue a packet to be sent to the client.
+	 * 
+	 * @param command The command to be sent.
+	 * @param data The data to be sent.
+	 * @return True if the packet was queued, otherwise false.
+	 */
+	private boolean send(byte command, String data) {
+		return outboundQueue.send(command, data.getBytes());
+	}
+
 	/**
 	 * Add a user to the user list. Used to log the specified user into
 	 * StealthNet.
@@ -132,24 +406,200 @@ public class ServerThread extends Thread {
 	 * @return True on success, false on failure or if the specified user 
 	 * already exists in the user list.
 	 */
-	private synchronized boolean addUser(String id) {
-		/** Make sure the specified user doesn't already exist in the user list. */
-		UserData userInfo = userList.get(id);
+	private boolean addUser(String id) {
+		/** Create new user data for the specified user. */
+		final UserData newInfo = new UserData(this, stealthComms.getPeerPublicKey());
 		
-		if (userInfo != null && userInfo.userThread != null) {
-			return false;
-		} else {
-			/** Create new user data for the specified user. */
-			userInfo = new UserData();
-			userInfo.userThread = this;
-			userInfo.publicKey = stealthComms.getPeerPublicKey();
-			userList.put(id, userInfo);
+		/** 
+		 * Make sure the specified user isn't already logged in. Retry if 
+		 * another thread changes the entry for the user in the meantime.
+		 */
+		while (true) {
+			final UserData userInfo = userList.get(id);
 			
+			if (userInfo != null && userInfo.userThread != null)
+				return false;
+			
+			synchronized (logLock) {
+				if (!userList.replace(id, userInfo, newInfo))
+					continue;
+				
+				/** Only log the user's public key if it has changed. */
+				if (newInfo.publicKey != null && (userInfo == null || !newInfo.publicKey.equals(userInfo.publicKey)))
+					log(LOG_USER, id, Base64.encodeBase64String(newInfo.publicKey.getEncoded()));
+			}
+			
+			if (newInfo.publicKey != null)
+				publicKeys.putIfAbsent(newInfo.fingerprint, newInfo.publicKey);
 			if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Added user \"" + id + "\" to the user list.");
 			return true;
 		}
 	}
 
+	/**
+	 * Set the redeemer that checks and redeems payments for secrets. Should be
+	 * called once, before any clients are accepted.
+	 * 
+	 * @param redeemer The payment redeemer.
+	 */
+	public static void setPaymentRedeemer(final PaymentRedeemer redeemer) {
+		redeemer.setJournal(new PaymentRedeemer.Journal() {
+			public void pending(String request) {
+				synchronized (logLock) {
+					if (redemptions.add(request))
+						log(LOG_REDEEM, request);
+				}
+			}
+			
+			public void redeemed(String request) {
+				synchronized (logLock) {
+					if (redemptions.remove(request))
+						log(LOG_REDEEMED, request);
+				}
+			}
+		});
+		paymentRedeemer = redeemer;
+		
+		/** Send the redemptions that were saved before the server was stopped. */
+		synchronized (logLock) {
+			for (String request : redemptions)
+				redeemer.resume(request);
+		}
+	}
+	
+	/** Redeem the payments accepted from the user's hash chain at the bank, and close it. */
+	private void closeCredit() {
+		if (credit != null)
+			credit.close();
+	}
+
+	/**
+	 * Load the user and secret lists that were saved before the server was 
+	 * last stopped, and start saving changes to them. Should be called once,
+	 * before any clients are accepted. Users are loaded as being logged out.
+	 */
+	public static void recoverState() {
+		if (DATA_DIRECTORY.length() == 0)
+			return;
+		
+		final WriteAheadLog newLog = new WriteAheadLog(new File(DATA_DIRECTORY), new WriteAheadLog.Handler() {
+			public void apply(byte type, String[] fields) {
+				switch (type) {
+					case LOG_USER:
+					{
+						try {
+							final KeyFactory factory = KeyFactory.getInstance(RSAAsymmetricEncryption.ALGORITHM);
+							final PublicKey publicKey = factory.generatePublic(new X509EncodedKeySpec(Base64.decodeBase64(fields[1])));
+							final UserData userInfo = new UserData(null, publicKey);
+							userList.load(fields[0], userInfo);
+							publicKeys.putIfAbsent(userInfo.fingerprint, publicKey);
+						} catch (final Exception e) {
+							System.err.println("Failed to recover public key of user \"" + fields[0] + "\".");
+							if (DEBUG_ERROR_TRACE) e.printStackTrace();
+						}
+						break;
+					}
+					
+					case LOG_SECRET:
+					{
+						final SecretData t = new SecretData();
+						t.name = fields[0];
+						t.description = fields[1];
+						t.cost = Integer.parseInt(fields[2]);
+						t.owner = fields[3];
+						t.dirname = fields[4];
+						t.filename = fields[5];
+						secretList.load(t.name, t);
+						break;
+					}
+					
+					case LOG_REMOVE_SECRET:
+						secretList.load(fields[0], null);
+						break;
+					
+					case LOG_REDEEM:
+						redemptions.add(fields[0]);
+						break;
+					
+					case LOG_REDEEMED:
+						redemptions.remove(fields[0]);
+						break;
+					
+					default:
+						System.err.println("Unknown record type " + type + " in write-ahead log.");
+				}
+			}
+			
+			public void snapshot(WriteAheadLog.Writer writer) throws IOException {
+				for (Map.Entry<String, UserData> entry : userList.snapshot().getEntries().entrySet())
+					if (entry.getValue().publicKey != null)
+						writer.write(LOG_USER, entry.getKey(), Base64.encodeBase64String(entry.getValue().publicKey.getEncoded()));
+				
+				for (SecretData t : secretList.snapshot().getEntries().values())
+					writer.write(LOG_SECRET, t.name, t.description, Integer.toString(t.cost), t.owner, t.dirname, t.filename);
+				
+				final List<String> pending;
+				synchronized (logLock) {
+					pending = new ArrayList<String>(redemptions);
+				}
+				for (String request : pending)
+					writer.write(LOG_REDEEM, request);
+			}
+		});
+		
+		try {
+			final long start = System.nanoTime();
+			final long records = newLog.recover();
+			System.out.println("Recovered " + records + " records (" + userList.size() + " users, " + secretList.size() + " secrets) in " + (System.nanoTime() - start) / 1000000 + "ms.");
+			log = newLog;
+		} catch (final IOException e) {
+			System.err.println("Failed to recover state from \"" + DATA_DIRECTORY + "\". Changes will not be saved.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+		
+		/** 
+		 * Build the search index in the background, so that a large secret 
+		 * list doesn't delay the server from starting. Searches (and changes 
+		 * to the index) wait until it has been built.
+		 */
+		if (secretList.size() > 0) {
+			secretIndex.beginLoad();
+			final Thread indexer = new Thread("StealthNet.ServerThread.Indexer") {
+				public void run() {
+					final long start = System.nanoTime();
+					try {
+						for (SecretData t : secretList.snapshot().getEntries().values())
+							secretIndex.load(t.name, t.description, t.cost, t.owner);
+					} finally {
+						secretIndex.endLoad();
+					}
+					if (DEBUG_GENERAL) System.out.println("Indexed " + secretList.size() + " secrets in " + (System.nanoTime() - start) / 1000000 + "ms.");
+				}
+			};
+			indexer.setDaemon(true);
+			indexer.start();
+		}
+	}
+	
+	/**
+	 * Save a change to the write-ahead log, if changes are being saved. Must be
+	 * called while holding logLock.
+	 * 
+	 * @param type The type of the change.
+	 * @param fields The fields of the change.
+	 */
+	private static void log(byte type, String... fields) {
+		if (log == null)
+			return;
+		
+		try {
+			log.append(type, fields);
+		} catch (final IOException e) {
+			System.err.println("Failed to save change to write-ahead log.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Add secret data to the secret list.
 	 * 
@@ -157,18 +607,17 @@ public class ServerThread extends Thread {
 	 * @return True on success, false on failure or if the secret data already
 	 * exists in the secret list.
 	 */
-	private synchronized boolean addSecret(SecretData t) {
-		/** Make sure the secret doesn't already exist in the secret list. */
-		final SecretData secretInfo = secretList.get(t.name);
-		
-		if (secretInfo != null) {
-			return false;
-		} else {
-			/** Add the secret data to the secret list. */
-			secretList.put(t.name, t);
-			if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Added secret \"" + t.name + "\" to the secret list.");
-			return true;
+	private boolean addSecret(SecretData t) {
+		/** Add the secret data, if it doesn't already exist in the secret list. */
+		synchronized (logLock) {
+			if (!secretList.add(t.name, t))
+				return false;
+			log(LOG_SECRET, t.name, t.description, Integer.toString(t.cost), t.owner, t.dirname, t.filename);
 		}
+		secretIndex.add(t.name, t.description, t.cost, t.owner);
+		
+		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Added secret \"" + t.name + "\" to the secret list.");
+		return true;
 	}
 
 	/**
@@ -178,10 +627,13 @@ public class ServerThread extends Thread {
 	 * @return True on success, false on failure or if the specified user 
 	 * doesn't exist in the user list.
 	 */
-	private synchronized boolean removeUser(String id) {
+	private boolean removeUser(String id) {
+		/** 
+		 * Only log the user out if this thread logged the user in. Retain the
+		 * user's public key.
+		 */
 		final UserData userInfo = userList.get(id);
-		if (userInfo != null) {
-			userInfo.userThread = null;
+		if (userInfo != null && userInfo.userThread == this && userList.replace(id, userInfo, new UserData(null, userInfo.publicKey))) {
 			if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Removed user \"" + id + "\" from the user list.");
 			return true;
 		} else {
@@ -196,8 +648,12 @@ public class ServerThread extends Thread {
 	 * @return True on success, false on failure.
 	 */
 	@SuppressWarnings("unused")
-	private synchronized boolean removeSecret(String name) {
-		secretList.remove(name);
+	private boolean removeSecret(String name) {
+		synchronized (logLock) {
+			if (secretList.remove(name) != null)
+				log(LOG_REMOVE_SECRET, name);
+		}
+		secretIndex.remove(name);
 		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Removed secret \"" + name + "\" from the secret list.");
 		return true;
 	}
@@ -207,29 +663,69 @@ public class ServerThread extends Thread {
 	 * packet.
 	 * 
 	 * @return A String representing the user list. The output string is of the 
-	 * form "user;loggedOn;publicKey\n..."
+	 * form "user;loggedOn;fingerprint\n..."
+	 */
+	private String userListAsString() {
+		return userListAsString(userList.snapshot().getEntries());
+	}
+	
+	/**
+	 * Convert a snapshot of the user list to a String.
+	 * 
+	 * @param users A snapshot of the user list.
+	 * @return A String representing the user list. 
 	 */
-	private synchronized String userListAsString() {
-		String userTable = "";
-		final Enumeration<String> i = userList.keys();
+	private static String userListAsString(Map<String, UserData> users) {
+		final StringBuilder userTable = new StringBuilder();
 		
-		while (i.hasMoreElements()) {
-			final String userKey = i.nextElement();
-			final UserData userInfo = userList.get(userKey);
-
-			userTable += userKey;
-			userTable += ";";
-			if (userInfo != null && userInfo.userThread != null)
-				userTable += "true";
-			else
-				userTable += "false";
-			userTable += ";";
-			if (userInfo != null && userInfo.publicKey != null)
-				userTable += new String(Base64.encodeBase64String(userInfo.publicKey.getEncoded()));
-			userTable += "\n";
-		}
+		for (Map.Entry<String, UserData> entry : users.entrySet())
+			appendUserRow(userTable, entry.getKey(), entry.getValue());
 
-		return userTable;
+		return userTable.toString();
+	}
+	
+	/**
+	 * Get the whole user list, of the form "=version\nuser;loggedOn;fingerprint\n...".
+	 * Every client that logs in is sent this, so it is only encoded once per
+	 * version of the user list.
+	 * 
+	 * @param snapshot A snapshot of the user list.
+	 * @return A String representing the snapshot.
+	 */
+	private static String encodeUserList(Registry.Snapshot<UserData> snapshot) {
+		final EncodedSnapshot cached = encodedUserList;
+		if (cached != null && cached.version == snapshot.getVersion())
+			return cached.text;
+		
+		final StringBuilder text = new StringBuilder();
+		text.append('=').append(snapshot.getVersion()).append('\n');
+		for (Map.Entry<String, UserData> entry : snapshot.getEntries().entrySet())
+			appendUserRow(text, entry.getKey(), entry.getValue());
+		
+		final EncodedSnapshot encoded = new EncodedSnapshot(snapshot.getVersion(), text.toString());
+		encodedUserList = encoded;
+		return encoded.text;
+	}
+	
+	/**
+	 * Append a single entry of the user list to a String, of the form
+	 * "user;loggedOn;fingerprint\n".
+	 * 
+	 * @param userRow The String to append to.
+	 * @param userKey The ID of the user.
+	 * @param userInfo The user data, or null if the user has been removed.
+	 */
+	private static void appendUserRow(StringBuilder userRow, String userKey, UserData userInfo) {
+		userRow.append(userKey);
+		userRow.append(';');
+		if (userInfo != null && userInfo.userThread != null)
+			userRow.append("true");
+		else
+			userRow.append("false");
+		userRow.append(';');
+		if (userInfo != null && userInfo.fingerprint != null)
+			userRow.append(userInfo.fingerprint);
+		userRow.append('\n');
 	}
 
 	/**
@@ -237,76 +733,200 @@ public class ServerThread extends Thread {
 	 * in a packet.
 	 * 
 	 * @return A String representing the secret list. The output string is of  
-	 * the form "secretKey;cost;description;filename\n..."
+	 * the form "secretKey;cost;filename\n..."
 	 */
-	private synchronized String secretListAsString() {
-		String secretTable = "";
-		final Enumeration<String> i = secretList.keys();
+	private static String secretListAsString() {
+		final StringBuilder secretTable = new StringBuilder();
 		
-		while (i.hasMoreElements()) {
-			final String secretKey = i.nextElement();
-			final SecretData secretInfo = secretList.get(secretKey);
-			
-			secretTable += secretKey;
-			secretTable += ";";
-			if (secretInfo != null) {
-				secretTable += secretInfo.cost + ";";
-				secretTable += secretInfo.description + ";";
-				secretTable += secretInfo.filename;
-			}
-			secretTable += "\n";
-		}
+		for (Map.Entry<String, SecretData> entry : secretList.snapshot().getEntries().entrySet())
+			secretTable.append(secretRowAsString(entry.getKey(), entry.getValue()));
 
-		return secretTable;
+		return secretTable.toString();
 	}
-
+	
 	/**
-	 * Send the user list (as a String) to all current users. Sent to all logged
-	 * in users (including the new user) whenever a new user logs on.
+	 * Convert a single secret to a row of the secret list. Descriptions are 
+	 * not included, as they can be large. A client fetches the description of 
+	 * a secret (with CMD_SECRETINFO) when it needs it.
+	 * 
+	 * @param secretKey The name of the secret.
+	 * @param secretInfo The secret, or null if the secret has been removed.
+	 * @return A String of the form "secretKey;cost;filename\n", or 
+	 * "secretKey;\n" if the secret has been removed.
 	 */
-	private synchronized void sendUserList() {
-		final Enumeration<String> i = userList.keys();
-		final String userTable = userListAsString();
+	private static String secretRowAsString(String secretKey, SecretData secretInfo) {
+		if (secretInfo == null)
+			return secretKey + ";\n";
+		else
+			return secretKey + ";" + secretInfo.cost + ";" + secretInfo.filename + "\n";
+	}
 
-		while (i.hasMoreElements()) {
-			final String userKey = i.nextElement();
-			final UserData userInfo = userList.get(userKey);
+	/**
+	 * Send the changes to the user list to all current users. Sent to all 
+	 * logged in users (including the new user) whenever a user logs on or off.
+	 * The user list is sent shortly afterwards, together with any other 
+	 * changes made in the meantime.
+	 */
+	private void sendUserList() {
+		userListBroadcast.schedule();
+	}
+	
+	/** Bring every current user's copy of the user list up to date. */
+	private static void broadcastUserList() {
+		for (Map.Entry<String, UserData> entry : userList.snapshot().getEntries().entrySet()) {
+			final String userKey = entry.getKey();
+			final UserData userInfo = entry.getValue();
 
 			if (userInfo != null && userInfo.userThread != null) {
 				if (userInfo.userThread.stealthComms == null) {
-					userInfo.userThread = null;
+					userList.replace(userKey, userInfo, new UserData(null, userInfo.publicKey));
 				} else {
-					/** Send this user the user list in a packet. */
-					if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending the user list to user \"" + userKey + "\".");
-					userInfo.userThread.stealthComms.sendPacket(DecryptedPacket.CMD_LIST, userTable);
+					/** Bring this user's copy of the user list up to date. */
+					if (DEBUG_GENERAL) System.out.println("Sending the user list to user \"" + userKey + "\".");
+					userInfo.userThread.sendPresence();
 				}
 			}
 		}
 	}
+	
+	/**
+	 * Bring this client's copy of the user list up to date. The client is sent
+	 * only the users that have changed since the version of the user list that
+	 * it was last sent, as a delta of the form 
+	 * "+fromVersion;toVersion\nuser;loggedOn;fingerprint\n...". If the client 
+	 * has not been sent the user list (or if the changes are no longer 
+	 * remembered), then the client is sent the whole user list, of the form
+	 * "=version\nuser;loggedOn;fingerprint\n...".
+	 * 
+	 * This may be called by any thread. Deltas are sent in order, as the 
+	 * client's version is only updated while holding presenceLock.
+	 */
+	private void sendPresence() {
+		synchronized (presenceLock) {
+			final List<Registry.Change<UserData>> changes = (presenceVersion < 0) ? null : userList.getChangesSince(presenceVersion);
+			
+			if (changes == null) {
+				final Registry.Snapshot<UserData> snapshot = userList.snapshot();
+				
+				if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending user list version " + snapshot.getVersion() + ".");
+				send(DecryptedPacket.CMD_LIST, encodeUserList(snapshot));
+				presenceVersion = snapshot.getVersion();
+			} else if (!changes.isEmpty()) {
+				/** Only send the latest state of each changed user. */
+				final Map<String, UserData> changed = new LinkedHashMap<String, UserData>();
+				for (Registry.Change<UserData> change : changes) {
+					changed.remove(change.getName());
+					changed.put(change.getName(), change.getValue());
+				}
+				
+				final long version = changes.get(changes.size() - 1).getVersion();
+				final StringBuilder delta = new StringBuilder();
+				delta.append('+').append(presenceVersion).append(';').append(version).append('\n');
+				for (Map.Entry<String, UserData> entry : changed.entrySet())
+					appendUserRow(delta, entry.getKey(), entry.getValue());
+				
+				if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending user list changes from version " + presenceVersion + " to version " + version + ".");
+				send(DecryptedPacket.CMD_LIST, delta.toString());
+				presenceVersion = version;
+			}
+		}
+	}
 
 	/**
 	 * Send the secret list (as a String) to all current users. Sent to all
 	 * logged in users (including the new user) whenever a new user logs on.
+	 * The secret list is sent shortly afterwards, together with any other 
+	 * changes made in the meantime.
 	 */
-	private synchronized void sendSecretList() {
-		final Enumeration<String> i = userList.keys();
-		final String secretTable = secretListAsString();
+	private void sendSecretList() {
+		secretListBroadcast.schedule();
+	}
+	
+	/** Bring every current user's copy of the secret list up to date. */
+	private static void broadcastSecretList() {
+		final Map<String, UserData> users = userList.snapshot().getEntries();
 
-		while (i.hasMoreElements()) {
-			final String userKey = i.nextElement();
-			final UserData userInfo = userList.get(userKey);
+		for (Map.Entry<String, UserData> entry : users.entrySet()) {
+			final String userKey = entry.getKey();
+			final UserData userInfo = entry.getValue();
 
 			if (userInfo != null && userInfo.userThread != null) {
 				if (userInfo.userThread.stealthComms == null) {
-					userInfo.userThread = null;
+					userList.replace(userKey, userInfo, new UserData(null, userInfo.publicKey));
 				} else {
-					/** Send this user the secret list in a packet. */
-					if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending the secret list to user \"" + userKey + "\".");
-					userInfo.userThread.stealthComms.sendPacket(DecryptedPacket.CMD_SECRETLIST, secretTable);
+					/** Bring this user's copy of the secret list up to date. */
+					if (DEBUG_GENERAL) System.out.println("Sending the secret list to user \"" + userKey + "\".");
+					userInfo.userThread.sendSecretListChanges();
 				}
 			}
 		}
 	}
+	
+	/**
+	 * Bring this client's copy of the secret list up to date. The client is 
+	 * sent only the secrets that have changed since the version of the secret
+	 * list that it was last sent. If the client has not been sent the secret 
+	 * list (or if the changes are no longer remembered), then the client is 
+	 * sent the whole secret list.
+	 * 
+	 * Either way, the secrets are sent in pages of (at most) 
+	 * SECRET_LIST_PAGE_SIZE secrets, so that a large secret list does not need
+	 * a single large packet. Each page starts with a header of the form
+	 * "+fromVersion;toVersion;page;pages" (for changes) or 
+	 * "=version;page;pages" (for the whole list), followed by rows of the form
+	 * "secretKey;cost;filename\n...". The client should only consider itself
+	 * to be at the new version once it has received every page.
+	 * 
+	 * This may be called by any thread. Pages are sent in order, as the 
+	 * client's version is only updated while holding secretListLock.
+	 */
+	private void sendSecretListChanges() {
+		synchronized (secretListLock) {
+			final List<Registry.Change<SecretData>> changes = (secretListVersion < 0) ? null : secretList.getChangesSince(secretListVersion);
+			final Map<String, SecretData> secrets;
+			final String header;
+			final long version;
+			
+			if (changes == null) {
+				final Registry.Snapshot<SecretData> snapshot = secretList.snapshot();
+				secrets = snapshot.getEntries();
+				version = snapshot.getVersion();
+				header = "=" + version;
+				
+				if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending secret list version " + version + ".");
+			} else if (!changes.isEmpty()) {
+				/** Only send the latest state of each changed secret. */
+				secrets = new LinkedHashMap<String, SecretData>();
+				for (Registry.Change<SecretData> change : changes) {
+					secrets.remove(change.getName());
+					secrets.put(change.getName(), change.getValue());
+				}
+				version = changes.get(changes.size() - 1).getVersion();
+				header = "+" + secretListVersion + ";" + version;
+				
+				if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending secret list changes from version " + secretListVersion + " to version " + version + ".");
+			} else {
+				return;
+			}
+			
+			/** Split the secrets into pages. An empty list still needs one page. */
+			final int pageSize = Math.max(1, SECRET_LIST_PAGE_SIZE);
+			final int pages = Math.max(1, (secrets.size() + pageSize - 1) / pageSize);
+			final Iterator<Map.Entry<String, SecretData>> iterator = secrets.entrySet().iterator();
+			
+			for (int page = 0; page < pages; page++) {
+				final StringBuilder secretTable = new StringBuilder();
+				secretTable.append(header).append(";").append(page).append(";").append(pages).append("\n");
+				
+				for (int row = 0; row < pageSize && iterator.hasNext(); row++) {
+					final Map.Entry<String, SecretData> entry = iterator.next();
+					secretTable.append(secretRowAsString(entry.getKey(), entry.getValue()));
+				}
+				send(DecryptedPacket.CMD_SECRETLIST, secretTable.toString());
+			}
+			secretListVersion = version;
+		}
+	}
 
 	/**
 	 * The main function for the class. This function handles all type of
@@ -335,313 +955,592 @@ public class ServerThread extends Thread {
 	public void run() {
 		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Running ServerThread...");
 
-		DecryptedPacket pckt = new DecryptedPacket();
 		try {
-			while (pckt.command != DecryptedPacket.CMD_LOGOUT) {
+			while (true) {
 				/** Receive a StealthNet.Packet. */
-				pckt = stealthComms.recvPacket();
+				final DecryptedPacket pckt = stealthComms.recvPacket();
 				
-				if (pckt == null)
+				if (pckt == null || !handlePacket(pckt))
+					break;
+			}
+		} catch (IOException e) {
+			System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" session terminated.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		} catch (Exception e) {
+			System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Error running server thread.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+
+		endSession();
+	}
+	
+	/**
+	 * Perform the relevant action for a single packet received from the 
+	 * client. This is called by run() in the thread-per-connection mode, and
+	 * by a Reactor selector thread in the non-blocking mode, so it must not
+	 * block waiting for the client.
+	 * 
+	 * @param pckt The packet that was received.
+	 * @return False if the client has logged out, otherwise true.
+	 * @throws Exception
+	 */
+	public boolean handlePacket(DecryptedPacket pckt) throws Exception {
+		if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received packet: (" + pckt.getDecodedString() + ").");
+
+		/** Perform the relevant action based on the packet command. */
+		switch (pckt.command) {						
+			/***********************************************************
+			 * NULL command
+			 **********************************************************/
+			case DecryptedPacket.CMD_NULL:
+			{
+				if (DEBUG_COMMANDS_NULL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received NULL command.");
+				break;
+			}
+			
+			/***********************************************************
+			 * Login command
+			 **********************************************************/
+			case DecryptedPacket.CMD_LOGIN:
+			{
+				if (DEBUG_COMMANDS_LOGIN) System.out.println("Received login command.");
+	
+				if (userID != null) {
+					/** A user is already logged in. */
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" trying to log in twice.");
 					break;
+				}
 				
-				if (DEBUG_GENERAL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received packet: (" + pckt.getDecodedString() + ").");
+				/** Extract the user ID from the packet data. */
+				userID = new String(pckt.data);
 
-				/** Perform the relevant action based on the packet command. */
-				switch (pckt.command) {						
-					/***********************************************************
-					 * NULL command
-					 **********************************************************/
-					case DecryptedPacket.CMD_NULL:
-					{
-						if (DEBUG_COMMANDS_NULL) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received NULL command.");
-						break;
+				/** Log the user in. */
+				if (!addUser(userID)) {
+					System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" is already logged in.");
+
+					/** Cancel the current login attempt. */
+					pckt.command = DecryptedPacket.CMD_LOGOUT;
+					userID = null;
+				} else {
+					System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" has logged in.");
+
+					if (DEBUG_COMMANDS_LOGIN) {
+						System.out.println("Distributing user list...");
+						System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Distributing user list: \"" + userListAsString().replace('\n', ';') + "\"");
 					}
-					
-					/***********************************************************
-					 * Login command
-					 **********************************************************/
-					case DecryptedPacket.CMD_LOGIN:
-					{
-						if (DEBUG_COMMANDS_LOGIN) System.out.println("Received login command.");
-	
-						if (userID != null) {
-							/** A user is already logged in. */
-							System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" trying to log in twice.");
-							break;
-						}
-						
-						/** Extract the user ID from the packet data. */
-						userID = new String(pckt.data);
-
-						/** Log the user in. */
-						if (!addUser(userID)) {
-							System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" is already logged in.");
-
-							/** Cancel the current login attempt. */
-							pckt.command = DecryptedPacket.CMD_LOGOUT;
-							userID = null;
-						} else {
-							System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" has logged in.");
-
-							if (DEBUG_COMMANDS_LOGIN) {
-								System.out.println("Distributing user list...");
-								System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Distributing user list: \"" + userListAsString().replace('\n', ';') + "\"");
-							}
-							sendUserList();
-
-							if (DEBUG_COMMANDS_LOGIN) {
-								System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Distributing secret list...");
-								System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Distributing secret list: \"" + secretListAsString().replace('\n', ';') + "\"");
-							}
-							sendSecretList();
-						}
-						break;
+					sendUserList();
+
+					/** 
+					 * The secret list hasn't changed, so only the new user
+					 * needs to be sent it.
+					 */
+					if (DEBUG_COMMANDS_LOGIN) {
+						System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending secret list...");
+						System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending secret list: \"" + secretListAsString().replace('\n', ';') + "\"");
 					}
-					
-					/***********************************************************
-					 * Logout command
-					 **********************************************************/
-					case DecryptedPacket.CMD_LOGOUT:
-					{
-						if (DEBUG_COMMANDS_LOGOUT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received logout command.");
+					sendSecretListChanges();
+				}
+				break;
+			}
+			
+			/***********************************************************
+			 * Logout command
+			 **********************************************************/
+			case DecryptedPacket.CMD_LOGOUT:
+			{
+				if (DEBUG_COMMANDS_LOGOUT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received logout command.");
 	
-						if (userID == null)
-							System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to log out.");
-						else
-							System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" has logged out.");
+				if (userID == null)
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to log out.");
+				else
+					System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" has logged out.");
 	
-						/** The code will now break out of the while loop. */
-						break;
-					}
+				/** The code will now break out of the while loop. */
+				break;
+			}
+			
+			/***********************************************************
+			 * List command
+			 **********************************************************/
+			case DecryptedPacket.CMD_LIST:
+			{
+				if (DEBUG_COMMANDS_LIST) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received list command.");
+				
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to get user list.");
+					break;
+				}
+				
+				/** The client has missed some changes, so send the whole list. */
+				synchronized (presenceLock) {
+					presenceVersion = -1;
+					sendPresence();
+				}
+				break;
+			}
+			
+			/***********************************************************
+			 * Secret List command
+			 **********************************************************/
+			case DecryptedPacket.CMD_SECRETLIST:
+			{
+				if (DEBUG_COMMANDS_SECRETLIST) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received secret list command.");
+				
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to get secret list.");
+					break;
+				}
+				
+				/** 
+				 * NOTE: Data will be of the form "version", where version is 
+				 * the last version of the secret list that the client has 
+				 * received in full (or -1).
+				 */
+				long version;
+				try {
+					version = Long.parseLong(new String(pckt.data).trim());
+				} catch (final NumberFormatException e) {
+					version = -1;
+				}
+				
+				/** Send the changes since the client's version. */
+				synchronized (secretListLock) {
+					secretListVersion = (version > secretList.getVersion()) ? -1 : version;
+					sendSecretListChanges();
+				}
+				break;
+			}
+			
+			/***********************************************************
+			 * Secret Info command
+			 **********************************************************/
+			case DecryptedPacket.CMD_SECRETINFO:
+			{
+				if (DEBUG_COMMANDS_SECRETINFO) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received secret info command.");
+				
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to get secret info.");
+					break;
+				}
+				
+				/** 
+				 * NOTE: Data will be of the form "name". The reply is of the
+				 * form "name;description".
+				 */
+				final String name = new String(pckt.data);
+				final SecretData secretInfo = secretList.get(name);
+				
+				if (secretInfo == null) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] Secret is not available";
 					
-					/***********************************************************
-					 * Message command
-					 **********************************************************/
-					case DecryptedPacket.CMD_MSG:
-					{
-						if (DEBUG_COMMANDS_MSG) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received message command.");
+					if (DEBUG_COMMANDS_SECRETINFO) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+				} else {
+					if (DEBUG_COMMANDS_SECRETINFO) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending description of secret \"" + name + "\".");
+					send(DecryptedPacket.CMD_SECRETINFO, name + ";" + secretInfo.description);
+				}
+				break;
+			}
+			
+			/***********************************************************
+			 * Search Secrets command
+			 **********************************************************/
+			case DecryptedPacket.CMD_SEARCHSECRETS:
+			{
+				if (DEBUG_COMMANDS_SEARCH) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received search secrets command.");
+				
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to search secrets.");
+					break;
+				}
+				
+				/** 
+				 * NOTE: Data will be of the form 
+				 * "offset;limit;minCost;maxCost;owner;query", where any field
+				 * (other than offset) may be empty. The reply is of the form
+				 * "total;offset\nsecretKey;cost;filename\n...", with at most
+				 * SECRET_LIST_PAGE_SIZE results.
+				 * 
+				 * Clients should not know who owns a secret, so a user can 
+				 * only search by owner for their own secrets.
+				 */
+				final String fields[] = new String(pckt.data).split(";", 6);
+				final int offset, limit;
+				final Integer minCost, maxCost;
+				try {
+					offset = Integer.parseInt(fields[0].trim());
+					limit = (fields.length > 1 && fields[1].trim().length() > 0) ? Math.min(Integer.parseInt(fields[1].trim()), SECRET_LIST_PAGE_SIZE) : SECRET_LIST_PAGE_SIZE;
+					minCost = (fields.length > 2 && fields[2].trim().length() > 0) ? Integer.valueOf(fields[2].trim()) : null;
+					maxCost = (fields.length > 3 && fields[3].trim().length() > 0) ? Integer.valueOf(fields[3].trim()) : null;
+				} catch (final NumberFormatException e) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] Invalid search";
+					
+					if (DEBUG_COMMANDS_SEARCH) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+					break;
+				}
+				final String owner = (fields.length > 4 && fields[4].trim().length() > 0) ? fields[4].trim() : null;
+				final String query = (fields.length > 5) ? fields[5] : "";
+				
+				if (owner != null && !owner.equals(userID)) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] You can only search for your own secrets";
+					
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" tried to search for the secrets of user \"" + owner + "\".");
+					send(msg_type, msg);
+					break;
+				}
+				
+				final long start = System.nanoTime();
+				final SecretIndex.Result result = secretIndex.search(query, minCost, maxCost, owner, offset, limit);
+				if (DEBUG_COMMANDS_SEARCH) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Search for \"" + query + "\" matched " + result.getTotal() + " secrets in " + (System.nanoTime() - start) / 1000 + "us.");
+				
+				final StringBuilder results = new StringBuilder();
+				results.append(result.getTotal()).append(";").append(offset).append("\n");
+				for (String name : result.getNames()) {
+					final SecretData secretInfo = secretList.get(name);
+					if (secretInfo != null)
+						results.append(secretRowAsString(name, secretInfo));
+				}
+				send(DecryptedPacket.CMD_SEARCHSECRETS, results.toString());
+				break;
+			}
+			
+			/***********************************************************
+			 * Commitment command
+			 **********************************************************/
+			case DecryptedPacket.CMD_COMMITMENT:
+			{
+				if (DEBUG_COMMANDS_COMMITMENT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received commitment command.");
+				
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to give a hash chain.");
+					break;
+				}
+				
+				/** 
+				 * NOTE: Data will be of the form "root;length;signature", where
+				 * the signature is the bank's signature of the chain. 
+				 */
+				final CryptoCredit.Commitment commitment = CryptoCredit.Commitment.parse(userID, new String(pckt.data).split(";"));
+				if (commitment == null || paymentRedeemer == null || !paymentRedeemer.verify(commitment)) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] Hash chain was not accepted";
+					
+					if (DEBUG_COMMANDS_COMMITMENT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+					break;
+				}
+				
+				/** Carry on from the last token accepted if the chain has been given before. */
+				final String root = Base64.encodeBase64String(commitment.getRoot()).trim();
+				final Credit added = new Credit(commitment);
+				final Credit existing = commitments.putIfAbsent(root, added);
+				final Credit chain = existing != null ? existing : added;
+				if (!chain.commitment.getUser().equals(userID) || chain.isClosed()) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] Hash chain was not accepted";
+					
+					if (DEBUG_COMMANDS_COMMITMENT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+					break;
+				}
+				
+				/** Close the previous chain before replacing it. */
+				if (chain != credit)
+					closeCredit();
+				credit = chain;
+				if (DEBUG_COMMANDS_COMMITMENT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Accepted hash chain of user \"" + userID + "\".");
+				break;
+			}
+			
+			/***********************************************************
+			 * Get Public Key command
+			 **********************************************************/
+			case DecryptedPacket.CMD_GETPUBLICKEY:
+			{
+				if (DEBUG_COMMANDS_GETPUBLICKEY) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received get public key command.");
+				
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to get public key.");
+					break;
+				}
+				
+				/** 
+				 * NOTE: Data will be of the form "fingerprint". The reply is 
+				 * of the form "fingerprint;publicKey".
+				 */
+				final String fingerprint = new String(pckt.data).trim();
+				final PublicKey publicKey = publicKeys.get(fingerprint);
+				
+				if (publicKey == null) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] Public key is not available";
+					
+					if (DEBUG_COMMANDS_GETPUBLICKEY) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+				} else {
+					if (DEBUG_COMMANDS_GETPUBLICKEY) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending public key with fingerprint \"" + fingerprint + "\".");
+					send(DecryptedPacket.CMD_GETPUBLICKEY, fingerprint + ";" + Base64.encodeBase64String(publicKey.getEncoded()));
+				}
+				break;
+			}
+			
+			/***********************************************************
+			 * Message command
+			 **********************************************************/
+			case DecryptedPacket.CMD_MSG:
+			{
+				if (DEBUG_COMMANDS_MSG) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received message command.");
 	
-						if (userID == null) {
-							System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to send message.");
-							break;
-						}
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to send message.");
+					break;
+				}
 
-						/** Send the message to all users. */
-						final String msg = "[" + userID + "] " + new String(pckt.data);
-						final Enumeration<String> i = userList.keys();
-						while (i.hasMoreElements()) {
-							final String userKey = i.nextElement();
-							final UserData userInfo = userList.get(userKey);
-
-							if (userInfo != null && userInfo.userThread != null) {
-								if (DEBUG_COMMANDS_MSG) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending message \"" + msg + "\" to user \"" + userKey + "\".");
-								userInfo.userThread.stealthComms.sendPacket(DecryptedPacket.CMD_MSG, msg);
-							}
-						}
-						break;
+				/** Send the message to all users. */
+				final String msg = "[" + userID + "] " + new String(pckt.data);
+				for (Map.Entry<String, UserData> entry : userList.snapshot().getEntries().entrySet()) {
+					final String userKey = entry.getKey();
+					final UserData userInfo = entry.getValue();
+
+					if (userInfo != null && userInfo.userThread != null) {
+						if (DEBUG_COMMANDS_MSG) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending message \"" + msg + "\" to user \"" + userKey + "\".");
+						userInfo.userThread.send(DecryptedPacket.CMD_MSG, msg);
 					}
-					
-					/***********************************************************
-					 * Chat command
-					 **********************************************************/
-					case DecryptedPacket.CMD_CHAT:
-					{
-						if (DEBUG_COMMANDS_CHAT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received chat command.");
+				}
+				break;
+			}
+			
+			/***********************************************************
+			 * Chat command
+			 **********************************************************/
+			case DecryptedPacket.CMD_CHAT:
+			{
+				if (DEBUG_COMMANDS_CHAT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received chat command.");
 	
-						if (userID == null) {
-							System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to chat.");
-							break;
-						}
-						
-						/** 
-						 * NOTE: Data will be of the form "user@host:port".
-						 */
-						final String data = new String(pckt.data);
-						final String iAddr = data.split("@")[1];
-						final String userKey = data.split("@")[0];
-						final UserData userInfo = userList.get(userKey);
-						
-						if (userInfo == null || userInfo.userThread == null) {
-							final byte msg_type = DecryptedPacket.CMD_MSG;
-							final String msg = "[*SVR*] User not logged in";
-							
-							if (DEBUG_COMMANDS_CHAT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
-							stealthComms.sendPacket(msg_type, msg);
-						} else if (userInfo.userThread == Thread.currentThread()) {
-							final byte msg_type = DecryptedPacket.CMD_MSG;
-							final String msg = "[*SVR*] Cannot chat to self";
-							
-							if (DEBUG_COMMANDS_CHAT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
-							stealthComms.sendPacket(msg_type, msg);
-						} else {
-							final byte msg_type = DecryptedPacket.CMD_CHAT;
-							final String msg = userID + "@" + iAddr;
-							
-							if (DEBUG_COMMANDS_CHAT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending chat message \"" + msg + "\" to user \"" + userKey + "\".");
-							userInfo.userThread.stealthComms.sendPacket(msg_type, msg);
-						}
-						
-						break;
-					}
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to chat.");
+					break;
+				}
+				
+				/** 
+				 * NOTE: Data will be of the form "user@host:port".
+				 */
+				final String data = new String(pckt.data);
+				final String iAddr = data.split("@")[1];
+				final String userKey = data.split("@")[0];
+				final UserData userInfo = userList.get(userKey);
+				
+				if (userInfo == null || userInfo.userThread == null) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] User not logged in";
 					
-					/***********************************************************
-					 * FTP command
-					 **********************************************************/
-					case DecryptedPacket.CMD_FTP:
-					{
-						if (DEBUG_COMMANDS_FTP) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received FTP command.");
+					if (DEBUG_COMMANDS_CHAT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+				} else if (userInfo.userThread == this) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] Cannot chat to self";
+					
+					if (DEBUG_COMMANDS_CHAT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+				} else {
+					final byte msg_type = DecryptedPacket.CMD_CHAT;
+					final String msg = userID + "@" + iAddr;
+					
+					if (DEBUG_COMMANDS_CHAT) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending chat message \"" + msg + "\" to user \"" + userKey + "\".");
+					userInfo.userThread.send(msg_type, msg);
+				}
+				
+				break;
+			}
+			
+			/***********************************************************
+			 * FTP command
+			 **********************************************************/
+			case DecryptedPacket.CMD_FTP:
+			{
+				if (DEBUG_COMMANDS_FTP) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received FTP command.");
 	
-						if (userID == null) {
-							System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to transfer file.");
-							break;
-						}
-						
-						/** 
-						 * NOTE: Data will be of the form "user@host:port".
-						 */
-						final String data = new String(pckt.data);
-						final String iAddr = data.split("@")[1];
-						final String userKey = data.split("@")[0];
-						final UserData userInfo = userList.get(userKey);
-						
-						if (userInfo == null || userInfo.userThread == null) {
-							final byte msg_type = DecryptedPacket.CMD_MSG;
-							final String msg = "[*SVR*] User not logged in";
-							
-							if (DEBUG_COMMANDS_FTP) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
-							stealthComms.sendPacket(msg_type, msg);
-						} else if (userInfo.userThread == Thread.currentThread()) {
-							final byte msg_type = DecryptedPacket.CMD_MSG;
-							final String msg = "[*SVR*] Cannot ftp to self";
-							
-							if (DEBUG_COMMANDS_FTP) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
-							stealthComms.sendPacket(msg_type, msg);
-						} else {
-							final byte msg_type = DecryptedPacket.CMD_FTP;
-							final String msg = userID + "@" + iAddr;
-							
-							if (DEBUG_COMMANDS_FTP) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending file transfer message \"" + msg + "\" to user \"" + userKey + "\".");
-							userInfo.userThread.stealthComms.sendPacket(msg_type, msg);
-						}
-						break;
-					}
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to transfer file.");
+					break;
+				}
+				
+				/** 
+				 * NOTE: Data will be of the form "user@host:port".
+				 */
+				final String data = new String(pckt.data);
+				final String iAddr = data.split("@")[1];
+				final String userKey = data.split("@")[0];
+				final UserData userInfo = userList.get(userKey);
+				
+				if (userInfo == null || userInfo.userThread == null) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] User not logged in";
 					
-					/***********************************************************
-					 * Create Secret command
-					 **********************************************************/
-					case DecryptedPacket.CMD_CREATESECRET:
-					{
-						if (DEBUG_COMMANDS_CREATESECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received create secret command.");
+					if (DEBUG_COMMANDS_FTP) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+				} else if (userInfo.userThread == this) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] Cannot ftp to self";
+					
+					if (DEBUG_COMMANDS_FTP) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+				} else {
+					final byte msg_type = DecryptedPacket.CMD_FTP;
+					final String msg = userID + "@" + iAddr;
+					
+					if (DEBUG_COMMANDS_FTP) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending file transfer message \"" + msg + "\" to user \"" + userKey + "\".");
+					userInfo.userThread.send(msg_type, msg);
+				}
+				break;
+			}
+			
+			/***********************************************************
+			 * Create Secret command
+			 **********************************************************/
+			case DecryptedPacket.CMD_CREATESECRET:
+			{
+				if (DEBUG_COMMANDS_CREATESECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received create secret command.");
 	
-						if (userID == null) {
-							System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to create secret.");
-							break;
-						}
-						
-						/** Depacketise the create secret command. */
-						final SecretData t = new SecretData();
-						t.owner = userID;
-						t.name = "";
-						t.description = "";
-						t.cost = 0;
-						t.dirname = "";
-						t.filename = "";
-
-						final StringTokenizer tokens = new StringTokenizer(new String(pckt.data), ";");
-						t.name = tokens.nextToken();
-						t.description = tokens.nextToken();
-						t.cost = Integer.parseInt(tokens.nextToken());
-						t.dirname = tokens.nextToken();
-						t.filename = tokens.nextToken();
-
-						addSecret(t);
-						if (DEBUG_COMMANDS_CREATESECRET)
-							System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + userID + " added secret \"" + t.name + "\" to secret list.");
-						else
-							System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + userID + " added secret.\n");
-
-						if (DEBUG_COMMANDS_CREATESECRET) 
-							System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Distributing secret list: \"" + secretListAsString() + "\"");
-						else
-							System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Distributing secret list.\n");
-						sendSecretList();
-						break;
-					}
-					/***********************************************************
-					 * Get Secret command
-					 **********************************************************/
-					case DecryptedPacket.CMD_GETSECRET:
-					{
-						if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received Get Secret command.");
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to create secret.");
+					break;
+				}
+				
+				/** Depacketise the create secret command. */
+				final SecretData t = new SecretData();
+				t.owner = userID;
+				t.name = "";
+				t.description = "";
+				t.cost = 0;
+				t.dirname = "";
+				t.filename = "";
+
+				final StringTokenizer tokens = new StringTokenizer(new String(pckt.data), ";");
+				t.name = tokens.nextToken();
+				t.description = tokens.nextToken();
+				t.cost = Integer.parseInt(tokens.nextToken());
+				t.dirname = tokens.nextToken();
+				t.filename = tokens.nextToken();
+
+				addSecret(t);
+				if (DEBUG_COMMANDS_CREATESECRET)
+					System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + userID + " added secret \"" + t.name + "\" to secret list.");
+				else
+					System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + userID + " added secret.\n");
+
+				if (DEBUG_COMMANDS_CREATESECRET) 
+					System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Distributing secret list: \"" + secretListAsString() + "\"");
+				else
+					System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Distributing secret list.\n");
+				sendSecretList();
+				break;
+			}
+			/***********************************************************
+			 * Get Secret command
+			 **********************************************************/
+			case DecryptedPacket.CMD_GETSECRET:
+			{
+				if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Received Get Secret command.");
 	
-						if (userID == null) {
-							System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to get secret.");
-							break;
-						}
+				if (userID == null) {
+					System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Unknown user trying to get secret.");
+					break;
+				}
+				
+				/** 
+				 * NOTE: Data will be of the form "name@address@index@token",
+				 * where the index and token are the payment (see CryptoCredit).
+				 */
+				final String[] fields = new String(pckt.data).split("@");
+				final String name = fields[0];
+				final String destination = fields[1];
+				final SecretData secretInfo = secretList.get(name);
+				
+				if (secretInfo == null) {
+					final byte msg_type = DecryptedPacket.CMD_MSG;
+					final String msg = "[*SVR*] Secret is not available";
+					
+					if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+					send(msg_type, msg);
+				} else {
+					final String user = secretInfo.owner;
+					final UserData userInfo = userList.get(user);
+
+					if (userInfo == null || userInfo.userThread == null) {
+						final byte msg_type = DecryptedPacket.CMD_MSG;
+						final String msg = "[*SVR*] Secret is not currently available";
 						
-						/** 
-						 * NOTE: Data will be of the form "name@address".
-						 */
-						final String data = new String(pckt.data);
-						final String name = data.split("@")[0];
-						final String destination = data.split("@")[1];
-						final SecretData secretInfo = secretList.get(name);
+						if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+						send(msg_type, msg);
+					} else if (userInfo.userThread == this) {
+						final byte msg_type = DecryptedPacket.CMD_MSG;
+						final String msg = "[*SVR*] You can't purchase a secret from yourself!";
 						
-						if (secretInfo == null) {
-							final byte msg_type = DecryptedPacket.CMD_MSG;
-							final String msg = "[*SVR*] Secret is not available";
-							
-							if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
-							stealthComms.sendPacket(msg_type, msg);
-						} else {
-							final String user = secretInfo.owner;
-							final UserData userInfo = userList.get(user);
-
-							if (userInfo == null || userInfo.userThread == null) {
-								final byte msg_type = DecryptedPacket.CMD_MSG;
-								final String msg = "[*SVR*] Secret is not currently available";
-								
-								if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
-								stealthComms.sendPacket(msg_type, msg);
-							} else if (userInfo.userThread == Thread.currentThread()) {
-								final byte msg_type = DecryptedPacket.CMD_MSG;
-								final String msg = "[*SVR*] You can't purchase a secret from yourself!";
-								
-								if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
-								stealthComms.sendPacket(msg_type, msg);
-							} else {
-								/** Wait for the signed purchase. */
-								
-								/** Get the bank to verify the signed purchase. */
-								
-								/** Send an acknowledgement. */
-								
-								final String fileName = secretInfo.dirname + secretInfo.filename;
-								final byte msg_type = DecryptedPacket.CMD_GETSECRET;
-								final String msg = fileName + "@" + destination;
-								
-								if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending get secret message \"" + msg + "\" to user \"" + user + "\".");
-								userInfo.userThread.stealthComms.sendPacket(msg_type, msg);
-							}
-						}
-						break;
+						if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+						send(msg_type, msg);
+					} else if (secretInfo.cost > 0 && !acceptPayment(fields, secretInfo.cost, user)) {
+						final byte msg_type = DecryptedPacket.CMD_MSG;
+						final String msg = "[*SVR*] Payment was not accepted";
+						
+						if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Returning error message \"" + msg + "\".");
+						send(msg_type, msg);
+					} else {
+						/** The seller is paid when the payments are redeemed. */
+						final String fileName = secretInfo.dirname + secretInfo.filename;
+						final byte msg_type = DecryptedPacket.CMD_GETSECRET;
+						final String msg = fileName + "@" + destination;
+						
+						if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Sending get secret message \"" + msg + "\" to user \"" + user + "\".");
+						userInfo.userThread.send(msg_type, msg);
 					}
-					
-					/***********************************************************
-					 * Unknown command
-					 **********************************************************/
-					default:
-						System.err.println("Unrecognised command.");
 				}
+				break;
 			}
-		} catch (IOException e) {
-			System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "User \"" + userID + "\" session terminated.");
-			if (DEBUG_ERROR_TRACE) e.printStackTrace();
-		} catch (Exception e) {
-			System.err.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Error running server thread.");
-			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			
+			/***********************************************************
+			 * Unknown command
+			 **********************************************************/
+			default:
+				System.err.println("Unrecognised command.");
 		}
-
+		
+		return pckt.command != DecryptedPacket.CMD_LOGOUT;
+	}
+	
+	/**
+	 * Accept a payment for a secret from the user's hash chain. A payment of 
+	 * up to CryptoCredit.MAX_SKIP credits more than the cost is accepted (the
+	 * client may have revealed tokens for a purchase that failed), but only 
+	 * the cost is owed to the seller.
+	 * 
+	 * @param fields The fields of the get secret command.
+	 * @param cost The cost of the secret.
+	 * @param seller The owner of the secret.
+	 * @return True if the payment was accepted.
+	 */
+	private boolean acceptPayment(final String[] fields, final int cost, final String seller) {
+		if (credit == null || fields.length < 4)
+			return false;
+		
+		try {
+			final boolean accepted = credit.pay(Integer.parseInt(fields[2]), Base64.decodeBase64(fields[3]), cost, seller);
+			if (DEBUG_COMMANDS_GETSECRET) System.out.println(THREADID_PREFIX + this.getId() + THREADID_SUFFIX + "Payment for cost " + cost + (accepted ? " accepted." : " rejected."));
+			return accepted;
+		} catch (final NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Clean up once the client has logged out, or the connection has been 
+	 * closed. This is called exactly once per session.
+	 */
+	public void endSession() {
 		/**
 		 * We only reach this code when a user is logging out, so lets remove
 		 * the logged out user from the user list.
@@ -649,6 +1548,10 @@ public class ServerThread extends Thread {
 		if (userID != null)
 			removeUser(userID);
 		
+		/** The user's hash chain can't be used once the session has ended. */
+		closeCredit();
+		credit = null;
+		
 		/**
 		 * Now that a user has logged out, re-transmit the user list to all
 		 * currently logged in users.
@@ -661,6 +1564,7 @@ public class ServerThread extends Thread {
 		sendUserList();
 
 		/** Clean up. */
+		outboundQueue.close();
 		if (stealthComms != null) {
 			stealthComms.terminateSession();
 			stealthComms = null;
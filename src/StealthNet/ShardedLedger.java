@@ -0,0 +1,769 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        ShardedLedger.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     A ledger that partitions accounts across single-threaded
+ * 					shards, so that no account is ever locked.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* StealthNet.ShardedLedger Class Definition *********************************/
+
+/**
+ * A ledger with a single writer per account. Accounts are partitioned (by the
+ * hash of their ID) across a fixed number of shards, each of which owns its
+ * accounts and runs on its own thread. Callers never touch an account; they
+ * enqueue a request to the shard that owns it, and wait for the result. Each
+ * shard takes requests off its queue in batches, applies the whole batch,
+ * journals it to its own write-ahead log, and forces the log to disk once for
+ * the whole batch before any result is released.
+ *
+ * A transfer between accounts of the same shard is applied in one step. A
+ * transfer between shards is applied in two:
+ * 1. The source shard reserves the funds (debits the source account), and
+ *    journals the reservation, with a unique transfer ID.
+ * 2. The destination shard credits the destination account, and journals the
+ *    commit, with the same transfer ID. If the credit fails, then the source
+ *    shard refunds the reservation instead.
+ * Finally, the source shard journals that the transfer is settled, and the
+ * destination shard forgets the transfer ID. A request is only passed to the
+ * next shard once its record is on disk, so after a crash, recovery can
+ * resolve every unsettled reservation: if the destination has committed it,
+ * then it is settled, otherwise it is refunded.
+ *
+ * Accounts are journalled by the shard that owns them, so the number of shards
+ * is recorded with the journals, and a journal is always recovered (and
+ * continued) with the number of shards that it was written with.
+ *
+ * @author Joshua Spence
+ */
+public class ShardedLedger implements Ledger {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.ShardedLedger.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.ShardedLedger.ErrorTrace") || Debug.isDebug("ErrorTrace");
+
+	/** The default number of shards, for a new journal. */
+	public static final int DEFAULT_SHARDS = Integer.parseInt(System.getProperty("StealthNet.ShardedLedger.Shards", Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+	/** The maximum number of requests that a shard applies as a batch. */
+	public static final int BATCH_SIZE = Integer.parseInt(System.getProperty("StealthNet.ShardedLedger.BatchSize", "256"));
+
+	/** The name of the journal directory of each shard. */
+	private static final String SHARD_PREFIX = "shard-";
+
+	/** The name of the file that records the number of shards of a journal. */
+	private static final String SHARDS_FILE = "shards";
+
+	/** Journal record types. */
+	private static final byte LOG_BALANCES = 1;		/** account;balance[;account;balance] */
+	private static final byte LOG_RESERVE  = 2;		/** id;from;to;amount[;balance] */
+	private static final byte LOG_COMMIT   = 3;		/** id[;to;balance] */
+	private static final byte LOG_SETTLE   = 4;		/** id[;from;balance] */
+	private static final byte LOG_FORGET   = 5;		/** id */
+
+	/** Request operations. */
+	private static final int OP_OPEN     = 0;
+	private static final int OP_BALANCE  = 1;
+	private static final int OP_DEBIT    = 2;
+	private static final int OP_CREDIT   = 3;
+	private static final int OP_TRANSFER = 4;
+	private static final int OP_COMMIT   = 5;		/** at the destination shard */
+	private static final int OP_SETTLE   = 6;		/** at the source shard, after a commit */
+	private static final int OP_REFUND   = 7;		/** at the source shard, after a failed commit */
+	private static final int OP_FORGET   = 8;		/** at the destination shard, after settling */
+
+	/** An account. Only changed by the thread of its shard. */
+	private static class Account {
+		volatile long balance;
+
+		Account(long balance) {
+			this.balance = balance;
+		}
+	}
+
+	/** A reserved transfer that has not been settled. */
+	private static class Reservation {
+		final String from;
+		final String to;
+		final long amount;
+
+		Reservation(String from, String to, long amount) {
+			this.from = from;
+			this.to = to;
+			this.amount = amount;
+		}
+	}
+
+	/**
+	 * A request. A transfer between shards is passed from shard to shard (by
+	 * changing its operation) until it is complete.
+	 */
+	private static class Request {
+		int op;
+		final String account;
+		final String other;
+		final long amount;
+		String id = null;
+		long result = 0;
+		long error = 0;
+
+		/** Released when the result is ready. Null if nobody is waiting. */
+		final CountDownLatch done;
+
+		/** The shard that the request is passed to next, or -1 if it is complete. */
+		int next = -1;
+
+		Request(int op, String account, String other, long amount, boolean wait) {
+			this.op = op;
+			this.account = account;
+			this.other = other;
+			this.amount = amount;
+			this.done = wait ? new CountDownLatch(1) : null;
+		}
+	}
+
+	/** The shards. Only replaced by recover, before the ledger is shared. */
+	private Shard[] shards;
+
+	/** Makes transfer IDs unique across restarts. */
+	private final String idPrefix = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36) + "-";
+	private final AtomicLong nextId = new AtomicLong(0);
+
+	/** Constructor using the default number of shards, without a journal. */
+	public ShardedLedger() {
+		this(DEFAULT_SHARDS);
+	}
+
+	/**
+	 * Constructor, without a journal.
+	 *
+	 * @param shards The number of shards.
+	 */
+	public ShardedLedger(int shards) {
+		startShards(shards);
+	}
+
+	/**
+	 * Create the shards, and start their threads.
+	 *
+	 * @param count The number of shards.
+	 */
+	private void startShards(int count) {
+		shards = new Shard[Math.max(1, count)];
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new Shard(i);
+		for (Shard shard : shards)
+			shard.start();
+	}
+
+	/**
+	 * Recover the accounts from the journals of the shards, and journal every
+	 * change from now on. Transfers that were in progress are settled or
+	 * refunded. Must be called before the ledger is shared.
+	 *
+	 * @param directory The directory that contains the journals.
+	 * @return The number of records recovered.
+	 * @throws IOException
+	 */
+	public long recover(File directory) throws IOException {
+		/** Use the shards that the journals were written with. */
+		final int count = readShardCount(directory);
+		if (count > 0 && count != shards.length) {
+			System.out.println("Ledger journal was written with " + count + " shards. Using " + count + " shards rather than " + shards.length + ".");
+			for (Shard shard : shards)
+				shard.stop();
+			startShards(count);
+		}
+		if (!new File(directory, SHARDS_FILE).exists())
+			writeShardCount(directory);
+
+		long records = 0;
+		for (Shard shard : shards)
+			records += shard.recover(new File(directory, SHARD_PREFIX + shard.index));
+
+		/** Resolve the transfers that were in progress. */
+		int settled = 0, refunded = 0;
+		for (Shard shard : shards)
+			for (Map.Entry<String, Reservation> entry : shard.pending.entrySet()) {
+				final String id = entry.getKey();
+				final Reservation r = entry.getValue();
+				final Shard destination = shards[shardOf(r.to)];
+				if (destination.committed.remove(id) != null) {
+					shard.journal(LOG_SETTLE, id);
+					destination.journal(LOG_FORGET, id);
+					settled++;
+				} else {
+					final Account source = shard.accounts.get(r.from);
+					source.balance += r.amount;
+					shard.journal(LOG_SETTLE, id, r.from, Long.toString(source.balance));
+					refunded++;
+				}
+			}
+		for (Shard shard : shards) {
+			shard.pending.clear();
+			for (String id : shard.committed.keySet())
+				shard.journal(LOG_FORGET, id);
+			shard.committed.clear();
+			shard.sync();
+		}
+
+		if (DEBUG_GENERAL) System.out.println("Recovered " + records + " records. Settled " + settled + " and refunded " + refunded + " transfers.");
+		return records;
+	}
+
+	/**
+	 * Read the number of shards that a journal was written with. Journals
+	 * written before the number was recorded are counted.
+	 *
+	 * @param directory The directory that contains the journals.
+	 * @return The number of shards, or 0 if there is no journal.
+	 * @throws IOException
+	 */
+	private static int readShardCount(File directory) throws IOException {
+		final File file = new File(directory, SHARDS_FILE);
+		if (file.exists()) {
+			final BufferedReader reader = new BufferedReader(new FileReader(file));
+			int count = 0;
+			try {
+				final String line = reader.readLine();
+				count = Integer.parseInt(line == null ? "" : line.trim());
+			} catch (final NumberFormatException e) {
+				count = 0;
+			} finally {
+				reader.close();
+			}
+			if (count <= 0)
+				throw new IOException("Invalid shard count in " + file + ".");
+			return count;
+		}
+
+		/** The shards must be numbered from 0, with no gaps. */
+		int count = 0;
+		while (new File(directory, SHARD_PREFIX + count).isDirectory())
+			count++;
+
+		int found = 0;
+		final String[] names = directory.list();
+		if (names != null)
+			for (String name : names)
+				if (name.startsWith(SHARD_PREFIX))
+					found++;
+		if (found != count)
+			throw new IOException("Ledger journal is missing shards (found " + found + ", numbered 0 to " + (count - 1) + ").");
+		return count;
+	}
+
+	/**
+	 * Record the number of shards with the journals. The file is replaced
+	 * atomically, so that it is never seen half written.
+	 *
+	 * @param directory The directory that contains the journals.
+	 * @throws IOException
+	 */
+	private void writeShardCount(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory + ".");
+
+		final File temporary = new File(directory, SHARDS_FILE + ".tmp");
+		final FileOutputStream out = new FileOutputStream(temporary);
+		try {
+			out.write((shards.length + "\n").getBytes());
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temporary.renameTo(new File(directory, SHARDS_FILE)))
+			throw new IOException("Unable to record the shard count in " + directory + ".");
+	}
+
+	/**
+	 * Get the shard that owns an account.
+	 *
+	 * @param account The ID of the account.
+	 * @return The index of the shard.
+	 */
+	private int shardOf(String account) {
+		return (account.hashCode() & 0x7FFFFFFF) % shards.length;
+	}
+
+	/**
+	 * Pass a request to the shard that owns its account, and wait for the
+	 * result.
+	 *
+	 * @param request The request.
+	 * @return The result of the request.
+	 */
+	private long execute(Request request) {
+		shards[shardOf(request.account)].queue.add(request);
+
+		try {
+			request.done.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return ERROR_JOURNAL;
+		}
+		return request.error != 0 ? request.error : request.result;
+	}
+
+	public long openAccount(String account, long initialBalance) {
+		if (initialBalance < 0)
+			return ERROR_INVALID_AMOUNT;
+		return execute(new Request(OP_OPEN, account, null, initialBalance, true));
+	}
+
+	public long getBalance(String account) {
+		return execute(new Request(OP_BALANCE, account, null, 0, true));
+	}
+
+	public long debit(String account, long amount) {
+		if (amount <= 0)
+			return ERROR_INVALID_AMOUNT;
+		return execute(new Request(OP_DEBIT, account, null, amount, true));
+	}
+
+	public long credit(String account, long amount) {
+		if (amount <= 0)
+			return ERROR_INVALID_AMOUNT;
+		return execute(new Request(OP_CREDIT, account, null, amount, true));
+	}
+
+	public long transfer(String from, String to, long amount) {
+		if (amount <= 0 || from.equals(to))
+			return ERROR_INVALID_AMOUNT;
+		return execute(new Request(OP_TRANSFER, from, to, amount, true));
+	}
+
+	/**
+	 * A shard. The accounts, reservations and commits of a shard are only
+	 * changed by its own thread (or by recover, before the thread has any
+	 * work). They are kept in concurrent maps only so that the journal can
+	 * write a snapshot of them in the background.
+	 * 
+	 * The thread holds the lock of the shard while it applies a batch. A 
+	 * change is journalled before it is made, so a snapshot that started in 
+	 * the middle of a batch would miss changes journalled to the log that it 
+	 * replaces. The snapshot takes the lock, so it only copies the state 
+	 * between batches.
+	 */
+	private class Shard implements Runnable {
+		/** The index of the shard. */
+		final int index;
+
+		/**
+		 * Requests for the shard, from callers and from other shards. This is
+		 * unbounded, so that two shards passing transfers to each other can
+		 * never block each other. Callers are bounded by the number of bank
+		 * threads, as each waits for its own result.
+		 */
+		final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+		/** The accounts owned by the shard, indexed by ID. */
+		final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+
+		/** Transfers from this shard that have not been settled, by ID. */
+		final ConcurrentHashMap<String, Reservation> pending = new ConcurrentHashMap<String, Reservation>();
+
+		/** Transfers to this shard that have been committed, but not yet settled by their source, by ID. */
+		final ConcurrentHashMap<String, Boolean> committed = new ConcurrentHashMap<String, Boolean>();
+
+		/** The journal of the shard, or null if changes are not journalled. */
+		WriteAheadLog journal = null;
+
+		/** The sequence number of the last record journalled. */
+		long sequence = 0;
+
+		/** Requests to forget settled transfers, sent after the current batch. */
+		final List<Request> forgets = new ArrayList<Request>();
+
+		Shard(int index) {
+			this.index = index;
+		}
+
+		/** The thread of the shard. */
+		Thread thread = null;
+
+		/** Start the thread of the shard. */
+		void start() {
+			thread = new Thread(this, "StealthNet.ShardedLedger." + index);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/** Stop the thread of the shard. Only called before the shard has any work. */
+		void stop() {
+			thread.interrupt();
+		}
+
+		/**
+		 * Recover the shard from its journal.
+		 *
+		 * @param directory The directory that contains the journal.
+		 * @return The number of records recovered.
+		 * @throws IOException
+		 */
+		long recover(File directory) throws IOException {
+			final WriteAheadLog newJournal = new WriteAheadLog(directory, new WriteAheadLog.Handler() {
+				public void apply(byte type, String[] fields) {
+					switch (type) {
+						case LOG_BALANCES:
+							for (int i = 0; i + 1 < fields.length; i += 2)
+								accounts.put(fields[i], new Account(Long.parseLong(fields[i + 1])));
+							break;
+
+						case LOG_RESERVE:
+							pending.put(fields[0], new Reservation(fields[1], fields[2], Long.parseLong(fields[3])));
+							if (fields.length > 4)
+								accounts.put(fields[1], new Account(Long.parseLong(fields[4])));
+							break;
+
+						case LOG_COMMIT:
+							committed.put(fields[0], Boolean.TRUE);
+							if (fields.length > 2)
+								accounts.put(fields[1], new Account(Long.parseLong(fields[2])));
+							break;
+
+						case LOG_SETTLE:
+							pending.remove(fields[0]);
+							if (fields.length > 2)
+								accounts.put(fields[1], new Account(Long.parseLong(fields[2])));
+							break;
+
+						case LOG_FORGET:
+							committed.remove(fields[0]);
+							break;
+
+						default:
+							System.err.println("Unknown record type " + type + " in ledger journal of shard " + index + ".");
+					}
+				}
+
+				public void snapshot(WriteAheadLog.Writer writer) throws IOException {
+					/** Copy the state between batches, then write it without blocking the shard. */
+					final List<String[]> reservations = new ArrayList<String[]>();
+					final List<String> commits = new ArrayList<String>();
+					final List<String[]> balances = new ArrayList<String[]>();
+					synchronized (Shard.this) {
+						for (Map.Entry<String, Reservation> entry : pending.entrySet()) {
+							final Reservation r = entry.getValue();
+							reservations.add(new String[] { entry.getKey(), r.from, r.to, Long.toString(r.amount) });
+						}
+						commits.addAll(committed.keySet());
+						for (Map.Entry<String, Account> entry : accounts.entrySet())
+							balances.add(new String[] { entry.getKey(), Long.toString(entry.getValue().balance) });
+					}
+					
+					/** Reservations and commits first, as they may include an older balance. */
+					for (String[] fields : reservations)
+						writer.write(LOG_RESERVE, fields);
+					for (String id : commits)
+						writer.write(LOG_COMMIT, id);
+					for (String[] fields : balances)
+						writer.write(LOG_BALANCES, fields);
+				}
+			});
+
+			final long records = newJournal.recover();
+			journal = newJournal;
+			return records;
+		}
+
+		/**
+		 * Journal a record. Only called by the thread of the shard (or by
+		 * recover).
+		 *
+		 * @param type The type of the record.
+		 * @param fields The fields of the record.
+		 * @throws IOException
+		 */
+		void journal(byte type, String... fields) throws IOException {
+			if (journal != null)
+				sequence = journal.append(type, fields);
+		}
+
+		/**
+		 * Wait until every record journalled so far is on disk.
+		 *
+		 * @throws IOException
+		 */
+		void sync() throws IOException {
+			if (journal != null && sequence != 0)
+				journal.awaitDurable(sequence);
+		}
+
+		/** Take batches of requests off the queue, and apply them. */
+		public void run() {
+			final List<Request> batch = new ArrayList<Request>(BATCH_SIZE);
+			while (true) {
+				try {
+					batch.add(queue.take());
+					queue.drainTo(batch, BATCH_SIZE - 1);
+				} catch (final InterruptedException e) {
+					return;
+				}
+
+				synchronized (this) {
+					for (Request request : batch) {
+						try {
+							apply(request);
+						} catch (final IOException e) {
+							System.err.println("Failed to write ledger journal of shard " + index + ".");
+							if (DEBUG_ERROR_TRACE) e.printStackTrace();
+							failed(request);
+						}
+					}
+				}
+
+				/**
+				 * Nothing is released until the whole batch is on disk. If the
+				 * batch can't be forced to disk, then the outcome of every
+				 * request is unknown until recovery, so nothing is passed on.
+				 */
+				try {
+					sync();
+				} catch (final IOException e) {
+					System.err.println("Failed to commit ledger journal of shard " + index + ".");
+					if (DEBUG_ERROR_TRACE) e.printStackTrace();
+					for (Request request : batch) {
+						request.error = ERROR_JOURNAL;
+						request.next = -1;
+					}
+					forgets.clear();
+				}
+
+				for (Request request : batch) {
+					if (request.next >= 0)
+						shards[request.next].queue.add(request);
+					else if (request.done != null)
+						request.done.countDown();
+				}
+				for (Request forget : forgets)
+					shards[forget.next].queue.add(forget);
+				forgets.clear();
+				batch.clear();
+			}
+		}
+
+		/**
+		 * Decide where a request goes after its record could not be journalled.
+		 * The account has not been changed. A commit is refunded by the source
+		 * shard. A settlement or refund that could not be journalled is left
+		 * for recovery to resolve, as the transfer itself is complete.
+		 *
+		 * @param request The request.
+		 */
+		private void failed(Request request) {
+			if (request.op == OP_COMMIT) {
+				request.error = ERROR_JOURNAL;
+				request.op = OP_REFUND;
+				request.next = shardOf(request.account);
+			} else {
+				if (request.op != OP_SETTLE && request.op != OP_REFUND)
+					request.error = ERROR_JOURNAL;
+				request.next = -1;
+			}
+		}
+
+		/**
+		 * Apply a request, and decide where it goes next. A change to an
+		 * account is journalled before the account is changed, so that a
+		 * change that could not be journalled is never made.
+		 *
+		 * @param request The request.
+		 * @throws IOException
+		 */
+		private void apply(Request request) throws IOException {
+			request.next = -1;
+
+			switch (request.op) {
+				case OP_OPEN:
+				{
+					final Account a = accounts.get(request.account);
+					if (a != null) {
+						request.result = a.balance;
+						break;
+					}
+
+					journal(LOG_BALANCES, request.account, Long.toString(request.amount));
+					accounts.put(request.account, new Account(request.amount));
+					request.result = request.amount;
+					if (DEBUG_GENERAL) System.out.println("Opened account \"" + request.account + "\" on shard " + index + " with balance " + request.amount + ".");
+					break;
+				}
+
+				case OP_BALANCE:
+				{
+					final Account a = accounts.get(request.account);
+					if (a == null)
+						request.error = ERROR_UNKNOWN_ACCOUNT;
+					else
+						request.result = a.balance;
+					break;
+				}
+
+				case OP_DEBIT:
+				case OP_CREDIT:
+				{
+					final Account a = accounts.get(request.account);
+					if (a == null) {
+						request.error = ERROR_UNKNOWN_ACCOUNT;
+						break;
+					}
+
+					final long balance;
+					if (request.op == OP_DEBIT) {
+						if (a.balance < request.amount) {
+							request.error = ERROR_INSUFFICIENT_FUNDS;
+							break;
+						}
+						balance = a.balance - request.amount;
+					} else {
+						if (a.balance > Long.MAX_VALUE - request.amount) {
+							request.error = ERROR_OVERFLOW;
+							break;
+						}
+						balance = a.balance + request.amount;
+					}
+
+					journal(LOG_BALANCES, request.account, Long.toString(balance));
+					a.balance = balance;
+					request.result = balance;
+					break;
+				}
+
+				case OP_TRANSFER:
+				{
+					final Account source = accounts.get(request.account);
+					final int destinationShard = shardOf(request.other);
+					if (source == null) {
+						request.error = ERROR_UNKNOWN_ACCOUNT;
+						break;
+					}
+					if (source.balance < request.amount) {
+						request.error = ERROR_INSUFFICIENT_FUNDS;
+						break;
+					}
+
+					/** Both accounts are owned by this shard. */
+					if (destinationShard == index) {
+						final Account destination = accounts.get(request.other);
+						if (destination == null) {
+							request.error = ERROR_UNKNOWN_ACCOUNT;
+							break;
+						}
+						if (destination.balance > Long.MAX_VALUE - request.amount) {
+							request.error = ERROR_OVERFLOW;
+							break;
+						}
+
+						final long balance = source.balance - request.amount;
+						final long destinationBalance = destination.balance + request.amount;
+						journal(LOG_BALANCES, request.account, Long.toString(balance), request.other, Long.toString(destinationBalance));
+						source.balance = balance;
+						destination.balance = destinationBalance;
+						request.result = balance;
+						break;
+					}
+
+					/** Reserve the funds, and pass the transfer to the destination. */
+					request.id = idPrefix + nextId.incrementAndGet();
+					final long balance = source.balance - request.amount;
+					journal(LOG_RESERVE, request.id, request.account, request.other, Long.toString(request.amount), Long.toString(balance));
+					source.balance = balance;
+					pending.put(request.id, new Reservation(request.account, request.other, request.amount));
+					request.result = balance;
+					request.op = OP_COMMIT;
+					request.next = destinationShard;
+					break;
+				}
+
+				case OP_COMMIT:
+				{
+					final Account destination = accounts.get(request.other);
+					if (destination == null)
+						request.error = ERROR_UNKNOWN_ACCOUNT;
+					else if (destination.balance > Long.MAX_VALUE - request.amount)
+						request.error = ERROR_OVERFLOW;
+					else {
+						final long balance = destination.balance + request.amount;
+						journal(LOG_COMMIT, request.id, request.other, Long.toString(balance));
+						destination.balance = balance;
+						committed.put(request.id, Boolean.TRUE);
+					}
+
+					/** Either way, the source shard settles or refunds the reservation. */
+					request.op = request.error == 0 ? OP_SETTLE : OP_REFUND;
+					request.next = shardOf(request.account);
+					break;
+				}
+
+				case OP_SETTLE:
+				{
+					journal(LOG_SETTLE, request.id);
+					pending.remove(request.id);
+
+					/** The destination no longer needs to remember the transfer. */
+					queueForget(request);
+					break;
+				}
+
+				case OP_REFUND:
+				{
+					final Account source = accounts.get(request.account);
+					final long balance = source.balance + request.amount;
+					journal(LOG_SETTLE, request.id, request.account, Long.toString(balance));
+					source.balance = balance;
+					pending.remove(request.id);
+					break;
+				}
+
+				case OP_FORGET:
+				{
+					journal(LOG_FORGET, request.id);
+					committed.remove(request.id);
+					break;
+				}
+
+				default:
+					System.err.println("Unknown ledger operation " + request.op + ".");
+			}
+		}
+
+		/**
+		 * Tell the destination shard of a settled transfer to forget it. This
+		 * is sent with the rest of the batch, once the settlement is on disk.
+		 *
+		 * @param request The settled transfer.
+		 */
+		private void queueForget(Request request) {
+			final Request forget = new Request(OP_FORGET, request.other, null, 0, false);
+			forget.id = request.id;
+			forget.next = shardOf(request.other);
+			forgets.add(forget);
+		}
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     ShardedLedger.java
+ *****************************************************************************/
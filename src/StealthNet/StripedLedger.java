@@ -0,0 +1,297 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        StripedLedger.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     A ledger that locks a stripe of accounts per operation,
+ * 					and journals every change to a write-ahead log.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* StealthNet.StripedLedger Class Definition *********************************/
+
+/**
+ * A ledger with no global lock. Accounts are spread over a fixed number of
+ * lock stripes (by the hash of their ID), and an operation only locks the
+ * stripes of the accounts that it changes, so operations on unrelated accounts
+ * run in parallel. A transfer locks both stripes, always in the order of their
+ * index, so that two opposing transfers can never deadlock.
+ *
+ * Every change is journalled (while the stripes are locked, so that the
+ * journal has the same order as the changes) as a record of the new balances
+ * of the accounts that changed. The caller then waits for the record to reach
+ * the disk after the locks have been released, so that concurrent operations
+ * share a single force of the journal (group commit), rather than each holding
+ * its locks for a whole disk write.
+ *
+ * @author Joshua Spence
+ */
+public class StripedLedger implements Ledger {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.StripedLedger.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.StripedLedger.ErrorTrace") || Debug.isDebug("ErrorTrace");
+
+	/** The default number of lock stripes. */
+	public static final int DEFAULT_STRIPES = Integer.parseInt(System.getProperty("StealthNet.StripedLedger.Stripes", "64"));
+
+	/** Journal record types. */
+	private static final byte LOG_BALANCES = 1;
+
+	/** An account. The balance is guarded by the stripe of the account. */
+	private static class Account {
+		long balance;
+
+		Account(long balance) {
+			this.balance = balance;
+		}
+	}
+
+	/** The accounts, indexed by ID. */
+	private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+
+	/** The lock stripes. */
+	private final Object[] stripes;
+
+	/** The journal, or null if changes are not journalled. */
+	private WriteAheadLog journal = null;
+
+	/** Constructor using the default number of stripes, without a journal. */
+	public StripedLedger() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Constructor, without a journal.
+	 *
+	 * @param stripes The number of lock stripes.
+	 */
+	public StripedLedger(int stripes) {
+		this.stripes = new Object[Math.max(1, stripes)];
+		for (int i = 0; i < this.stripes.length; i++)
+			this.stripes[i] = new Object();
+	}
+
+	public long recover(File directory) throws IOException {
+		final WriteAheadLog newJournal = new WriteAheadLog(directory, new WriteAheadLog.Handler() {
+			public void apply(byte type, String[] fields) {
+				if (type != LOG_BALANCES) {
+					System.err.println("Unknown record type " + type + " in ledger journal.");
+					return;
+				}
+
+				for (int i = 0; i + 1 < fields.length; i += 2)
+					accounts.put(fields[i], new Account(Long.parseLong(fields[i + 1])));
+			}
+
+			public void snapshot(WriteAheadLog.Writer writer) throws IOException {
+				for (String account : accounts.keySet()) {
+					final long balance = getBalance(account);
+					if (balance >= 0)
+						writer.write(LOG_BALANCES, account, Long.toString(balance));
+				}
+			}
+		});
+
+		final long records = newJournal.recover();
+		journal = newJournal;
+		if (DEBUG_GENERAL) System.out.println("Recovered " + accounts.size() + " accounts from " + records + " records.");
+		return records;
+	}
+
+	/**
+	 * Get the lock stripe of an account.
+	 *
+	 * @param account The ID of the account.
+	 * @return The index of the stripe.
+	 */
+	private int stripeOf(String account) {
+		return (account.hashCode() & 0x7FFFFFFF) % stripes.length;
+	}
+
+	/**
+	 * Journal the new balances of some accounts. Must be called while holding
+	 * the stripes of the accounts, before the balances are changed, so that a
+	 * change that could not be journalled is never made.
+	 *
+	 * @param fields Pairs of account ID and new balance.
+	 * @return The sequence number of the record, or 0 if there is no journal.
+	 * @throws IOException
+	 */
+	private long journal(String... fields) throws IOException {
+		if (journal == null)
+			return 0;
+		return journal.append(LOG_BALANCES, fields);
+	}
+
+	/**
+	 * Wait for a journal record to reach the disk. Must be called without
+	 * holding any stripe.
+	 *
+	 * @param sequence The sequence number of the record.
+	 * @param result The result of the operation.
+	 * @return The result of the operation, or ERROR_JOURNAL if the record
+	 * could not be written to disk.
+	 */
+	private long commit(long sequence, long result) {
+		if (sequence == 0)
+			return result;
+
+		try {
+			journal.awaitDurable(sequence);
+			return result;
+		} catch (final IOException e) {
+			System.err.println("Failed to commit ledger journal.");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			return ERROR_JOURNAL;
+		}
+	}
+
+	/**
+	 * Report a change that could not be journalled.
+	 *
+	 * @param e The error.
+	 * @return ERROR_JOURNAL.
+	 */
+	private long journalFailed(IOException e) {
+		System.err.println("Failed to write ledger journal.");
+		if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		return ERROR_JOURNAL;
+	}
+
+	public long openAccount(String account, long initialBalance) {
+		if (initialBalance < 0)
+			return ERROR_INVALID_AMOUNT;
+
+		final long sequence;
+		synchronized (stripes[stripeOf(account)]) {
+			final Account existing = accounts.get(account);
+			if (existing != null)
+				return existing.balance;
+
+			try {
+				sequence = journal(account, Long.toString(initialBalance));
+			} catch (final IOException e) {
+				return journalFailed(e);
+			}
+			accounts.put(account, new Account(initialBalance));
+		}
+
+		if (DEBUG_GENERAL) System.out.println("Opened account \"" + account + "\" with balance " + initialBalance + ".");
+		return commit(sequence, initialBalance);
+	}
+
+	public long getBalance(String account) {
+		final Account a = accounts.get(account);
+		if (a == null)
+			return ERROR_UNKNOWN_ACCOUNT;
+
+		synchronized (stripes[stripeOf(account)]) {
+			return a.balance;
+		}
+	}
+
+	public long debit(String account, long amount) {
+		if (amount <= 0)
+			return ERROR_INVALID_AMOUNT;
+
+		final Account a = accounts.get(account);
+		if (a == null)
+			return ERROR_UNKNOWN_ACCOUNT;
+
+		final long balance;
+		final long sequence;
+		synchronized (stripes[stripeOf(account)]) {
+			if (a.balance < amount)
+				return ERROR_INSUFFICIENT_FUNDS;
+
+			balance = a.balance - amount;
+			try {
+				sequence = journal(account, Long.toString(balance));
+			} catch (final IOException e) {
+				return journalFailed(e);
+			}
+			a.balance = balance;
+		}
+
+		return commit(sequence, balance);
+	}
+
+	public long credit(String account, long amount) {
+		if (amount <= 0)
+			return ERROR_INVALID_AMOUNT;
+
+		final Account a = accounts.get(account);
+		if (a == null)
+			return ERROR_UNKNOWN_ACCOUNT;
+
+		final long balance;
+		final long sequence;
+		synchronized (stripes[stripeOf(account)]) {
+			if (a.balance > Long.MAX_VALUE - amount)
+				return ERROR_OVERFLOW;
+
+			balance = a.balance + amount;
+			try {
+				sequence = journal(account, Long.toString(balance));
+			} catch (final IOException e) {
+				return journalFailed(e);
+			}
+			a.balance = balance;
+		}
+
+		return commit(sequence, balance);
+	}
+
+	public long transfer(String from, String to, long amount) {
+		if (amount <= 0 || from.equals(to))
+			return ERROR_INVALID_AMOUNT;
+
+		final Account source = accounts.get(from);
+		final Account destination = accounts.get(to);
+		if (source == null || destination == null)
+			return ERROR_UNKNOWN_ACCOUNT;
+
+		/** Lock the stripes in index order, so that transfers can't deadlock. */
+		final int fromStripe = stripeOf(from);
+		final int toStripe = stripeOf(to);
+		final Object first = stripes[Math.min(fromStripe, toStripe)];
+		final Object second = stripes[Math.max(fromStripe, toStripe)];
+
+		final long balance;
+		final long sequence;
+		synchronized (first) {
+			synchronized (second) {
+				if (source.balance < amount)
+					return ERROR_INSUFFICIENT_FUNDS;
+				if (destination.balance > Long.MAX_VALUE - amount)
+					return ERROR_OVERFLOW;
+
+				balance = source.balance - amount;
+				final long destinationBalance = destination.balance + amount;
+				try {
+					sequence = journal(from, Long.toString(balance), to, Long.toString(destinationBalance));
+				} catch (final IOException e) {
+					return journalFailed(e);
+				}
+				source.balance = balance;
+				destination.balance = destinationBalance;
+			}
+		}
+
+		return commit(sequence, balance);
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     StripedLedger.java
+ *****************************************************************************/
@@ -18,6 +18,7 @@ import java.net.URL;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -50,6 +51,10 @@ public class Utility {
 	/** Number of hexadecimal characters required to represent a single byte. */
 	public static final int HEX_PER_BYTE = Byte.SIZE / (int) logBase2(HEXTABLE.length);
 
+	/** The digest used for public key fingerprints, and the number of bytes kept. */
+	private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+	private static final int FINGERPRINT_BYTES = 16;
+
 	/**
 	 * Function to assist with printing cryptographic keys by returning byte
 	 * arrays as a hexadecimal number.
@@ -70,6 +75,26 @@ public class Utility {
 		return buf.toString();
 	}
 
+	/**
+	 * Get a short fingerprint of a public key, which identifies the key without
+	 * having to send the key itself. The fingerprint is the start of the 
+	 * SHA-256 digest of the encoded key.
+	 * 
+	 * @param publicKey The public key.
+	 * @return The fingerprint, as a hexadecimal string.
+	 */
+	public static String getFingerprint(final PublicKey publicKey) {
+		try {
+			final byte[] digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM).digest(publicKey.getEncoded());
+			final byte[] fingerprint = new byte[FINGERPRINT_BYTES];
+			System.arraycopy(digest, 0, fingerprint, 0, FINGERPRINT_BYTES);
+			return getHexValue(fingerprint);
+		} catch (final NoSuchAlgorithmException e) {
+			/** Every Java implementation must support SHA-256. */
+			throw new IllegalStateException(e);
+		}
+	}
+
 	/**
 	 * A utility function to convert a single hexadecimal character to a decimal
 	 * integer.
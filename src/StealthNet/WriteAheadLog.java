@@ -0,0 +1,572 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        WriteAheadLog.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     An append-only, checksummed log of state changes, with
+ * 					periodic snapshots, so that state survives a restart.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/* StealthNet.WriteAheadLog Class Definition *********************************/
+
+/**
+ * An append-only log of changes to some state, so that the state can be
+ * recovered after a restart. Each change is a record, consisting of a type and
+ * a list of string fields. Records are checksummed, so that a record that was
+ * only partly written (because the process died) is detected and ignored.
+ *
+ * The log is split into numbered generations. Once enough records have been
+ * appended, a snapshot of the whole state is written (in the background), and
+ * the generations that it replaces are deleted. A snapshot of generation N
+ * contains the state as at some time after generation N started, so recovery
+ * loads the latest snapshot and then replays the logs of generation N onwards.
+ * Records must therefore be idempotent (for example, "set X to Y" rather than
+ * "add Y to X"), as some of the records replayed may already be reflected in
+ * the snapshot.
+ *
+ * Snapshots and logs are read through memory-mapped buffers, so that recovery
+ * is as fast as possible.
+ *
+ * Records are written to the operating system as soon as they are appended.
+ * They are forced to disk every sync interval, or immediately if the sync
+ * interval is zero. A caller that needs a record to be on disk before it
+ * continues (for example, before acknowledging a transaction) can instead wait
+ * for it with awaitDurable. Callers that wait at the same time share a single
+ * force (group commit), so appends are not serialised behind each force.
+ *
+ * File format (for both logs and snapshots): a sequence of records, each of
+ * the form [int length][int CRC-32 of payload][payload], where the payload is
+ * of the form [byte type][short number of fields]([int length][UTF-8 bytes])*.
+ *
+ * @author Joshua Spence
+ */
+public class WriteAheadLog {
+	/** Debug options. */
+	private static final boolean DEBUG_GENERAL     = Debug.isDebug("StealthNet.WriteAheadLog.General");
+	private static final boolean DEBUG_ERROR_TRACE = Debug.isDebug("StealthNet.WriteAheadLog.ErrorTrace") || Debug.isDebug("ErrorTrace");
+
+	/** The default time (in milliseconds) between forcing the log to disk. */
+	public static final long DEFAULT_SYNC_INTERVAL = Long.parseLong(System.getProperty("StealthNet.WriteAheadLog.SyncInterval", "1000"));
+
+	/** The default number of records appended between snapshots. */
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = Long.parseLong(System.getProperty("StealthNet.WriteAheadLog.SnapshotInterval", "100000"));
+
+	/** File names. */
+	private static final String LOG_PREFIX = "wal-";
+	private static final String LOG_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".dat";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	/** The size of the record header (length and checksum). */
+	private static final int HEADER_BYTES = 8;
+
+	/** The character set of fields. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The thread that syncs the logs and writes the snapshots of all logs. */
+	private static final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "StealthNet.WriteAheadLog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** Applies recovered records, and writes snapshots of the current state. */
+	public interface Handler {
+		/**
+		 * Apply a record to the state. Called during recovery.
+		 *
+		 * @param type The type of the record.
+		 * @param fields The fields of the record.
+		 */
+		void apply(byte type, String[] fields);
+
+		/**
+		 * Write the current state, as a sequence of records that recreate it.
+		 *
+		 * @param writer The writer to write the records to.
+		 * @throws IOException
+		 */
+		void snapshot(Writer writer) throws IOException;
+	}
+
+	/** Writes the records of a snapshot. */
+	public interface Writer {
+		/**
+		 * Write a record.
+		 *
+		 * @param type The type of the record.
+		 * @param fields The fields of the record.
+		 * @throws IOException
+		 */
+		void write(byte type, String... fields) throws IOException;
+	}
+
+	/** The directory that contains the logs and snapshots. */
+	private final File directory;
+
+	/** Applies recovered records, and writes snapshots. */
+	private final Handler handler;
+
+	/** The time (in milliseconds) between forcing the log to disk. */
+	private final long syncInterval;
+
+	/** The number of records appended between snapshots. */
+	private final long snapshotInterval;
+
+	/** The current log, and its generation. Guarded by this. */
+	private FileChannel log = null;
+	private long generation = 0;
+
+	/** The number of records appended since the last snapshot. Guarded by this. */
+	private long appended = 0;
+
+	/** True if records have been appended since the log was last forced to disk. Guarded by this. */
+	private boolean dirty = false;
+
+	/** The sequence number of the last record appended. Guarded by this. */
+	private long sequence = 0;
+
+	/** The sequence number of the last record known to be on disk. */
+	private volatile long durable = 0;
+
+	/** Serialises forcing the log to disk for awaitDurable. */
+	private final Object syncLock = new Object();
+
+	/** True while a snapshot is being written. Guarded by this. */
+	private boolean snapshotting = false;
+
+	/** Writes a snapshot. */
+	private final Runnable snapshotTask = new Runnable() {
+		public void run() {
+			try {
+				snapshot();
+			} catch (Exception e) {
+				System.err.println("Failed to write snapshot to \"" + directory + "\".");
+				if (DEBUG_ERROR_TRACE) e.printStackTrace();
+			} finally {
+				synchronized (WriteAheadLog.this) {
+					snapshotting = false;
+				}
+			}
+		}
+	};
+
+	/**
+	 * Constructor using the default sync and snapshot intervals.
+	 *
+	 * @param directory The directory that contains the logs and snapshots.
+	 * @param handler Applies recovered records, and writes snapshots.
+	 */
+	public WriteAheadLog(File directory, Handler handler) {
+		this(directory, handler, DEFAULT_SYNC_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory The directory that contains the logs and snapshots.
+	 * @param handler Applies recovered records, and writes snapshots.
+	 * @param syncInterval The time (in milliseconds) between forcing the log
+	 * to disk. If zero, then every record is forced to disk as it is appended.
+	 * @param snapshotInterval The number of records appended between
+	 * snapshots.
+	 */
+	public WriteAheadLog(File directory, Handler handler, long syncInterval, long snapshotInterval) {
+		this.directory = directory;
+		this.handler = handler;
+		this.syncInterval = Math.max(0, syncInterval);
+		this.snapshotInterval = Math.max(1, snapshotInterval);
+	}
+
+	/**
+	 * Recover the state, by loading the latest snapshot and replaying the logs
+	 * written since. Then start a new log, to which records can be appended.
+	 *
+	 * @return The number of records recovered.
+	 * @throws IOException
+	 */
+	public synchronized long recover() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create directory \"" + directory + "\".");
+
+		final List<Long> snapshots = getGenerations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		final List<Long> logs = getGenerations(LOG_PREFIX, LOG_SUFFIX);
+		long records = 0;
+
+		/** Load the latest snapshot. An incomplete snapshot is never renamed, so it is never seen. */
+		long start = 0;
+		if (!snapshots.isEmpty()) {
+			start = snapshots.get(snapshots.size() - 1);
+			final long count = read(getFile(SNAPSHOT_PREFIX, start, SNAPSHOT_SUFFIX));
+			if (count < 0)
+				throw new IOException("Snapshot " + start + " is corrupt.");
+			records += count;
+		}
+
+		/** Replay the logs written since the snapshot. */
+		long last = start;
+		for (long logGeneration : logs) {
+			last = Math.max(last, logGeneration);
+			if (logGeneration < start)
+				continue;
+
+			long count = read(getFile(LOG_PREFIX, logGeneration, LOG_SUFFIX));
+			if (count < 0) {
+				/** The end of the log was only partly written, and was ignored. */
+				count = -count - 1;
+				System.err.println("Log " + logGeneration + " ends with an incomplete record. Ignoring the incomplete record.");
+			}
+			records += count;
+		}
+
+		if (DEBUG_GENERAL) System.out.println("Recovered " + records + " records from \"" + directory + "\".");
+
+		/** Never append to an existing log, as it may end with an incomplete record. */
+		generation = last + 1;
+		log = openLog(generation);
+		appended = 0;
+
+		if (syncInterval > 0)
+			background.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					sync();
+				}
+			}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+
+		return records;
+	}
+
+	/**
+	 * Append a record to the log.
+	 *
+	 * @param type The type of the record.
+	 * @param fields The fields of the record.
+	 * @return The sequence number of the record, for awaitDurable.
+	 * @throws IOException
+	 */
+	public synchronized long append(byte type, String... fields) throws IOException {
+		if (log == null)
+			throw new IOException("Log is not open.");
+
+		final ByteBuffer record = encode(type, fields);
+		while (record.hasRemaining())
+			log.write(record);
+
+		sequence++;
+		if (syncInterval == 0) {
+			log.force(false);
+			durable = sequence;
+		} else {
+			dirty = true;
+		}
+
+		/** Write a snapshot in the background, once the log is long enough. */
+		if (++appended >= snapshotInterval && !snapshotting) {
+			snapshotting = true;
+			background.execute(snapshotTask);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Wait until a record is on disk. If another thread is already forcing the
+	 * log to disk, then wait for it to finish, as it may have included this
+	 * record. Otherwise, force every record appended so far.
+	 *
+	 * @param recordSequence The sequence number of the record (from append).
+	 * @throws IOException
+	 */
+	public void awaitDurable(long recordSequence) throws IOException {
+		if (durable >= recordSequence)
+			return;
+
+		synchronized (syncLock) {
+			if (durable >= recordSequence)
+				return;
+
+			/** Force every record appended so far, without blocking appends. */
+			final FileChannel channel;
+			final long target;
+			synchronized (this) {
+				if (log == null)
+					throw new IOException("Log is not open.");
+				channel = log;
+				target = sequence;
+				dirty = false;
+			}
+
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				/** A snapshot has started a new log, and forced the old log to disk. */
+			}
+			durable = Math.max(durable, target);
+		}
+	}
+
+	/** Force the records that have been appended to disk. */
+	public synchronized void sync() {
+		if (log == null || !dirty)
+			return;
+
+		try {
+			log.force(false);
+			dirty = false;
+			durable = sequence;
+		} catch (IOException e) {
+			System.err.println("Failed to sync log " + generation + ".");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write a snapshot of the current state, and delete the logs and snapshots
+	 * that it replaces. Records may be appended while the snapshot is written.
+	 *
+	 * @throws IOException
+	 */
+	public void snapshot() throws IOException {
+		/** Start a new log. The snapshot replaces the logs before it. */
+		final long snapshotGeneration;
+		synchronized (this) {
+			if (log == null)
+				throw new IOException("Log is not open.");
+
+			final FileChannel newLog = openLog(generation + 1);
+			log.force(false);
+			log.close();
+			durable = sequence;
+			log = newLog;
+			generation++;
+			appended = 0;
+			dirty = false;
+			snapshotGeneration = generation;
+		}
+
+		if (DEBUG_GENERAL) System.out.println("Writing snapshot " + snapshotGeneration + " to \"" + directory + "\".");
+
+		/** Write the snapshot to a temporary file, so that it is never seen incomplete. */
+		final File temporary = getFile(SNAPSHOT_PREFIX, snapshotGeneration, TEMPORARY_SUFFIX);
+		final FileOutputStream file = new FileOutputStream(temporary);
+		long records = 0;
+		try {
+			final BufferedOutputStream output = new BufferedOutputStream(file, 1 << 16);
+			final long[] count = new long[1];
+			handler.snapshot(new Writer() {
+				public void write(byte type, String... fields) throws IOException {
+					final ByteBuffer record = encode(type, fields);
+					output.write(record.array(), 0, record.limit());
+					count[0]++;
+				}
+			});
+			output.flush();
+			file.getFD().sync();
+			records = count[0];
+		} finally {
+			file.close();
+		}
+
+		final File snapshotFile = getFile(SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX);
+		if (!temporary.renameTo(snapshotFile)) {
+			temporary.delete();
+			throw new IOException("Unable to rename \"" + temporary + "\" to \"" + snapshotFile + "\".");
+		}
+
+		/** Delete the logs and snapshots that have been replaced. */
+		for (long oldGeneration : getGenerations(LOG_PREFIX, LOG_SUFFIX))
+			if (oldGeneration < snapshotGeneration)
+				getFile(LOG_PREFIX, oldGeneration, LOG_SUFFIX).delete();
+		for (long oldGeneration : getGenerations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX))
+			if (oldGeneration < snapshotGeneration)
+				getFile(SNAPSHOT_PREFIX, oldGeneration, SNAPSHOT_SUFFIX).delete();
+
+		if (DEBUG_GENERAL) System.out.println("Wrote snapshot " + snapshotGeneration + " (" + records + " records).");
+	}
+
+	/** Force the log to disk, and close it. */
+	public synchronized void close() {
+		if (log == null)
+			return;
+
+		try {
+			log.force(false);
+			log.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close log " + generation + ".");
+			if (DEBUG_ERROR_TRACE) e.printStackTrace();
+		}
+		log = null;
+	}
+
+	/**
+	 * Read a log or snapshot, applying each record to the state.
+	 *
+	 * @param file The file to read.
+	 * @return The number of records read if the whole file was read. If the
+	 * file ends with an incomplete (or corrupt) record, then -1 minus the
+	 * number of (complete) records read.
+	 * @throws IOException
+	 */
+	private long read(File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long records = 0;
+		try {
+			final FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("\"" + file + "\" is too large to map.");
+
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			final CRC32 crc = new CRC32();
+
+			while (buffer.remaining() >= HEADER_BYTES) {
+				final int length = buffer.getInt();
+				final int checksum = buffer.getInt();
+				if (length < 3 || length > buffer.remaining())
+					return -1 - records;
+
+				/** Check the payload before decoding it. */
+				final byte[] payload = new byte[length];
+				buffer.duplicate().get(payload);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum)
+					return -1 - records;
+
+				final int end = buffer.position() + length;
+				final byte type = buffer.get();
+				final String[] fields = new String[buffer.getShort() & 0xFFFF];
+				for (int i = 0; i < fields.length; i++) {
+					final byte[] bytes = new byte[buffer.getInt()];
+					buffer.get(bytes);
+					fields[i] = new String(bytes, UTF8);
+				}
+				buffer.position(end);
+
+				handler.apply(type, fields);
+				records++;
+			}
+
+			return buffer.hasRemaining() ? -1 - records : records;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Encode a record.
+	 *
+	 * @param type The type of the record.
+	 * @param fields The fields of the record.
+	 * @return A buffer (backed by an array) containing the record.
+	 */
+	private static ByteBuffer encode(byte type, String[] fields) {
+		final byte[][] bytes = new byte[fields.length][];
+		int length = 3;
+		for (int i = 0; i < fields.length; i++) {
+			bytes[i] = (fields[i] == null) ? new byte[0] : fields[i].getBytes(UTF8);
+			length += 4 + bytes[i].length;
+		}
+
+		final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+		record.putInt(length);
+		record.putInt(0);
+		record.put(type);
+		record.putShort((short) fields.length);
+		for (byte[] field : bytes) {
+			record.putInt(field.length);
+			record.put(field);
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_BYTES, length);
+		record.putInt(4, (int) crc.getValue());
+
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Open a new log for appending.
+	 *
+	 * @param logGeneration The generation of the log.
+	 * @return The log.
+	 * @throws IOException
+	 */
+	private FileChannel openLog(long logGeneration) throws IOException {
+		final FileChannel channel = new RandomAccessFile(getFile(LOG_PREFIX, logGeneration, LOG_SUFFIX), "rw").getChannel();
+		channel.position(channel.size());
+		return channel;
+	}
+
+	/**
+	 * Get the name of a log or snapshot file.
+	 *
+	 * @param prefix The file name prefix.
+	 * @param fileGeneration The generation of the file.
+	 * @param suffix The file name suffix.
+	 * @return The file.
+	 */
+	private File getFile(String prefix, long fileGeneration, String suffix) {
+		return new File(directory, prefix + fileGeneration + suffix);
+	}
+
+	/**
+	 * Get the generations of the existing logs or snapshots.
+	 *
+	 * @param prefix The file name prefix.
+	 * @param suffix The file name suffix.
+	 * @return The generations, in ascending order.
+	 */
+	private List<Long> getGenerations(String prefix, String suffix) {
+		final List<Long> generations = new ArrayList<Long>();
+		final String[] names = directory.list();
+		if (names == null)
+			return generations;
+
+		for (String name : names) {
+			if (!name.startsWith(prefix) || !name.endsWith(suffix))
+				continue;
+			try {
+				generations.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+			} catch (NumberFormatException e) {
+				/** Not one of ours. */
+			}
+		}
+
+		Collections.sort(generations);
+		return generations;
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     WriteAheadLog.java
+ *****************************************************************************/
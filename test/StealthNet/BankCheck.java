@@ -0,0 +1,175 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        BankCheck.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Checks which sessions may change balances at the bank.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.PublicKey;
+
+import org.apache.commons.codec.binary.Base64;
+
+import StealthNet.Security.RSAAsymmetricEncryption;
+
+/* StealthNet.BankCheck Class Definition *************************************/
+
+/**
+ * Runs a bank, with a journal in a temporary directory, and connects to it 
+ * as clients and as the server. Must be run from the project directory, as
+ * the bank and server keys are read from "keys".
+ * 
+ * @author Joshua Spence
+ */
+public class BankCheck {
+	/** The bank's port. */
+	private static int port;
+	
+	/** The bank's public key. */
+	private static PublicKey bankKey;
+	
+	public static void main(String[] args) throws Exception {
+		final File directory = Check.createDirectory("bank");
+		System.setProperty("StealthNet.BankThread.DataDirectory", directory.getPath());
+		startBank();
+		
+		final KeyPair clientKeys = RSAAsymmetricEncryption.generateKeys();
+		final KeyPair serverKeys = Utility.getPublicPrivateKeys("keys/server/public.key", "keys/server/private.key", "server");
+		final Comms alice = connect(clientKeys, "alice");
+		final Comms bob = connect(clientKeys, "bob");
+		
+		/** Clients may only move their own funds. */
+		Check.check(request(alice, DecryptedPacket.CMD_BALANCE, "").equals("CMD_BALANCE 100"), "clients start with 100 credits");
+		Check.check(request(alice, DecryptedPacket.CMD_CREDIT, "alice;50").equals("CMD_MSG [*BANK*] Not allowed"), "clients can't credit accounts");
+		Check.check(request(alice, DecryptedPacket.CMD_DEBIT, "bob;50").equals("CMD_MSG [*BANK*] Not allowed"), "clients can't debit accounts");
+		Check.check(request(alice, DecryptedPacket.CMD_TRANSFER, "bob;30").equals("CMD_BALANCE 70"), "clients can transfer their own funds");
+		Check.check(request(alice, DecryptedPacket.CMD_TRANSFER, "bob;300").equals("CMD_MSG [*BANK*] Insufficient funds"), "clients can't overdraw");
+		
+		/** Only the holder of the server's key may log in as the server. */
+		final Comms impostor = connect(clientKeys, BankThread.SERVER_ACCOUNT);
+		Check.check(request(impostor, DecryptedPacket.CMD_CREDIT, "alice;50") == null, "clients can't log in as the server");
+		
+		final Comms server = connect(serverKeys, BankThread.SERVER_ACCOUNT);
+		Check.check(request(server, DecryptedPacket.CMD_CREDIT, "alice;50").equals("CMD_BALANCE 120"), "the server can credit accounts");
+		Check.check(request(server, DecryptedPacket.CMD_DEBIT, "bob;10").equals("CMD_BALANCE 120"), "the server can debit accounts");
+		Check.check(request(server, DecryptedPacket.CMD_DEBIT, "nobody;10").equals("CMD_MSG [*BANK*] Unknown account"), "unknown accounts are rejected");
+		
+		/** Signing a hash chain holds its length until the chain is closed. */
+		final CryptoCredit chain = new CryptoCredit(20);
+		final String root = Base64.encodeBase64String(chain.getRoot()).trim();
+		final String signature = request(alice, DecryptedPacket.CMD_SIGNCHAIN, root + ";20").substring("CMD_SIGNCHAIN ".length());
+		Check.check(request(alice, DecryptedPacket.CMD_BALANCE, "").equals("CMD_BALANCE 100"), "signing a hash chain holds its length");
+		Check.check(request(alice, DecryptedPacket.CMD_SIGNCHAIN, root + ";20").equals("CMD_MSG [*BANK*] Invalid hash chain"), "a hash chain can't be signed twice");
+		Check.check(request(alice, DecryptedPacket.CMD_SIGNCHAIN, root + ";50").equals("CMD_MSG [*BANK*] Invalid hash chain"), "a hash chain can't be signed again with a different length");
+		Check.check(request(connect(clientKeys, BankThread.HOLD_PREFIX + root), DecryptedPacket.CMD_BALANCE, "") == null, "clients can't log in to held funds");
+		
+		/** Only the server may redeem payments from a hash chain. */
+		final CryptoCredit.Payment payment = chain.pay(5);
+		final String redemption = "alice;" + root + ";20;" + signature + ";" + payment.getIndex() + ";" + Base64.encodeBase64String(payment.getToken()).trim() + ";bob=5";
+		Check.check(request(bob, DecryptedPacket.CMD_REDEEM, redemption).equals("CMD_MSG [*BANK*] Not allowed"), "clients can't redeem payments");
+		Check.check(request(server, DecryptedPacket.CMD_REDEEM, redemption).equals("CMD_REDEEM 5"), "the server can redeem payments");
+		Check.check(request(server, DecryptedPacket.CMD_REDEEM, redemption).equals("CMD_MSG [*BANK*] Invalid payment"), "payments can't be redeemed twice");
+		Check.check(request(bob, DecryptedPacket.CMD_BALANCE, "").equals("CMD_BALANCE 125"), "redeemed payments are paid to the payee");
+		Check.check(request(alice, DecryptedPacket.CMD_BALANCE, "").equals("CMD_BALANCE 100"), "redeemed payments are paid from the held funds");
+		
+		/** Closing the chain returns the funds that are left. */
+		final CryptoCredit.Payment last = chain.pay(3);
+		final String closing = "alice;" + root + ";20;" + signature + ";" + last.getIndex() + ";" + Base64.encodeBase64String(last.getToken()).trim() + ";bob=3;" + BankThread.REDEEM_CLOSE;
+		Check.check(request(server, DecryptedPacket.CMD_REDEEM, closing).equals("CMD_REDEEM 3"), "the server can redeem payments when closing a chain");
+		Check.check(request(alice, DecryptedPacket.CMD_BALANCE, "").equals("CMD_BALANCE 112"), "closing a chain returns the funds that are left");
+		Check.check(request(server, DecryptedPacket.CMD_REDEEM, "alice;" + root + ";20;" + signature + ";0;" + root + ";;" + BankThread.REDEEM_CLOSE).equals("CMD_REDEEM 0"), "a chain can be closed again");
+		Check.check(request(alice, DecryptedPacket.CMD_BALANCE, "").equals("CMD_BALANCE 112"), "closing a chain again returns nothing");
+		
+		Check.deleteDirectory(directory);
+		Check.finish();
+	}
+	
+	/**
+	 * Start a bank on a free port, and wait for it to accept connections.
+	 * 
+	 * @throws Exception
+	 */
+	static void startBank() throws Exception {
+		port = Check.getFreePort();
+		bankKey = Utility.getPublicKey("keys/bank/public.key");
+		
+		final Thread bank = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Bank.main(new String[] { Integer.toString(port) });
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "StealthNet.Check.Bank");
+		bank.setDaemon(true);
+		bank.start();
+		
+		Check.waitFor(new Check.Condition() {
+			public boolean isTrue() {
+				try {
+					new Socket("localhost", port).close();
+					return true;
+				} catch (final IOException e) {
+					return false;
+				}
+			}
+		}, 10000);
+	}
+	
+	/**
+	 * Connect to the bank, and log in. The bank doesn't reply to a login, so
+	 * this waits for the reply to a balance request, so that the account is
+	 * open before the caller uses it.
+	 * 
+	 * @param keys Our keys.
+	 * @param user The account to log in to.
+	 * @return The session.
+	 * @throws Exception
+	 */
+	static Comms connect(KeyPair keys, String user) throws Exception {
+		final Comms comms = new Comms(new RSAAsymmetricEncryption(keys, bankKey));
+		if (!comms.initiateSession(new Socket("localhost", port)))
+			throw new IllegalStateException("Unable to connect to the bank.");
+		comms.sendPacket(DecryptedPacket.CMD_LOGIN, user);
+		request(comms, DecryptedPacket.CMD_BALANCE, "");
+		return comms;
+	}
+	
+	/**
+	 * Send a request to the bank, and wait for the reply.
+	 * 
+	 * @param comms The session.
+	 * @param command The command of the request.
+	 * @param data The data of the request.
+	 * @return The reply, of the form "COMMAND data", or null if the bank 
+	 * closed the session.
+	 */
+	static String request(Comms comms, byte command, String data) {
+		try {
+			if (!comms.sendPacket(command, data))
+				return null;
+			final DecryptedPacket reply = comms.recvPacket();
+			if (reply == null)
+				return null;
+			return DecryptedPacket.getCommandName(reply.command) + " " + new String(reply.data);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     BankCheck.java
+ *****************************************************************************/
@@ -0,0 +1,130 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        Check.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Helpers for the runnable checks in the test tree.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.File;
+import java.net.ServerSocket;
+
+/* StealthNet.Check Class Definition *****************************************/
+
+/**
+ * Helpers for the runnable checks. Each check is a class with a main method,
+ * which reports every condition that it checks, and exits with a non-zero 
+ * status if any of them failed (see the "test" target of the build file).
+ * 
+ * @author Joshua Spence
+ */
+public class Check {
+	/** The number of conditions that failed. */
+	private static int failures = 0;
+	
+	/** A condition that is waited for. */
+	public interface Condition {
+		public boolean isTrue() throws Exception;
+	}
+	
+	/**
+	 * Check a condition.
+	 * 
+	 * @param condition The result of the check.
+	 * @param description What was checked.
+	 */
+	public static void check(boolean condition, String description) {
+		if (condition)
+			System.out.println("ok      " + description);
+		else {
+			System.out.println("FAILED  " + description);
+			failures++;
+		}
+	}
+	
+	/**
+	 * Wait for a condition to become true.
+	 * 
+	 * @param condition The condition.
+	 * @param timeout The maximum time to wait (in milliseconds).
+	 * @return True if the condition became true in time.
+	 * @throws Exception
+	 */
+	public static boolean waitFor(Condition condition, long timeout) throws Exception {
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (!condition.isTrue()) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+	
+	/**
+	 * Create an empty temporary directory.
+	 * 
+	 * @param name The prefix of the name of the directory.
+	 * @return The directory.
+	 * @throws Exception
+	 */
+	public static File createDirectory(String name) throws Exception {
+		final File directory = File.createTempFile(name, "");
+		if (!directory.delete() || !directory.mkdir())
+			throw new IllegalStateException("Unable to create directory " + directory + ".");
+		return directory;
+	}
+	
+	/**
+	 * Delete a directory and everything in it.
+	 * 
+	 * @param directory The directory.
+	 */
+	public static void deleteDirectory(File directory) {
+		final File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files) {
+				if (file.isDirectory())
+					deleteDirectory(file);
+				else
+					file.delete();
+			}
+		directory.delete();
+	}
+	
+	/**
+	 * Find a port that nothing is listening on.
+	 * 
+	 * @return The port number.
+	 * @throws Exception
+	 */
+	public static int getFreePort() throws Exception {
+		final ServerSocket socket = new ServerSocket(0);
+		final int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+	
+	/**
+	 * Report the result of the checks, and exit. The exit is explicit, as 
+	 * the classes being checked may leave daemon and non-daemon threads 
+	 * running.
+	 */
+	public static void finish() {
+		if (failures > 0) {
+			System.out.println(failures + " check(s) FAILED.");
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     Check.java
+ *****************************************************************************/
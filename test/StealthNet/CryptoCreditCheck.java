@@ -0,0 +1,78 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        CryptoCreditCheck.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Checks the payments that are accepted from hash chains.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.security.KeyPair;
+
+import StealthNet.Security.RSAAsymmetricEncryption;
+
+/* StealthNet.CryptoCreditCheck Class Definition *****************************/
+
+/**
+ * Pays from a hash chain (as a client would), and checks which of the 
+ * payments are accepted by a commitment to the chain (as the server would).
+ * 
+ * @author Joshua Spence
+ */
+public class CryptoCreditCheck {
+	public static void main(String[] args) throws Exception {
+		final KeyPair bankKeys = RSAAsymmetricEncryption.generateKeys();
+		final CryptoCredit chain = new CryptoCredit(100);
+		final byte[] signature = CryptoCredit.sign(bankKeys.getPrivate(), CryptoCredit.getCommitment("alice", chain.getRoot(), chain.getLength()));
+		final CryptoCredit.Commitment commitment = new CryptoCredit.Commitment("alice", chain.getRoot(), chain.getLength(), signature);
+		Check.check(commitment.verify(bankKeys.getPublic()), "commitments signed by the bank are valid");
+		Check.check(!new CryptoCredit.Commitment("bob", chain.getRoot(), chain.getLength(), signature).verify(bankKeys.getPublic()), "commitments can't be used by another user");
+		
+		/** Payments must be worth at least the cost, and can't be replayed. */
+		final CryptoCredit.Payment first = chain.pay(5);
+		Check.check(accept(commitment, first, 5) == 5, "a payment of the cost is accepted");
+		Check.check(accept(commitment, first, 5) < 0, "a replayed payment is rejected");
+		final CryptoCredit.Payment under = chain.pay(3);
+		Check.check(accept(commitment, under, 5) < 0, "an underpaying payment is rejected");
+		Check.check(commitment.accept(under.getIndex(), first.getToken(), 3) < 0, "a payment with the wrong token is rejected");
+		
+		/** Tokens that were revealed but not accepted may be skipped, up to a limit. */
+		final CryptoCredit.Payment skip = chain.pay(5);
+		Check.check(accept(commitment, skip, 5) == 8, "a payment that skips tokens is accepted");
+		Check.check(commitment.getIndex() == skip.getIndex(), "the last token accepted is remembered");
+		chain.pay(CryptoCredit.MAX_SKIP + 1);
+		final CryptoCredit.Payment tooFar = chain.pay(1);
+		Check.check(accept(commitment, tooFar, 1) < 0, "a payment that skips more than " + CryptoCredit.MAX_SKIP + " tokens is rejected");
+		Check.check(commitment.getIndex() == skip.getIndex(), "a rejected payment isn't remembered");
+		Check.check(commitment.accept(tooFar.getIndex(), tooFar.getToken(), 1, Long.MAX_VALUE) > 0, "a payment may skip more tokens if allowed");
+		
+		/** Tokens past the end of the chain are rejected. */
+		Check.check(commitment.accept(101, tooFar.getToken(), 1, Long.MAX_VALUE) < 0, "a payment past the end of the chain is rejected");
+		Check.check(chain.pay(100) == null, "a chain can't pay more than its remaining credits");
+		
+		Check.finish();
+	}
+	
+	/**
+	 * Accept a payment.
+	 * 
+	 * @param commitment The commitment to the chain.
+	 * @param payment The payment.
+	 * @param cost The cost of the purchase.
+	 * @return The number of credits that the payment is worth, or -1 if the 
+	 * payment is invalid.
+	 */
+	private static int accept(CryptoCredit.Commitment commitment, CryptoCredit.Payment payment, int cost) {
+		return commitment.accept(payment.getIndex(), payment.getToken(), cost);
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     CryptoCreditCheck.java
+ *****************************************************************************/
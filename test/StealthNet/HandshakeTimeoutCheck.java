@@ -0,0 +1,80 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        HandshakeTimeoutCheck.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Checks that a handshake that times out frees its 
+ * 					handshake thread.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import StealthNet.Security.RSAAsymmetricEncryption;
+
+/* StealthNet.HandshakeTimeoutCheck Class Definition *************************/
+
+/**
+ * Connects clients that never send anything to a HandshakeExecutor with a 
+ * single handshake thread and a short timeout. Once a handshake has timed 
+ * out, its thread must return (rather than spin on the closed socket), so 
+ * that the next connection can be handshaken.
+ * 
+ * @author Joshua Spence
+ */
+public class HandshakeTimeoutCheck {
+	/** The handshake timeout (in milliseconds). */
+	private static final long TIMEOUT = 300;
+	
+	public static void main(String[] args) throws Exception {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance(RSAAsymmetricEncryption.ALGORITHM);
+		generator.initialize(1024);
+		final KeyPair keys = generator.generateKeyPair();
+		
+		final HandshakeExecutor executor = new HandshakeExecutor("Check", null, 1, TIMEOUT);
+		final ServerSocket serverSocket = new ServerSocket(0);
+		final Socket[] clients = new Socket[2];
+		
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = new Socket("localhost", serverSocket.getLocalPort());
+			executor.submit(serverSocket.accept(), new Comms(new RSAAsymmetricEncryption(keys)), new Runnable() {
+				public void run() {}
+			});
+		}
+		
+		/** The second handshake only starts once the first thread is free. */
+		final boolean returned = Check.waitFor(new Check.Condition() {
+			public boolean isTrue() {
+				return executor.getPending() == 0;
+			}
+		}, 10 * TIMEOUT);
+		Check.check(returned, "timed out handshakes return (pending=" + executor.getPending() + ")");
+		Check.check(executor.getCompleted() == 0, "silent clients are not accepted");
+		Check.check(executor.getFailed() == clients.length, "silent clients fail (failed=" + executor.getFailed() + ")");
+		Check.check(executor.getTimedOut() == clients.length, "silent clients time out (timedOut=" + executor.getTimedOut() + ")");
+		
+		/** The thread must be idle, not spinning. */
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().startsWith("StealthNet.Check.Handshake-"))
+				Check.check(thread.getState() != Thread.State.RUNNABLE, thread.getName() + " is idle (" + thread.getState() + ")");
+		
+		for (Socket client : clients)
+			client.close();
+		serverSocket.close();
+		executor.shutdown();
+		Check.finish();
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     HandshakeTimeoutCheck.java
+ *****************************************************************************/
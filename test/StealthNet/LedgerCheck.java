@@ -0,0 +1,161 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        LedgerCheck.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Checks that the ledgers recover their journals.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.io.File;
+import java.util.Arrays;
+
+/* StealthNet.LedgerCheck Class Definition ***********************************/
+
+/**
+ * Writes journals with the ledgers (and by hand, for states that are hard to
+ * crash into), and checks the balances that are recovered from them. Each
+ * "restart" recovers a new ledger from the journal of the last one.
+ * 
+ * @author Joshua Spence
+ */
+public class LedgerCheck {
+	/** The accounts used, and the balance that each is opened with. */
+	private static final int ACCOUNTS = 20;
+	private static final long INITIAL_BALANCE = 100;
+	
+	/** The record types of a shard's journal (see ShardedLedger). */
+	private static final byte LOG_BALANCES = 1;
+	private static final byte LOG_RESERVE  = 2;
+	private static final byte LOG_COMMIT   = 3;
+	
+	public static void main(String[] args) throws Exception {
+		checkShardCount();
+		checkInFlightTransfers();
+		Check.finish();
+	}
+	
+	/**
+	 * A sharded journal must be recovered with the number of shards that it
+	 * was written with, whatever the number of shards asked for.
+	 * 
+	 * @throws Exception
+	 */
+	private static void checkShardCount() throws Exception {
+		final File directory = Check.createDirectory("ledger");
+		
+		final ShardedLedger ledger = new ShardedLedger(2);
+		ledger.recover(directory);
+		for (int i = 0; i < ACCOUNTS; i++)
+			ledger.openAccount("user" + i, INITIAL_BALANCE);
+		for (int i = 0; i < ACCOUNTS; i++)
+			ledger.transfer("user" + i, "user" + ((i * 7 + 3) % ACCOUNTS), i + 1);
+		final long[] balances = getBalances(ledger);
+		
+		/** Restart on a host with a different number of processors. */
+		final ShardedLedger restarted = new ShardedLedger(3);
+		restarted.recover(directory);
+		Check.check(Arrays.equals(getBalances(restarted), balances), "a sharded journal is recovered with more shards requested");
+		Check.check(restarted.transfer("user0", "user1", 1) >= 0, "the recovered ledger can transfer");
+		
+		/** Journals written before the shard count was recorded are counted. */
+		new File(directory, "shards").delete();
+		final ShardedLedger legacy = new ShardedLedger(1);
+		legacy.recover(directory);
+		balances[0]--;
+		balances[1]++;
+		Check.check(Arrays.equals(getBalances(legacy), balances), "a sharded journal without a shard count is recovered");
+		Check.check(new File(directory, "shards").exists(), "the shard count is recorded");
+		
+		Check.deleteDirectory(directory);
+	}
+	
+	/**
+	 * Transfers between shards that were in progress when the ledger stopped
+	 * must be settled if the destination committed them, and refunded if not.
+	 * 
+	 * @throws Exception
+	 */
+	private static void checkInFlightTransfers() throws Exception {
+		final File directory = Check.createDirectory("ledger");
+		final String from = getAccount(0, 2);
+		final String to = getAccount(1, 2);
+		
+		/** 
+		 * The first transfer was reserved but not committed. The second was 
+		 * committed, but not settled.
+		 */
+		final WriteAheadLog source = new WriteAheadLog(new File(directory, "shard-0"), new NullHandler());
+		source.recover();
+		source.append(LOG_BALANCES, from, "100");
+		source.append(LOG_RESERVE, "t1", from, to, "30", "70");
+		source.append(LOG_RESERVE, "t2", from, to, "20", "50");
+		source.sync();
+		source.close();
+		
+		final WriteAheadLog destination = new WriteAheadLog(new File(directory, "shard-1"), new NullHandler());
+		destination.recover();
+		destination.append(LOG_BALANCES, to, "100");
+		destination.append(LOG_COMMIT, "t2", to, "120");
+		destination.sync();
+		destination.close();
+		
+		final ShardedLedger recovered = new ShardedLedger(2);
+		recovered.recover(directory);
+		Check.check(recovered.getBalance(from) == 80, "an uncommitted transfer is refunded (balance=" + recovered.getBalance(from) + ")");
+		Check.check(recovered.getBalance(to) == 120, "a committed transfer is settled (balance=" + recovered.getBalance(to) + ")");
+		
+		/** Recovery resolves each transfer once. */
+		final ShardedLedger again = new ShardedLedger(2);
+		again.recover(directory);
+		Check.check(again.getBalance(from) == 80 && again.getBalance(to) == 120, "recovering again changes nothing");
+		Check.check(again.transfer(from, to, 80) == 0 && again.getBalance(to) == 200, "the recovered ledger can transfer between shards");
+		
+		Check.deleteDirectory(directory);
+	}
+	
+	/**
+	 * Find an account that is owned by the given shard.
+	 * 
+	 * @param shard The shard.
+	 * @param shards The number of shards.
+	 * @return The ID of the account.
+	 */
+	private static String getAccount(int shard, int shards) {
+		for (int i = 0;; i++)
+			if ((("user" + i).hashCode() & 0x7FFFFFFF) % shards == shard)
+				return "user" + i;
+	}
+	
+	/** Ignores the records of a journal that is only written. */
+	private static class NullHandler implements WriteAheadLog.Handler {
+		public void apply(byte type, String[] fields) {
+		}
+		
+		public void snapshot(WriteAheadLog.Writer writer) {
+		}
+	}
+	
+	/**
+	 * Get the balance of every account.
+	 * 
+	 * @param ledger The ledger.
+	 * @return The balances.
+	 */
+	private static long[] getBalances(Ledger ledger) {
+		final long[] balances = new long[ACCOUNTS];
+		for (int i = 0; i < ACCOUNTS; i++)
+			balances[i] = ledger.getBalance("user" + i);
+		return balances;
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     LedgerCheck.java
+ *****************************************************************************/
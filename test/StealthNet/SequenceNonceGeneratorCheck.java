@@ -0,0 +1,87 @@
+/******************************************************************************
+ * ELEC5616
+ * Computer and Network Security, The University of Sydney
+ *
+ * PACKAGE:         StealthNet
+ * FILENAME:        SequenceNonceGeneratorCheck.java
+ * AUTHORS:         Joshua Spence
+ * DESCRIPTION:     Checks the edges of the replay window.
+ *
+ *****************************************************************************/
+
+package StealthNet;
+
+/* Import Libraries **********************************************************/
+
+import java.nio.ByteBuffer;
+
+import StealthNet.Security.SequenceNonceGenerator;
+
+/* StealthNet.SequenceNonceGeneratorCheck Class Definition *******************/
+
+/**
+ * Delivers sequence numbers to a receiver out of order, and checks which of 
+ * them the replay window allows.
+ * 
+ * @author Joshua Spence
+ */
+public class SequenceNonceGeneratorCheck {
+	private static final int WINDOW_SIZE = SequenceNonceGenerator.WINDOW_SIZE;
+	
+	public static void main(String[] args) throws Exception {
+		final SequenceNonceGenerator sender = new SequenceNonceGenerator();
+		final long first = toSequence(sender.getSeed());
+		
+		/** In order, and replayed. */
+		SequenceNonceGenerator receiver = new SequenceNonceGenerator(sender.getSeed());
+		Check.check(receiver.isAllowed(sender.getNext()), "the first sequence number is allowed");
+		Check.check(!receiver.isAllowed(toBytes(first)), "a replayed sequence number is rejected");
+		Check.check(!receiver.isAllowed(toBytes(first - 1)), "a sequence number before the first is rejected");
+		Check.check(!receiver.isAllowed(null) && !receiver.isAllowed(new byte[SequenceNonceGenerator.NONCE_BYTES - 1]), "a malformed sequence number is rejected");
+		
+		/** Out of order, at the edge of the window. */
+		final long highest = first + WINDOW_SIZE + 10;
+		Check.check(receiver.isAllowed(toBytes(highest)), "a later sequence number is allowed");
+		Check.check(receiver.isAllowed(toBytes(highest - (WINDOW_SIZE - 1))), "the oldest sequence number in the window is allowed");
+		Check.check(!receiver.isAllowed(toBytes(highest - (WINDOW_SIZE - 1))), "the oldest sequence number in the window is only allowed once");
+		Check.check(!receiver.isAllowed(toBytes(highest - WINDOW_SIZE)), "a sequence number older than the window is rejected");
+		Check.check(receiver.isAllowed(toBytes(highest - 1)), "a missing sequence number in the window is allowed");
+		Check.check(!receiver.isAllowed(toBytes(highest)), "the highest sequence number is only allowed once");
+		
+		/** Sliding the window by exactly its size forgets everything received. */
+		Check.check(receiver.isAllowed(toBytes(highest + WINDOW_SIZE)), "a sequence number a window ahead is allowed");
+		Check.check(!receiver.isAllowed(toBytes(highest)), "the old highest sequence number has left the window");
+		Check.check(receiver.isAllowed(toBytes(highest + 1)), "the oldest sequence number in the slid window is allowed");
+		
+		/** Sliding the window by less than its size keeps what was received. */
+		Check.check(receiver.isAllowed(toBytes(highest + WINDOW_SIZE + 1)), "the next sequence number is allowed");
+		Check.check(!receiver.isAllowed(toBytes(highest + WINDOW_SIZE)), "sequence numbers received before the window slid are remembered");
+		Check.check(!receiver.isAllowed(toBytes(highest + 1)), "the oldest sequence number is still remembered");
+		
+		Check.finish();
+	}
+	
+	/**
+	 * Convert a sequence number to a nonce.
+	 * 
+	 * @param sequence The sequence number.
+	 * @return The nonce.
+	 */
+	private static byte[] toBytes(long sequence) {
+		return ByteBuffer.allocate(SequenceNonceGenerator.NONCE_BYTES).putLong(sequence).array();
+	}
+	
+	/**
+	 * Convert a nonce to a sequence number.
+	 * 
+	 * @param bytes The nonce.
+	 * @return The sequence number.
+	 */
+	private static long toSequence(byte[] bytes) {
+		return ByteBuffer.wrap(bytes).getLong();
+	}
+}
+
+/******************************************************************************
+ * END OF FILE:     SequenceNonceGeneratorCheck.java
+ *****************************************************************************/